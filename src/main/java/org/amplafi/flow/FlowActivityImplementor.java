@@ -14,6 +14,7 @@
 
 package org.amplafi.flow;
 
+import org.amplafi.flow.flowproperty.FlowPropertyDependencyGraph;
 import org.amplafi.flow.flowproperty.FlowPropertyProviderImplementor;
 
 /**
@@ -28,6 +29,13 @@ public interface FlowActivityImplementor extends FlowActivity, FlowPropertyProvi
      */
     FlowActivityImplementor createInstance();
 
+    /**
+     * @return the dependencies between this activity's auto-created properties if they are computed in parallel when the activity is activated,
+     * otherwise null.
+     * @throws FlowConfigurationException if the auto-created properties have a dependency cycle.
+     */
+    FlowPropertyDependencyGraph getAutoCreateDependencyGraph() throws FlowConfigurationException;
+
     /**
      * @param nextFlow
      * @return the nextFlow after all property substitution has had a change to find the real name.
@@ -14,8 +14,10 @@
 package org.amplafi.flow;
 
 import java.util.List;
+import java.util.Map;
 
 import org.amplafi.flow.definitions.DefinitionSource;
+import org.amplafi.flow.flowproperty.FlowPropertyCacheSlots;
 import org.amplafi.flow.flowproperty.FlowPropertyProviderImplementor;
 
 /**
@@ -75,6 +77,32 @@ public interface FlowImplementor extends Flow, FlowPropertyProviderImplementor,
     String getDefaultAfterPage();
 
     int indexOf(FlowActivity activity);
+
+    /**
+     * @param activityName name, full name or instance namespace of the activity ( see {@link FlowActivity#isNamed(String)} ).
+     * @return the first activity with that name, null if none.
+     */
+    <T extends FlowActivity> T getActivity(String activityName);
+
+    /**
+     * The property definitions of this flow and its activities are assigned cache slots when the first instance is created.
+     * @return the slots of a slot-indexed property cache of a FlowState running this flow ( the same for the definition and its instances ).
+     */
+    FlowPropertyCacheSlots getCacheSlots();
+
+    /**
+     * Shared by the definition and all its instances.
+     * @param serializedTransitions serialized Map<String, FlowTransition> ( {@link FlowConstants#FSFLOW_TRANSITIONS} )
+     * @return the table compiled by {@link #addFlowTransitionTable(String, Map)}, null if not compiled ( or forgotten ).
+     */
+    FlowTransitionTable getFlowTransitionTable(String serializedTransitions);
+
+    /**
+     * @param serializedTransitions
+     * @param transitions serializedTransitions deserialized.
+     * @return the compiled table to be returned by {@link #getFlowTransitionTable(String)}
+     */
+    FlowTransitionTable addFlowTransitionTable(String serializedTransitions, Map<String, FlowTransition> transitions);
     void refresh();
     boolean isActivatable();
 }
@@ -16,10 +16,13 @@ package org.amplafi.flow;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import org.amplafi.flow.flowproperty.FlowPropertyDefinitionBuilder;
 import org.amplafi.flow.flowproperty.FlowPropertyDefinitionImplementor;
 import org.amplafi.flow.flowproperty.FlowPropertyProviderImplementor;
+import org.amplafi.flow.flowproperty.FlowPropertyValueCachePolicy;
+import org.amplafi.flow.impl.FlowStateImplementor;
 import org.amplafi.flow.launcher.ValueFromBindingProvider;
 
 import com.sworddance.beans.ClassResolver;
@@ -32,7 +35,7 @@ import org.apache.commons.logging.Log;
  * @author Patrick Moore
  *
  */
-public interface FlowManagement extends FlowStateListener {
+public interface FlowManagement extends FlowStateListener, FlowTxListener {
     /**
      *  a user may have multiple concurrently active
      * requests.
@@ -133,8 +136,24 @@ public interface FlowManagement extends FlowStateListener {
 
     FlowImplementor getInstanceFromDefinition(String flowTypeName);
 
+    /**
+     * Called when a FlowState caches a value that is bound to the current {@link FlowTx} transaction.
+     * @see org.amplafi.flow.flowproperty.FlowPropertyValueCachePolicy#isTransactionBound(Object)
+     */
     void registerForCacheClearing();
 
+    /**
+     * @return changes each time a transaction that cached transaction bound values completes.
+     */
+    long getTransactionEpoch();
+
+    /**
+     * Called by the {@link FlowTx} after a transaction in which {@link #registerForCacheClearing()} was called commits or rolls back.
+     * The transaction bound values cached by the FlowStates ( entities ) are no longer used. Transaction independent values stay cached.
+     * @see org.amplafi.flow.FlowTxListener#transactionCompleted()
+     */
+    void transactionCompleted();
+
     Log getLog();
 
     /**
@@ -144,6 +163,19 @@ public interface FlowManagement extends FlowStateListener {
      */
     boolean makeAfter(FlowState flowState, FlowState nextFlowState);
 
+    /**
+     * Called by a FlowState after its flow type changed ( morphing ) so that FlowStates can be found by their new flow type.
+     * @param flowState
+     * @param previousFlowTypeName
+     */
+    void flowTypeChange(FlowStateImplementor flowState, String previousFlowTypeName);
+
+    /**
+     * Called by a FlowState when the FlowStates it references ( {@link FlowStateImplementor#getReferencedLookupKeys()} ) may have changed.
+     * @param flowState
+     */
+    void referencesChange(FlowStateImplementor flowState);
+
     /**
      * @param state the {@link FlowState} that should be made the current FlowState.
      */
@@ -176,6 +208,22 @@ public interface FlowManagement extends FlowStateListener {
      */
     FlowTranslatorResolver getFlowTranslatorResolver();
 
+    /**
+     * @return the executor that computes property values ahead of use. null ( the default ) to compute property values only when needed.
+     * @see org.amplafi.flow.impl.FlowStateImplementor#prefetchFlowProperties(org.amplafi.flow.flowproperty.FlowPropertyProvider, Iterable)
+     */
+    ExecutorService getFlowPropertyPrefetchExecutor();
+
+    /**
+     * @return limits the deserialized property values each FlowState keeps in memory.
+     */
+    FlowPropertyValueCachePolicy getFlowPropertyValueCachePolicy();
+
+    /**
+     * @return the estimated memory used by the cached property values of all the FlowStates.
+     */
+    long getCachedValuesEstimatedBytes();
+
     /**
      * Do the Dependency Injection on this activity.
      * @param object may be null.
@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable finish key -> {@link FlowTransition} table. Compiled once for each distinct serialized
+ * {@link FlowConstants#FSFLOW_TRANSITIONS} value of a flow definition ( see {@link FlowImplementor#getFlowTransitionTable(String)} )
+ * so finishing a flow does not parse the transitions again.
+ *
+ * The {@link FlowTransition}s are shared by all the FlowStates of the flow definition and must not be modified.
+ * @author patmoore
+ *
+ */
+public class FlowTransitionTable {
+    public static final FlowTransitionTable EMPTY = new FlowTransitionTable(null);
+
+    private final Map<String, FlowTransition> transitions;
+
+    /**
+     * @param transitions copied.
+     */
+    public FlowTransitionTable(Map<String, FlowTransition> transitions) {
+        if ( transitions == null || transitions.isEmpty()) {
+            this.transitions = Collections.emptyMap();
+        } else {
+            this.transitions = Collections.unmodifiableMap(new LinkedHashMap<String, FlowTransition>(transitions));
+        }
+    }
+
+    /**
+     * @param finishKey
+     * @return the transition to take when the flow finishes with finishKey, null if none.
+     */
+    public FlowTransition get(String finishKey) {
+        return finishKey == null? null : this.transitions.get(finishKey);
+    }
+
+    public boolean isEmpty() {
+        return this.transitions.isEmpty();
+    }
+
+    /**
+     * @return unmodifiable.
+     */
+    public Map<String, FlowTransition> getTransitions() {
+        return this.transitions;
+    }
+
+    @Override
+    public String toString() {
+        return "FlowTransitionTable"+this.transitions.keySet();
+    }
+}
@@ -16,6 +16,10 @@ package org.amplafi.flow;
 /**
  * Interface that defines access to the transaction object currently active.
  *
+ * FlowTx does not control the transaction. The implementation finds out when the transaction commits or rolls back ( from the request
+ * cycle or the transaction manager integration ) and notifies the {@link FlowTxListener}s registered for that transaction. The
+ * {@link FlowManagement} registers when a FlowState caches a value bound to the transaction ( see {@link FlowManagement#transactionCompleted()} ).
+ *
  * @author Patrick Moore
  *
  */
@@ -34,4 +38,9 @@ public interface FlowTx {
      * @return the object in db on success, may not be entity.
      */
     <T> T saveOrUpdate(T entity);
+
+    /**
+     * @param flowTxListener notified once, when the current transaction commits or rolls back. Then forgotten.
+     */
+    void addFlowTxListener(FlowTxListener flowTxListener);
 }
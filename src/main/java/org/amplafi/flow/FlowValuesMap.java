@@ -13,7 +13,9 @@
  */
 package org.amplafi.flow;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.sworddance.core.Emptyable;
 
@@ -107,6 +109,53 @@ public interface FlowValuesMap<K extends FlowValueMapKey, V extends CharSequence
 
     Map<String, String> getAsStringMap(boolean trimEmptyBlank, boolean preserveNamespace);
 
+    /**
+     *
+     * @return the namespaces that have at least one key. Modifying the returned set does not affect the FlowValuesMap.
+     */
+    Set<String> getNamespaces();
+
+    /**
+     * Used to iterate through a single namespace without walking the entire FlowValuesMap.
+     * @param namespace
+     * @return read-only key->value map of the keys in namespace. Never null.
+     */
+    Map<String, V> getNamespace(Object namespace);
+
+    /**
+     * Removes all the keys in namespace. For example, when an activity's instance namespace is no longer needed.
+     * @param namespace
+     */
+    void removeNamespace(Object namespace);
+
+    /**
+     * Copy all the keys in fromNamespace to toNamespace. Existing keys in toNamespace are replaced.
+     * Later changes to either namespace do not affect the other namespace.
+     * @param fromNamespace
+     * @param toNamespace
+     */
+    void copyNamespace(Object fromNamespace, Object toNamespace);
+
+    /**
+     * Used when exporting values to other flows.
+     * @return an independent copy: later changes to either map do not affect the other. Implementations may share structure.
+     */
+    FlowValuesMap<K, V> copy();
+
+    /**
+     * Allows persisters, session replicators and renderers to handle only what changed ( for example, during a single request ).
+     * Changes are recorded from the first call ( which starts the recording and returns nothing ) so that a map nobody drains does not pay for recording.
+     * Values supplied to a constructor or by {@link #copy()} are not changes and a copy does not record until it is drained.
+     * @return the net change to each key changed since the last call. The recorded changes are then discarded.
+     */
+    List<FlowValuesMapChange> drainChanges();
+
+    /**
+     * Unlike {@link #drainChanges()} nothing is consumed, so any number of consumers can compare the count with the one they last saw.
+     * @return the number of changes since this map was created or deserialized. Changes that {@link #drainChanges()} does not record are not counted.
+     */
+    long getModificationCount();
+
     @Override
     int size();
 
@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow;
+
+import java.io.Serializable;
+
+import org.apache.commons.lang.ObjectUtils;
+
+/**
+ * The net change to a single (namespace, key) in a {@link FlowValuesMap} since the last {@link FlowValuesMap#drainChanges()}.
+ *
+ * Multiple changes to the same key are combined: oldValue is the value before the first change and newValue is the value after the last change.
+ * @author patmoore
+ *
+ */
+public class FlowValuesMapChange implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final String namespace;
+    private final String key;
+    private final String oldValue;
+    private final String newValue;
+    private final boolean previouslyPresent;
+    private final boolean removed;
+
+    /**
+     * @param namespace
+     * @param key
+     * @param oldValue
+     * @param newValue
+     * @param previouslyPresent true if the key was in the map before the change.
+     * @param removed true if the key is no longer in the map.
+     */
+    public FlowValuesMapChange(String namespace, String key, String oldValue, String newValue, boolean previouslyPresent, boolean removed) {
+        this.namespace = namespace;
+        this.key = key;
+        this.oldValue = oldValue;
+        this.newValue = removed? null: newValue;
+        this.previouslyPresent = previouslyPresent;
+        this.removed = removed;
+    }
+
+    /**
+     * @param next a later change to the same (namespace, key)
+     * @return the combined change or null if the combined changes have no net effect.
+     */
+    public FlowValuesMapChange combine(FlowValuesMapChange next) {
+        FlowValuesMapChange combined = new FlowValuesMapChange(namespace, key, oldValue, next.newValue, previouslyPresent, next.removed);
+        return combined.isNoChange()? null: combined;
+    }
+
+    /**
+     * @return true if the map is the same as before the change.
+     */
+    public boolean isNoChange() {
+        if ( previouslyPresent ) {
+            return !removed && ObjectUtils.equals(oldValue, newValue);
+        } else {
+            return removed;
+        }
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getOldValue() {
+        return oldValue;
+    }
+
+    /**
+     * @return null if {@link #isRemoved()}
+     */
+    public String getNewValue() {
+        return newValue;
+    }
+
+    public boolean isPreviouslyPresent() {
+        return previouslyPresent;
+    }
+
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    @Override
+    public String toString() {
+        return namespace+":"+key+(removed?" removed (was '"+oldValue+"')":" '"+oldValue+"' -> '"+newValue+"'");
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.flowproperty;
+
+import java.util.List;
+
+import org.amplafi.flow.FlowPropertyDefinition;
+
+/**
+ * A {@link FlowPropertyValueChangeListener} that can handle many changes in one call.
+ *
+ * When a FlowState sets many values at once ( for example, when initializing the flow properties )
+ * {@link #propertyChange(FlowPropertyProvider, String, FlowPropertyDefinition, String, String)} is not called for each change. Instead
+ * {@link #propertiesChange(List)} is called once after all the values have been set. Because the values are already set a batch listener cannot alter
+ * the values being set.
+ * @author patmoore
+ *
+ */
+public interface BatchFlowPropertyValueChangeListener extends FlowPropertyValueChangeListener {
+
+    /**
+     * @param flowPropertyValueChanges in the order the changes were made.
+     */
+    void propertiesChange(List<FlowPropertyValueChange> flowPropertyValueChanges);
+}
@@ -0,0 +1,38 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.flowproperty;
+
+import org.amplafi.flow.FlowManagement;
+
+/**
+ * Implemented by objects that remember that {@link FlowManagement#wireDependencies(Object)} has been done so the wiring is only done once.
+ *
+ * Similar to {@link Resolvable}, but a wiring epoch is recorded rather than a flag so that the FlowManagement can invalidate the wiring.
+ * @author patmoore
+ *
+ */
+public interface DependenciesWired {
+
+    /**
+     * @param wiringEpoch of the FlowManagement about to do the wiring.
+     * @return true if the dependencies have been wired for wiringEpoch.
+     */
+    boolean isDependenciesWired(long wiringEpoch);
+
+    /**
+     * set by the {@link FlowManagement} after wiring.
+     * @param wiringEpoch
+     */
+    void setDependenciesWired(long wiringEpoch);
+}
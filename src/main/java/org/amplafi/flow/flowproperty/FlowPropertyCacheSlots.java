@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.flowproperty;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.amplafi.flow.FlowPropertyDefinition;
+
+/**
+ * The cache slots of one flow definition: each property definition of the flow ( and its activities ) has a distinct slot, numbered
+ * densely from 0. Slots belong to the flow, not the definition, so a definition shared by several flows can have a different slot in each.
+ *
+ * Immutable once created so it is shared by the flow definition, its instances and their FlowStates without locking.
+ * @author patmoore
+ *
+ */
+public class FlowPropertyCacheSlots {
+    public static final FlowPropertyCacheSlots NONE = new FlowPropertyCacheSlots(Collections.<FlowPropertyDefinition>emptyList());
+
+    /**
+     * definition ( by identity ) -> slot.
+     */
+    private final Map<FlowPropertyDefinition, Integer> slots;
+
+    /**
+     * @param definitions in slot order. A definition listed more than once only gets one slot.
+     */
+    public FlowPropertyCacheSlots(Collection<? extends FlowPropertyDefinition> definitions) {
+        this.slots = new IdentityHashMap<FlowPropertyDefinition, Integer>(definitions.size());
+        for(FlowPropertyDefinition definition: definitions) {
+            if ( !this.slots.containsKey(definition)) {
+                this.slots.put(definition, this.slots.size());
+            }
+        }
+    }
+
+    /**
+     * @param flowPropertyDefinition
+     * @return the slot of flowPropertyDefinition, -1 if it has no slot ( for example, dynamically created definitions ).
+     */
+    public int getSlot(FlowPropertyDefinition flowPropertyDefinition) {
+        Integer slot = this.slots.get(flowPropertyDefinition);
+        return slot == null? -1 : slot.intValue();
+    }
+
+    /**
+     * @return the number of slots.
+     */
+    public int size() {
+        return this.slots.size();
+    }
+}
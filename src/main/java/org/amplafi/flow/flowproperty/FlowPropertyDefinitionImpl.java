@@ -15,6 +15,7 @@
 package org.amplafi.flow.flowproperty;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -52,7 +53,7 @@ import static org.apache.commons.lang.StringUtils.*;
  *
  * @author Patrick Moore
  */
-public class FlowPropertyDefinitionImpl implements FlowPropertyDefinitionImplementor {
+public class FlowPropertyDefinitionImpl implements FlowPropertyDefinitionImplementor, DependenciesWired {
 
     /**
      * Name of the property as used in the flow code.
@@ -96,6 +97,16 @@ public class FlowPropertyDefinitionImpl implements FlowPropertyDefinitionImpleme
 
     private Set<String> alternates;
 
+    /**
+     * cached {@link #getAllNames()}: reset when merging.
+     */
+    private transient volatile Set<String> allNames;
+
+    /**
+     * see {@link DependenciesWired}. 0 == not wired. Reset when the objects needing wiring change.
+     */
+    private transient volatile long wiringEpoch;
+
     /**
      * data that should not be outputted or saved. for example, passwords.
      */
@@ -341,14 +352,23 @@ public class FlowPropertyDefinitionImpl implements FlowPropertyDefinitionImpleme
     public Set<String> getAlternates() {
         return this.alternates;
     }
+    /**
+     * The same unmodifiable set is returned until this definition is merged.
+     * @see org.amplafi.flow.FlowPropertyDefinition#getAllNames()
+     */
     @Override
     public Set<String> getAllNames() {
-        Set<String> allNames = new LinkedHashSet<String>();
-        allNames.add(this.getName());
-        if ( this.alternates != null) {
-            allNames.addAll(getAlternates());
+        Set<String> names = this.allNames;
+        if ( names == null ) {
+            names = new LinkedHashSet<String>();
+            names.add(this.getName());
+            if ( this.alternates != null) {
+                names.addAll(getAlternates());
+            }
+            names = Collections.unmodifiableSet(names);
+            this.allNames = names;
         }
-        return allNames;
+        return names;
     }
 
     @Override
@@ -465,6 +485,9 @@ public class FlowPropertyDefinitionImpl implements FlowPropertyDefinitionImpleme
         }
 
         // TODO : determine how to handle propertyRequired / PropertyUsage/PropertyScope/ExternalPropertyAccessRestriction which vary between different FAs in the same Flow.
+        // new set also signals that any NamespaceKeySearchPlan is out of date.
+        this.allNames = null;
+        this.wiringEpoch = 0;
         return noMergeConflict;
     }
 
@@ -507,6 +530,7 @@ public class FlowPropertyDefinitionImpl implements FlowPropertyDefinitionImpleme
     public <FA extends FlowPropertyProvider>void setFlowPropertyValueProvider(FlowPropertyValueProvider<FA> flowPropertyValueProvider) {
         // TODO: lock down for templates
         this.flowPropertyValueProvider = (FlowPropertyValueProvider<FlowPropertyProvider>) flowPropertyValueProvider;
+        this.wiringEpoch = 0;
     }
 
     /**
@@ -527,6 +551,22 @@ public class FlowPropertyDefinitionImpl implements FlowPropertyDefinitionImpleme
         return this.flowPropertyValuePersister;
     }
 
+    @Override
+    public boolean isDependenciesWired(long epoch) {
+        return epoch != 0 && this.wiringEpoch == epoch;
+    }
+
+    /**
+     * Not recorded if the {@link FlowTranslator} has not been resolved yet: the translator will need to be wired once it is.
+     * @see org.amplafi.flow.flowproperty.DependenciesWired#setDependenciesWired(long)
+     */
+    @Override
+    public void setDependenciesWired(long epoch) {
+        if ( isFlowTranslatorSet()) {
+            this.wiringEpoch = epoch;
+        }
+    }
+
     @Override
     public List<Object> getObjectsNeedingToBeWired() {
         List<Object> objectsNeedingToBeWired = new ArrayList<Object>();
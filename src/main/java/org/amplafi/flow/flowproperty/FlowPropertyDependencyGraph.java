@@ -0,0 +1,153 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.flowproperty;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.amplafi.flow.FlowConfigurationException;
+import org.amplafi.flow.FlowPropertyDefinition;
+import org.amplafi.flow.FlowPropertyExpectation;
+
+/**
+ * The dependencies ( {@link FlowPropertyDefinitionImplementor#getPropertiesDependentOn()} ) between the auto-created properties
+ * ( {@link FlowPropertyDefinition#isAutoCreate()} ) of a {@link FlowPropertyProvider}.
+ *
+ * The properties are grouped into levels: the properties in a level only depend on properties in earlier levels ( or properties not in the graph ).
+ * So the properties in a level can be computed in parallel once the earlier levels are computed.
+ *
+ * Immutable.
+ * @author patmoore
+ *
+ */
+public class FlowPropertyDependencyGraph {
+    private final List<List<FlowPropertyDefinitionImplementor>> levels;
+    private final int size;
+    private final int sourceSize;
+
+    /**
+     * @param owner used in the exception message.
+     * @param flowPropertyDefinitions properties that are not auto-created are ignored.
+     * @throws FlowConfigurationException if the auto-created properties have a dependency cycle.
+     */
+    public FlowPropertyDependencyGraph(Object owner, Collection<? extends FlowPropertyDefinition> flowPropertyDefinitions) throws FlowConfigurationException {
+        Map<String, FlowPropertyDefinitionImplementor> byName = new HashMap<String, FlowPropertyDefinitionImplementor>();
+        List<FlowPropertyDefinitionImplementor> nodes = new ArrayList<FlowPropertyDefinitionImplementor>();
+        if ( flowPropertyDefinitions != null ) {
+            for(FlowPropertyDefinition flowPropertyDefinition: flowPropertyDefinitions) {
+                if ( flowPropertyDefinition instanceof FlowPropertyDefinitionImplementor && flowPropertyDefinition.isAutoCreate()) {
+                    nodes.add((FlowPropertyDefinitionImplementor) flowPropertyDefinition);
+                    for(String name: flowPropertyDefinition.getAllNames()) {
+                        byName.put(name, (FlowPropertyDefinitionImplementor) flowPropertyDefinition);
+                    }
+                }
+            }
+        }
+        // node -> the nodes it depends on.
+        Map<FlowPropertyDefinitionImplementor, Set<FlowPropertyDefinitionImplementor>> dependsOn = new IdentityHashMap<FlowPropertyDefinitionImplementor, Set<FlowPropertyDefinitionImplementor>>();
+        for(FlowPropertyDefinitionImplementor node: nodes) {
+            Set<FlowPropertyDefinitionImplementor> dependencies = new LinkedHashSet<FlowPropertyDefinitionImplementor>();
+            Set<FlowPropertyExpectation> propertiesDependentOn = node.getPropertiesDependentOn();
+            if ( propertiesDependentOn != null ) {
+                for(FlowPropertyExpectation dependentOn: propertiesDependentOn) {
+                    FlowPropertyDefinitionImplementor dependency = byName.get(dependentOn.getName());
+                    if ( dependency != null) {
+                        dependencies.add(dependency);
+                    }
+                }
+            }
+            dependsOn.put(node, dependencies);
+        }
+
+        List<List<FlowPropertyDefinitionImplementor>> levels = new ArrayList<List<FlowPropertyDefinitionImplementor>>();
+        Map<FlowPropertyDefinitionImplementor, Integer> levelOf = new IdentityHashMap<FlowPropertyDefinitionImplementor, Integer>();
+        List<FlowPropertyDefinitionImplementor> remaining = new ArrayList<FlowPropertyDefinitionImplementor>(nodes);
+        while(!remaining.isEmpty()) {
+            List<FlowPropertyDefinitionImplementor> level = new ArrayList<FlowPropertyDefinitionImplementor>();
+            for(FlowPropertyDefinitionImplementor node: remaining) {
+                if ( levelOf.keySet().containsAll(dependsOn.get(node))) {
+                    level.add(node);
+                }
+            }
+            if ( level.isEmpty()) {
+                throw new FlowConfigurationException(owner, ": auto-created properties have a dependency cycle: ", findCycle(remaining, dependsOn));
+            }
+            for(FlowPropertyDefinitionImplementor node: level) {
+                levelOf.put(node, levels.size());
+            }
+            remaining.removeAll(level);
+            levels.add(Collections.unmodifiableList(level));
+        }
+        this.levels = Collections.unmodifiableList(levels);
+        this.size = nodes.size();
+        this.sourceSize = flowPropertyDefinitions == null? 0: flowPropertyDefinitions.size();
+    }
+
+    /**
+     * @return every node in remaining has a dependency in remaining so following the first dependency in remaining must loop.
+     */
+    private static String findCycle(List<FlowPropertyDefinitionImplementor> remaining, Map<FlowPropertyDefinitionImplementor, Set<FlowPropertyDefinitionImplementor>> dependsOn) {
+        List<FlowPropertyDefinitionImplementor> path = new ArrayList<FlowPropertyDefinitionImplementor>();
+        FlowPropertyDefinitionImplementor node = remaining.get(0);
+        while(!path.contains(node)) {
+            path.add(node);
+            for(FlowPropertyDefinitionImplementor dependency: dependsOn.get(node)) {
+                if ( remaining.contains(dependency)) {
+                    node = dependency;
+                    break;
+                }
+            }
+        }
+        StringBuilder cycle = new StringBuilder();
+        for(FlowPropertyDefinitionImplementor member: path.subList(path.indexOf(node), path.size())) {
+            cycle.append(member.getName()).append(" -> ");
+        }
+        return cycle.append(node.getName()).toString();
+    }
+
+    /**
+     * @return the properties grouped so that properties only depend on properties in earlier levels.
+     */
+    public List<List<FlowPropertyDefinitionImplementor>> getLevels() {
+        return levels;
+    }
+
+    /**
+     * @return the number of properties in the graph.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of property definitions the graph was built from ( including the ones that are not auto-created ).
+     */
+    public int getSourceSize() {
+        return sourceSize;
+    }
+
+    /**
+     * @return the length of the longest dependency chain.
+     */
+    public int getDepth() {
+        return levels.size();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.flowproperty;
+
+/**
+ * Controls how much a FlowState keeps in its cache of deserialized property values.
+ *
+ * Only values that can be recreated are affected: values whose serialized form is in the FlowState. Evicted ( or garbage collected ) values are
+ * deserialized again when next needed. Values that only exist in the cache ( {@link org.amplafi.flow.FlowPropertyDefinition#isCacheOnly()} ) are never evicted.
+ *
+ * Independently of the limits, values that are {@link #isTransactionBound(Object)} are forgotten when the {@link org.amplafi.flow.FlowTx} transaction
+ * completes ( see {@link org.amplafi.flow.FlowManagement#transactionCompleted()} ).
+ * @author patmoore
+ *
+ */
+public interface FlowPropertyValueCachePolicy {
+
+    /**
+     * @param value
+     * @return approximate memory used by value.
+     */
+    long estimateBytes(Object value);
+
+    /**
+     * @return true if values that can be recreated should be held by {@link java.lang.ref.SoftReference}s so the garbage collector can reclaim them.
+     */
+    boolean isSoftReferenced();
+
+    /**
+     * @param entryCount number of values in the cache.
+     * @param estimatedBytes total {@link #estimateBytes(Object)} of the values in the cache.
+     * @return true if the least recently used values should be evicted.
+     */
+    boolean isOverLimit(int entryCount, long estimatedBytes);
+
+    /**
+     * @return false if {@link #isOverLimit(int, long)} is never true. The cache does not track recency for unbounded policies.
+     */
+    boolean isBounded();
+
+    /**
+     * @param value
+     * @return true if value may be ( or may reference ) a persistent entity that is only valid in the transaction that loaded it.
+     * false for immutable value objects that can be reused by later requests.
+     */
+    boolean isTransactionBound(Object value);
+}
@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.flowproperty;
+
+import org.amplafi.flow.FlowPropertyDefinition;
+
+/**
+ * A change to a raw property value delivered to a {@link BatchFlowPropertyValueChangeListener}.
+ * Has the same values that would have been passed to
+ * {@link FlowPropertyValueChangeListener#propertyChange(FlowPropertyProvider, String, FlowPropertyDefinition, String, String)}.
+ * @author patmoore
+ *
+ */
+public class FlowPropertyValueChange {
+    private final FlowPropertyProvider flowPropertyProvider;
+    private final String namespace;
+    private final FlowPropertyDefinition flowPropertyDefinition;
+    private final String newValue;
+    private final String oldValue;
+
+    public FlowPropertyValueChange(FlowPropertyProvider flowPropertyProvider, String namespace, FlowPropertyDefinition flowPropertyDefinition,
+        String newValue, String oldValue) {
+        this.flowPropertyProvider = flowPropertyProvider;
+        this.namespace = namespace;
+        this.flowPropertyDefinition = flowPropertyDefinition;
+        this.newValue = newValue;
+        this.oldValue = oldValue;
+    }
+
+    public FlowPropertyProvider getFlowPropertyProvider() {
+        return flowPropertyProvider;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public FlowPropertyDefinition getFlowPropertyDefinition() {
+        return flowPropertyDefinition;
+    }
+
+    public String getNewValue() {
+        return newValue;
+    }
+
+    public String getOldValue() {
+        return oldValue;
+    }
+
+    @Override
+    public String toString() {
+        return this.namespace+"."+this.flowPropertyDefinition.getName()+":"+this.oldValue+"->"+this.newValue;
+    }
+}
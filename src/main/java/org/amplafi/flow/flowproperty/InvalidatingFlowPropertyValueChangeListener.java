@@ -14,9 +14,12 @@
 package org.amplafi.flow.flowproperty;
 
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.amplafi.flow.FlowPropertyDefinition;
 import org.amplafi.flow.FlowPropertyExpectation;
@@ -28,12 +31,16 @@ import com.sworddance.util.map.ConcurrentInitializedMap;
  * Listen for property changes so that dependent properties can be cleared.
  *
  * The FlowPropertyProvider must implement FlowPropertyProviderWithValues for this listener to work. If not nothing is done in {@link #propertyChange(FlowPropertyProvider, String, FlowPropertyDefinition, String, String)}
+ *
+ * Only watches properties that have monitored dependents. For a batch of changes the dependents are invalidated once; properties set in the
+ * batch are not invalidated by the other changes in the same batch.
  * @author patmoore
  *
  */
-public class InvalidatingFlowPropertyValueChangeListener implements FlowPropertyValueChangeListener {
+public class InvalidatingFlowPropertyValueChangeListener implements SelectiveFlowPropertyValueChangeListener, BatchFlowPropertyValueChangeListener {
 
     private ConcurrentMap<String, List<FlowPropertyDefinition>> propertyToDependentPropertiesMap = ConcurrentInitializedMap.<String, FlowPropertyDefinition>newConcurrentInitializedMapWithList();
+    private final AtomicInteger watchedPropertiesVersion = new AtomicInteger();
     /**
      * @see org.amplafi.flow.flowproperty.FlowPropertyValueChangeListener#propertyChange(org.amplafi.flow.flowproperty.FlowPropertyProvider, java.lang.String, org.amplafi.flow.FlowPropertyDefinition, java.lang.String, java.lang.String)
      */
@@ -52,6 +59,56 @@ public class InvalidatingFlowPropertyValueChangeListener implements FlowProperty
         return newValue;
     }
 
+    /**
+     * @see org.amplafi.flow.flowproperty.BatchFlowPropertyValueChangeListener#propertiesChange(java.util.List)
+     */
+    @Override
+    public void propertiesChange(List<FlowPropertyValueChange> flowPropertyValueChanges) {
+        Map<FlowPropertyProviderWithValues, Set<String>> propertiesToBeInvalidatedByProvider = new LinkedHashMap<FlowPropertyProviderWithValues, Set<String>>();
+        Map<FlowPropertyProviderWithValues, Set<String>> changedPropertiesByProvider = new LinkedHashMap<FlowPropertyProviderWithValues, Set<String>>();
+        for(FlowPropertyValueChange flowPropertyValueChange: flowPropertyValueChanges) {
+            if ( flowPropertyValueChange.getFlowPropertyProvider() instanceof FlowPropertyProviderWithValues) {
+                FlowPropertyProviderWithValues flowPropertyProvider = (FlowPropertyProviderWithValues) flowPropertyValueChange.getFlowPropertyProvider();
+                Set<String> propertiesToBeInvalidated = propertiesToBeInvalidatedByProvider.get(flowPropertyProvider);
+                Set<String> changedProperties = changedPropertiesByProvider.get(flowPropertyProvider);
+                if ( propertiesToBeInvalidated == null) {
+                    propertiesToBeInvalidated = new HashSet<String>();
+                    propertiesToBeInvalidatedByProvider.put(flowPropertyProvider, propertiesToBeInvalidated);
+                    changedProperties = new HashSet<String>();
+                    changedPropertiesByProvider.put(flowPropertyProvider, changedProperties);
+                }
+                changedProperties.addAll(flowPropertyValueChange.getFlowPropertyDefinition().getAllNames());
+                collectInvalidated(propertiesToBeInvalidated, flowPropertyValueChange.getFlowPropertyDefinition());
+            }
+        }
+        for(Map.Entry<FlowPropertyProviderWithValues, Set<String>> entry: propertiesToBeInvalidatedByProvider.entrySet()) {
+            Set<String> propertiesToBeInvalidated = entry.getValue();
+            propertiesToBeInvalidated.removeAll(changedPropertiesByProvider.get(entry.getKey()));
+            for(String propertyToBeInvalidated: NotNullIterator.<String>newNotNullIterator(propertiesToBeInvalidated)) {
+                entry.getKey().setProperty(propertyToBeInvalidated, null);
+            }
+        }
+    }
+
+    /**
+     * @see org.amplafi.flow.flowproperty.SelectiveFlowPropertyValueChangeListener#isWatching(org.amplafi.flow.FlowPropertyDefinition)
+     */
+    @Override
+    public boolean isWatching(FlowPropertyDefinition flowPropertyDefinition) {
+        for(String name : flowPropertyDefinition.getAllNames()) {
+            // containsKey() first: get() on the initialized map would create an entry.
+            if ( this.propertyToDependentPropertiesMap.containsKey(name) && !this.propertyToDependentPropertiesMap.get(name).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int getWatchedPropertiesVersion() {
+        return this.watchedPropertiesVersion.get();
+    }
+
     /**
      * @param flowPropertyDefinition
      * @param propertiesToBeInvalidated
@@ -74,5 +131,6 @@ public class InvalidatingFlowPropertyValueChangeListener implements FlowProperty
             // and that check is too awkward for now.
             CUtilities.get(this.propertyToDependentPropertiesMap,dependentOn.getMapKey()).add(flowPropertyDefinitionImplementor);
         }
+        this.watchedPropertiesVersion.incrementAndGet();
     }
 }
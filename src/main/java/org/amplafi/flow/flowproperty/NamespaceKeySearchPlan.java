@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.flowproperty;
+
+import java.util.List;
+import java.util.Set;
+
+import org.amplafi.flow.FlowState;
+
+/**
+ * Immutable, precomputed form of {@link FlowPropertyDefinitionImplementor#getNamespaceKeySearchList(FlowState, FlowPropertyProvider, boolean)}
+ * combined with {@link FlowPropertyDefinitionImplementor#getAllNames()}: the (namespace, name) pairs to probe, most specific namespace first.
+ *
+ * A plan is specific to a (FlowState, FlowPropertyProvider, forceAll) combination so FlowStates cache their plans and discard them
+ * when the flow changes ( morphing ).
+ * @author patmoore
+ *
+ */
+public class NamespaceKeySearchPlan {
+    private final String[] namespaces;
+    private final String[] names;
+    /**
+     * the {@link FlowPropertyDefinitionImplementor#getAllNames()} this plan was built from.
+     */
+    private final Set<String> allNames;
+
+    public NamespaceKeySearchPlan(List<String> namespaces, Set<String> allNames) {
+        this.namespaces = namespaces.toArray(new String[namespaces.size()]);
+        this.names = allNames.toArray(new String[allNames.size()]);
+        this.allNames = allNames;
+    }
+
+    public static NamespaceKeySearchPlan create(FlowPropertyDefinitionImplementor flowPropertyDefinition, FlowState flowState, FlowPropertyProvider flowPropertyProvider, boolean forceAll) {
+        return new NamespaceKeySearchPlan(flowPropertyDefinition.getNamespaceKeySearchList(flowState, flowPropertyProvider, forceAll), flowPropertyDefinition.getAllNames());
+    }
+
+    /**
+     * {@link FlowPropertyDefinitionImpl#getAllNames()} returns the same set until the definition is merged with another definition. So a
+     * different set means the definition changed and the plan must be rebuilt.
+     * @param flowPropertyDefinition
+     * @return true if this plan still matches flowPropertyDefinition.
+     */
+    public boolean isCurrent(FlowPropertyDefinitionImplementor flowPropertyDefinition) {
+        return flowPropertyDefinition.getAllNames() == this.allNames;
+    }
+
+    public int getNamespaceCount() {
+        return namespaces.length;
+    }
+
+    public String getNamespace(int index) {
+        return namespaces[index];
+    }
+
+    /**
+     * @return the namespace the property is stored in while the flow is running (
+     * same as {@link FlowPropertyDefinitionImplementor#getNamespaceKey(FlowState, FlowPropertyProvider)} ).
+     */
+    public String getPrimaryNamespace() {
+        return namespaces[0];
+    }
+
+    public int getNameCount() {
+        return names.length;
+    }
+
+    /**
+     * @param index
+     * @return index == 0 is the property's name, the others are the alternate names.
+     */
+    public String getName(int index) {
+        return names[index];
+    }
+}
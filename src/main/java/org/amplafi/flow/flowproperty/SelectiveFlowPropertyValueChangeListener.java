@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.flowproperty;
+
+import org.amplafi.flow.FlowPropertyDefinition;
+
+/**
+ * A {@link FlowPropertyValueChangeListener} that only cares about some properties. A FlowState uses {@link #isWatching(FlowPropertyDefinition)}
+ * to skip the listener for all other properties.
+ *
+ * The FlowState caches the answer per property so {@link #getWatchedPropertiesVersion()} must change when the set of watched properties changes.
+ * @author patmoore
+ *
+ */
+public interface SelectiveFlowPropertyValueChangeListener extends FlowPropertyValueChangeListener {
+
+    /**
+     * @param flowPropertyDefinition
+     * @return true if {@link #propertyChange(FlowPropertyProvider, String, FlowPropertyDefinition, String, String)} should be called
+     * when flowPropertyDefinition changes value.
+     */
+    boolean isWatching(FlowPropertyDefinition flowPropertyDefinition);
+
+    /**
+     * @return changes each time the properties being watched changes.
+     */
+    int getWatchedPropertiesVersion();
+}
@@ -0,0 +1,30 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.flowproperty;
+
+import org.amplafi.flow.FlowPropertyValueProvider;
+
+/**
+ * Marks a {@link FlowPropertyValueProvider} whose {@link FlowPropertyValueProvider#get(FlowPropertyProvider, org.amplafi.flow.FlowPropertyDefinition)}
+ * neither reads nor changes the FlowState ( including other properties ): the value only depends on the definition and the services wired in.
+ *
+ * Only these providers are called on other threads by {@link org.amplafi.flow.impl.FlowStateImplementor#evaluateFlowProperties(FlowPropertyProvider, FlowPropertyDependencyGraph)}
+ * and {@link org.amplafi.flow.impl.FlowStateImplementor#prefetchFlowProperties(FlowPropertyProvider, Iterable)} because FlowStates are not thread-safe.
+ *
+ * @author patmoore
+ * @param <FPP> the expected FlowPropertyProvider
+ */
+public interface SideEffectFreeFlowPropertyValueProvider<FPP extends FlowPropertyProvider> extends FlowPropertyValueProvider<FPP> {
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import static org.apache.commons.lang.StringUtils.isNotBlank;
+
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.amplafi.flow.FlowValueMapKey;
+import org.amplafi.flow.FlowValuesMap;
+import org.amplafi.flow.FlowValuesMapChange;
+import org.apache.commons.lang.ObjectUtils;
+
+import static com.sworddance.util.CUtilities.*;
+
+/**
+ * Common code for {@link FlowValuesMap} implementations that store values by namespace and key.
+ *
+ * Follows the same key conventions as {@link DefaultFlowValuesMap}: the single argument methods operate on the
+ * global namespace ( except {@link #remove(Object)} which splits federated keys ). Namespaces are normalized with
+ * {@link DefaultFlowValuesMapKey#toNamespace(Object)}.
+ * @author patmoore
+ *
+ */
+public abstract class AbstractFlowValuesMap extends AbstractMap<FlowValueMapKey, String> implements FlowValuesMap<FlowValueMapKey, String> {
+
+    /**
+     * null until the first {@link #drainChanges()}: changes are only recorded once there is a consumer for them.
+     * This class is not Serializable so a deserialized subclass does not record until drained again.
+     */
+    private volatile FlowValuesMapChangeLog changeLog;
+
+    /**
+     * see {@link #getModificationCount()}. Restarts at 0 when a subclass is deserialized.
+     */
+    private final AtomicLong modificationCount = new AtomicLong();
+
+    protected AbstractFlowValuesMap() {
+    }
+
+    /**
+     * Subclasses call this for every change.
+     * @param namespace normalized namespace
+     * @param key
+     * @param oldValue
+     * @param newValue
+     * @param previouslyPresent
+     * @param removed
+     */
+    protected void recordChange(String namespace, String key, String oldValue, String newValue, boolean previouslyPresent, boolean removed) {
+        modificationCount.incrementAndGet();
+        FlowValuesMapChangeLog log = changeLog;
+        if ( log != null ) {
+            log.record(namespace, key, oldValue, newValue, previouslyPresent, removed);
+        }
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#drainChanges()
+     */
+    @Override
+    public List<FlowValuesMapChange> drainChanges() {
+        FlowValuesMapChangeLog log = changeLog;
+        if ( log == null ) {
+            synchronized (this) {
+                if ( changeLog == null ) {
+                    changeLog = new FlowValuesMapChangeLog();
+                }
+                log = changeLog;
+            }
+        }
+        return log.drain();
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#getModificationCount()
+     */
+    @Override
+    public long getModificationCount() {
+        return modificationCount.get();
+    }
+
+    /**
+     * @param initialFlowState federated keys ( namespace + separator + key ) are split into namespace and key.
+     */
+    protected void initialize(Map<?, ?> initialFlowState) {
+        if ( isNotEmpty(initialFlowState)) {
+            for(Map.Entry<?, ?> entry: initialFlowState.entrySet()) {
+                Object value = entry.getValue();
+                if ( value != null && entry.getKey() != null) {
+                    DefaultFlowValuesMapKey key = DefaultFlowValuesMapKey.toKey(entry.getKey());
+                    this.put(key.getNamespace(), key.getKey(), value.toString());
+                }
+            }
+        }
+    }
+
+    protected String toNamespace(Object namespace) {
+        return DefaultFlowValuesMapKey.toNamespace(namespace);
+    }
+
+    protected String toKeyString(Object key) {
+        return ObjectUtils.toString(key, null);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return containsKey(null, key);
+    }
+
+    @Override
+    public String get(Object key) {
+        return get(null, key);
+    }
+
+    /**
+     * @see java.util.AbstractMap#put(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public String put(FlowValueMapKey key, String value) {
+        return put(null, key, value);
+    }
+
+    /**
+     * @see java.util.AbstractMap#putAll(java.util.Map)
+     */
+    @Override
+    public void putAll(Map<? extends FlowValueMapKey, ? extends String> m) {
+        for(Map.Entry<? extends FlowValueMapKey, ? extends String> entry: m.entrySet()) {
+            this.put(null, entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void putAll(Object namespace, Map<?,?> subMap) {
+        if (isNotEmpty(subMap)) {
+            for (Map.Entry<?, ?> entry : subMap.entrySet()) {
+                this.put(namespace, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @see java.util.AbstractMap#remove(java.lang.Object)
+     */
+    @Override
+    public String remove(Object key) {
+        DefaultFlowValuesMapKey flowValuesMapKey = DefaultFlowValuesMapKey.toKey(key);
+        if ( flowValuesMapKey == null ) {
+            return null;
+        } else {
+            return removeFromNamespace(flowValuesMapKey.getNamespace(), flowValuesMapKey.getKey());
+        }
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#copyNamespace(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void copyNamespace(Object fromNamespace, Object toNamespace) {
+        putAll(toNamespace, getNamespace(fromNamespace));
+    }
+
+    @Override
+    public Map<String, String> getAsFlattenedStringMap() {
+        return getAsStringMap(false, true);
+    }
+
+    /**
+     * Like {@link DefaultFlowValuesMap#getAsStringMap(boolean, boolean)}, keys are always the federated key.
+     * @see org.amplafi.flow.FlowValuesMap#getAsStringMap(boolean, boolean)
+     */
+    @Override
+    public Map<String, String> getAsStringMap(boolean trimBlanks, boolean preserveNamespace) {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for(Map.Entry<FlowValueMapKey, String> entry: entrySet()) {
+            if ( !trimBlanks || isNotBlank(entry.getValue())) {
+                result.put(entry.getKey().toString(), entry.getValue());
+            }
+        }
+        return result;
+    }
+}
@@ -14,9 +14,13 @@ import static org.amplafi.flow.FlowConstants.FSREDIRECT_URL;
 import static org.amplafi.flow.FlowConstants.FSRETURN_TO_FLOW;
 import static org.apache.commons.lang.StringUtils.isNotBlank;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -24,6 +28,16 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.amplafi.flow.Flow;
 import org.amplafi.flow.FlowActivity;
@@ -39,12 +53,15 @@ import org.amplafi.flow.FlowStateLifecycle;
 import org.amplafi.flow.FlowStateListener;
 import org.amplafi.flow.FlowStepDirection;
 import org.amplafi.flow.FlowTransition;
+import org.amplafi.flow.FlowTransitionTable;
 import org.amplafi.flow.FlowTranslatorResolver;
 import org.amplafi.flow.FlowTx;
+import org.amplafi.flow.flowproperty.DependenciesWired;
 import org.amplafi.flow.flowproperty.FlowPropertyDefinitionBuilder;
 import org.amplafi.flow.flowproperty.FlowPropertyDefinitionImplementor;
 import org.amplafi.flow.flowproperty.FlowPropertyProvider;
 import org.amplafi.flow.flowproperty.FlowPropertyProviderImplementor;
+import org.amplafi.flow.flowproperty.FlowPropertyValueCachePolicy;
 import org.amplafi.flow.flowproperty.PropertyScope;
 import org.amplafi.flow.flowproperty.PropertyUsage;
 import org.amplafi.flow.launcher.ValueFromBindingProvider;
@@ -63,6 +80,17 @@ import com.sworddance.util.perf.LapTimer;
  */
 public class BaseFlowManagement implements FlowManagement {
 
+    /**
+     * Allocates the {@link #getWiringEpoch()}s. Never 0.
+     */
+    private static final AtomicLong NEXT_WIRING_EPOCH = new AtomicLong(1);
+    /**
+     * FlowTranslatorResolver ( the services wired in ) -> its current wiring epoch. Shared by the BaseFlowManagements using the same FlowTranslatorResolver.
+     */
+    private static final Map<FlowTranslatorResolver, AtomicLong> WIRING_EPOCHS = new WeakHashMap<FlowTranslatorResolver, AtomicLong>();
+
+    public static final long DEFAULT_FLOW_STATE_PASSIVATION_IDLE_MILLIS = 10 * 60 * 1000L;
+
     protected SessionFlows sessionFlows = new SessionFlows();
 
     private transient FlowManager flowManager;
@@ -75,10 +103,51 @@ public class BaseFlowManagement implements FlowManagement {
 
     private transient FlowTranslatorResolver flowTranslatorResolver;
 
+    /**
+     * the {@link #WIRING_EPOCHS} entry of {@link #flowTranslatorResolver}. null until needed.
+     */
+    private transient volatile AtomicLong wiringEpoch;
+
     private transient Set<FlowStateListener> flowStateListeners = Collections.synchronizedSet(new HashSet<FlowStateListener>());
 
     private transient ClassResolver classResolver;
 
+    /**
+     * null ( the default ) means no prefetching.
+     */
+    private transient ExecutorService flowPropertyPrefetchExecutor;
+
+    private transient FlowPropertyValueCachePolicy flowPropertyValueCachePolicy;
+
+    /**
+     * see {@link #getTransactionEpoch()}
+     */
+    private transient volatile long transactionEpoch;
+
+    /**
+     * true if transaction bound values were cached since the last {@link #transactionCompleted()}.
+     */
+    private transient volatile boolean cacheClearingRegistered;
+
+    /**
+     * null means FlowStates are not passivated.
+     */
+    private transient FlowStatePassivationStore flowStatePassivationStore;
+
+    private transient long flowStatePassivationIdleMillis = DEFAULT_FLOW_STATE_PASSIVATION_IDLE_MILLIS;
+
+    /**
+     * null means the FlowStates are only in this session.
+     */
+    private transient FlowStateRepository flowStateRepository;
+
+    /**
+     * lookupKeys of the FlowStates whose {@link FlowStateRepository} version was checked in this request. see {@link #checkRepositoryVersion(FlowStateImplementor)}
+     */
+    private transient Set<String> repositoryVersionChecked;
+
+    private String sessionId;
+
     public BaseFlowManagement() {
 
     }
@@ -109,22 +178,24 @@ public class BaseFlowManagement implements FlowManagement {
     @Override
     @SuppressWarnings("unchecked")
     public <FS extends FlowState> FS getCurrentFlowState() {
-        return (FS) sessionFlows.getFirst();
+        FlowStateImplementor current = sessionFlows.getFirst();
+        while (current != null) {
+            FlowStateImplementor checked = checkRepositoryVersion(current);
+            if (checked != null) {
+                return (FS) checked;
+            }
+            // deleted by another node.
+            current = sessionFlows.getFirst();
+        }
+        return null;
     }
 
     /**
      * @see org.amplafi.flow.FlowManagement#getActiveFlowStatesByType(java.lang.String...)
      */
     @Override
-    public synchronized List<FlowState> getActiveFlowStatesByType(String... flowTypes) {
-        List<String> types = Arrays.asList(flowTypes);
-        ArrayList<FlowState> result = new ArrayList<FlowState>();
-        for (FlowState flowState : sessionFlows) {
-            if (types.contains(flowState.getFlowTypeName())) {
-                result.add(flowState);
-            }
-        }
-        return result;
+    public List<FlowState> getActiveFlowStatesByType(String... flowTypes) {
+        return sessionFlows.getByType(flowTypes);
     }
 
     /**
@@ -132,23 +203,17 @@ public class BaseFlowManagement implements FlowManagement {
      */
     @Override
     @SuppressWarnings("unchecked")
-    public synchronized <FS extends FlowState> FS getFirstFlowStateByType(String... flowTypes) {
+    public <FS extends FlowState> FS getFirstFlowStateByType(String... flowTypes) {
         if (flowTypes == null) {
             return null;
         }
-        List<String> types = Arrays.asList(flowTypes);
-        return (FS) getFirstFlowStateByType(types);
+        return (FS) sessionFlows.getFirstByType(flowTypes);
     }
 
     @Override
     @SuppressWarnings("unchecked")
     public <FS extends FlowState> FS getFirstFlowStateByType(Collection<String> types) {
-        for (FlowState flowState : sessionFlows) {
-            if (types.contains(flowState.getFlowTypeName())) {
-                return (FS) flowState;
-            }
-        }
-        return null;
+        return (FS) sessionFlows.getFirstByType(types);
     }
 
     @Override
@@ -165,6 +230,12 @@ public class BaseFlowManagement implements FlowManagement {
         FS flowState;
         if (isNotBlank(lookupKey)) {
             flowState = (FS) sessionFlows.get(lookupKey);
+            if (flowState == null) {
+                // started or continued on another node?
+                flowState = (FS) loadFlowState(lookupKey);
+            } else {
+                flowState = (FS) checkRepositoryVersion((FlowStateImplementor) flowState);
+            }
         } else {
             flowState = null;
         }
@@ -189,15 +260,20 @@ public class BaseFlowManagement implements FlowManagement {
      */
     @Override
     @SuppressWarnings("unchecked")
-    public synchronized <FS extends FlowState> FS createFlowState(String flowTypeName, Map<String, String> initialFlowState,
+    public <FS extends FlowState> FS createFlowState(String flowTypeName, Map<String, String> initialFlowState,
         boolean makeNewStateCurrent) {
         LapTimer.sLap("Begin createFlowState ", flowTypeName);
         FS flowState = (FS) makeFlowState(flowTypeName, initialFlowState);
         initializeFlowState(flowState);
-        if (makeNewStateCurrent || this.sessionFlows.isEmpty()) {
-            makeCurrent(flowState);
-        } else {
-            makeLast(flowState);
+        sessionFlows.getLock().lock();
+        try {
+            if (makeNewStateCurrent || this.sessionFlows.isEmpty()) {
+                makeCurrent(flowState);
+            } else {
+                makeLast(flowState);
+            }
+        } finally {
+            sessionFlows.getLock().unlock();
         }
         LapTimer.sLap("End createFlowState ", flowTypeName);
         return flowState;
@@ -214,9 +290,9 @@ public class BaseFlowManagement implements FlowManagement {
     @Override
     public FlowState transitionToFlowState(FlowState flowState, String key) {
         FlowStateImplementor nextFlowState = null;
-        Map<String, FlowTransition> transitions = flowState.getProperty(key, Map.class);
+        FlowTransitionTable transitions = getFlowTransitionTable(flowState, key);
         String finishKey = flowState.getFinishKey();
-        if (isNotEmpty(transitions) && isNotBlank(finishKey)) {
+        if (!transitions.isEmpty() && isNotBlank(finishKey)) {
             FlowTransition flowTransition = transitions.get(finishKey);
             if (flowTransition != null) {
                 FlowActivityImplementor currentActivity = flowState.getCurrentActivity();
@@ -231,6 +307,29 @@ public class BaseFlowManagement implements FlowManagement {
         return nextFlowState;
     }
 
+    /**
+     * The transitions are only deserialized the first time a flow definition sees a particular serialized value.
+     * @param flowState
+     * @param key property with the Map<String, FlowTransition>
+     * @return the compiled transitions.
+     */
+    @SuppressWarnings("unchecked")
+    protected FlowTransitionTable getFlowTransitionTable(FlowState flowState, String key) {
+        FlowImplementor flow = flowState.getFlow();
+        String serializedTransitions = flowState.getRawProperty(key);
+        FlowTransitionTable flowTransitionTable = flow == null? null : flow.getFlowTransitionTable(serializedTransitions);
+        if ( flowTransitionTable == null ) {
+            // also creates the transitions if needed.
+            Map<String, FlowTransition> transitions = flowState.getProperty(key, Map.class);
+            if ( flow == null ) {
+                flowTransitionTable = new FlowTransitionTable(transitions);
+            } else {
+                flowTransitionTable = flow.addFlowTransitionTable(flowState.getRawProperty(key), transitions);
+            }
+        }
+        return flowTransitionTable;
+    }
+
     /**
      * @see org.amplafi.flow.FlowManagement#startFlowState(java.lang.String, boolean, java.util.Map,
      *      Object)
@@ -347,8 +446,19 @@ public class BaseFlowManagement implements FlowManagement {
         return next;
     }
 
+    /**
+     * {@link DependenciesWired} objects are only wired once per {@link #getWiringEpoch()}.
+     * @see org.amplafi.flow.FlowManagement#wireDependencies(java.lang.Object)
+     */
     @Override
     public void wireDependencies(Object object) {
+        long epoch = 0;
+        if (object instanceof DependenciesWired) {
+            epoch = getWiringEpoch();
+            if (((DependenciesWired)object).isDependenciesWired(epoch)) {
+                return;
+            }
+        }
         if (object instanceof FlowPropertyProvider) {
             getFlowTranslatorResolver().resolve((FlowPropertyProvider) object);
         }
@@ -359,15 +469,53 @@ public class BaseFlowManagement implements FlowManagement {
                 wireDependencies(objectNeedingToBeWired);
             }
         }
+        if (object instanceof DependenciesWired) {
+            ((DependenciesWired)object).setDependenciesWired(epoch);
+        }
+    }
+
+    /**
+     * Identifies the wiring done with this FlowManagement's {@link FlowTranslatorResolver}. Shared by the FlowManagements with the same
+     * FlowTranslatorResolver: objects shared between sessions ( i.e. property definitions ) are wired once rather than once per session.
+     * FlowManagements with different FlowTranslatorResolvers have different epochs so they each wire the objects they use.
+     * @return never 0.
+     */
+    public long getWiringEpoch() {
+        return getWiringEpochHolder().get();
+    }
+
+    /**
+     * Force everything to be rewired on next use by every FlowManagement with this FlowManagement's {@link FlowTranslatorResolver}.
+     * ( for example, after the services being wired in are changed )
+     */
+    public void invalidateWiring() {
+        getWiringEpochHolder().set(NEXT_WIRING_EPOCH.getAndIncrement());
+    }
+
+    private AtomicLong getWiringEpochHolder() {
+        AtomicLong holder = this.wiringEpoch;
+        if (holder == null) {
+            FlowTranslatorResolver resolver = getFlowTranslatorResolver();
+            synchronized (WIRING_EPOCHS) {
+                holder = WIRING_EPOCHS.get(resolver);
+                if (holder == null) {
+                    holder = new AtomicLong(NEXT_WIRING_EPOCH.getAndIncrement());
+                    WIRING_EPOCHS.put(resolver, holder);
+                }
+            }
+            this.wiringEpoch = holder;
+        }
+        return holder;
     }
     /**
      * @see org.amplafi.flow.FlowManagement#dropFlowState(org.amplafi.flow.FlowState)
      */
     @Override
-    public synchronized String dropFlowState(FlowState flow) {
+    public String dropFlowState(FlowState flow) {
         String lookupKey = flow.getLookupKey();
         getLog().debug("Dropping flow " + lookupKey);
         boolean successful = false;
+        sessionFlows.getLock().lock();
         try {
             if (!sessionFlows.isEmpty()) {
                 FlowStateImplementor fs = sessionFlows.getFirst();
@@ -378,6 +526,7 @@ public class BaseFlowManagement implements FlowManagement {
                     if (!fs.getFlowStateLifecycle().isTerminalState()) {
                         fs.setFlowLifecycleState(FlowStateLifecycle.canceled);
                     }
+                    deleteFromRepository(fs);
 
                     // look for redirect before clearing the flow state
                     // why before cache clearing?
@@ -413,6 +562,7 @@ public class BaseFlowManagement implements FlowManagement {
             }
             return null;
         } finally {
+            sessionFlows.getLock().unlock();
             if (!successful) {
                 getLog().info("Did not find flow to drop. key=" + lookupKey);
             }
@@ -433,33 +583,31 @@ public class BaseFlowManagement implements FlowManagement {
      * @see org.amplafi.flow.FlowManagement#makeCurrent(org.amplafi.flow.FlowState)
      */
     @Override
-    public synchronized void makeCurrent(FlowState state) {
-        if (!this.sessionFlows.isEmpty()) {
-            FlowStateImplementor oldFirst = this.sessionFlows.getFirst();
-            if (oldFirst != state) {
-                // state was NOT already the first state.
-                sessionFlows.remove((FlowStateImplementor) state);
-                if (!oldFirst.isNotCurrentAllowed()) {
-                    // the formerly first state is only supposed to be active if it is the first state.
-                    // see if it this state is referenced as a return state -- otherwise the oldFirst will need to be dropped.
-                    boolean notReferenced = state.isReferencing(oldFirst);
-                    if (!notReferenced) {
-                        for (FlowState flowState : this.sessionFlows) {
-                            if (flowState.isReferencing(oldFirst)) {
-                                notReferenced = false;
-                                break;
-                            }
+    public void makeCurrent(FlowState state) {
+        sessionFlows.getLock().lock();
+        try {
+            if (!this.sessionFlows.isEmpty()) {
+                FlowStateImplementor oldFirst = this.sessionFlows.getFirst();
+                if (oldFirst != state) {
+                    // state was NOT already the first state.
+                    sessionFlows.remove((FlowStateImplementor) state);
+                    if (!oldFirst.isNotCurrentAllowed()) {
+                        // the formerly first state is only supposed to be active if it is the first state.
+                        // see if it this state is referenced as a return state -- otherwise the oldFirst will need to be dropped.
+                        // Only state's references count: references from other FlowStates in the session ( sessionFlows.isReferenced() ) do not keep oldFirst.
+                        boolean referenced = state.isReferencing(oldFirst);
+                        if (!referenced) {
+                            dropFlowState(oldFirst);
                         }
+                    } else {
+                        oldFirst.clearCache();
                     }
-                    if (!notReferenced) {
-                        dropFlowState(oldFirst);
-                    }
-                } else {
-                    oldFirst.clearCache();
                 }
             }
+            this.sessionFlows.makeFirst((FlowStateImplementor) state);
+        } finally {
+            sessionFlows.getLock().unlock();
         }
-        this.sessionFlows.makeFirst((FlowStateImplementor) state);
     }
 
     protected void makeLast(FlowState flowState) {
@@ -472,11 +620,16 @@ public class BaseFlowManagement implements FlowManagement {
      */
     @Override
     public boolean makeAfter(FlowState flowState, FlowState nextFlowState) {
-        boolean wasFirst = this.sessionFlows.makeAfter((FlowStateImplementor) flowState, (FlowStateImplementor) nextFlowState) == 0;
-        if (wasFirst) {
-            makeCurrent(this.sessionFlows.getFirst());
+        sessionFlows.getLock().lock();
+        try {
+            boolean wasFirst = this.sessionFlows.makeAfter((FlowStateImplementor) flowState, (FlowStateImplementor) nextFlowState);
+            if (wasFirst) {
+                makeCurrent(this.sessionFlows.getFirst());
+            }
+            return wasFirst;
+        } finally {
+            sessionFlows.getLock().unlock();
         }
-        return wasFirst;
     }
 
     @Override
@@ -528,13 +681,328 @@ public class BaseFlowManagement implements FlowManagement {
     }
 
     /**
+     * The first call in a transaction registers with the {@link FlowTx} so that {@link #transactionCompleted()} is called when it completes.
      * @see org.amplafi.flow.FlowManagement#registerForCacheClearing()
      */
     @Override
     public void registerForCacheClearing() {
+        synchronized (this) {
+            if ( this.cacheClearingRegistered ) {
+                return;
+            }
+            this.cacheClearingRegistered = true;
+        }
+        FlowTx tx = getFlowTx();
+        if ( tx != null ) {
+            tx.addFlowTxListener(this);
+        }
+    }
 
+    /**
+     * @see org.amplafi.flow.FlowManagement#getTransactionEpoch()
+     */
+    @Override
+    public long getTransactionEpoch() {
+        return this.transactionEpoch;
     }
 
+    /**
+     * Only changes the epoch if a transaction bound value was cached. The FlowStates notice the change when they next use their cache.
+     * Then passivates idle FlowStates ( see {@link #passivateIdleFlowStates()} ).
+     * @see org.amplafi.flow.FlowManagement#transactionCompleted()
+     */
+    @Override
+    public void transactionCompleted() {
+        synchronized (this) {
+            if ( this.cacheClearingRegistered ) {
+                this.cacheClearingRegistered = false;
+                this.transactionEpoch++;
+            }
+        }
+        passivateIdleFlowStates();
+    }
+
+    /**
+     * Passivates the FlowStates that are not current and whose values have not been accessed for {@link #getFlowStatePassivationIdleMillis()}
+     * so that the session's heap is proportional to the active FlowStates. Passivated FlowStates keep their place in the session and
+     * are rehydrated when next used ( for example after {@link #getFlowState(String)} ).
+     * Called when a transaction completes, may also be called by session housekeeping.
+     * @return the number of FlowStates passivated.
+     */
+    public int passivateIdleFlowStates() {
+        FlowStatePassivationStore store = getFlowStatePassivationStore();
+        if ( store == null ) {
+            return 0;
+        }
+        long idleSince = System.currentTimeMillis() - getFlowStatePassivationIdleMillis();
+        FlowStateImplementor current = sessionFlows.getFirst();
+        int passivated = 0;
+        for (FlowStateImplementor flowState : sessionFlows) {
+            if ( flowState != current && !flowState.isValuesPassivated() && flowState.getLastAccessTime() <= idleSince
+                && flowState.passivateValues(store, idleSince)) {
+                passivated++;
+            }
+        }
+        return passivated;
+    }
+
+    /**
+     * Loads lookupKey from the {@link FlowStateRepository} and adds it after this session's other FlowStates.
+     * @param lookupKey
+     * @return null if there is no repository, the FlowState is not stored or it belongs to another session.
+     */
+    protected FlowStateImplementor loadFlowState(String lookupKey) {
+        FlowStateImplementor flowState = readFromRepository(lookupKey);
+        if (flowState == null) {
+            return null;
+        }
+        sessionFlows.getLock().lock();
+        try {
+            FlowStateImplementor loaded = (FlowStateImplementor) sessionFlows.get(lookupKey);
+            if (loaded != null) {
+                // loaded by another thread.
+                return loaded;
+            }
+            sessionFlows.addLast(flowState);
+        } finally {
+            sessionFlows.getLock().unlock();
+        }
+        return flowState;
+    }
+
+    /**
+     * The first time in a request ( requests end with {@link #saveChangedFlowStates()} ) that an in-memory FlowState is used, checks
+     * that another node has not saved a newer version or deleted it.
+     * @param flowState in this session.
+     * @return flowState, the stored version that replaced it or null if it was deleted.
+     */
+    protected FlowStateImplementor checkRepositoryVersion(FlowStateImplementor flowState) {
+        FlowStateRepository repository = getFlowStateRepository();
+        if (repository == null || !getRepositoryVersionChecked().add(flowState.getLookupKey())
+            || repository.getVersion(flowState.getLookupKey()) == flowState.getRepositoryVersion()) {
+            return flowState;
+        }
+        getLog().debug("FlowState (" + flowState.getLookupKey() + ") was changed by another node. Reloading.");
+        return reloadFlowState(flowState);
+    }
+
+    /**
+     * Replaces flowState with the version in the {@link FlowStateRepository}, keeping its place in this session so a current FlowState
+     * stays current. If there is no stored version, flowState is removed and, if it was current, the FlowState it returns to
+     * ( {@link org.amplafi.flow.FlowConstants#FSRETURN_TO_FLOW} ) is made current as {@link #dropFlowState(FlowState)} would.
+     * @param flowState
+     * @return the stored version or null if there is none.
+     */
+    protected FlowStateImplementor reloadFlowState(FlowStateImplementor flowState) {
+        String lookupKey = flowState.getLookupKey();
+        FlowStateImplementor stored = readFromRepository(lookupKey);
+        sessionFlows.getLock().lock();
+        try {
+            if (stored != null) {
+                if (sessionFlows.replace(flowState, stored)) {
+                    flowState.clearCache();
+                    return stored;
+                } else {
+                    // replaced or dropped by another thread.
+                    return (FlowStateImplementor) sessionFlows.get(lookupKey);
+                }
+            }
+            boolean first = sessionFlows.getFirst() == flowState;
+            if (sessionFlows.remove(flowState)) {
+                if (first) {
+                    String returnToFlowId = flowState.getProperty(FSRETURN_TO_FLOW);
+                    FlowState returnToFlow = getFlowState(returnToFlowId);
+                    if (returnToFlow != null) {
+                        makeCurrent(returnToFlow);
+                    }
+                }
+                flowState.clearCache();
+            }
+            return null;
+        } finally {
+            sessionFlows.getLock().unlock();
+        }
+    }
+
+    /**
+     * @param lookupKey
+     * @return the stored FlowState, not yet in this session. null if there is no repository, the FlowState is not stored or it
+     * belongs to another session.
+     */
+    private FlowStateImplementor readFromRepository(String lookupKey) {
+        FlowStateRepository repository = getFlowStateRepository();
+        if (repository == null) {
+            return null;
+        }
+        getRepositoryVersionChecked().add(lookupKey);
+        FlowStateRepositoryEntry entry = repository.load(lookupKey);
+        if (entry == null) {
+            return null;
+        } else if (!getSessionId().equals(entry.getSessionId())) {
+            getLog().warn("FlowState (" + lookupKey + ") belongs to another session. Not loaded.");
+            return null;
+        }
+        FlowStateImplementor flowState;
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(entry.getSerialized()));
+            flowState = (FlowStateImplementor) in.readObject();
+        } catch (IOException e) {
+            throw new FlowException(entry + ": cannot be deserialized", e);
+        } catch (ClassNotFoundException e) {
+            throw new FlowException(entry + ": cannot be deserialized", e);
+        }
+        flowState.setFlowManagement(this);
+        flowState.setRepositoryVersion(entry.getVersion());
+        // only later changes need saving.
+        flowState.setSavedChangeMarker(flowState.getChangeMarker());
+        return flowState;
+    }
+
+    private synchronized Set<String> getRepositoryVersionChecked() {
+        if (this.repositoryVersionChecked == null) {
+            this.repositoryVersionChecked = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        }
+        return this.repositoryVersionChecked;
+    }
+
+    /**
+     * Loads this session's FlowStates that are in the {@link FlowStateRepository} but not in memory ( for example, when a node
+     * first serves the session ). FlowStates are also loaded one at a time by {@link #getFlowState(String)}.
+     * @return the number of FlowStates loaded.
+     */
+    public int loadSessionFlowStates() {
+        FlowStateRepository repository = getFlowStateRepository();
+        if (repository == null) {
+            return 0;
+        }
+        int loaded = 0;
+        for (String lookupKey : repository.listBySession(getSessionId())) {
+            if (sessionFlows.get(lookupKey) == null && loadFlowState(lookupKey) != null) {
+                loaded++;
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Saves the FlowStates that changed since they were loaded or last saved ( see {@link FlowStateImplementor#getChangeMarker()} ) to
+     * the {@link FlowStateRepository}. Call at the end of each request. The {@link FlowStateImplementor#drainChanges()} log is left for other consumers.
+     *
+     * A FlowState saved by another node in the meantime is replaced by the other node's version ( see {@link #reloadFlowState(FlowStateImplementor)} ).
+     * A FlowState that cannot be serialized or saved stays changed so the next call tries again. The first exception is thrown after the other
+     * FlowStates are saved. The stored versions are checked again when the FlowStates are next used.
+     * @return the number of FlowStates saved.
+     */
+    public int saveChangedFlowStates() {
+        FlowStateRepository repository = getFlowStateRepository();
+        if (repository == null) {
+            return 0;
+        }
+        int saved = 0;
+        RuntimeException failure = null;
+        for (FlowStateImplementor flowState : sessionFlows) {
+            // taken before serializing: changes made meanwhile are saved next time.
+            Object changeMarker = flowState.getChangeMarker();
+            if (changeMarker.equals(flowState.getSavedChangeMarker())) {
+                continue;
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try {
+                    ObjectOutputStream out = new ObjectOutputStream(bytes);
+                    out.writeObject(flowState);
+                    out.close();
+                } catch (IOException e) {
+                    throw new FlowException(flowState.getLookupKey() + ": cannot be serialized", e);
+                }
+                flowState.setRepositoryVersion(repository.save(getSessionId(), flowState.getLookupKey(), flowState.getRepositoryVersion(),
+                    bytes.toByteArray()));
+                flowState.setSavedChangeMarker(changeMarker);
+                saved++;
+            } catch (StaleFlowStateException e) {
+                getLog().warn("FlowState (" + flowState.getLookupKey() + ") was changed by another node. Local changes discarded.");
+                reloadFlowState(flowState);
+                if (failure == null) {
+                    failure = e;
+                }
+            } catch (RuntimeException e) {
+                getLog().warn("FlowState (" + flowState.getLookupKey() + ") could not be saved. Will try again on the next save.", e);
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        getRepositoryVersionChecked().clear();
+        if (failure != null) {
+            throw failure;
+        }
+        return saved;
+    }
+
+    private void deleteFromRepository(FlowStateImplementor flowState) {
+        FlowStateRepository repository = getFlowStateRepository();
+        if (repository != null && flowState.getRepositoryVersion() != 0
+            && !repository.delete(flowState.getLookupKey(), flowState.getRepositoryVersion())) {
+            getLog().warn("FlowState (" + flowState.getLookupKey() + ") was changed by another node. Not deleted from the repository.");
+        }
+    }
+
+    /**
+     * @param flowStateRepository null to keep the FlowStates only in this session. The repository versions are not serialized with the
+     * FlowStates: if the session is also replicated, a replicated FlowState is reloaded when first used.
+     */
+    public void setFlowStateRepository(FlowStateRepository flowStateRepository) {
+        this.flowStateRepository = flowStateRepository;
+    }
+
+    public FlowStateRepository getFlowStateRepository() {
+        return flowStateRepository;
+    }
+
+    /**
+     * @param sessionId identifies this session in the {@link FlowStateRepository}. Must be the same on every node ( for example, the HTTP session id ).
+     */
+    public synchronized void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    /**
+     * @return the sessionId. A random id if none was set.
+     */
+    public synchronized String getSessionId() {
+        if (this.sessionId == null) {
+            this.sessionId = UUID.randomUUID().toString();
+        }
+        return this.sessionId;
+    }
+
+    /**
+     * @param flowStatePassivationStore null to stop passivating ( already passivated FlowStates are still rehydrated from their store ).
+     * A store shared by sessions keeps the values of FlowStates that were passivated when their session ended, so shared stores
+     * that outlive the sessions ( {@link FileFlowStatePassivationStore} ) should be cleared when the application starts.
+     */
+    public void setFlowStatePassivationStore(FlowStatePassivationStore flowStatePassivationStore) {
+        this.flowStatePassivationStore = flowStatePassivationStore;
+    }
+
+    public FlowStatePassivationStore getFlowStatePassivationStore() {
+        return flowStatePassivationStore;
+    }
+
+    /**
+     * @param flowStatePassivationIdleMillis how long a FlowState that is not current must be unused before it is passivated.
+     */
+    public void setFlowStatePassivationIdleMillis(long flowStatePassivationIdleMillis) {
+        this.flowStatePassivationIdleMillis = flowStatePassivationIdleMillis;
+    }
+
+    public long getFlowStatePassivationIdleMillis() {
+        return flowStatePassivationIdleMillis;
+    }
+
+    /**
+     * @param flowTx notifies this when the transactions that cached transaction bound values complete ( see {@link FlowTx} ).
+     */
     public void setFlowTx(FlowTx flowTx) {
         this.flowTx = flowTx;
     }
@@ -562,6 +1030,7 @@ public class BaseFlowManagement implements FlowManagement {
      */
     public void setFlowTranslatorResolver(FlowTranslatorResolver flowTranslatorResolver) {
         this.flowTranslatorResolver = flowTranslatorResolver;
+        this.wiringEpoch = null;
     }
 
     /**
@@ -572,6 +1041,90 @@ public class BaseFlowManagement implements FlowManagement {
         return flowTranslatorResolver;
     }
 
+    /**
+     * Only the values of {@link org.amplafi.flow.flowproperty.SideEffectFreeFlowPropertyValueProvider}s are prefetched: they are computed on the
+     * executor's threads while the request thread uses the FlowState.
+     * @param flowPropertyPrefetchExecutor null ( the default ) to compute property values only when needed. {@link #getSharedFlowPropertyPrefetchExecutor()}
+     * is a bounded pool that can be shared by all sessions.
+     */
+    public void setFlowPropertyPrefetchExecutor(ExecutorService flowPropertyPrefetchExecutor) {
+        this.flowPropertyPrefetchExecutor = flowPropertyPrefetchExecutor;
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowManagement#getFlowPropertyPrefetchExecutor()
+     */
+    @Override
+    public ExecutorService getFlowPropertyPrefetchExecutor() {
+        return flowPropertyPrefetchExecutor;
+    }
+
+    /**
+     * @return a pool of daemon threads ( one per processor ) with a bounded queue, shared by all the BaseFlowManagements that use it. When the queue is full
+     * further prefetches are rejected and those values are computed when needed.
+     */
+    public static ExecutorService getSharedFlowPropertyPrefetchExecutor() {
+        return DefaultFlowPropertyPrefetchExecutor.INSTANCE;
+    }
+
+    /**
+     * @param flowPropertyValueCachePolicy null for {@link DefaultFlowPropertyValueCachePolicy#UNBOUNDED}. Applies to FlowStates whose cache is created afterwards.
+     */
+    public void setFlowPropertyValueCachePolicy(FlowPropertyValueCachePolicy flowPropertyValueCachePolicy) {
+        this.flowPropertyValueCachePolicy = flowPropertyValueCachePolicy;
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowManagement#getFlowPropertyValueCachePolicy()
+     */
+    @Override
+    public FlowPropertyValueCachePolicy getFlowPropertyValueCachePolicy() {
+        if ( flowPropertyValueCachePolicy == null ) {
+            return DefaultFlowPropertyValueCachePolicy.UNBOUNDED;
+        } else {
+            return flowPropertyValueCachePolicy;
+        }
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowManagement#getCachedValuesEstimatedBytes()
+     */
+    @Override
+    public long getCachedValuesEstimatedBytes() {
+        long total = 0;
+        for(FlowState flowState: getFlowStates()) {
+            if ( flowState instanceof FlowStateImplementor) {
+                total += ((FlowStateImplementor)flowState).getCachedValuesEstimatedBytes();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Shared by the BaseFlowManagements ( usually one per session ) that opt in. Only created if used.
+     */
+    private static class DefaultFlowPropertyPrefetchExecutor {
+        private static final int THREADS = Runtime.getRuntime().availableProcessors();
+        private static final int QUEUED = THREADS * 64;
+        private static final ExecutorService INSTANCE;
+        static {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUED),
+                new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "flow-property-prefetch-"+threadCount.incrementAndGet());
+                        // never keeps the jvm alive.
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            // idle threads exit.
+            executor.allowCoreThreadTimeOut(true);
+            INSTANCE = executor;
+        }
+    }
+
     /**
      * @see org.amplafi.flow.FlowManagement#getFactoryFlowPropertyDefinitionBuilder(java.lang.String,
      *      Class)
@@ -603,6 +1156,16 @@ public class BaseFlowManagement implements FlowManagement {
         }
     }
 
+    @Override
+    public void flowTypeChange(FlowStateImplementor flowState, String previousFlowTypeName) {
+        sessionFlows.flowTypeChanged(flowState);
+    }
+
+    @Override
+    public void referencesChange(FlowStateImplementor flowState) {
+        sessionFlows.referencesChanged(flowState);
+    }
+
     @Override
     public void activityChange(FlowStateImplementor flowState, FlowActivity flowActivity, FlowStepDirection flowStepDirection,
         FlowActivityPhase flowActivityPhase) {
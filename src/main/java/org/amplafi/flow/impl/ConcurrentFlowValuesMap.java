@@ -0,0 +1,392 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import org.amplafi.flow.FlowValueMapKey;
+import org.amplafi.flow.FlowValuesMap;
+
+/**
+ * {@link FlowValuesMap} for FlowStates that are accessed by parallel requests ( for example, multiple ajax requests from the same page ).
+ *
+ * <ul>
+ * <li>Reads never lock: values are found through a {@link ConcurrentHashMap} per namespace without creating a key object.</li>
+ * <li>Writes use the {@link ConcurrentHashMap} striping and a compare-and-set on the value holder.</li>
+ * <li>Iteration is in insertion order ( so {@link #getAsStringMap(boolean, boolean)} preserves the order like {@link DefaultFlowValuesMap} ).
+ * Iterators are weakly consistent: they never throw {@link java.util.ConcurrentModificationException} and may or may not reflect changes made after
+ * the iterator was created.</li>
+ * </ul>
+ * @author patmoore
+ *
+ */
+public class ConcurrentFlowValuesMap extends AbstractFlowValuesMap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    /**
+     * {@link ConcurrentHashMap} does not allow null keys.
+     */
+    private static final Object NULL_KEY = new Object();
+    /**
+     * value of a removed {@link Node} ( compared by identity ). Removing a node is the compare-and-set of its value to REMOVED, so a put
+     * that updates the node either happens before the remove or sees REMOVED and retries with a new node.
+     */
+    private static final String REMOVED = new String("removed");
+
+    private transient ConcurrentMap<Object, ConcurrentMap<Object, Node>> namespaces;
+    /**
+     * All nodes in insertion order. Removed nodes are marked and skipped; they are purged once enough have accumulated.
+     */
+    private transient ConcurrentLinkedQueue<Node> insertionOrder;
+    private transient AtomicInteger size;
+    private transient AtomicInteger removedSincePurge;
+    private transient Set<Map.Entry<FlowValueMapKey, String>> entrySet;
+
+    public ConcurrentFlowValuesMap() {
+        initializeTransient();
+    }
+
+    /**
+     * @param initialFlowState federated keys are split into namespace and key. If initialFlowState is a {@link FlowValuesMap} then its namespaces are preserved.
+     */
+    public ConcurrentFlowValuesMap(Map<?, ?> initialFlowState) {
+        this();
+        initialize(initialFlowState);
+    }
+
+    private void initializeTransient() {
+        this.namespaces = new ConcurrentHashMap<Object, ConcurrentMap<Object, Node>>();
+        this.insertionOrder = new ConcurrentLinkedQueue<Node>();
+        this.size = new AtomicInteger();
+        this.removedSincePurge = new AtomicInteger();
+    }
+
+    private static Object mask(String value) {
+        return value == null? NULL_KEY: value;
+    }
+
+    private Node getNode(Object namespace, Object key) {
+        ConcurrentMap<Object, Node> nodes = namespaces.get(mask(toNamespace(namespace)));
+        return nodes == null? null : nodes.get(mask(toKeyString(key)));
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#get(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public String get(Object namespace, Object key) {
+        Node node = getNode(namespace, key);
+        if ( node == null ) {
+            return null;
+        }
+        String value = node.value;
+        return value == REMOVED? null: value;
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#containsKey(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(Object namespace, Object key) {
+        Node node = getNode(namespace, key);
+        return node != null && !node.isRemoved();
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#put(java.lang.Object, java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public String put(Object namespace, Object key, Object value) {
+        String space = toNamespace(namespace);
+        String keyString = toKeyString(key);
+        String valueString = toKeyString(value);
+        Object maskedSpace = mask(space);
+        Object maskedKey = mask(keyString);
+        while(true) {
+            ConcurrentMap<Object, Node> nodes = namespaces.get(maskedSpace);
+            if ( nodes == null ) {
+                ConcurrentMap<Object, Node> newNodes = new ConcurrentHashMap<Object, Node>();
+                nodes = namespaces.putIfAbsent(maskedSpace, newNodes);
+                if ( nodes == null ) {
+                    nodes = newNodes;
+                }
+            }
+            Node node = nodes.get(maskedKey);
+            if ( node == null ) {
+                Node newNode = new Node(new DefaultFlowValuesMapKey(space, keyString), valueString);
+                if ( nodes.putIfAbsent(maskedKey, newNode) == null ) {
+                    insertionOrder.add(newNode);
+                    size.incrementAndGet();
+                    recordChange(space, keyString, null, valueString, false, false);
+                    if ( namespaces.get(maskedSpace) != nodes ) {
+                        // raced with removeNamespace() - namespace map was discarded.
+                        removeNode(nodes, maskedKey, newNode);
+                        continue;
+                    }
+                    return null;
+                }
+            } else {
+                String previous = node.value;
+                if ( previous == REMOVED ) {
+                    // raced with a remove: finish unlinking and try again with a new node.
+                    nodes.remove(maskedKey, node);
+                } else if ( VALUE_UPDATER.compareAndSet(node, previous, valueString)) {
+                    // a removeNamespace() that discarded nodes afterwards also removes this node.
+                    recordChange(space, keyString, previous, valueString, true, false);
+                    return previous;
+                }
+            }
+        }
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#removeFromNamespace(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public String removeFromNamespace(Object namespace, Object key) {
+        ConcurrentMap<Object, Node> nodes = namespaces.get(mask(toNamespace(namespace)));
+        if ( nodes != null ) {
+            Object maskedKey = mask(toKeyString(key));
+            Node node = nodes.get(maskedKey);
+            if ( node != null ) {
+                String previous = removeNode(nodes, maskedKey, node);
+                if ( previous != REMOVED ) {
+                    return previous;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the node's value when removed or {@link #REMOVED} if another thread removed the node.
+     */
+    private String removeNode(ConcurrentMap<Object, Node> nodes, Object maskedKey, Node node) {
+        while(true) {
+            String previous = node.value;
+            if ( previous == REMOVED ) {
+                return REMOVED;
+            } else if ( VALUE_UPDATER.compareAndSet(node, previous, REMOVED)) {
+                nodes.remove(maskedKey, node);
+                size.decrementAndGet();
+                recordChange(node.key.getNamespace(), node.key.getKey(), previous, null, true, true);
+                nodeRemoved();
+                return previous;
+            }
+        }
+    }
+
+    private void nodeRemoved() {
+        if ( removedSincePurge.incrementAndGet() > Math.max(16, size.get())) {
+            removedSincePurge.set(0);
+            for(Iterator<Node> iterator = insertionOrder.iterator(); iterator.hasNext();) {
+                if ( iterator.next().isRemoved() ) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#getNamespaces()
+     */
+    @Override
+    public Set<String> getNamespaces() {
+        Set<String> result = new LinkedHashSet<String>();
+        for(Map.Entry<Object, ConcurrentMap<Object, Node>> entry: namespaces.entrySet()) {
+            if ( !entry.getValue().isEmpty()) {
+                result.add(entry.getKey() == NULL_KEY? null : (String) entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#getNamespace(java.lang.Object)
+     */
+    @Override
+    public Map<String, String> getNamespace(Object namespace) {
+        ConcurrentMap<Object, Node> nodes = namespaces.get(mask(toNamespace(namespace)));
+        if ( nodes == null ) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for(Node node: nodes.values()) {
+            String value = node.value;
+            if ( value != REMOVED ) {
+                result.put(node.key.getKey(), value);
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#removeNamespace(java.lang.Object)
+     */
+    @Override
+    public void removeNamespace(Object namespace) {
+        ConcurrentMap<Object, Node> nodes = namespaces.remove(mask(toNamespace(namespace)));
+        if ( nodes != null ) {
+            for(Map.Entry<Object, Node> entry: nodes.entrySet()) {
+                removeNode(nodes, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Copies all the entries ( except ones with null values ).
+     * @see org.amplafi.flow.FlowValuesMap#copy()
+     */
+    @Override
+    public ConcurrentFlowValuesMap copy() {
+        return new ConcurrentFlowValuesMap(this);
+    }
+
+    /**
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Not atomic: values put concurrently with the clear() may survive.
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public void clear() {
+        for(Object namespace: namespaces.keySet()) {
+            removeNamespace(namespace == NULL_KEY? null: namespace);
+        }
+    }
+
+    /**
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<FlowValueMapKey, String>> entrySet() {
+        if ( entrySet == null ) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        Map<FlowValueMapKey, String> entries = new LinkedHashMap<FlowValueMapKey, String>(this);
+        out.writeInt(entries.size());
+        for(Map.Entry<FlowValueMapKey, String> entry: entries.entrySet()) {
+            out.writeObject(entry.getKey().getNamespace());
+            out.writeObject(entry.getKey().getKey());
+            out.writeObject(entry.getValue());
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        initializeTransient();
+        int count = in.readInt();
+        for(int i = 0; i < count; i++) {
+            put(in.readObject(), in.readObject(), in.readObject());
+        }
+    }
+
+    private static final AtomicReferenceFieldUpdater<Node, String> VALUE_UPDATER = AtomicReferenceFieldUpdater.newUpdater(Node.class, String.class, "value");
+
+    /**
+     * package-private (not private) so that {@link #VALUE_UPDATER} can access value.
+     */
+    static class Node {
+        final DefaultFlowValuesMapKey key;
+        volatile String value;
+        Node(DefaultFlowValuesMapKey key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+        boolean isRemoved() {
+            return value == REMOVED;
+        }
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<FlowValueMapKey, String>> {
+        @Override
+        public Iterator<Map.Entry<FlowValueMapKey, String>> iterator() {
+            return new EntryIterator();
+        }
+        @Override
+        public int size() {
+            return ConcurrentFlowValuesMap.this.size();
+        }
+        @Override
+        public void clear() {
+            ConcurrentFlowValuesMap.this.clear();
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<FlowValueMapKey, String>> {
+        private final Iterator<Node> nodeIterator = insertionOrder.iterator();
+        private Node next;
+        private String nextValue;
+        private Node last;
+        @Override
+        public boolean hasNext() {
+            while( next == null && nodeIterator.hasNext()) {
+                Node node = nodeIterator.next();
+                String value = node.value;
+                if ( value != REMOVED ) {
+                    next = node;
+                    nextValue = value;
+                }
+            }
+            return next != null;
+        }
+        @Override
+        public Map.Entry<FlowValueMapKey, String> next() {
+            if ( !hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = null;
+            return new SimpleImmutableEntry<FlowValueMapKey, String>(last.key, nextValue);
+        }
+        @Override
+        public void remove() {
+            if ( last == null ) {
+                throw new IllegalStateException();
+            }
+            ConcurrentMap<Object, Node> nodes = namespaces.get(mask(last.key.getNamespace()));
+            if ( nodes != null ) {
+                removeNode(nodes, mask(last.key.getKey()), last);
+            }
+            last = null;
+        }
+    }
+}
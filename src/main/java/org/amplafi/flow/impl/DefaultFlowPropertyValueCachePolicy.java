@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Currency;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import org.amplafi.flow.flowproperty.FlowPropertyValueCachePolicy;
+
+/**
+ * The standard {@link FlowPropertyValueCachePolicy}s: {@link #UNBOUNDED} ( the default ), {@link #lru(int, long)} and {@link #SOFT}.
+ *
+ * The size estimate is rough: strings and boxed primitives by their content, collections, maps and arrays by sampling their first elements,
+ * everything else as a fixed size.
+ *
+ * Only JDK value types ( strings, numbers, enums, dates, ... ) and collections, maps and arrays of them are transaction independent.
+ * Everything else could be a persistent entity so is treated as {@link #isTransactionBound(Object) bound to the transaction}.
+ * @author patmoore
+ *
+ */
+public class DefaultFlowPropertyValueCachePolicy implements FlowPropertyValueCachePolicy {
+    public static final DefaultFlowPropertyValueCachePolicy UNBOUNDED = new DefaultFlowPropertyValueCachePolicy(Integer.MAX_VALUE, Long.MAX_VALUE, false);
+    public static final DefaultFlowPropertyValueCachePolicy SOFT = new DefaultFlowPropertyValueCachePolicy(Integer.MAX_VALUE, Long.MAX_VALUE, true);
+
+    private static final int OBJECT_BYTES = 16;
+    private static final int REFERENCE_BYTES = 8;
+    /**
+     * used for objects whose size cannot be estimated ( entities, beans ).
+     */
+    private static final int DEFAULT_OBJECT_BYTES = 128;
+    private static final int SAMPLE_SIZE = 16;
+    private static final int MAX_DEPTH = 3;
+    /**
+     * larger collections are assumed to be transaction bound rather than checked.
+     */
+    private static final int MAX_CHECKED_ELEMENTS = 256;
+
+    private final int maxEntries;
+    private final long maxEstimatedBytes;
+    private final boolean softReferenced;
+
+    public DefaultFlowPropertyValueCachePolicy(int maxEntries, long maxEstimatedBytes, boolean softReferenced) {
+        this.maxEntries = maxEntries;
+        this.maxEstimatedBytes = maxEstimatedBytes;
+        this.softReferenced = softReferenced;
+    }
+
+    /**
+     * @param maxEntries
+     * @param maxEstimatedBytes
+     * @return policy that evicts the least recently used values when either limit is exceeded.
+     */
+    public static DefaultFlowPropertyValueCachePolicy lru(int maxEntries, long maxEstimatedBytes) {
+        return new DefaultFlowPropertyValueCachePolicy(maxEntries, maxEstimatedBytes, false);
+    }
+
+    @Override
+    public long estimateBytes(Object value) {
+        return estimateBytes(value, 0);
+    }
+
+    private long estimateBytes(Object value, int depth) {
+        if ( value == null ) {
+            return 0;
+        } else if ( value instanceof CharSequence) {
+            return OBJECT_BYTES + 24 + 2L * ((CharSequence)value).length();
+        } else if ( value instanceof Number || value instanceof Boolean || value instanceof Character || value instanceof Enum) {
+            return OBJECT_BYTES + REFERENCE_BYTES;
+        } else if ( depth >= MAX_DEPTH) {
+            return DEFAULT_OBJECT_BYTES;
+        } else if ( value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            return OBJECT_BYTES * 2 + estimateElements(collection.iterator(), collection.size(), depth);
+        } else if ( value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            return OBJECT_BYTES * 2 + estimateElements(map.keySet().iterator(), map.size(), depth) + estimateElements(map.values().iterator(), map.size(), depth);
+        } else if ( value instanceof Object[]) {
+            Object[] array = (Object[]) value;
+            long total = OBJECT_BYTES;
+            int sampled = Math.min(array.length, SAMPLE_SIZE);
+            for(int i = 0; i < sampled; i++) {
+                total += estimateBytes(array[i], depth+1);
+            }
+            return total + (sampled == 0? 0 : (total - OBJECT_BYTES) / sampled * (array.length - sampled)) + (long)REFERENCE_BYTES * array.length;
+        } else if ( value instanceof byte[]) {
+            return OBJECT_BYTES + ((byte[])value).length;
+        } else {
+            return DEFAULT_OBJECT_BYTES;
+        }
+    }
+
+    /**
+     * estimate the first {@link #SAMPLE_SIZE} elements and assume the rest are the same.
+     */
+    private long estimateElements(Iterator<?> iterator, int size, int depth) {
+        long sampledBytes = 0;
+        int sampled = 0;
+        while(sampled < SAMPLE_SIZE && iterator.hasNext()) {
+            sampledBytes += estimateBytes(iterator.next(), depth+1);
+            sampled++;
+        }
+        long total = (long)REFERENCE_BYTES * 2 * size + sampledBytes;
+        if ( sampled > 0 && size > sampled) {
+            total += sampledBytes / sampled * (size - sampled);
+        }
+        return total;
+    }
+
+    @Override
+    public boolean isSoftReferenced() {
+        return softReferenced;
+    }
+
+    @Override
+    public boolean isOverLimit(int entryCount, long estimatedBytes) {
+        return entryCount > maxEntries || estimatedBytes > maxEstimatedBytes;
+    }
+
+    @Override
+    public boolean isBounded() {
+        return maxEntries != Integer.MAX_VALUE || maxEstimatedBytes != Long.MAX_VALUE;
+    }
+
+    @Override
+    public boolean isTransactionBound(Object value) {
+        return isTransactionBound(value, 0);
+    }
+
+    private boolean isTransactionBound(Object value, int depth) {
+        if ( value == null || isValue(value)) {
+            return false;
+        } else if ( depth >= MAX_DEPTH) {
+            return true;
+        } else if ( value instanceof Collection) {
+            return isAnyTransactionBound((Collection<?>) value, depth);
+        } else if ( value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            return isAnyTransactionBound(map.keySet(), depth) || isAnyTransactionBound(map.values(), depth);
+        } else if ( value instanceof Object[]) {
+            return isAnyTransactionBound(Arrays.asList((Object[]) value), depth);
+        } else {
+            // arrays of primitives are values.
+            return !value.getClass().isArray();
+        }
+    }
+
+    private boolean isAnyTransactionBound(Collection<?> elements, int depth) {
+        if ( elements.size() > MAX_CHECKED_ELEMENTS) {
+            return true;
+        }
+        for(Object element: elements) {
+            if ( isTransactionBound(element, depth+1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isValue(Object value) {
+        return value instanceof CharSequence || value instanceof Number || value instanceof Boolean || value instanceof Character
+            || value instanceof Enum || value instanceof Class || value instanceof Date || value instanceof Locale || value instanceof TimeZone
+            || value instanceof URI || value instanceof URL || value instanceof UUID || value instanceof Currency;
+    }
+
+    @Override
+    public String toString() {
+        return "DefaultFlowPropertyValueCachePolicy(maxEntries="+maxEntries+", maxEstimatedBytes="+maxEstimatedBytes+", softReferenced="+softReferenced+")";
+    }
+}
@@ -15,22 +15,73 @@ package org.amplafi.flow.impl;
 
 import static org.apache.commons.lang.StringUtils.isNotBlank;
 
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang.ObjectUtils;
 import org.amplafi.flow.FlowValuesMap;
+import org.amplafi.flow.FlowValuesMapChange;
 import org.amplafi.flow.FlowValueMapKey;
 
 import static com.sworddance.util.CUtilities.*;
 
+/**
+ * The standard {@link FlowValuesMap}.
+ *
+ * Keys are pooled: every distinct (namespace, key) pair has a single canonical {@link DefaultFlowValuesMapKey}. Lookups probe
+ * the pool with the raw namespace and key so reads ( get(), containsKey(), removeFromNamespace() ) do not allocate a key. Only
+ * a put() of a new (namespace, key) pair creates a key.
+ *
+ * Compact form ( version 1 ): version byte, namespace dictionary ( count, namespaces ), entry count, then for each entry
+ * the namespace index, key and value. Counts and string lengths are varints, strings are UTF-8 ( see {@link ExternalizationUtils} ).
+ * The compact form is written after the serialized fields ( {@link #writeObject(ObjectOutputStream)} ). Streams written before
+ * the compact form ( the default serialization of {@link #map} ) are still read.
+ * @author patmoore
+ *
+ */
 public class DefaultFlowValuesMap implements FlowValuesMap<FlowValueMapKey, String>, Serializable {
 
+    /**
+     * the default serialVersionUID of the form before the compact form ( only {@link #map} is serialized ).
+     */
+    private static final long serialVersionUID = 7163281956698862977L;
+    private static final int EXTERNAL_VERSION = 1;
+    private static final String MAP_FIELD = "map";
+    private static final String COMPACT_FIELD = "compact";
+    /**
+     * {@link #map} is declared so the form before the compact form can be read, but is always written as null. "compact" is
+     * absent from the old form.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField(MAP_FIELD, Map.class),
+        new ObjectStreamField(COMPACT_FIELD, boolean.class)
+    };
+
     private Map<DefaultFlowValuesMapKey, String> map;
+    /**
+     * namespace -> key -> canonical key. Guarded by the {@link #map} monitor. Rebuilt lazily after deserialization.
+     * May contain keys no longer in {@link #map} ( if removed through an iterator ) - so presence in the pool is never
+     * used to decide presence in the map.
+     */
+    private transient Map<String, Map<String, DefaultFlowValuesMapKey>> keyPool;
+    private transient FlowValuesMapChangeLog changeLog;
+    /**
+     * see {@link #getModificationCount()}. Changed while holding the lock on {@link #map}.
+     */
+    private transient volatile long modificationCount;
 
     public DefaultFlowValuesMap() {
         this.map = Collections.synchronizedMap(new LinkedHashMap<DefaultFlowValuesMapKey, String>());
@@ -42,7 +93,7 @@ public class DefaultFlowValuesMap implements FlowValuesMap<FlowValueMapKey, Stri
                 Object value = entry.getValue();
                 if ( value != null) {
                     DefaultFlowValuesMapKey key = new DefaultFlowValuesMapKey(entry.getKey());
-                    this.map.put(key, value.toString());
+                    this.map.put(internKey(key), value.toString());
                 }
             }
         }
@@ -54,32 +105,101 @@ public class DefaultFlowValuesMap implements FlowValuesMap<FlowValueMapKey, Stri
                 CharSequence value = entry.getValue();
                 if ( value != null) {
                     DefaultFlowValuesMapKey key = DefaultFlowValuesMapKey.toKey(entry.getKey());
-                    this.map.put(key, value.toString());
+                    this.map.put(internKey(key), value.toString());
                 }
             }
         }
     }
 	@Override
     public boolean containsKey(Object key) {
-        return map.containsKey(toKey(null, key));
+        return containsKey(null, key);
     }
     @Override
     public boolean containsKey(Object namespace, Object key) {
-        return map.containsKey(toKey(namespace, key));
+        synchronized (map) {
+            DefaultFlowValuesMapKey pooledKey = findKey(namespace, key);
+            return pooledKey != null && map.containsKey(pooledKey);
+        }
     }
     @Override
     public String get(Object key) {
-        String value = map.get(toKey(null, key));
-        return value;
+        return get(null, key);
     }
 
     @Override
     public String get(Object namespace, Object key) {
-        return map.get(toKey(namespace, key));
+        synchronized (map) {
+            DefaultFlowValuesMapKey pooledKey = findKey(namespace, key);
+            return pooledKey == null? null : map.get(pooledKey);
+        }
     }
 
+    /**
+     *
+     * @param namespace
+     * @param key
+     * @return the canonical key for (namespace, key) - creating ( and pooling ) it if needed.
+     */
     protected DefaultFlowValuesMapKey toKey(Object namespace, Object key) {
-        return new DefaultFlowValuesMapKey(namespace, key);
+        synchronized (map) {
+            DefaultFlowValuesMapKey pooledKey = findKey(namespace, key);
+            if ( pooledKey == null ) {
+                pooledKey = internKey(new DefaultFlowValuesMapKey(namespace, key));
+            }
+            return pooledKey;
+        }
+    }
+
+    /**
+     * Does not allocate.
+     * @param namespace
+     * @param key
+     * @return the pooled key or null if (namespace, key) has never been put into this map.
+     */
+    private DefaultFlowValuesMapKey findKey(Object namespace, Object key) {
+        Map<String, DefaultFlowValuesMapKey> keys = getKeyPool().get(DefaultFlowValuesMapKey.toNamespace(namespace));
+        return keys == null? null : keys.get(ObjectUtils.toString(key, null));
+    }
+
+    private DefaultFlowValuesMapKey internKey(DefaultFlowValuesMapKey key) {
+        synchronized (map) {
+            Map<String, DefaultFlowValuesMapKey> keys = getKeyPool().get(key.getNamespace());
+            if ( keys == null ) {
+                keys = new HashMap<String, DefaultFlowValuesMapKey>();
+                getKeyPool().put(key.getNamespace(), keys);
+            }
+            DefaultFlowValuesMapKey pooledKey = keys.get(key.getKey());
+            if ( pooledKey == null ) {
+                keys.put(key.getKey(), key);
+                pooledKey = key;
+            }
+            return pooledKey;
+        }
+    }
+
+    private void releaseKey(DefaultFlowValuesMapKey key) {
+        Map<String, DefaultFlowValuesMapKey> keys = getKeyPool().get(key.getNamespace());
+        if ( keys != null ) {
+            keys.remove(key.getKey());
+            if ( keys.isEmpty()) {
+                getKeyPool().remove(key.getNamespace());
+            }
+        }
+    }
+
+    private Map<String, Map<String, DefaultFlowValuesMapKey>> getKeyPool() {
+        if ( keyPool == null ) {
+            keyPool = new HashMap<String, Map<String, DefaultFlowValuesMapKey>>();
+            for(DefaultFlowValuesMapKey key: map.keySet()) {
+                Map<String, DefaultFlowValuesMapKey> keys = keyPool.get(key.getNamespace());
+                if ( keys == null ) {
+                    keys = new HashMap<String, DefaultFlowValuesMapKey>();
+                    keyPool.put(key.getNamespace(), keys);
+                }
+                keys.put(key.getKey(), key);
+            }
+        }
+        return keyPool;
     }
     @Override
     public Map<String, String> getAsFlattenedStringMap() {
@@ -87,7 +207,17 @@ public class DefaultFlowValuesMap implements FlowValuesMap<FlowValueMapKey, Stri
     }
     @Override
     public String removeFromNamespace(Object namespace, Object key) {
-        return map.remove(toKey(namespace, key));
+        synchronized (map) {
+            DefaultFlowValuesMapKey pooledKey = findKey(namespace, key);
+            if ( pooledKey == null || !map.containsKey(pooledKey)) {
+                return null;
+            } else {
+                releaseKey(pooledKey);
+                String previous = map.remove(pooledKey);
+                recordChange(pooledKey, previous, null, true, true);
+                return previous;
+            }
+        }
     }
 
     @Override
@@ -101,6 +231,77 @@ public class DefaultFlowValuesMap implements FlowValuesMap<FlowValueMapKey, Stri
         return result;
     }
 
+    /**
+     * Walks all the keys.
+     * @see org.amplafi.flow.FlowValuesMap#getNamespaces()
+     */
+    @Override
+    public Set<String> getNamespaces() {
+        Set<String> namespaces = new LinkedHashSet<String>();
+        synchronized (map) {
+            for(DefaultFlowValuesMapKey key: map.keySet()) {
+                namespaces.add(key.getNamespace());
+            }
+        }
+        return namespaces;
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#getNamespace(java.lang.Object)
+     */
+    @Override
+    public Map<String, String> getNamespace(Object namespace) {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        synchronized (map) {
+            Map<String, DefaultFlowValuesMapKey> keys = getKeyPool().get(DefaultFlowValuesMapKey.toNamespace(namespace));
+            if ( keys != null ) {
+                for(DefaultFlowValuesMapKey key: keys.values()) {
+                    if ( map.containsKey(key)) {
+                        result.put(key.getKey(), map.get(key));
+                    }
+                }
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#removeNamespace(java.lang.Object)
+     */
+    @Override
+    public void removeNamespace(Object namespace) {
+        synchronized (map) {
+            Map<String, DefaultFlowValuesMapKey> keys = getKeyPool().remove(DefaultFlowValuesMapKey.toNamespace(namespace));
+            if ( keys != null ) {
+                for(DefaultFlowValuesMapKey key: keys.values()) {
+                    if ( map.containsKey(key)) {
+                        recordChange(key, map.remove(key), null, true, true);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#copyNamespace(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public void copyNamespace(Object fromNamespace, Object toNamespace) {
+        synchronized (map) {
+            putAll(toNamespace, getNamespace(fromNamespace));
+        }
+    }
+
+    /**
+     * Copies all the entries ( except ones with null values ).
+     * @see org.amplafi.flow.FlowValuesMap#copy()
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public DefaultFlowValuesMap copy() {
+        return new DefaultFlowValuesMap((FlowValuesMap<FlowValueMapKey, CharSequence>)(FlowValuesMap)this);
+    }
+
     @Override
     public boolean isEmpty() {
         return map.isEmpty();
@@ -108,25 +309,73 @@ public class DefaultFlowValuesMap implements FlowValuesMap<FlowValueMapKey, Stri
 
     @Override
     public String put(Object namespace, Object key, Object value) {
-        return this.map.put(toKey(namespace, key), (String)value);
+        return putInternal(toKey(namespace, key), (String)value);
+    }
+
+    private String putInternal(DefaultFlowValuesMapKey key, String value) {
+        synchronized (map) {
+            boolean previouslyPresent = map.containsKey(key);
+            String previous = this.map.put(key, value);
+            recordChange(key, previous, value, previouslyPresent, false);
+            return previous;
+        }
     }
     /**
      * @see java.util.Map#put(java.lang.Object, java.lang.Object)
      */
     @Override
     public String put(FlowValueMapKey key, String value) {
-        return this.map.put(toKey(null, key), ObjectUtils.toString(value, null));
+        return putInternal(toKey(null, key), ObjectUtils.toString(value, null));
     }
 
     public String putAny(Object key, Object value) {
-        return this.map.put(toKey(null, key), ObjectUtils.toString(value, null));
+        return putInternal(toKey(null, key), ObjectUtils.toString(value, null));
     }
     /**
      * @see java.util.Map#clear()
      */
     @Override
     public void clear() {
-        this.map.clear();
+        synchronized (map) {
+            for(Map.Entry<DefaultFlowValuesMapKey, String> entry: map.entrySet()) {
+                recordChange(entry.getKey(), entry.getValue(), null, true, true);
+            }
+            this.map.clear();
+            this.keyPool = null;
+        }
+    }
+
+    /**
+     * Values supplied to the constructor are not changes.
+     * Changes made through the {@link #entrySet()} or {@link #keySet()} views are not recorded.
+     * @see org.amplafi.flow.FlowValuesMap#drainChanges()
+     */
+    @Override
+    public List<FlowValuesMapChange> drainChanges() {
+        synchronized (map) {
+            if ( changeLog == null ) {
+                changeLog = new FlowValuesMapChangeLog();
+            }
+            return changeLog.drain();
+        }
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#getModificationCount()
+     */
+    @Override
+    public long getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * Only records once {@link #drainChanges()} has been called. Caller holds the lock on {@link #map}.
+     */
+    private void recordChange(DefaultFlowValuesMapKey key, String oldValue, String newValue, boolean previouslyPresent, boolean removed) {
+        modificationCount++;
+        if ( changeLog != null ) {
+            changeLog.record(key, oldValue, newValue, previouslyPresent, removed);
+        }
     }
     /**
      * @see java.util.Map#containsValue(java.lang.Object)
@@ -180,7 +429,12 @@ public class DefaultFlowValuesMap implements FlowValuesMap<FlowValueMapKey, Stri
      */
     @Override
     public String remove(Object key) {
-        return this.map.remove(DefaultFlowValuesMapKey.toKey(key));
+        DefaultFlowValuesMapKey flowValuesMapKey = DefaultFlowValuesMapKey.toKey(key);
+        if ( flowValuesMapKey == null ) {
+            return this.map.remove(null);
+        } else {
+            return removeFromNamespace(flowValuesMapKey.getNamespace(), flowValuesMapKey.getKey());
+        }
     }
     /**
      * @see java.util.Map#size()
@@ -200,4 +454,81 @@ public class DefaultFlowValuesMap implements FlowValuesMap<FlowValueMapKey, Stri
     public String toString() {
         return ObjectUtils.toString(map);
     }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put(COMPACT_FIELD, true);
+        out.writeFields();
+        writeCompact(out);
+    }
+
+    /**
+     * Restored values are not changes.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.map = Collections.synchronizedMap(new LinkedHashMap<DefaultFlowValuesMapKey, String>());
+        if ( fields.get(COMPACT_FIELD, false)) {
+            readCompact(in);
+        } else {
+            // written before the compact form.
+            Map<DefaultFlowValuesMapKey, String> oldMap = (Map<DefaultFlowValuesMapKey, String>) fields.get(MAP_FIELD, null);
+            if ( oldMap != null ) {
+                for(Map.Entry<DefaultFlowValuesMapKey, String> entry: oldMap.entrySet()) {
+                    map.put(internKey(entry.getKey()), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * writes the compact form ( see class doc ). {@link FlowStateImpl} writes its DefaultFlowValuesMap inline with this.
+     */
+    void writeCompact(ObjectOutput out) throws IOException {
+        out.writeByte(EXTERNAL_VERSION);
+        synchronized (map) {
+            Map<String, Integer> namespaces = new LinkedHashMap<String, Integer>();
+            for(DefaultFlowValuesMapKey key: map.keySet()) {
+                if ( !namespaces.containsKey(key.getNamespace())) {
+                    namespaces.put(key.getNamespace(), namespaces.size());
+                }
+            }
+            ExternalizationUtils.writeVarInt(out, namespaces.size());
+            for(String namespace: namespaces.keySet()) {
+                ExternalizationUtils.writeString(out, namespace);
+            }
+            ExternalizationUtils.writeVarInt(out, map.size());
+            for(Map.Entry<DefaultFlowValuesMapKey, String> entry: map.entrySet()) {
+                ExternalizationUtils.writeVarInt(out, namespaces.get(entry.getKey().getNamespace()));
+                ExternalizationUtils.writeString(out, entry.getKey().getKey());
+                ExternalizationUtils.writeString(out, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents with the compact form written by {@link #writeCompact(ObjectOutput)}. Restored values are not changes.
+     */
+    void readCompact(ObjectInput in) throws IOException {
+        ExternalizationUtils.readVersion(in, getClass(), EXTERNAL_VERSION);
+        String[] namespaces = new String[ExternalizationUtils.readVarInt(in)];
+        for(int i = 0; i < namespaces.length; i++) {
+            namespaces[i] = ExternalizationUtils.readString(in);
+        }
+        int size = ExternalizationUtils.readVarInt(in);
+        synchronized (map) {
+            map.clear();
+            keyPool = null;
+            for(int i = 0; i < size; i++) {
+                int namespaceIndex = ExternalizationUtils.readVarInt(in);
+                if ( namespaceIndex >= namespaces.length) {
+                    throw new IOException("namespace index "+namespaceIndex+" out of range");
+                }
+                String key = ExternalizationUtils.readString(in);
+                String value = ExternalizationUtils.readString(in);
+                map.put(internKey(new DefaultFlowValuesMapKey(namespaces[namespaceIndex], key)), value);
+            }
+        }
+    }
 }
@@ -13,6 +13,8 @@
  */
 package org.amplafi.flow.impl;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 import org.apache.commons.lang.ObjectUtils;
@@ -22,18 +24,29 @@ import org.amplafi.flow.FlowValueMapKey;
 
 /**
  * Avoids string concatenation performance issues.
+ *
+ * Keys are immutable so the hash and the string form are computed once when the key is created. This allows
+ * {@link DefaultFlowValuesMap} to pool keys and reuse them for every lookup.
  * @author Patrick Moore
  *
  */
 public class DefaultFlowValuesMapKey implements FlowValueMapKey, Serializable {
+    /**
+     * the default serialVersionUID of the form before the hash and string were cached ( only namespace and key are serialized ).
+     */
+    private static final long serialVersionUID = -5671226953888136353L;
     private String namespace;
     private String key;
-    private String stringValue;
+    /**
+     * derived, see {@link #initialize()}
+     */
+    private transient String stringValue;
+    private transient int hashCode;
 
     public DefaultFlowValuesMapKey(Object namespace, Object key) {
-        String space = ObjectUtils.toString(namespace, null);
-        setNamespace(space);
+        setNamespace(ObjectUtils.toString(namespace, null));
         this.key = ObjectUtils.toString(key, null);
+        initialize();
     }
 
     public DefaultFlowValuesMapKey(CharSequence key) {
@@ -45,10 +58,12 @@ public class DefaultFlowValuesMapKey implements FlowValueMapKey, Serializable {
             this.setNamespace(strings[0]);
             this.key = strings[1];
         }
+        initialize();
     }
     public DefaultFlowValuesMapKey(FlowValueMapKey key) {
         this.setNamespace(key.getNamespace());
         this.key = key.getKey();
+        initialize();
     }
     public static DefaultFlowValuesMapKey toKey(Object key) {
         if ( key == null ) {
@@ -62,23 +77,24 @@ public class DefaultFlowValuesMapKey implements FlowValueMapKey, Serializable {
         }
     }
 
+    /**
+     * Normalizes a namespace the same way the constructors do. Does not allocate if the namespace is already a trimmed String.
+     * @param namespace
+     * @return the namespace as it will be stored in a {@link DefaultFlowValuesMapKey}
+     */
+    public static String toNamespace(Object namespace) {
+        String space = ObjectUtils.toString(namespace, null);
+        return isNotBlank(space)?space.trim():NO_NAMESPACE;
+    }
+
     /**
      * @param space
      */
     private void setNamespace(String space) {
-        this.namespace = isNotBlank(space)?space.trim():NO_NAMESPACE;
-    }
-    @Override
-    public boolean equals(Object object) {
-        if (object instanceof DefaultFlowValuesMapKey) {
-            DefaultFlowValuesMapKey other = (DefaultFlowValuesMapKey) object;
-            return ObjectUtils.equals(other.key, key) && ObjectUtils.equals(other.namespace, namespace);
-        }
-        return false;
+        this.namespace = toNamespace(space);
     }
 
-    @Override
-    public int hashCode() {
+    private void initialize() {
         int result;
         if ( namespace != null ) {
             result = namespace.hashCode();
@@ -88,17 +104,35 @@ public class DefaultFlowValuesMapKey implements FlowValueMapKey, Serializable {
         if ( key != null ) {
             result ^= key.hashCode();
         }
-        return result;
+        this.hashCode = result;
+        if ( isNotBlank(namespace)) {
+            this.stringValue = namespace +NAMESPACE_SEPARATOR + ObjectUtils.toString(key);
+        } else {
+            this.stringValue = ObjectUtils.toString(key);
+        }
+    }
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        initialize();
     }
+
     @Override
-    public String toString() {
-        if ( stringValue == null ) {
-            if ( isNotBlank(namespace)) {
-                stringValue = namespace +NAMESPACE_SEPARATOR + ObjectUtils.toString(key);
-            } else {
-                stringValue = ObjectUtils.toString(key);
-            }
+    public boolean equals(Object object) {
+        if ( object == this) {
+            return true;
+        } else if (object instanceof DefaultFlowValuesMapKey) {
+            DefaultFlowValuesMapKey other = (DefaultFlowValuesMapKey) object;
+            return other.hashCode == hashCode && ObjectUtils.equals(other.key, key) && ObjectUtils.equals(other.namespace, namespace);
         }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hashCode;
+    }
+    @Override
+    public String toString() {
         return stringValue;
     }
     /**
@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the passivated values off the heap in direct {@link ByteBuffer}s. The direct memory is released when the buffer is garbage collected
+ * after {@link #remove(String)}, so size -XX:MaxDirectMemorySize for the expected number of parked FlowStates.
+ * @author patmoore
+ *
+ */
+public class DirectBufferFlowStatePassivationStore implements FlowStatePassivationStore {
+
+    private final ConcurrentMap<String, ByteBuffer> buffers = new ConcurrentHashMap<String, ByteBuffer>();
+
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    @Override
+    public void put(String lookupKey, byte[] serialized) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(serialized.length);
+        buffer.put(serialized);
+        buffer.flip();
+        storedBytes.addAndGet(serialized.length);
+        ByteBuffer previous = buffers.put(lookupKey, buffer);
+        if ( previous != null ) {
+            storedBytes.addAndGet(-previous.capacity());
+        }
+    }
+
+    @Override
+    public byte[] remove(String lookupKey) {
+        ByteBuffer buffer = buffers.remove(lookupKey);
+        if ( buffer == null ) {
+            return null;
+        }
+        storedBytes.addAndGet(-buffer.capacity());
+        byte[] serialized = new byte[buffer.remaining()];
+        buffer.duplicate().get(serialized);
+        return serialized;
+    }
+
+    @Override
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()+"[flowStates="+buffers.size()+", storedBytes="+storedBytes.get()+"]";
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.amplafi.flow.FlowActivityImplementor;
+import org.amplafi.flow.FlowValueMapKey;
+import org.amplafi.flow.FlowValuesMap;
+import org.amplafi.flow.flowproperty.FlowPropertyDefinitionImplementor;
+import org.amplafi.flow.flowproperty.NamespaceKeySearchPlan;
+
+/**
+ * The values a {@link FlowStateImpl} exports to other flows ( {@link FlowStateImpl#getExportedValuesMap()} ).
+ *
+ * The export is computed as keys are read: the first access to a key applies the export rules ( see {@link FlowStateImpl#exportFlowProperty(FlowValuesMap, FlowPropertyDefinitionImplementor, FlowActivityImplementor, boolean)} )
+ * of only the property definitions that have the key as their name or as an alternate name. So code that only reads a few of the exported values
+ * only pays for the properties it reads, not for the size of the exporting flow's state. A FlowState that adopts the exported values as its own
+ * ( see {@link FlowStateImpl#createFlowValuesMap(Map)} ) gets a fully exported copy ( {@link #materializedCopy()} ) instead of this view.
+ *
+ * Operations that need every value ( iteration, {@link #size()}, {@link #getNamespaces()}, ... ) apply all the remaining rules once. After that the
+ * view is just a wrapper around the underlying {@link FlowValuesMap} and {@link #copy()} returns a copy of the underlying map.
+ *
+ * Unlike {@link FlowStateImpl#exportProperties(boolean)}, copy back values are not written back into the exporting FlowState.
+ *
+ * Serialization replaces this view with the fully exported underlying map.
+ * @author patmoore
+ *
+ */
+public class ExportedFlowValuesMap extends AbstractFlowValuesMap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The exporting FlowState's values plus the copied back values. Includes the values that are not exported.
+     * Never drained so it does not record changes: this view records its own.
+     */
+    private final FlowValuesMap<FlowValueMapKey, String> values;
+
+    /**
+     * null once every rule has been applied and the values that are not exported have been removed from {@link #values}.
+     */
+    private transient ExportRules exportRules;
+    private transient Set<ExportRule> applied;
+    /**
+     * (namespace, key) that are not exported.
+     */
+    private transient Set<DefaultFlowValuesMapKey> hidden;
+
+    /**
+     * @param flowState
+     * @param values a copy of the flowState's values that this map now owns.
+     */
+    @SuppressWarnings("unchecked")
+    public ExportedFlowValuesMap(FlowStateImpl flowState, FlowValuesMap values) {
+        this(new ExportRules(flowState), values, new HashSet<ExportRule>(), new HashSet<DefaultFlowValuesMapKey>());
+    }
+
+    private ExportedFlowValuesMap(ExportRules exportRules, FlowValuesMap<FlowValueMapKey, String> values, Set<ExportRule> applied, Set<DefaultFlowValuesMapKey> hidden) {
+        this.exportRules = exportRules;
+        this.values = values;
+        this.applied = applied;
+        this.hidden = hidden;
+    }
+
+    /**
+     * @param key
+     * @return true if the export rules that use key have been applied. ( for testing )
+     */
+    synchronized boolean isExported(String key) {
+        if ( exportRules == null ) {
+            return true;
+        }
+        for(ExportRule rule: exportRules.getRules(key)) {
+            if ( !applied.contains(rule)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#get(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public synchronized String get(Object namespace, Object key) {
+        String space = toNamespace(namespace);
+        String keyString = toKeyString(key);
+        return isVisible(space, keyString)? values.get(space, keyString) : null;
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#containsKey(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public synchronized boolean containsKey(Object namespace, Object key) {
+        String space = toNamespace(namespace);
+        String keyString = toKeyString(key);
+        return isVisible(space, keyString) && values.containsKey(space, keyString);
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#put(java.lang.Object, java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public synchronized String put(Object namespace, Object key, Object value) {
+        String space = toNamespace(namespace);
+        String keyString = toKeyString(key);
+        if ( exportRules != null && exportRules.isExcludedNamespace(space)) {
+            materialize();
+        }
+        // the export rules must be applied first so they do not override this value later.
+        boolean existed = containsKey(space, keyString);
+        String previous = existed? values.get(space, keyString): null;
+        if ( hidden != null ) {
+            hidden.remove(new DefaultFlowValuesMapKey(space, keyString));
+        }
+        String valueString = toKeyString(value);
+        values.put(space, keyString, valueString);
+        recordChange(space, keyString, previous, valueString, existed, false);
+        return previous;
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#removeFromNamespace(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public synchronized String removeFromNamespace(Object namespace, Object key) {
+        String space = toNamespace(namespace);
+        String keyString = toKeyString(key);
+        if ( !containsKey(space, keyString)) {
+            return null;
+        }
+        String previous = values.removeFromNamespace(space, keyString);
+        recordChange(space, keyString, previous, null, true, true);
+        return previous;
+    }
+
+    /**
+     * Only the values in the namespace are exported.
+     * @see org.amplafi.flow.FlowValuesMap#getNamespace(java.lang.Object)
+     */
+    @Override
+    public synchronized Map<String, String> getNamespace(Object namespace) {
+        String space = toNamespace(namespace);
+        if ( exportRules == null ) {
+            return values.getNamespace(space);
+        } else if ( exportRules.isExcludedNamespace(space)) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for(String key: new ArrayList<String>(values.getNamespace(space).keySet())) {
+            if ( isVisible(space, key) && values.containsKey(space, key)) {
+                result.put(key, values.get(space, key));
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#getNamespaces()
+     */
+    @Override
+    public synchronized Set<String> getNamespaces() {
+        materialize();
+        return values.getNamespaces();
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#removeNamespace(java.lang.Object)
+     */
+    @Override
+    public synchronized void removeNamespace(Object namespace) {
+        for(String key: getNamespace(namespace).keySet()) {
+            removeFromNamespace(namespace, key);
+        }
+    }
+
+    /**
+     * Until the view is fully exported, the copy shares the export rules and only copies the state of the rules already applied.
+     * @see org.amplafi.flow.FlowValuesMap#copy()
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public synchronized FlowValuesMap<FlowValueMapKey, String> copy() {
+        if ( exportRules == null ) {
+            return values.copy();
+        } else {
+            return new ExportedFlowValuesMap(exportRules, values.copy(), new HashSet<ExportRule>(applied), new HashSet<DefaultFlowValuesMapKey>(hidden));
+        }
+    }
+
+    /**
+     * @return a plain {@link FlowValuesMap} with all the exported values. Used by FlowStates that adopt the exported values so that they do not
+     * keep the export rules.
+     */
+    public synchronized FlowValuesMap<FlowValueMapKey, String> materializedCopy() {
+        materialize();
+        return values.copy();
+    }
+
+    /**
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public synchronized int size() {
+        materialize();
+        return values.size();
+    }
+
+    /**
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public synchronized void clear() {
+        materialize();
+        for(FlowValueMapKey key: new ArrayList<FlowValueMapKey>(values.keySet())) {
+            removeFromNamespace(key.getNamespace(), key.getKey());
+        }
+    }
+
+    /**
+     * Changes made through the returned set are not recorded by {@link #drainChanges()}.
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public synchronized Set<Map.Entry<FlowValueMapKey, String>> entrySet() {
+        materialize();
+        return values.entrySet();
+    }
+
+    @Override
+    public synchronized String toString() {
+        materialize();
+        return values.toString();
+    }
+
+    protected synchronized Object writeReplace() {
+        materialize();
+        return values;
+    }
+
+    private boolean isVisible(String namespace, String key) {
+        if ( exportRules == null ) {
+            return true;
+        } else if ( exportRules.isExcludedNamespace(namespace)) {
+            return false;
+        }
+        export(key);
+        return !hidden.contains(new DefaultFlowValuesMapKey(namespace, key));
+    }
+
+    /**
+     * Apply the rules of the properties that use key.
+     * @param key
+     */
+    private void export(String key) {
+        for(ExportRule rule: exportRules.getRules(key)) {
+            if ( applied.add(rule)) {
+                apply(rule);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link FlowStateImpl#exportFlowProperty(FlowValuesMap, FlowPropertyDefinitionImplementor, FlowActivityImplementor, boolean)}
+     * except that {@link #values} take the place of the FlowState's values.
+     * @param rule
+     */
+    private void apply(ExportRule rule) {
+        String value = null;
+        boolean valueSet = false;
+        NamespaceKeySearchPlan plan = rule.plan;
+        for(int namespaceIndex = 0; namespaceIndex < plan.getNamespaceCount(); namespaceIndex++) {
+            String namespace = toNamespace(plan.getNamespace(namespaceIndex));
+            for (int nameIndex = 0; nameIndex < plan.getNameCount(); nameIndex++) {
+                String key = plan.getName(nameIndex);
+                String rawValue = values.get(namespace, key);
+                if ( rawValue != null || values.containsKey(namespace, key)) {
+                    if ( !valueSet ) {
+                        // preserve the value from the most precise namespace.
+                        value = rawValue;
+                        valueSet = true;
+                    }
+                    if ( namespace != null ) {
+                        hidden.add(new DefaultFlowValuesMapKey(namespace, key));
+                    }
+                }
+            }
+        }
+        if ( valueSet && rule.copyBackOnFlowSuccess) {
+            values.put(null, rule.name, value);
+        }
+    }
+
+    /**
+     * Apply all the remaining rules and drop the values that are not exported.
+     */
+    private void materialize() {
+        if ( exportRules != null ) {
+            for(ExportRule rule: exportRules.getRules()) {
+                if ( applied.add(rule)) {
+                    apply(rule);
+                }
+            }
+            for(DefaultFlowValuesMapKey key: hidden) {
+                values.removeFromNamespace(key.getNamespace(), key.getKey());
+            }
+            for(String namespace: exportRules.getExcludedNamespaces()) {
+                values.removeNamespace(namespace);
+            }
+            exportRules = null;
+            applied = null;
+            hidden = null;
+        }
+    }
+
+    /**
+     * The export rules of a FlowState. Shared by the copies of an {@link ExportedFlowValuesMap}. Built when the view is created from the
+     * FlowState's search plans and namespaces, so that the view does not reference the FlowState, its flow or its activities.
+     */
+    private static class ExportRules {
+        private final List<ExportRule> rules;
+        /**
+         * name or alternate name -> the rules of the properties using the name. In the order {@link FlowStateImpl#exportProperties(boolean)} applies them.
+         */
+        private final Map<String, List<ExportRule>> rulesByName;
+        /**
+         * activity instance namespaces are unique to the FlowState so nothing in them is exported.
+         */
+        private final Set<String> excludedNamespaces;
+
+        ExportRules(FlowStateImpl flowState) {
+            this.rules = new ArrayList<ExportRule>();
+            this.rulesByName = new LinkedHashMap<String, List<ExportRule>>();
+            this.excludedNamespaces = new LinkedHashSet<String>();
+            Map<String, FlowPropertyDefinitionImplementor> propertyDefinitions = flowState.getFlow().getPropertyDefinitions();
+            if ( propertyDefinitions != null ) {
+                addRules(flowState, propertyDefinitions, null);
+            }
+            for(FlowActivityImplementor activity: flowState.getActivities()) {
+                Map<String, FlowPropertyDefinitionImplementor> activityFlowPropertyDefinitions = activity.getPropertyDefinitions();
+                if ( activityFlowPropertyDefinitions != null ) {
+                    addRules(flowState, activityFlowPropertyDefinitions, activity);
+                }
+                this.excludedNamespaces.add(DefaultFlowValuesMapKey.toNamespace(activity.getFullActivityInstanceNamespace()));
+            }
+        }
+
+        private void addRules(FlowStateImpl flowState, Map<String, FlowPropertyDefinitionImplementor> propertyDefinitions, FlowActivityImplementor activity) {
+            for(FlowPropertyDefinitionImplementor flowPropertyDefinition: propertyDefinitions.values()) {
+                ExportRule rule = new ExportRule(flowPropertyDefinition, flowState.getNamespaceKeySearchPlan(flowPropertyDefinition, activity, false));
+                rules.add(rule);
+                for(String name: flowPropertyDefinition.getAllNames()) {
+                    List<ExportRule> named = rulesByName.get(name);
+                    if ( named == null ) {
+                        named = new ArrayList<ExportRule>(1);
+                        rulesByName.put(name, named);
+                    }
+                    named.add(rule);
+                }
+            }
+        }
+
+        List<ExportRule> getRules() {
+            return this.rules;
+        }
+
+        List<ExportRule> getRules(String name) {
+            List<ExportRule> named = rulesByName.get(name);
+            return named == null? Collections.<ExportRule>emptyList() : named;
+        }
+
+        Set<String> getExcludedNamespaces() {
+            return this.excludedNamespaces;
+        }
+
+        boolean isExcludedNamespace(String namespace) {
+            return namespace != null && excludedNamespaces.contains(namespace);
+        }
+    }
+
+    /**
+     * only what {@link #apply(ExportRule)} needs from the property definition.
+     */
+    private static class ExportRule {
+        private final String name;
+        private final boolean copyBackOnFlowSuccess;
+        private final NamespaceKeySearchPlan plan;
+
+        ExportRule(FlowPropertyDefinitionImplementor flowPropertyDefinition, NamespaceKeySearchPlan plan) {
+            this.name = flowPropertyDefinition.getName();
+            this.copyBackOnFlowSuccess = flowPropertyDefinition.isCopyBackOnFlowSuccess();
+            this.plan = plan;
+        }
+    }
+}
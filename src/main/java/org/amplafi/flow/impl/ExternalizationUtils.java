@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.nio.charset.Charset;
+
+/**
+ * Helpers for the compact serialized encodings of {@link FlowStateImpl} and {@link DefaultFlowValuesMap}.
+ *
+ * Integers are written as unsigned varints ( 7 bits per byte, high bit set on all but the last byte ). Strings are written as
+ * a varint byte length followed by the UTF-8 bytes. Unlike {@link DataOutput#writeUTF(String)}, strings are not limited to 64K.
+ * @author patmoore
+ *
+ */
+public final class ExternalizationUtils {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ExternalizationUtils() {
+    }
+
+    /**
+     * @param out
+     * @param value must be >= 0
+     * @throws IOException
+     */
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        if ( value < 0 ) {
+            throw new IllegalArgumentException(value+": negative values not supported");
+        }
+        while((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ( (b & 0x80) == 0 ) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /**
+     * @param out
+     * @param value may be null
+     * @throws IOException
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        if ( value == null ) {
+            writeVarInt(out, 0);
+        } else {
+            byte[] bytes = value.getBytes(UTF_8);
+            writeVarInt(out, bytes.length + 1);
+            out.write(bytes);
+        }
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = readVarInt(in);
+        if ( length == 0 ) {
+            return null;
+        } else {
+            byte[] bytes = new byte[length - 1];
+            in.readFully(bytes);
+            return new String(bytes, UTF_8);
+        }
+    }
+
+    /**
+     * @param in
+     * @param clazz class being read
+     * @param supportedVersion highest version this code can read
+     * @return the version read.
+     * @throws IOException
+     */
+    public static int readVersion(DataInput in, Class<?> clazz, int supportedVersion) throws IOException {
+        int version = in.readUnsignedByte();
+        if ( version < 1 || version > supportedVersion ) {
+            throw new InvalidClassException(clazz.getName(), "unsupported externalized version "+version+" ( supported up to "+supportedVersion+")");
+        }
+        return version;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes each passivated FlowState's values to its own file in a directory. Files are read back through a memory mapping so
+ * rehydrating does not go through an intermediate stream buffer. Values are on the heap only while they are being written or read.
+ *
+ * {@link #getStoredBytes()} only counts what this instance wrote.
+ * @author patmoore
+ *
+ */
+public class FileFlowStatePassivationStore implements FlowStatePassivationStore {
+
+    private static final String SUFFIX = ".flowstate";
+
+    private final File directory;
+
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    /**
+     * @param directory created if it does not exist.
+     */
+    public FileFlowStatePassivationStore(File directory) {
+        if ( !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException(directory+": cannot create directory for passivated FlowStates");
+        }
+        this.directory = directory;
+    }
+
+    @Override
+    public void put(String lookupKey, byte[] serialized) {
+        File file = getFile(lookupKey);
+        long previous = file.length();
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(serialized);
+        } catch (IOException e) {
+            throw new IllegalStateException(file+": cannot passivate FlowState "+lookupKey, e);
+        } finally {
+            close(out);
+        }
+        storedBytes.addAndGet(serialized.length - previous);
+    }
+
+    @Override
+    public byte[] remove(String lookupKey) {
+        File file = getFile(lookupKey);
+        if ( !file.exists()) {
+            return null;
+        }
+        byte[] serialized;
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            serialized = new byte[mapped.remaining()];
+            ((ByteBuffer)mapped).get(serialized);
+        } catch (IOException e) {
+            throw new IllegalStateException(file+": cannot rehydrate FlowState "+lookupKey, e);
+        } finally {
+            close(in);
+        }
+        if ( file.delete()) {
+            storedBytes.addAndGet(-serialized.length);
+        }
+        return serialized;
+    }
+
+    @Override
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param lookupKey
+     * @return the file holding lookupKey's values. lookupKey is encoded so it cannot escape {@link #getDirectory()}.
+     */
+    protected File getFile(String lookupKey) {
+        return new File(directory, toFileName(lookupKey) + SUFFIX);
+    }
+
+    /**
+     * @param lookupKey
+     * @return lookupKey encoded so that it is a plain file name ( no path separators, no "." or ".." ).
+     */
+    static String toFileName(String lookupKey) {
+        try {
+            return URLEncoder.encode(lookupKey, "UTF-8").replace("*", "%2A").replace(".", "%2E");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if ( closeable != null ) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing useful to do.
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()+"["+directory+", storedBytes="+storedBytes.get()+"]";
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * {@link FlowStateRepository} keeping one file per FlowState in a directory. Nodes that share the directory share the FlowStates, so this
+ * also stands in for a shared store in tests. Versions are checked and files are written while holding a {@link java.nio.channels.FileLock},
+ * and the serialized FlowState is read through a memory mapping.
+ *
+ * File layout: version, time first saved, sessionId ( {@link RandomAccessFile#writeUTF(String)} ), then the serialized FlowState.
+ * An empty file is the same as no file.
+ * {@link #listBySession(String)} reads the header of every file so it is O(stored FlowStates).
+ * @author patmoore
+ *
+ */
+public class FileFlowStateRepository implements FlowStateRepository {
+
+    private static final String SUFFIX = ".flowstate";
+
+    /**
+     * file locks are held by the JVM, so threads of this JVM must not lock the same file at the same time.
+     */
+    private final Object[] stripes = new Object[64];
+
+    private final File directory;
+
+    /**
+     * @param directory created if it does not exist.
+     */
+    public FileFlowStateRepository(File directory) {
+        if ( !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException(directory+": cannot create directory for FlowStates");
+        }
+        this.directory = directory;
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    @Override
+    public FlowStateRepositoryEntry load(String lookupKey) {
+        File file = getFile(lookupKey);
+        synchronized (getStripe(lookupKey)) {
+            RandomAccessFile in = open(file, "r");
+            if ( in == null ) {
+                return null;
+            }
+            try {
+                FileChannel channel = in.getChannel();
+                channel.lock(0, Long.MAX_VALUE, true);
+                if ( channel.size() == 0) {
+                    return null;
+                }
+                long version = in.readLong();
+                in.readLong();
+                String sessionId = in.readUTF();
+                long start = in.getFilePointer();
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, channel.size() - start);
+                byte[] serialized = new byte[mapped.remaining()];
+                ((ByteBuffer)mapped).get(serialized);
+                return new FlowStateRepositoryEntry(sessionId, lookupKey, version, serialized);
+            } catch (IOException e) {
+                throw new IllegalStateException(file+": cannot load FlowState "+lookupKey, e);
+            } finally {
+                // releases the lock.
+                close(in);
+            }
+        }
+    }
+
+    @Override
+    public long getVersion(String lookupKey) {
+        File file = getFile(lookupKey);
+        synchronized (getStripe(lookupKey)) {
+            RandomAccessFile in = open(file, "r");
+            if ( in == null ) {
+                return 0;
+            }
+            try {
+                FileChannel channel = in.getChannel();
+                channel.lock(0, Long.MAX_VALUE, true);
+                return channel.size() == 0 ? 0 : in.readLong();
+            } catch (IOException e) {
+                throw new IllegalStateException(file+": cannot read FlowState "+lookupKey, e);
+            } finally {
+                close(in);
+            }
+        }
+    }
+
+    @Override
+    public long save(String sessionId, String lookupKey, long expectedVersion, byte[] serialized) throws StaleFlowStateException {
+        File file = getFile(lookupKey);
+        synchronized (getStripe(lookupKey)) {
+            RandomAccessFile out = open(file, "rw");
+            try {
+                FileChannel channel = out.getChannel();
+                channel.lock();
+                long actualVersion = 0;
+                long created = System.currentTimeMillis();
+                if ( channel.size() > 0) {
+                    actualVersion = out.readLong();
+                    created = out.readLong();
+                }
+                if ( actualVersion != expectedVersion) {
+                    // an empty file ( created by this open ) is left: it is treated as absent and deleting it could delete
+                    // the file of a save that opened it before this one and is waiting for the lock.
+                    throw new StaleFlowStateException(lookupKey, expectedVersion, actualVersion);
+                }
+                long version = expectedVersion + 1;
+                out.seek(0);
+                out.writeLong(version);
+                out.writeLong(created);
+                out.writeUTF(sessionId);
+                out.write(serialized);
+                out.setLength(out.getFilePointer());
+                return version;
+            } catch (IOException e) {
+                throw new IllegalStateException(file+": cannot save FlowState "+lookupKey, e);
+            } finally {
+                close(out);
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(String lookupKey, long expectedVersion) {
+        File file = getFile(lookupKey);
+        synchronized (getStripe(lookupKey)) {
+            if ( !file.exists()) {
+                return false;
+            }
+            RandomAccessFile out = open(file, "rw");
+            try {
+                FileChannel channel = out.getChannel();
+                channel.lock();
+                if ( channel.size() == 0 || out.readLong() != expectedVersion) {
+                    return false;
+                }
+                // truncated first: a save that opened the file before it is deleted then finds it empty and is stale.
+                out.setLength(0);
+                file.delete();
+                return true;
+            } catch (IOException e) {
+                throw new IllegalStateException(file+": cannot delete FlowState "+lookupKey, e);
+            } finally {
+                close(out);
+            }
+        }
+    }
+
+    @Override
+    public List<String> listBySession(String sessionId) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SUFFIX);
+            }
+        });
+        final List<Object[]> found = new ArrayList<Object[]>();
+        if ( files != null ) {
+            for (File file : files) {
+                Object[] header = readHeader(file);
+                if ( header != null && sessionId.equals(header[2])) {
+                    found.add(header);
+                }
+            }
+        }
+        Collections.sort(found, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] left, Object[] right) {
+                int result = ((Long)left[1]).compareTo((Long)right[1]);
+                return result != 0 ? result : ((String)left[0]).compareTo((String)right[0]);
+            }
+        });
+        List<String> lookupKeys = new ArrayList<String>(found.size());
+        for (Object[] header : found) {
+            lookupKeys.add((String) header[0]);
+        }
+        return lookupKeys;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param file
+     * @return { lookupKey, time first saved, sessionId } or null if the file was deleted or is being created.
+     */
+    private Object[] readHeader(File file) {
+        String lookupKey = fromFileName(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+        synchronized (getStripe(lookupKey)) {
+            RandomAccessFile in = open(file, "r");
+            if ( in == null ) {
+                return null;
+            }
+            try {
+                FileChannel channel = in.getChannel();
+                channel.lock(0, Long.MAX_VALUE, true);
+                if ( channel.size() == 0) {
+                    return null;
+                }
+                in.readLong();
+                long created = in.readLong();
+                return new Object[] { lookupKey, created, in.readUTF() };
+            } catch (IOException e) {
+                throw new IllegalStateException(file+": cannot read FlowState", e);
+            } finally {
+                close(in);
+            }
+        }
+    }
+
+    /**
+     * @param lookupKey
+     * @return the file holding lookupKey's FlowState. lookupKey is encoded so it cannot escape {@link #getDirectory()}.
+     */
+    protected File getFile(String lookupKey) {
+        return new File(directory, FileFlowStatePassivationStore.toFileName(lookupKey) + SUFFIX);
+    }
+
+    private static String fromFileName(String fileName) {
+        try {
+            return URLDecoder.decode(fileName, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Object getStripe(String lookupKey) {
+        return stripes[(lookupKey.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    /**
+     * @return null if mode is "r" and file does not exist.
+     */
+    private static RandomAccessFile open(File file, String mode) {
+        try {
+            return new RandomAccessFile(file, mode);
+        } catch (FileNotFoundException e) {
+            if ( "r".equals(mode)) {
+                return null;
+            }
+            throw new IllegalStateException(file+": cannot open", e);
+        }
+    }
+
+    private static void close(RandomAccessFile file) {
+        if ( file != null ) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // nothing useful to do.
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()+"["+directory+"]";
+    }
+}
@@ -49,6 +49,7 @@ import org.amplafi.flow.FlowUtils;
 import org.amplafi.flow.flowproperty.ChainedFlowPropertyValueProvider;
 import org.amplafi.flow.flowproperty.FlowPropertyDefinitionBuilder;
 import org.amplafi.flow.flowproperty.FlowPropertyDefinitionImplementor;
+import org.amplafi.flow.flowproperty.FlowPropertyDependencyGraph;
 import org.amplafi.flow.flowproperty.FlowPropertyProviderWithValues;
 import org.amplafi.flow.flowproperty.FlowPropertyValuePersister;
 import org.amplafi.flow.flowproperty.PropertyScope;
@@ -107,6 +108,18 @@ public class FlowActivityImpl extends BaseFlowPropertyProviderWithValues<FlowAct
     private static final List<PropertyScope> LOCAL_PROPERTY_SCOPES = Arrays.asList(PropertyScope.activityLocal);
 
     private List<FlowValidationResultProvider<FlowPropertyProviderWithValues>> flowValidationResultProviders;
+
+    /**
+     * if true, the auto-created properties are computed in parallel ( respecting their dependencies ) when this activity is activated.
+     * Only the properties with a {@link org.amplafi.flow.flowproperty.SideEffectFreeFlowPropertyValueProvider} run on other threads.
+     */
+    private boolean parallelAutoCreate;
+
+    /**
+     * built from the property definitions when first needed.
+     */
+    private transient volatile FlowPropertyDependencyGraph autoCreateDependencyGraph;
+    private transient Map<String, FlowPropertyDefinition> autoCreateDependencyGraphSource;
     // NOTE: annoying but can add FlowPropertyDefinitions in ctor because we need to do the processing that pushes them up to the FlowImpl
     // see processDefinitions()
     public FlowActivityImpl() {
@@ -163,6 +176,15 @@ public class FlowActivityImpl extends BaseFlowPropertyProviderWithValues<FlowAct
      */
     @Override
     public boolean activate(FlowStepDirection flowStepDirection) {
+        // slow property lookups run while this activity is validated and rendered.
+        Map<String, FlowPropertyDefinitionImplementor> props = this.getPropertyDefinitions();
+        if (props != null) {
+            getFlowStateImplementor().prefetchFlowProperties(this, props.values());
+        }
+        FlowPropertyDependencyGraph flowPropertyDependencyGraph = getAutoCreateDependencyGraph();
+        if ( flowPropertyDependencyGraph != null) {
+            getFlowStateImplementor().evaluateFlowProperties(this, flowPropertyDependencyGraph);
+        }
         // Check for missing required parameters
         FlowValidationResult activationValidationResult = getFlowValidationResult(FlowActivityPhase.activate, flowStepDirection);
         FlowValidationException.valid(getFlowState(), activationValidationResult);
@@ -470,6 +492,44 @@ public class FlowActivityImpl extends BaseFlowPropertyProviderWithValues<FlowAct
         return finishingActivity;
     }
 
+    public boolean isParallelAutoCreate() {
+        return parallelAutoCreate;
+    }
+
+    public void setParallelAutoCreate(boolean parallelAutoCreate) {
+        this.parallelAutoCreate = parallelAutoCreate;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends FlowActivityImplementor> T initParallelAutoCreate() {
+        this.setParallelAutoCreate(true);
+        return (T) this;
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowActivityImplementor#getAutoCreateDependencyGraph()
+     */
+    @Override
+    public FlowPropertyDependencyGraph getAutoCreateDependencyGraph() {
+        if ( !isParallelAutoCreate()) {
+            return null;
+        }
+        Map<String, FlowPropertyDefinition> propertyDefinitions = getPropertyDefinitions();
+        if ( isInstance() && getDefinition() instanceof FlowActivityImplementor && propertyDefinitions == getDefinition().getPropertyDefinitions()) {
+            // no instance specific properties so the definition's graph applies.
+            return ((FlowActivityImplementor)getDefinition()).getAutoCreateDependencyGraph();
+        }
+        FlowPropertyDependencyGraph flowPropertyDependencyGraph = this.autoCreateDependencyGraph;
+        // rebuilt if the property definitions have changed.
+        if ( flowPropertyDependencyGraph == null || propertyDefinitions != this.autoCreateDependencyGraphSource
+                || (propertyDefinitions != null && propertyDefinitions.size() != flowPropertyDependencyGraph.getSourceSize())) {
+            flowPropertyDependencyGraph = new FlowPropertyDependencyGraph(this, propertyDefinitions == null? null: propertyDefinitions.values());
+            this.autoCreateDependencyGraphSource = propertyDefinitions;
+            this.autoCreateDependencyGraph = flowPropertyDependencyGraph;
+        }
+        return flowPropertyDependencyGraph;
+    }
+
     protected FlowManagement getFlowManagement() {
         return this.getFlowState() == null ? null : this.getFlowState().getFlowManagement();
     }
@@ -516,6 +576,7 @@ public class FlowActivityImpl extends BaseFlowPropertyProviderWithValues<FlowAct
         instance.setFinishingActivity(finishingActivity);
         instance.setInvisible(invisible);
         instance.setFlowValidationResultProviders(this.flowValidationResultProviders);
+        instance.setParallelAutoCreate(parallelAutoCreate);
     }
 
     @Override
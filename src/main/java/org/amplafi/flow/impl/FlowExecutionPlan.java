@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.amplafi.flow.FlowActivity;
+import org.amplafi.flow.FlowActivityImplementor;
+import org.amplafi.flow.FlowImplementor;
+
+/**
+ * Which activities of a flow instance are visible, computed once by calling {@link org.amplafi.flow.FlowActivity#isInvisible()} on each activity.
+ * Navigation queries ( next/previous visible activity, visible index to activity index ) are then bit operations.
+ *
+ * A plan is only valid for the flow instance, the activities ( same instances in the same order ) and the FlowState's values
+ * ( modification count ) that it was computed for: any change to the FlowValuesMap discards it. {@link FlowActivityImpl#isInvisible()}
+ * only depends on the FlowState's values and the activity's definition. Activities that override isInvisible() may depend on anything
+ * so {@link #isCacheable(List)} is false and the visibility is computed every time.
+ * @author patmoore
+ *
+ */
+public class FlowExecutionPlan {
+    /**
+     * activity class -> true if it does not override {@link FlowActivityImpl#isInvisible()}.
+     */
+    private static final ConcurrentMap<Class<?>, Boolean> DEFAULT_VISIBILITY = new ConcurrentHashMap<Class<?>, Boolean>();
+
+    private final FlowImplementor flow;
+    private final FlowActivity[] activities;
+    private final long modificationCount;
+    private final BitSet visible;
+    /**
+     * visible index -> activity index.
+     */
+    private final int[] visibleActivityIndices;
+
+    public FlowExecutionPlan(FlowImplementor flow, List<? extends FlowActivity> activities, long modificationCount, BitSet visible) {
+        this.flow = flow;
+        this.activities = activities.toArray(new FlowActivity[activities.size()]);
+        this.modificationCount = modificationCount;
+        this.visible = (BitSet) visible.clone();
+        this.visibleActivityIndices = new int[visible.cardinality()];
+        for(int i = visible.nextSetBit(0), visibleIndex = 0; i >= 0; i = visible.nextSetBit(i+1), visibleIndex++) {
+            this.visibleActivityIndices[visibleIndex] = i;
+        }
+    }
+
+    /**
+     * @param activities
+     * @return true if the visibility of activities only changes when the FlowState's values change.
+     */
+    public static boolean isCacheable(List<? extends FlowActivity> activities) {
+        for(FlowActivity activity: activities) {
+            Class<?> activityClass = activity.getClass();
+            Boolean defaultVisibility = DEFAULT_VISIBILITY.get(activityClass);
+            if ( defaultVisibility == null ) {
+                try {
+                    defaultVisibility = activityClass.getMethod("isInvisible").getDeclaringClass() == FlowActivityImpl.class;
+                } catch (NoSuchMethodException e) {
+                    defaultVisibility = false;
+                }
+                DEFAULT_VISIBILITY.put(activityClass, defaultVisibility);
+            }
+            if ( !defaultVisibility ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param currentFlow
+     * @param currentModificationCount the FlowState's current modification count.
+     * @return true if the plan was computed for currentFlow, its current activities and the same values.
+     */
+    public boolean isFor(FlowImplementor currentFlow, long currentModificationCount) {
+        if ( this.flow != currentFlow || this.modificationCount != currentModificationCount) {
+            return false;
+        }
+        List<FlowActivityImplementor> currentActivities = currentFlow.getActivities();
+        if ( currentActivities.size() != this.activities.length) {
+            return false;
+        }
+        for(int i = 0; i < this.activities.length; i++) {
+            if ( currentActivities.get(i) != this.activities[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isVisible(int activityIndex) {
+        return this.visible.get(activityIndex);
+    }
+
+    public int getVisibleCount() {
+        return this.visibleActivityIndices.length;
+    }
+
+    /**
+     * @param visibleIndex
+     * @return the activity index of the visibleIndex'th visible activity or the last activity index if there are not that many visible activities.
+     */
+    public int getActivityIndex(int visibleIndex) {
+        if ( visibleIndex >= 0 && visibleIndex < this.visibleActivityIndices.length) {
+            return this.visibleActivityIndices[visibleIndex];
+        } else {
+            return this.activities.length - 1;
+        }
+    }
+
+    /**
+     * @param activityIndex
+     * @return the index of the first visible activity after activityIndex, -1 if none.
+     */
+    public int getNextVisible(int activityIndex) {
+        return this.visible.nextSetBit(activityIndex + 1);
+    }
+
+    /**
+     * @param activityIndex
+     * @return the index of the last visible activity before activityIndex, -1 if none.
+     */
+    public int getPreviousVisible(int activityIndex) {
+        return activityIndex <= 0? -1 : this.visible.previousSetBit(activityIndex - 1);
+    }
+}
@@ -18,7 +18,10 @@ import java.io.Serializable;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -33,8 +36,11 @@ import org.amplafi.flow.FlowManagement;
 import org.amplafi.flow.FlowPropertyDefinition;
 import org.amplafi.flow.FlowState;
 import org.amplafi.flow.FlowTransition;
+import org.amplafi.flow.FlowTransitionTable;
 import org.amplafi.flow.FlowUtils;
+import org.amplafi.flow.flowproperty.FlowPropertyCacheSlots;
 import org.amplafi.flow.flowproperty.FlowPropertyDefinitionBuilder;
+import org.amplafi.flow.flowproperty.FlowPropertyDefinitionImplementor;
 import org.amplafi.flow.flowproperty.FlowTransitionFlowPropertyValueProvider;
 import org.amplafi.flow.flowproperty.MessageFlowPropertyValueProvider;
 import org.amplafi.flow.flowproperty.PropertyScope;
@@ -95,6 +101,26 @@ public class FlowImpl extends BaseFlowPropertyProvider<FlowImplementor> implemen
 
     private transient FlowState flowState;
 
+    /**
+     * activity -> index. Discarded when activities are added.
+     */
+    private transient Map<FlowActivity, Integer> activityIndices;
+    /**
+     * name, full name and instance namespace of each activity -> index. See {@link #getActivity(String)}.
+     */
+    private transient Map<String, Integer> activityNameIndex;
+    /**
+     * the flowState lookup key that {@link #activityNameIndex} was built with ( it is part of the instance namespaces ).
+     */
+    private transient String activityNameIndexLookupKey;
+
+    /**
+     * serialized transitions -> compiled. Only on definitions. Usually every instance has the same transitions so this is small;
+     * bounded in case transitions are built at runtime.
+     */
+    private transient Map<String, FlowTransitionTable> flowTransitionTables;
+    private static final int MAX_FLOW_TRANSITION_TABLES = 16;
+
     @Deprecated // use FlowPropertyDefinition
     private boolean activatable;
 
@@ -106,6 +132,11 @@ public class FlowImpl extends BaseFlowPropertyProvider<FlowImplementor> implemen
     @Deprecated // use FlowPropertyDefinition
     private boolean notCurrentAllowed;
 
+    /**
+     * see {@link #getCacheSlots()}. null until slots are assigned.
+     */
+    private transient volatile FlowPropertyCacheSlots cacheSlots;
+
     /**
      * Used to restore an existing definition or create an new definitions from XML
      */
@@ -172,6 +203,13 @@ public class FlowImpl extends BaseFlowPropertyProvider<FlowImplementor> implemen
 
     @Override
     public FlowImplementor createInstance() {
+        getCacheSlots();
+        if ( CollectionUtils.isNotEmpty(this.activities)) {
+            for(FlowActivityImplementor activity: this.activities) {
+                // so that dependency cycles are reported when the flow is first used, not when the activity is reached.
+                activity.getAutoCreateDependencyGraph();
+            }
+        }
         FlowImpl inst = new FlowImpl(this);
         inst.activities = new ArrayList<FlowActivityImplementor>();
 
@@ -226,6 +264,8 @@ public class FlowImpl extends BaseFlowPropertyProvider<FlowImplementor> implemen
 
     @Override
     public void addActivity(FlowActivityImplementor activity) {
+        this.activityIndices = null;
+        this.activityNameIndex = null;
         if ( activities == null ) {
             activities = new ArrayList<FlowActivityImplementor>();
         } else {
@@ -396,7 +436,143 @@ public class FlowImpl extends BaseFlowPropertyProvider<FlowImplementor> implemen
 
     @Override
     public int indexOf(FlowActivity activity) {
-        return this.activities.indexOf(activity);
+        Integer index = getActivityIndices().get(activity);
+        return index != null? index : this.activities.indexOf(activity);
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowImplementor#getActivity(java.lang.String)
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends FlowActivity> T getActivity(String activityName) {
+        if ( activityName == null || activities == null) {
+            return null;
+        }
+        Integer index = getActivityNameIndex().get(activityName);
+        if ( index != null ) {
+            FlowActivity flowActivity = activities.get(index);
+            if ( flowActivity.isNamed(activityName)) {
+                return (T) flowActivity;
+            }
+        }
+        // names can change after the index is built ( rare ) so an index miss is confirmed by a linear search.
+        for(FlowActivity flowActivity: activities) {
+            if ( flowActivity.isNamed(activityName)) {
+                // the index is stale.
+                this.activityNameIndex = null;
+                return (T) flowActivity;
+            }
+        }
+        return null;
+    }
+
+    private Map<FlowActivity, Integer> getActivityIndices() {
+        Map<FlowActivity, Integer> indices = this.activityIndices;
+        if ( indices == null || activities == null || indices.size() != activities.size()) {
+            indices = new IdentityHashMap<FlowActivity, Integer>();
+            if ( activities != null ) {
+                for(int i = 0; i < activities.size(); i++) {
+                    indices.put(activities.get(i), i);
+                }
+            }
+            this.activityIndices = indices;
+        }
+        return indices;
+    }
+
+    private Map<String, Integer> getActivityNameIndex() {
+        String lookupKey = this.flowState == null? null : this.flowState.getLookupKey();
+        Map<String, Integer> nameIndex = this.activityNameIndex;
+        if ( nameIndex == null || !StringUtils.equals(lookupKey, this.activityNameIndexLookupKey) || getActivityIndices().size() != activities.size()) {
+            nameIndex = new HashMap<String, Integer>();
+            for(int i = 0; i < activities.size(); i++) {
+                FlowActivityImplementor activity = activities.get(i);
+                // first activity with the name wins ( same as a linear search ).
+                for(String name: new String[] { activity.getFlowPropertyProviderName(), activity.getFlowPropertyProviderFullName(), activity.getFullActivityInstanceNamespace() }) {
+                    if ( isNotBlank(name) && !nameIndex.containsKey(name)) {
+                        nameIndex.put(name, i);
+                    }
+                }
+            }
+            this.activityNameIndexLookupKey = lookupKey;
+            this.activityNameIndex = nameIndex;
+        }
+        return nameIndex;
+    }
+
+    @Override
+    public FlowTransitionTable getFlowTransitionTable(String serializedTransitions) {
+        if ( isInstance()) {
+            return getDefinition().getFlowTransitionTable(serializedTransitions);
+        } else {
+            return serializedTransitions == null? null : getFlowTransitionTables().get(serializedTransitions);
+        }
+    }
+
+    @Override
+    public FlowTransitionTable addFlowTransitionTable(String serializedTransitions, Map<String, FlowTransition> transitions) {
+        if ( isInstance()) {
+            return getDefinition().addFlowTransitionTable(serializedTransitions, transitions);
+        } else {
+            FlowTransitionTable flowTransitionTable = new FlowTransitionTable(transitions);
+            if ( serializedTransitions != null ) {
+                getFlowTransitionTables().put(serializedTransitions, flowTransitionTable);
+            }
+            return flowTransitionTable;
+        }
+    }
+
+    private synchronized Map<String, FlowTransitionTable> getFlowTransitionTables() {
+        if ( this.flowTransitionTables == null ) {
+            this.flowTransitionTables = Collections.synchronizedMap(new LinkedHashMap<String, FlowTransitionTable>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, FlowTransitionTable> eldest) {
+                    return size() > MAX_FLOW_TRANSITION_TABLES;
+                }
+            });
+        }
+        return this.flowTransitionTables;
+    }
+
+    /**
+     * The slots are assigned when first needed: each property definition of this flow definition ( and its activities ) gets a dense slot.
+     * Definitions added after this are not given slots. Two threads may both assign slots, only one set of slots is kept.
+     * @see org.amplafi.flow.FlowImplementor#getCacheSlots()
+     */
+    @Override
+    public FlowPropertyCacheSlots getCacheSlots() {
+        if ( isInstance()) {
+            return getDefinition().getCacheSlots();
+        }
+        FlowPropertyCacheSlots slots = this.cacheSlots;
+        if ( slots == null ) {
+            List<FlowPropertyDefinition> definitions = new ArrayList<FlowPropertyDefinition>();
+            addCacheSlotDefinitions(definitions, this.getPropertyDefinitions());
+            if ( this.activities != null ) {
+                for(FlowActivityImplementor activity: this.activities) {
+                    addCacheSlotDefinitions(definitions, activity.getPropertyDefinitions());
+                }
+            }
+            synchronized (this) {
+                slots = this.cacheSlots;
+                if ( slots == null ) {
+                    slots = this.cacheSlots = new FlowPropertyCacheSlots(definitions);
+                }
+            }
+        }
+        return slots;
+    }
+
+    private void addCacheSlotDefinitions(List<FlowPropertyDefinition> definitions, Map<String, FlowPropertyDefinition> propertyDefinitions) {
+        if ( propertyDefinitions != null ) {
+            for(FlowPropertyDefinition definition: propertyDefinitions.values()) {
+                if ( definition instanceof FlowPropertyDefinitionImplementor) {
+                    definitions.add(definition);
+                }
+            }
+        }
     }
 
     @Override
@@ -0,0 +1,404 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.amplafi.flow.flowproperty.FlowPropertyCacheSlots;
+import org.amplafi.flow.flowproperty.FlowPropertyDefinitionImplementor;
+import org.amplafi.flow.flowproperty.FlowPropertyProvider;
+import org.amplafi.flow.flowproperty.FlowPropertyValueCachePolicy;
+import org.apache.commons.collections.map.MultiKeyMap;
+import org.apache.commons.lang.ObjectUtils;
+
+/**
+ * The deserialized property values cached by a {@link FlowStateImpl}. Logically keyed by (namespace, property name).
+ *
+ * Property definitions that belong to the flow definition have a cache slot ( see {@link org.amplafi.flow.FlowImplementor#getCacheSlots()} )
+ * assigned when the first flow instance is created. Their values are kept in an array indexed by slot along with the definition,
+ * {@link FlowPropertyProvider} and namespace that the value was cached for. A lookup with the same definition and provider is just
+ * array reads - no namespace computation and no key allocation.
+ *
+ * Definitions without a usable slot ( dynamically created definitions, definitions added to a flow instance ) and values cached with
+ * only a (namespace, name) use a {@link MultiKeyMap}.
+ *
+ * The {@link FlowPropertyValueCachePolicy} limits the memory used. Only reloadable values ( the FlowState has the serialized form ) are
+ * evicted, least recently used first, or held softly. The others are pinned: they are counted but only removed explicitly.
+ *
+ * Values that are {@link FlowPropertyValueCachePolicy#isTransactionBound(Object)} remember the transaction epoch they were cached in.
+ * Once {@link #setTransactionEpoch(long)} moves on they are misses ( and are dropped when next looked up ), so ending a transaction
+ * is O(1) and the transaction independent values stay cached.
+ *
+ * Not thread-safe: {@link FlowStateImpl} synchronizes changes.
+ * @author patmoore
+ *
+ */
+public class FlowPropertyValueCache {
+    private final FlowPropertyCacheSlots slots;
+    private final Object[] values;
+    private final FlowPropertyDefinitionImplementor[] owners;
+    private final FlowPropertyProvider[] providers;
+    private final String[] namespaces;
+    private final long[] estimatedSlotBytes;
+    /**
+     * {@link #TRANSACTION_INDEPENDENT} or the transaction epoch the value was cached in.
+     */
+    private final long[] slotTransactionEpochs;
+    /**
+     * property name -> slots that have held values for that name. Used to invalidate by (namespace, name).
+     */
+    private final Map<String, int[]> slotsByName = new HashMap<String, int[]>();
+    private MultiKeyMap overflow;
+
+    private final FlowPropertyValueCachePolicy policy;
+    /**
+     * access-ordered keys of the reloadable values: Integer slot or [namespace, name] for overflow values. null if the policy is unbounded.
+     */
+    private final LinkedHashMap<Object, Boolean> evictable;
+    private int entryCount;
+    private long estimatedBytes;
+    private long transactionEpoch;
+    private static final long TRANSACTION_INDEPENDENT = -1;
+
+    /**
+     * @param slots see {@link org.amplafi.flow.FlowImplementor#getCacheSlots()}
+     */
+    public FlowPropertyValueCache(FlowPropertyCacheSlots slots) {
+        this(slots, DefaultFlowPropertyValueCachePolicy.UNBOUNDED);
+    }
+
+    /**
+     * @param slots see {@link org.amplafi.flow.FlowImplementor#getCacheSlots()}
+     * @param policy
+     */
+    public FlowPropertyValueCache(FlowPropertyCacheSlots slots, FlowPropertyValueCachePolicy policy) {
+        this.slots = slots;
+        int slotCount = slots.size();
+        this.values = new Object[slotCount];
+        this.owners = new FlowPropertyDefinitionImplementor[slotCount];
+        this.providers = new FlowPropertyProvider[slotCount];
+        this.namespaces = new String[slotCount];
+        this.estimatedSlotBytes = new long[slotCount];
+        this.slotTransactionEpochs = new long[slotCount];
+        this.policy = policy;
+        this.evictable = policy.isBounded()? new LinkedHashMap<Object, Boolean>(16, 0.75f, true) : null;
+    }
+
+    /**
+     * Fast path: only finds values cached in a slot by the same definition and provider.
+     * @param flowPropertyDefinition
+     * @param flowPropertyProvider
+     * @return the cached value or null if not found by the fast path.
+     */
+    public Object get(FlowPropertyDefinitionImplementor flowPropertyDefinition, FlowPropertyProvider flowPropertyProvider) {
+        int slot = slots.getSlot(flowPropertyDefinition);
+        if ( isSlot(slot) && owners[slot] == flowPropertyDefinition && providers[slot] == flowPropertyProvider) {
+            return getSlotValue(slot);
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @param flowPropertyDefinition
+     * @param flowPropertyProvider
+     * @param namespace {@link FlowPropertyDefinitionImplementor#getNamespaceKey(org.amplafi.flow.FlowState, FlowPropertyProvider)}
+     * @return the cached value or null.
+     */
+    public Object get(FlowPropertyDefinitionImplementor flowPropertyDefinition, FlowPropertyProvider flowPropertyProvider, String namespace) {
+        int slot = slots.getSlot(flowPropertyDefinition);
+        if ( isSlot(slot) && owners[slot] == flowPropertyDefinition && ObjectUtils.equals(namespaces[slot], namespace)) {
+            // different provider, same namespace ( i.e. flowLocal property accessed through different FlowActivities ).
+            providers[slot] = flowPropertyProvider;
+            return getSlotValue(slot);
+        } else {
+            return get(namespace, flowPropertyDefinition.getName());
+        }
+    }
+
+    public Object get(String namespace, String name) {
+        int[] slots = slotsByName.get(name);
+        if ( slots != null ) {
+            for(int slot: slots) {
+                if ( owners[slot] != null && ObjectUtils.equals(namespaces[slot], namespace) && name.equals(owners[slot].getName())) {
+                    return getSlotValue(slot);
+                }
+            }
+        }
+        if ( overflow != null ) {
+            OverflowEntry entry = (OverflowEntry) overflow.get(namespace, name);
+            if ( entry != null ) {
+                Object value = isCurrent(entry.transactionEpoch)? unwrap(entry.value) : null;
+                if ( value == null ) {
+                    // garbage collected or from an earlier transaction.
+                    remove(namespace, name);
+                } else if ( evictable != null ) {
+                    evictable.get(Arrays.asList(namespace, name));
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Pinned: the value is not evicted.
+     * @param flowPropertyDefinition
+     * @param flowPropertyProvider
+     * @param namespace
+     * @param value null to remove.
+     */
+    public void put(FlowPropertyDefinitionImplementor flowPropertyDefinition, FlowPropertyProvider flowPropertyProvider, String namespace, Object value) {
+        put(flowPropertyDefinition, flowPropertyProvider, namespace, value, false);
+    }
+
+    /**
+     * @param flowPropertyDefinition
+     * @param flowPropertyProvider
+     * @param namespace
+     * @param value null to remove.
+     * @param reloadable true if value can be recreated ( deserialized ) so the policy may evict it.
+     * @return true if the value is bound to the current transaction.
+     */
+    public boolean put(FlowPropertyDefinitionImplementor flowPropertyDefinition, FlowPropertyProvider flowPropertyProvider, String namespace, Object value, boolean reloadable) {
+        String name = flowPropertyDefinition.getName();
+        int slot = slots.getSlot(flowPropertyDefinition);
+        if ( value == null || !isSlot(slot)) {
+            return put(namespace, name, value, reloadable);
+        } else {
+            // only one copy of a (namespace, name) value.
+            remove(namespace, name);
+            if ( owners[slot] != null ) {
+                // the slot holds a value for another namespace ( or another definition with the same slot ).
+                clearSlot(slot);
+            }
+            owners[slot] = flowPropertyDefinition;
+            providers[slot] = flowPropertyProvider;
+            namespaces[slot] = namespace;
+            values[slot] = wrap(value, reloadable);
+            estimatedSlotBytes[slot] = policy.estimateBytes(value);
+            boolean transactionBound = policy.isTransactionBound(value);
+            slotTransactionEpochs[slot] = transactionBound? transactionEpoch : TRANSACTION_INDEPENDENT;
+            added(estimatedSlotBytes[slot], reloadable, Integer.valueOf(slot));
+            indexSlot(name, slot);
+            evict();
+            return transactionBound;
+        }
+    }
+
+    /**
+     * Pinned: the value is not evicted.
+     * @param namespace
+     * @param name
+     * @param value null to remove.
+     */
+    public void put(String namespace, String name, Object value) {
+        put(namespace, name, value, false);
+    }
+
+    /**
+     * @param namespace
+     * @param name
+     * @param value null to remove.
+     * @param reloadable true if value can be recreated ( deserialized ) so the policy may evict it.
+     * @return true if the value is bound to the current transaction.
+     */
+    public boolean put(String namespace, String name, Object value, boolean reloadable) {
+        remove(namespace, name);
+        if ( value != null ) {
+            if ( overflow == null ) {
+                overflow = new MultiKeyMap();
+            }
+            boolean transactionBound = policy.isTransactionBound(value);
+            OverflowEntry entry = new OverflowEntry(wrap(value, reloadable), policy.estimateBytes(value),
+                transactionBound? transactionEpoch : TRANSACTION_INDEPENDENT);
+            overflow.put(namespace, name, entry);
+            added(entry.estimatedBytes, reloadable, Arrays.asList(namespace, name));
+            evict();
+            return transactionBound;
+        } else {
+            return false;
+        }
+    }
+
+    public void remove(String namespace, String name) {
+        int[] slots = slotsByName.get(name);
+        if ( slots != null ) {
+            for(int slot: slots) {
+                if ( owners[slot] != null && ObjectUtils.equals(namespaces[slot], namespace) && name.equals(owners[slot].getName())) {
+                    clearSlot(slot);
+                }
+            }
+        }
+        if ( overflow != null ) {
+            OverflowEntry entry = (OverflowEntry) overflow.remove(namespace, name);
+            if ( entry != null ) {
+                removed(entry.estimatedBytes, Arrays.asList(namespace, name));
+            }
+        }
+    }
+
+    /**
+     * @return the number of cached values ( garbage collected soft values are counted until accessed ).
+     */
+    public int size() {
+        return entryCount;
+    }
+
+    /**
+     * @return the {@link FlowPropertyValueCachePolicy#estimateBytes(Object)} total of the cached values.
+     */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public FlowPropertyValueCachePolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @param transactionEpoch {@link org.amplafi.flow.FlowManagement#getTransactionEpoch()}. Transaction bound values cached with a different epoch
+     * are no longer returned.
+     */
+    public void setTransactionEpoch(long transactionEpoch) {
+        this.transactionEpoch = transactionEpoch;
+    }
+
+    public long getTransactionEpoch() {
+        return transactionEpoch;
+    }
+
+    private boolean isCurrent(long valueTransactionEpoch) {
+        return valueTransactionEpoch == TRANSACTION_INDEPENDENT || valueTransactionEpoch == transactionEpoch;
+    }
+
+    private boolean isSlot(int slot) {
+        return slot >= 0 && slot < values.length;
+    }
+
+    private Object getSlotValue(int slot) {
+        Object value = isCurrent(slotTransactionEpochs[slot])? unwrap(values[slot]) : null;
+        if ( value == null ) {
+            if ( values[slot] != null) {
+                // garbage collected or from an earlier transaction.
+                clearSlot(slot);
+            }
+        } else if ( evictable != null ) {
+            evictable.get(Integer.valueOf(slot));
+        }
+        return value;
+    }
+
+    private void clearSlot(int slot) {
+        if ( owners[slot] != null ) {
+            removed(estimatedSlotBytes[slot], Integer.valueOf(slot));
+        }
+        values[slot] = null;
+        owners[slot] = null;
+        providers[slot] = null;
+        namespaces[slot] = null;
+        estimatedSlotBytes[slot] = 0;
+        slotTransactionEpochs[slot] = 0;
+    }
+
+    private void added(long bytes, boolean reloadable, Object evictionKey) {
+        entryCount++;
+        estimatedBytes += bytes;
+        if ( reloadable && evictable != null) {
+            evictable.put(evictionKey, Boolean.TRUE);
+        }
+    }
+
+    private void removed(long bytes, Object evictionKey) {
+        entryCount--;
+        estimatedBytes -= bytes;
+        if ( evictable != null ) {
+            evictable.remove(evictionKey);
+        }
+    }
+
+    /**
+     * evict least recently used reloadable values until the policy is satisfied ( or only pinned values are left ).
+     */
+    private void evict() {
+        if ( evictable != null ) {
+            while(!evictable.isEmpty() && policy.isOverLimit(entryCount, estimatedBytes)) {
+                Object eldest = evictable.keySet().iterator().next();
+                if ( eldest instanceof Integer) {
+                    clearSlot((Integer)eldest);
+                } else {
+                    List<?> key = (List<?>) eldest;
+                    remove((String)key.get(0), (String)key.get(1));
+                }
+            }
+        }
+    }
+
+    private Object wrap(Object value, boolean reloadable) {
+        if ( reloadable && policy.isSoftReferenced()) {
+            return new SoftValue(value);
+        } else {
+            return value;
+        }
+    }
+
+    private static Object unwrap(Object stored) {
+        if ( stored instanceof SoftValue) {
+            return ((SoftValue)stored).get();
+        } else {
+            return stored;
+        }
+    }
+
+    private void indexSlot(String name, int slot) {
+        int[] slots = slotsByName.get(name);
+        if ( slots == null ) {
+            slotsByName.put(name, new int[] { slot });
+        } else {
+            for(int existing: slots) {
+                if ( existing == slot) {
+                    return;
+                }
+            }
+            slots = Arrays.copyOf(slots, slots.length + 1);
+            slots[slots.length - 1] = slot;
+            slotsByName.put(name, slots);
+        }
+    }
+
+    /**
+     * distinguishes soft references created by the cache from values that happen to be {@link SoftReference}s.
+     */
+    private static class SoftValue extends SoftReference<Object> {
+        SoftValue(Object value) {
+            super(value);
+        }
+    }
+
+    private static class OverflowEntry {
+        private final Object value;
+        private final long estimatedBytes;
+        private final long transactionEpoch;
+        OverflowEntry(Object value, long estimatedBytes, long transactionEpoch) {
+            this.value = value;
+            this.estimatedBytes = estimatedBytes;
+            this.transactionEpoch = transactionEpoch;
+        }
+    }
+}
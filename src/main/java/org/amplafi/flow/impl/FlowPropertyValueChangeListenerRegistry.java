@@ -0,0 +1,173 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.amplafi.flow.FlowActivityImplementor;
+import org.amplafi.flow.FlowPropertyDefinition;
+import org.amplafi.flow.flowproperty.FlowPropertyCacheSlots;
+import org.amplafi.flow.flowproperty.FlowPropertyValueChangeListener;
+import org.amplafi.flow.flowproperty.SelectiveFlowPropertyValueChangeListener;
+import org.apache.commons.lang.ObjectUtils;
+
+/**
+ * The {@link FlowPropertyValueChangeListener}s that a {@link FlowStateImpl} notifies, resolved once per property rather than on each change.
+ *
+ * For each property the chain has the global listeners that are watching the property ( see {@link SelectiveFlowPropertyValueChangeListener} ) and
+ * the activity that owns the property's namespace. Chains are indexed by the property's cache slot ( see {@link org.amplafi.flow.FlowImplementor#getCacheSlots()} );
+ * properties without a slot use an identity map.
+ *
+ * The chains are discarded when a {@link SelectiveFlowPropertyValueChangeListener} changes the properties it is watching.
+ *
+ * Not thread-safe: {@link FlowStateImpl} synchronizes changes.
+ * @author patmoore
+ *
+ */
+public class FlowPropertyValueChangeListenerRegistry {
+    private final FlowPropertyCacheSlots slots;
+    private final List<FlowPropertyValueChangeListener> globalFlowPropertyValueChangeListeners;
+    private final int[] watchedPropertiesVersions;
+    private final FlowPropertyValueChangeListenerChain[] chains;
+    private Map<FlowPropertyDefinition, FlowPropertyValueChangeListenerChain> otherChains;
+
+    /**
+     * @param slots see {@link org.amplafi.flow.FlowImplementor#getCacheSlots()}
+     * @param globalFlowPropertyValueChangeListeners notified of all property changes ( unless selective ).
+     */
+    public FlowPropertyValueChangeListenerRegistry(FlowPropertyCacheSlots slots, List<FlowPropertyValueChangeListener> globalFlowPropertyValueChangeListeners) {
+        this.slots = slots;
+        this.globalFlowPropertyValueChangeListeners = globalFlowPropertyValueChangeListeners;
+        this.watchedPropertiesVersions = new int[globalFlowPropertyValueChangeListeners.size()];
+        this.chains = new FlowPropertyValueChangeListenerChain[slots.size()];
+        recordWatchedPropertiesVersions();
+    }
+
+    /**
+     * @param flowPropertyDefinition
+     * @return the chain for flowPropertyDefinition.
+     */
+    public FlowPropertyValueChangeListenerChain getChain(FlowPropertyDefinition flowPropertyDefinition) {
+        if ( !isWatchedPropertiesCurrent()) {
+            clear();
+        }
+        int slot = slots.getSlot(flowPropertyDefinition);
+        FlowPropertyValueChangeListenerChain chain;
+        if ( slot >= 0 && slot < chains.length) {
+            chain = chains[slot];
+            if ( chain == null || chain.flowPropertyDefinition != flowPropertyDefinition) {
+                chain = new FlowPropertyValueChangeListenerChain(flowPropertyDefinition, getWatchingListeners(flowPropertyDefinition));
+                chains[slot] = chain;
+            }
+        } else {
+            if ( otherChains == null ) {
+                otherChains = new IdentityHashMap<FlowPropertyDefinition, FlowPropertyValueChangeListenerChain>();
+            }
+            chain = otherChains.get(flowPropertyDefinition);
+            if ( chain == null ) {
+                chain = new FlowPropertyValueChangeListenerChain(flowPropertyDefinition, getWatchingListeners(flowPropertyDefinition));
+                otherChains.put(flowPropertyDefinition, chain);
+            }
+        }
+        return chain;
+    }
+
+    private FlowPropertyValueChangeListener[] getWatchingListeners(FlowPropertyDefinition flowPropertyDefinition) {
+        List<FlowPropertyValueChangeListener> watching = new ArrayList<FlowPropertyValueChangeListener>(globalFlowPropertyValueChangeListeners.size());
+        for(FlowPropertyValueChangeListener flowPropertyValueChangeListener: globalFlowPropertyValueChangeListeners) {
+            if ( !(flowPropertyValueChangeListener instanceof SelectiveFlowPropertyValueChangeListener)
+                    || ((SelectiveFlowPropertyValueChangeListener)flowPropertyValueChangeListener).isWatching(flowPropertyDefinition)) {
+                watching.add(flowPropertyValueChangeListener);
+            }
+        }
+        return watching.toArray(new FlowPropertyValueChangeListener[watching.size()]);
+    }
+
+    private boolean isWatchedPropertiesCurrent() {
+        for(int i = 0; i < watchedPropertiesVersions.length; i++) {
+            FlowPropertyValueChangeListener flowPropertyValueChangeListener = globalFlowPropertyValueChangeListeners.get(i);
+            if ( flowPropertyValueChangeListener instanceof SelectiveFlowPropertyValueChangeListener
+                    && ((SelectiveFlowPropertyValueChangeListener)flowPropertyValueChangeListener).getWatchedPropertiesVersion() != watchedPropertiesVersions[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void recordWatchedPropertiesVersions() {
+        for(int i = 0; i < watchedPropertiesVersions.length; i++) {
+            FlowPropertyValueChangeListener flowPropertyValueChangeListener = globalFlowPropertyValueChangeListeners.get(i);
+            if ( flowPropertyValueChangeListener instanceof SelectiveFlowPropertyValueChangeListener) {
+                watchedPropertiesVersions[i] = ((SelectiveFlowPropertyValueChangeListener)flowPropertyValueChangeListener).getWatchedPropertiesVersion();
+            }
+        }
+    }
+
+    private void clear() {
+        for(int i = 0; i < chains.length; i++) {
+            chains[i] = null;
+        }
+        otherChains = null;
+        recordWatchedPropertiesVersions();
+    }
+
+    /**
+     * The pre-resolved listeners for one property. The property's own listeners ( {@link FlowPropertyDefinition#getFlowPropertyValueChangeListeners()} )
+     * are not copied because they can be changed.
+     */
+    public static class FlowPropertyValueChangeListenerChain {
+        private final FlowPropertyDefinition flowPropertyDefinition;
+        private final FlowPropertyValueChangeListener[] globalFlowPropertyValueChangeListeners;
+        private boolean namespaceActivityResolved;
+        private String namespace;
+        private FlowActivityImplementor namespaceActivity;
+
+        FlowPropertyValueChangeListenerChain(FlowPropertyDefinition flowPropertyDefinition, FlowPropertyValueChangeListener[] globalFlowPropertyValueChangeListeners) {
+            this.flowPropertyDefinition = flowPropertyDefinition;
+            this.globalFlowPropertyValueChangeListeners = globalFlowPropertyValueChangeListeners;
+        }
+
+        /**
+         * @return the global listeners that are watching this property.
+         */
+        public FlowPropertyValueChangeListener[] getGlobalFlowPropertyValueChangeListeners() {
+            return globalFlowPropertyValueChangeListeners;
+        }
+
+        /**
+         * @param namespace
+         * @return true if {@link #getNamespaceActivity()} is the activity for namespace.
+         */
+        public boolean isNamespaceActivityResolved(String namespace) {
+            return namespaceActivityResolved && ObjectUtils.equals(this.namespace, namespace);
+        }
+
+        public FlowActivityImplementor getNamespaceActivity() {
+            return namespaceActivity;
+        }
+
+        /**
+         * @param namespace
+         * @param namespaceActivity the activity named namespace, may be null.
+         */
+        public void setNamespaceActivity(String namespace, FlowActivityImplementor namespaceActivity) {
+            this.namespace = namespace;
+            this.namespaceActivity = namespaceActivity;
+            this.namespaceActivityResolved = true;
+        }
+    }
+}
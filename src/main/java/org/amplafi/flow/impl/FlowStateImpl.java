@@ -14,14 +14,33 @@
 
 package org.amplafi.flow.impl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.sworddance.util.CUtilities.*;
 
@@ -29,20 +48,32 @@ import org.amplafi.flow.Flow;
 import org.amplafi.flow.FlowActivity;
 import org.amplafi.flow.FlowActivityImplementor;
 import org.amplafi.flow.FlowActivityPhase;
+import org.amplafi.flow.FlowException;
+import org.amplafi.flow.FlowExecutionException;
 import org.amplafi.flow.FlowImplementor;
 import org.amplafi.flow.FlowManagement;
 import org.amplafi.flow.FlowPropertyDefinition;
+import org.amplafi.flow.FlowPropertyValueProvider;
 import org.amplafi.flow.FlowState;
 import org.amplafi.flow.FlowStateLifecycle;
 import org.amplafi.flow.FlowStepDirection;
 import org.amplafi.flow.FlowValueMapKey;
 import org.amplafi.flow.FlowValuesMap;
+import org.amplafi.flow.FlowValuesMapChange;
+import org.amplafi.flow.flowproperty.BatchFlowPropertyValueChangeListener;
+import org.amplafi.flow.flowproperty.FlowPropertyCacheSlots;
 import org.amplafi.flow.flowproperty.FlowPropertyDefinitionBuilder;
 import org.amplafi.flow.flowproperty.FlowPropertyDefinitionImplementor;
+import org.amplafi.flow.flowproperty.FlowPropertyDependencyGraph;
 import org.amplafi.flow.flowproperty.FlowPropertyProvider;
+import org.amplafi.flow.flowproperty.FlowPropertyValueChange;
 import org.amplafi.flow.flowproperty.FlowPropertyValueChangeListener;
+import org.amplafi.flow.flowproperty.FlowPropertyValueProviderCallableImpl;
+import org.amplafi.flow.flowproperty.SideEffectFreeFlowPropertyValueProvider;
 import org.amplafi.flow.flowproperty.InvalidatingFlowPropertyValueChangeListener;
+import org.amplafi.flow.flowproperty.NamespaceKeySearchPlan;
 import org.amplafi.flow.flowproperty.PropertyUsage;
+import org.amplafi.flow.impl.FlowPropertyValueChangeListenerRegistry.FlowPropertyValueChangeListenerChain;
 import org.amplafi.flow.validation.FlowValidationException;
 import org.amplafi.flow.validation.FlowValidationResult;
 import org.amplafi.flow.validation.ReportAllValidationResult;
@@ -51,7 +82,6 @@ import com.sworddance.util.RandomKeyGenerator;
 import com.sworddance.util.map.NamespaceMapKey;
 import com.sworddance.util.perf.LapTimer;
 
-import org.apache.commons.collections.map.MultiKeyMap;
 import org.apache.commons.lang.ObjectUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
@@ -72,10 +102,34 @@ import static org.apache.commons.lang.StringUtils.isBlank;
  * defines an actively executing flow. Each FlowState has an attached Flow which
  * is the instantiated definition. This copy is made to avoid problems with flow
  * definitions changing while an instance of a flow is active.
+ *
+ * Serialized with a compact versioned form written after the serialized fields ( see {@link #writeObject(ObjectOutputStream)} ).
+ * Subclass fields are serialized normally. Streams written before the compact form ( the default serialization ) are still read.
  */
 public class FlowStateImpl implements FlowStateImplementor {
 
     private static final long serialVersionUID = -7694935572121566257L;
+    private static final String COMPACT_FIELD = "compact";
+    private static final String LISTENERS_FIELD = "globalFlowPropertyValueChangeListeners";
+    /**
+     * The fields of the form before the compact form so that it can still be read. Only the value change listeners and "compact"
+     * ( absent from the old form ) are written, everything else is in the compact form.
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("activeFlowLabel", String.class),
+        new ObjectStreamField("lookupKey", String.class),
+        new ObjectStreamField("flowValuesMap", FlowValuesMap.class),
+        new ObjectStreamField("flowTypeName", String.class),
+        new ObjectStreamField("currentActivityIndex", Integer.class),
+        new ObjectStreamField("currentActivityByName", String.class),
+        new ObjectStreamField("flowStateLifecycle", FlowStateLifecycle.class),
+        new ObjectStreamField(LISTENERS_FIELD, List.class),
+        new ObjectStreamField(COMPACT_FIELD, boolean.class)
+    };
+    private static final int EXTERNAL_VERSION = 1;
+    private static final int NO_FLOW_VALUES_MAP = 0;
+    private static final int DEFAULT_FLOW_VALUES_MAP = 1;
+    private static final int OTHER_FLOW_VALUES_MAP = 2;
 
     /**
      * used when displaying the FlowEntryPoint.
@@ -120,11 +174,78 @@ public class FlowStateImpl implements FlowStateImplementor {
      * This map only contains values up until the completion of the
      * selectActivity() call
      */
-    private transient MultiKeyMap cachedValues;
+    private transient FlowPropertyValueCache cachedValues;
+
+    /**
+     * (definition, provider, forceAll) -> namespace search plan. Cleared when the flow changes.
+     */
+    private transient Map<NamespaceKeySearchPlanKey, NamespaceKeySearchPlan> namespaceKeySearchPlans;
 
     private FlowStateLifecycle flowStateLifecycle;
 
-    private List<FlowPropertyValueChangeListener> globalFlowPropertyValueChangeListeners = new ArrayList<FlowPropertyValueChangeListener>(Arrays.asList(new InvalidatingFlowPropertyValueChangeListener()));
+    private List<FlowPropertyValueChangeListener> globalFlowPropertyValueChangeListeners = newGlobalFlowPropertyValueChangeListeners();
+
+    /**
+     * property -> listeners to notify. Cleared when the flow changes.
+     */
+    private transient FlowPropertyValueChangeListenerRegistry flowPropertyValueChangeListenerRegistry;
+
+    /**
+     * > 0 while a batch of changes is being made. See {@link #startFlowPropertyValueChangeBatch()}.
+     */
+    private transient int flowPropertyValueChangeBatchDepth;
+    private transient Map<BatchFlowPropertyValueChangeListener, List<FlowPropertyValueChange>> batchedFlowPropertyValueChanges;
+
+    /**
+     * (property, provider) -> value being computed by {@link #prefetchFlowProperties(FlowPropertyProvider, Iterable)}. Cancelled by {@link #clearCache()}.
+     */
+    private transient Map<PrefetchKey, Future<?>> prefetchedValues;
+
+    /**
+     * which properties each derived ( auto-created ) value read. Cleared when the flow changes.
+     */
+    private transient PropertyReadTracker propertyReadTracker;
+
+    /**
+     * activity visibility. Discarded when a property read while computing it changes.
+     */
+    private transient FlowExecutionPlan flowExecutionPlan;
+
+    /**
+     * holds the flowValuesMap while it is passivated ( see {@link #passivateValues(FlowStatePassivationStore, long)} ). null when the values are on the heap.
+     */
+    private transient volatile FlowStatePassivationStore passivationStore;
+
+    /**
+     * changes not yet drained when the values were passivated. Returned by the next {@link #drainChanges()}.
+     */
+    private transient List<FlowValuesMapChange> passivatedChanges;
+
+    /**
+     * true once {@link #drainChanges()} has been called. A {@link FlowValuesMap} only records changes once it has been drained, so a map
+     * installed after that ( created, replaced or rehydrated ) is drained immediately to keep recording.
+     */
+    private transient volatile boolean changesDrained;
+
+    /**
+     * last time the values were accessed. See {@link #getLastAccessTime()}.
+     */
+    private transient volatile long lastAccessTime = System.currentTimeMillis();
+
+    /**
+     * see {@link #getRepositoryVersion()}
+     */
+    private transient long repositoryVersion;
+
+    /**
+     * see {@link #getSavedChangeMarker()}
+     */
+    private transient Object savedChangeMarker;
+
+    /**
+     * the modification counts of the FlowValuesMaps this FlowState no longer holds ( replaced or passivated ). see {@link #getChangeMarker()}
+     */
+    private transient long retiredModificationCount;
 
     public FlowStateImpl() {
 
@@ -134,7 +255,7 @@ public class FlowStateImpl implements FlowStateImplementor {
             Map<String, String> initialFlowState) {
         this(flowTypeName, sessionFlowManagement);
         //TODO Kostya: Should we put initial state into the flow namespace??
-        this.setFlowValuesMap(new DefaultFlowValuesMap(initialFlowState));
+        this.setFlowValuesMap(createFlowValuesMap(initialFlowState));
     }
 
     public FlowStateImpl(String flowTypeName, FlowManagement sessionFlowManagement) {
@@ -240,8 +361,196 @@ public class FlowStateImpl implements FlowStateImplementor {
     }
     @Override
     public void initializeFlowProperties(FlowPropertyProvider flowPropertyProvider, Iterable<FlowPropertyDefinitionImplementor> flowPropertyDefinitions) {
+        startFlowPropertyValueChangeBatch();
+        try {
+            for (FlowPropertyDefinitionImplementor flowPropertyDefinition : flowPropertyDefinitions) {
+                initializeFlowProperty(flowPropertyProvider, flowPropertyDefinition);
+            }
+        } finally {
+            finishFlowPropertyValueChangeBatch();
+        }
+    }
+
+    /**
+     * @see org.amplafi.flow.impl.FlowStateImplementor#prefetchFlowProperties(org.amplafi.flow.flowproperty.FlowPropertyProvider, java.lang.Iterable)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public void prefetchFlowProperties(FlowPropertyProvider flowPropertyProvider, Iterable<FlowPropertyDefinitionImplementor> flowPropertyDefinitions) {
+        ExecutorService executor = getFlowManagement().getFlowPropertyPrefetchExecutor();
+        if ( executor == null ) {
+            return;
+        }
         for (FlowPropertyDefinitionImplementor flowPropertyDefinition : flowPropertyDefinitions) {
-            initializeFlowProperty(flowPropertyProvider, flowPropertyDefinition);
+            FlowPropertyValueProvider<FlowPropertyProvider> flowPropertyValueProvider = flowPropertyDefinition.getFlowPropertyValueProvider();
+            // other threads must not use this FlowState ( not thread-safe ) so only providers that do not read or change it are prefetched.
+            if ( flowPropertyDefinition.isAutoCreate() && flowPropertyValueProvider instanceof SideEffectFreeFlowPropertyValueProvider
+                    && isPrefetchable(flowPropertyValueProvider, flowPropertyProvider)
+                    && getPrefetchedValue(flowPropertyDefinition, flowPropertyProvider, false) == null
+                    && getCached(flowPropertyDefinition, flowPropertyProvider) == null
+                    && getRawProperty(flowPropertyProvider, flowPropertyDefinition) == null) {
+                getFlowManagement().wireDependencies(flowPropertyDefinition);
+                try {
+                    Future<?> future = executor.submit(new FlowPropertyValueProviderCallableImpl<FlowPropertyProvider, Object>(flowPropertyProvider, flowPropertyValueProvider, flowPropertyDefinition));
+                    setPrefetchedValue(flowPropertyDefinition, flowPropertyProvider, future);
+                } catch(RejectedExecutionException e) {
+                    // computed when needed.
+                }
+            }
+        }
+    }
+
+    /**
+     * @see org.amplafi.flow.impl.FlowStateImplementor#evaluateFlowProperties(org.amplafi.flow.flowproperty.FlowPropertyProvider, org.amplafi.flow.flowproperty.FlowPropertyDependencyGraph)
+     */
+    @Override
+    public void evaluateFlowProperties(final FlowPropertyProvider flowPropertyProvider, FlowPropertyDependencyGraph flowPropertyDependencyGraph) {
+        startFlowPropertyValueChangeBatch();
+        try {
+            for(List<FlowPropertyDefinitionImplementor> level: flowPropertyDependencyGraph.getLevels()) {
+                List<FlowPropertyDefinitionImplementor> needed = new ArrayList<FlowPropertyDefinitionImplementor>(level.size());
+                int sideEffectFree = 0;
+                for(FlowPropertyDefinitionImplementor flowPropertyDefinition: level) {
+                    if ( getCached(flowPropertyDefinition, flowPropertyProvider) == null && getRawProperty(flowPropertyProvider, flowPropertyDefinition) == null) {
+                        getFlowManagement().wireDependencies(flowPropertyDefinition);
+                        needed.add(flowPropertyDefinition);
+                        if ( isSideEffectFree(flowPropertyDefinition)) {
+                            sideEffectFree++;
+                        }
+                    }
+                }
+                if ( needed.isEmpty()) {
+                    continue;
+                }
+                // only the side effect free providers run on the pool ( this FlowState is not thread-safe ), the others run on this thread meanwhile.
+                // a single property has nothing to overlap with.
+                boolean parallel = sideEffectFree > 0 && needed.size() > 1;
+                List<Future<Object>> futures = new ArrayList<Future<Object>>(needed.size());
+                for(final FlowPropertyDefinitionImplementor flowPropertyDefinition: needed) {
+                    if ( parallel && isSideEffectFree(flowPropertyDefinition)) {
+                        futures.add(DefaultForkJoinPool.INSTANCE.submit(new Callable<Object>() {
+                            @Override
+                            public Object call() {
+                                return getDefaultObject(flowPropertyProvider, flowPropertyDefinition);
+                            }
+                        }));
+                    } else {
+                        futures.add(null);
+                    }
+                }
+                // values are stored on this thread.
+                for(int i = 0; i < needed.size(); i++) {
+                    FlowPropertyDefinitionImplementor flowPropertyDefinition = needed.get(i);
+                    Future<Object> future = futures.get(i);
+                    Object value = future == null? getDefaultObject(flowPropertyProvider, flowPropertyDefinition): getFutureValue(flowPropertyDefinition, future);
+                    // same as getPropertyWithDefinition()
+                    if ( !flowPropertyDefinition.isCacheOnly()) {
+                        setPropertyWithDefinition(flowPropertyProvider, flowPropertyDefinition, value);
+                    }
+                    setCached(flowPropertyDefinition, flowPropertyProvider, value);
+                }
+            }
+        } finally {
+            finishFlowPropertyValueChangeBatch();
+        }
+    }
+
+    private boolean isSideEffectFree(FlowPropertyDefinitionImplementor flowPropertyDefinition) {
+        return flowPropertyDefinition.getFlowPropertyValueProvider() instanceof SideEffectFreeFlowPropertyValueProvider;
+    }
+
+    /**
+     * Shared by all FlowStates. Only created if used. The worker threads are daemon threads.
+     */
+    private static class DefaultForkJoinPool {
+        private static final ForkJoinPool INSTANCE = new ForkJoinPool();
+    }
+
+    /**
+     * the same check as {@link FlowPropertyDefinitionImplementor#getDefaultObject(FlowPropertyProvider)} - if it fails the
+     * value is computed when needed so the usual exception is thrown.
+     */
+    private boolean isPrefetchable(FlowPropertyValueProvider<FlowPropertyProvider> flowPropertyValueProvider, FlowPropertyProvider flowPropertyProvider) {
+        Class<? extends FlowPropertyProvider> expected = flowPropertyValueProvider.getFlowPropertyProviderClass();
+        return expected == null || (flowPropertyProvider != null && expected.isAssignableFrom(flowPropertyProvider.getClass()));
+    }
+
+    private synchronized Future<?> getPrefetchedValue(FlowPropertyDefinition flowPropertyDefinition, FlowPropertyProvider flowPropertyProvider, boolean remove) {
+        if ( this.prefetchedValues == null ) {
+            return null;
+        } else if ( remove ) {
+            return this.prefetchedValues.remove(new PrefetchKey(flowPropertyDefinition, flowPropertyProvider));
+        } else {
+            return this.prefetchedValues.get(new PrefetchKey(flowPropertyDefinition, flowPropertyProvider));
+        }
+    }
+
+    private synchronized void setPrefetchedValue(FlowPropertyDefinition flowPropertyDefinition, FlowPropertyProvider flowPropertyProvider, Future<?> future) {
+        if ( this.prefetchedValues == null ) {
+            this.prefetchedValues = new HashMap<PrefetchKey, Future<?>>();
+        }
+        this.prefetchedValues.put(new PrefetchKey(flowPropertyDefinition, flowPropertyProvider), future);
+    }
+
+    /**
+     * The same definition ( i.e. a flow property ) can be prefetched for several providers ( FlowActivities ) and each computes its own value.
+     * Compared by identity.
+     */
+    private static class PrefetchKey {
+        private final FlowPropertyDefinition flowPropertyDefinition;
+        private final FlowPropertyProvider flowPropertyProvider;
+        PrefetchKey(FlowPropertyDefinition flowPropertyDefinition, FlowPropertyProvider flowPropertyProvider) {
+            this.flowPropertyDefinition = flowPropertyDefinition;
+            this.flowPropertyProvider = flowPropertyProvider;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if ( !(o instanceof PrefetchKey)) {
+                return false;
+            }
+            PrefetchKey other = (PrefetchKey) o;
+            return flowPropertyDefinition == other.flowPropertyDefinition && flowPropertyProvider == other.flowPropertyProvider;
+        }
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(flowPropertyDefinition) * 31 + System.identityHashCode(flowPropertyProvider);
+        }
+    }
+
+    /**
+     * @return the value computed by {@link #prefetchFlowProperties(FlowPropertyProvider, Iterable)} or if the prefetch was cancelled, the value
+     * computed now.
+     */
+    private Object getDefaultObject(FlowPropertyProvider flowPropertyProvider, FlowPropertyDefinitionImplementor propertyDefinition) {
+        Future<?> future = getPrefetchedValue(propertyDefinition, flowPropertyProvider, true);
+        if ( future != null ) {
+            try {
+                return getFutureValue(propertyDefinition, future);
+            } catch (CancellationException e) {
+                // fall through
+            }
+        }
+        return propertyDefinition.getDefaultObject(flowPropertyProvider);
+    }
+
+    /**
+     * wait for the value, the exceptions are reported the same way as {@link FlowPropertyDefinitionImplementor#getDefaultObject(FlowPropertyProvider)}.
+     * @throws CancellationException
+     */
+    private Object getFutureValue(FlowPropertyDefinitionImplementor propertyDefinition, Future<?> future) throws CancellationException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FlowExecutionException(propertyDefinition.getName()+": interrupted while waiting for value", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof FlowException) {
+                throw (FlowException) cause;
+            } else {
+                throw new FlowExecutionException(propertyDefinition.getName()+": PropertyValueProvider threw an exception. propertyValueProvider="+propertyDefinition.getFlowPropertyValueProvider(),
+                    cause instanceof Exception? (Exception)cause: e);
+            }
         }
     }
     /**
@@ -256,16 +565,20 @@ public class FlowStateImpl implements FlowStateImplementor {
     public void initializeFlowProperty(FlowPropertyProvider flowPropertyProvider, FlowPropertyDefinitionImplementor flowPropertyDefinition) {
         // move values from alternateNames to the true name.
         // or just clear out the alternate names of their values.
-        List<String> namespaces = flowPropertyDefinition.getNamespaceKeySearchList(this, flowPropertyProvider, true);
+        NamespaceKeySearchPlan plan = getNamespaceKeySearchPlan(flowPropertyDefinition, flowPropertyProvider, true);
+        FlowValuesMap values = getFlowValuesMap();
         String value = null;
         boolean valueExternallySet = false;
         PropertyUsage propertyUsage = flowPropertyDefinition.getPropertyUsage();
         // make sure property clean up happens even for properties that cannot be set externally.
-        for(String namespace: namespaces) {
-            for (String alternateName : flowPropertyDefinition.getAllNames()) {
-                if ( getFlowValuesMap().containsKey(namespace, alternateName)) {
+        for(int namespaceIndex = 0; namespaceIndex < plan.getNamespaceCount(); namespaceIndex++) {
+            String namespace = plan.getNamespace(namespaceIndex);
+            for (int nameIndex = 0; nameIndex < plan.getNameCount(); nameIndex++) {
+                String alternateName = plan.getName(nameIndex);
+                Object rawValue = values.get(namespace, alternateName);
+                if ( rawValue != null || values.containsKey(namespace, alternateName)) {
                     if ( !valueExternallySet ) {
-                        value = getRawProperty(namespace, alternateName);
+                        value = ObjectUtils.toString(rawValue, null);
                         valueExternallySet = true;
                     }
                     if ( propertyUsage.isCleanOnInitialization()) {
@@ -282,8 +595,7 @@ public class FlowStateImpl implements FlowStateImplementor {
             value = flowPropertyDefinition.getInitial();
             valueSet = true;
         }
-        String namespace = flowPropertyDefinition.getNamespaceKey(this, flowPropertyProvider);
-        String currentValue = getRawProperty(namespace, flowPropertyDefinition.getName());
+        String currentValue = getRawProperty(plan.getPrimaryNamespace(), flowPropertyDefinition.getName());
         if (valueSet && !StringUtils.equals(value, currentValue)) {
             // This code allows FlowPropertyChangeListeners to be triggered when the flow starts up.
             if (!propertyUsage.isExternallySettable() && valueExternallySet) {
@@ -307,21 +619,20 @@ public class FlowStateImpl implements FlowStateImplementor {
 
 
     /**
+     * The export is a view: only the properties that are read are exported ( see {@link ExportedFlowValuesMap} ). Use {@link #exportProperties(boolean)}
+     * to export everything at once.
      * @see org.amplafi.flow.FlowState#getExportedValuesMap()
      */
-    @SuppressWarnings("unchecked")
     @Override
     public FlowValuesMap getExportedValuesMap() {
-        FlowValuesMap valuesMap =exportProperties(false);
-        return valuesMap;
+        return new ExportedFlowValuesMap(this, createFlowValuesMapCopy());
     }
     /**
      * Method to allow overriding.
      * @return a copied FlowValuesMap
      */
-    @SuppressWarnings("unchecked")
     protected FlowValuesMap createFlowValuesMapCopy() {
-        return new DefaultFlowValuesMap((FlowValuesMap<FlowValueMapKey, CharSequence>)getFlowValuesMap());
+        return getFlowValuesMap().copy();
     }
 
     /**
@@ -348,6 +659,9 @@ public class FlowStateImpl implements FlowStateImplementor {
             if ( isNotEmpty(activityFlowPropertyDefinitions)) {
                 exportProperties(exportValueMap, activityFlowPropertyDefinitions.values(), activity, clearFrom);
             }
+            // the activity instance namespace is unique to this FlowState so nothing in it can be used by another flow.
+            // Dropping the entire namespace also removes values of undefined properties.
+            exportValueMap.removeNamespace(activity.getFullActivityInstanceNamespace());
         }
         // TODO should we clear all non-global namespace values? We have slight leak through when undefined properties are set on a flow.
         return exportValueMap;
@@ -372,13 +686,17 @@ public class FlowStateImpl implements FlowStateImplementor {
         // or just clear out the alternate names of their values.
         String value = null;
         boolean valueSet = false;
-        List<String> namespaces = flowPropertyDefinition.getNamespaceKeySearchList(this, flowActivity, false);
-        for(String namespace: namespaces ) {
-            for (String key : flowPropertyDefinition.getAllNames()) {
-                if ( getFlowValuesMap().containsKey(namespace, key)) {
+        NamespaceKeySearchPlan plan = getNamespaceKeySearchPlan(flowPropertyDefinition, flowActivity, false);
+        FlowValuesMap values = getFlowValuesMap();
+        for(int namespaceIndex = 0; namespaceIndex < plan.getNamespaceCount(); namespaceIndex++) {
+            String namespace = plan.getNamespace(namespaceIndex);
+            for (int nameIndex = 0; nameIndex < plan.getNameCount(); nameIndex++) {
+                String key = plan.getName(nameIndex);
+                Object rawValue = values.get(namespace, key);
+                if ( rawValue != null || values.containsKey(namespace, key)) {
                     if ( !valueSet ) {
                         // preserve the value from the most precise namespace.
-                        value = getRawProperty(namespace, key);
+                        value = ObjectUtils.toString(rawValue, null);
                         valueSet = true;
                     }
                     if ( namespace != null ) {
@@ -405,11 +723,22 @@ public class FlowStateImpl implements FlowStateImplementor {
     @Override
     public void copyTrustedValuesMapToFlowState(Map<String, String> trustedValues) {
         if ( isNotEmpty(trustedValues)) {
+            // resolve all the definitions before any value is set.
+            List<FlowPropertyDefinition> flowPropertyDefinitions = new ArrayList<FlowPropertyDefinition>(trustedValues.size());
+            List<String> values = new ArrayList<String>(trustedValues.size());
             for(Map.Entry<String, String> entry: trustedValues.entrySet()) {
                 String key = entry.getKey();
                 String value = entry.getValue();
-                FlowPropertyDefinition flowPropertyDefinition = getFlowPropertyDefinitionWithCreate(key, null, value);
-                setRawProperty(this, flowPropertyDefinition, value);
+                flowPropertyDefinitions.add(getFlowPropertyDefinitionWithCreate(key, null, value));
+                values.add(value);
+            }
+            startFlowPropertyValueChangeBatch();
+            try {
+                for(int i = 0; i < flowPropertyDefinitions.size(); i++) {
+                    setRawProperty(this, flowPropertyDefinitions.get(i), values.get(i));
+                }
+            } finally {
+                finishFlowPropertyValueChangeBatch();
             }
         }
     }
@@ -450,8 +779,7 @@ public class FlowStateImpl implements FlowStateImplementor {
         initializeFlow();
         begin();
 
-        FlowActivityImplementor targetFAInNextFlow = getTargetFAInNextFlow(currentFAInOriginalFlow,
-                                                                originalFAs, nextFAs);
+        FlowActivityImplementor targetFAInNextFlow = getTargetFAInNextFlow(currentFAInOriginalFlow, originalFAs);
 
         // No common FAs, No need to run nextFlow at all, just return
         if (targetFAInNextFlow != null) {
@@ -465,7 +793,7 @@ public class FlowStateImpl implements FlowStateImplementor {
     }
 
     private FlowActivityImplementor getTargetFAInNextFlow(FlowActivityImplementor currentFAInOriginalFlow,
-            List<FlowActivityImplementor> originalFAs, List<FlowActivityImplementor> nextFAs) {
+            List<FlowActivityImplementor> originalFAs) {
         FlowActivity flowActivity = this.getActivity(currentFAInOriginalFlow.getFlowPropertyProviderName());
         if ( flowActivity != null ) {
             // cool .. exact match on the names.
@@ -474,14 +802,17 @@ public class FlowStateImpl implements FlowStateImplementor {
         // find the first FlowActivity that is after all the flowActivities with the same names
         // as FlowActivities in the previous flow.to find the same approximate spot in the the new flow.
         int newCurrentIndex = this.getCurrentActivityIndex();
+        FlowImplementor nextFlow = this.getFlow();
         for (int prevIndex = 0; prevIndex < originalFAs.size(); prevIndex++) {
             FlowActivity originalFA = originalFAs.get(prevIndex);
             if ( isEqualTo(originalFA, currentFAInOriginalFlow)) {
                 break;
             }
-            for(int nextIndex = newCurrentIndex; nextIndex < nextFAs.size(); nextIndex++) {
-                FlowActivity nextFA = nextFAs.get(nextIndex);
-                if(isEqualTo(originalFA, nextFA)) {
+            // activity names are unique within a flow.
+            FlowActivity nextFA = nextFlow.getActivity(originalFA.getFlowPropertyProviderName());
+            if ( isEqualTo(originalFA, nextFA)) {
+                int nextIndex = nextFlow.indexOf(nextFA);
+                if ( nextIndex >= newCurrentIndex) {
                     newCurrentIndex = nextIndex+1;
                 }
             }
@@ -588,17 +919,7 @@ public class FlowStateImpl implements FlowStateImplementor {
     @SuppressWarnings("unchecked")
     @Override
     public <T extends FlowActivity> T selectVisibleActivity(int visibleIndex) {
-        int index = -1;
-        int realIndex = -1;
-        for (FlowActivity activity : getActivities()) {
-            if (!activity.isInvisible()) {
-                index++;
-            }
-            realIndex++;
-            if (index == visibleIndex) {
-                break;
-            }
-        }
+        int realIndex = getFlowExecutionPlan().getActivityIndex(visibleIndex);
         return (T) selectActivity(realIndex, false);
     }
 
@@ -764,6 +1085,31 @@ public class FlowStateImpl implements FlowStateImplementor {
         }
     }
 
+    /**
+     * @see org.amplafi.flow.impl.FlowStateImplementor#getReferencedLookupKeys()
+     */
+    @Override
+    public Set<String> getReferencedLookupKeys() {
+        Set<String> referencedLookupKeys = new LinkedHashSet<String>(2);
+        for(String key: new String[] { FSCONTINUE_WITH_FLOW, FSRETURN_TO_FLOW }) {
+            String lookupKey = this.getProperty(key);
+            if ( isNotBlank(lookupKey) && !lookupKey.equals(this.getLookupKey())) {
+                referencedLookupKeys.add(lookupKey);
+            }
+        }
+        return referencedLookupKeys;
+    }
+
+    /**
+     * Tell the FlowManagement if key is one of the properties with the {@link #getReferencedLookupKeys()}.
+     * @param key
+     */
+    private void referencesChange(String key) {
+        if ( (key == null || FSRETURN_TO_FLOW.equals(key) || FSCONTINUE_WITH_FLOW.equals(key)) && getFlowManagement() != null) {
+            getFlowManagement().referencesChange(this);
+        }
+    }
+
     @Override
     public FlowValidationResult passivate(boolean verifyValues, FlowStepDirection flowStepDirection) {
         FlowActivityImplementor currentActivity = getCurrentActivity();
@@ -839,12 +1185,10 @@ public class FlowStateImpl implements FlowStateImplementor {
     @SuppressWarnings("unchecked")
     @Override
     public <T extends FlowActivity> T  getActivity(String activityName) {
-        // HACK we need to set up a map.
         if ( activityName != null ) {
-            for (FlowActivity flowActivity : this.getFlow().getActivities()) {
-                if (flowActivity.isNamed(activityName)) {
-                    return (T) resolveActivity(flowActivity);
-                }
+            FlowActivity flowActivity = this.getFlow().getActivity(activityName);
+            if (flowActivity != null) {
+                return (T) resolveActivity(flowActivity);
             }
         }
         return null;
@@ -958,19 +1302,34 @@ public class FlowStateImpl implements FlowStateImplementor {
     @SuppressWarnings("unchecked")
     @Override
     public <T> T getPropertyWithDefinition(FlowPropertyProvider flowPropertyProvider, FlowPropertyDefinitionImplementor propertyDefinition) {
+        PropertyReadTracker tracker = this.propertyReadTracker;
+        if ( tracker != null && tracker.isTracking()) {
+            // a derived value is being computed.
+            tracker.recordRead(propertyDefinition.getNamespaceKey(this, flowPropertyProvider), propertyDefinition.getName());
+        }
         T result = (T) getCached(propertyDefinition, flowPropertyProvider);
         if ( result == null ) {
             getFlowManagement().wireDependencies(propertyDefinition);
             String value = getRawProperty(flowPropertyProvider, propertyDefinition);
             result = (T) propertyDefinition.deserialize(flowPropertyProvider, value);
             if (result == null && propertyDefinition.isAutoCreate()) {
-                result =  (T) propertyDefinition.getDefaultObject(flowPropertyProvider);
+                tracker = getPropertyReadTracker();
+                PropertyReadTracker.Frame frame = tracker.startTracking();
+                Set<PropertyReadTracker.PropertyKey> readProperties;
+                try {
+                    result =  (T) getDefaultObject(flowPropertyProvider, propertyDefinition);
+                } finally {
+                    readProperties = tracker.finishTracking(frame);
+                }
 
                 if ( !propertyDefinition.isCacheOnly()) {
                     // so the flowState has the generated value.
                     // this will make visible to json exporting.
                     // also triggers FlowPropertyValueChangeListeners on the initial set.
                     setPropertyWithDefinition(flowPropertyProvider, propertyDefinition, result);
+                } else {
+                    // only cached values are discarded when what they were computed from changes: a stored value is flow state.
+                    tracker.recordDerived(propertyDefinition.getNamespaceKey(this, flowPropertyProvider), propertyDefinition.getName(), readProperties);
                 }
             }
             setCached(propertyDefinition, flowPropertyProvider, result);
@@ -1022,29 +1381,36 @@ public class FlowStateImpl implements FlowStateImplementor {
         String oldValue = getRawProperty(namespace, key);
         String newValue = value;
         if (!StringUtils.equals(newValue, oldValue)) {
+            FlowPropertyValueChangeListenerChain chain = getFlowPropertyValueChangeListenerRegistry().getChain(flowPropertyDefinition);
             List<FlowPropertyValueChangeListener> flowPropertyValueChangeListeners = flowPropertyDefinition.getFlowPropertyValueChangeListeners();
             if ( isNotEmpty(flowPropertyValueChangeListeners)) {
+                // the listeners are wired as part of the definition ( only done once ).
+                this.getFlowManagement().wireDependencies(flowPropertyDefinition);
                 for(FlowPropertyValueChangeListener flowPropertyValueChangeListener: flowPropertyValueChangeListeners) {
-                    this.getFlowManagement().wireDependencies(flowPropertyValueChangeListener);
-                    newValue = flowPropertyValueChangeListener.propertyChange(flowPropertyProvider, namespace, flowPropertyDefinition, newValue, oldValue);
+                    newValue = propertyChange(flowPropertyValueChangeListener, flowPropertyProvider, namespace, flowPropertyDefinition, newValue, oldValue);
                 }
             }
             if ( flowPropertyProvider instanceof FlowPropertyValueChangeListener) {
-                newValue = ((FlowPropertyValueChangeListener)flowPropertyProvider).propertyChange(flowPropertyProvider, namespace, flowPropertyDefinition, newValue, oldValue);
+                newValue = propertyChange((FlowPropertyValueChangeListener)flowPropertyProvider, flowPropertyProvider, namespace, flowPropertyDefinition, newValue, oldValue);
             }
 
-            FlowActivityImplementor activity = getActivity(namespace);
+            if ( !chain.isNamespaceActivityResolved(namespace)) {
+                FlowActivityImplementor namespaceActivity = getActivity(namespace);
+                chain.setNamespaceActivity(namespace, namespaceActivity);
+            }
+            FlowActivityImplementor activity = chain.getNamespaceActivity();
             if ( activity == flowPropertyProvider || !(activity instanceof FlowPropertyValueChangeListener)) {
                 activity = getCurrentFlowActivityImplementor();
             }
             if ( activity instanceof FlowPropertyValueChangeListener && activity != flowPropertyProvider) {
-                newValue = ((FlowPropertyValueChangeListener)activity).propertyChange(flowPropertyProvider, namespace, flowPropertyDefinition, newValue, oldValue);
+                newValue = propertyChange((FlowPropertyValueChangeListener)activity, flowPropertyProvider, namespace, flowPropertyDefinition, newValue, oldValue);
             }
 
-            for(FlowPropertyValueChangeListener flowPropertyValueChangeListener: this.globalFlowPropertyValueChangeListeners) {
-                newValue = flowPropertyValueChangeListener.propertyChange(flowPropertyProvider, namespace, flowPropertyDefinition, newValue, oldValue);
+            for(FlowPropertyValueChangeListener flowPropertyValueChangeListener: chain.getGlobalFlowPropertyValueChangeListeners()) {
+                newValue = propertyChange(flowPropertyValueChangeListener, flowPropertyProvider, namespace, flowPropertyDefinition, newValue, oldValue);
             }
             put(namespace, key, newValue);
+            invalidateDerivedProperties(namespace, key);
             return true;
         } else {
             return false;
@@ -1052,6 +1418,83 @@ public class FlowStateImpl implements FlowStateImplementor {
     }
 
 
+    /**
+     * Notify flowPropertyValueChangeListener or, if a batch is in progress and flowPropertyValueChangeListener handles batches, record the change.
+     * @return the value to set.
+     */
+    private String propertyChange(FlowPropertyValueChangeListener flowPropertyValueChangeListener, FlowPropertyProvider flowPropertyProvider, String namespace,
+        FlowPropertyDefinition flowPropertyDefinition, String newValue, String oldValue) {
+        if ( this.flowPropertyValueChangeBatchDepth > 0 && flowPropertyValueChangeListener instanceof BatchFlowPropertyValueChangeListener) {
+            if ( this.batchedFlowPropertyValueChanges == null ) {
+                this.batchedFlowPropertyValueChanges = new LinkedHashMap<BatchFlowPropertyValueChangeListener, List<FlowPropertyValueChange>>();
+            }
+            List<FlowPropertyValueChange> changes = this.batchedFlowPropertyValueChanges.get(flowPropertyValueChangeListener);
+            if ( changes == null ) {
+                changes = new ArrayList<FlowPropertyValueChange>();
+                this.batchedFlowPropertyValueChanges.put((BatchFlowPropertyValueChangeListener)flowPropertyValueChangeListener, changes);
+            }
+            changes.add(new FlowPropertyValueChange(flowPropertyProvider, namespace, flowPropertyDefinition, newValue, oldValue));
+            return newValue;
+        } else {
+            return flowPropertyValueChangeListener.propertyChange(flowPropertyProvider, namespace, flowPropertyDefinition, newValue, oldValue);
+        }
+    }
+
+    /**
+     * Start a batch of property changes. Until the matching {@link #finishFlowPropertyValueChangeBatch()}, {@link BatchFlowPropertyValueChangeListener}s
+     * are not called for each change. Batches can be nested: only the outermost batch is dispatched.
+     */
+    protected void startFlowPropertyValueChangeBatch() {
+        this.flowPropertyValueChangeBatchDepth++;
+    }
+
+    /**
+     * Finish a batch of property changes. If this is the outermost batch, each {@link BatchFlowPropertyValueChangeListener} gets one
+     * {@link BatchFlowPropertyValueChangeListener#propertiesChange(List)} call with all the changes it would have been notified of.
+     */
+    protected void finishFlowPropertyValueChangeBatch() {
+        if ( --this.flowPropertyValueChangeBatchDepth == 0 && this.batchedFlowPropertyValueChanges != null) {
+            Map<BatchFlowPropertyValueChangeListener, List<FlowPropertyValueChange>> batched = this.batchedFlowPropertyValueChanges;
+            // changes made by the batch listeners are dispatched normally.
+            this.batchedFlowPropertyValueChanges = null;
+            for(Map.Entry<BatchFlowPropertyValueChangeListener, List<FlowPropertyValueChange>> entry: batched.entrySet()) {
+                entry.getKey().propertiesChange(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * (namespace, key) has changed: discard the derived values that read it ( see {@link PropertyReadTracker} ).
+     * Stored derived values are removed from the flow values map without notifying listeners so they are recomputed when next read.
+     * @param namespace
+     * @param key
+     */
+    protected void invalidateDerivedProperties(String namespace, String key) {
+        PropertyReadTracker tracker = this.propertyReadTracker;
+        if ( tracker != null ) {
+            // explicitly set so no longer derived.
+            tracker.removeDerived(namespace, key);
+            for(PropertyReadTracker.PropertyKey derived: tracker.invalidate(namespace, key)) {
+                setCached(derived.getNamespace(), derived.getName(), null);
+            }
+        }
+    }
+
+    protected synchronized PropertyReadTracker getPropertyReadTracker() {
+        if ( this.propertyReadTracker == null ) {
+            this.propertyReadTracker = new PropertyReadTracker();
+        }
+        return this.propertyReadTracker;
+    }
+
+    protected FlowPropertyValueChangeListenerRegistry getFlowPropertyValueChangeListenerRegistry() {
+        if ( this.flowPropertyValueChangeListenerRegistry == null ) {
+            this.flowPropertyValueChangeListenerRegistry = new FlowPropertyValueChangeListenerRegistry(getFlowTypeName() == null? FlowPropertyCacheSlots.NONE : getFlow().getCacheSlots(),
+                this.globalFlowPropertyValueChangeListeners);
+        }
+        return this.flowPropertyValueChangeListenerRegistry;
+    }
+
     /**
      * @param key
      * @param value
@@ -1061,11 +1504,13 @@ public class FlowStateImpl implements FlowStateImplementor {
         getFlowValuesMap().put(namespace, key, value);
         // in other way wrong cached value returns in next get request
         setCached(namespace, key, null);
+        referencesChange(key);
     }
     protected void remove(String namespace, String key) {
         getFlowValuesMap().removeFromNamespace(namespace, key);
         // in other way wrong cached value returns in next get request
         setCached(namespace, key, null);
+        referencesChange(key);
     }
 
     /**
@@ -1090,7 +1535,39 @@ public class FlowStateImpl implements FlowStateImplementor {
      */
     @Override
     public List<FlowActivity> getVisibleActivities() {
-        return getFlow().getVisibleActivities();
+        FlowExecutionPlan plan = getFlowExecutionPlan();
+        List<FlowActivityImplementor> activities = getActivities();
+        List<FlowActivity> visibleActivities = new ArrayList<FlowActivity>(plan.getVisibleCount());
+        for (int visibleIndex = 0; visibleIndex < plan.getVisibleCount(); visibleIndex++) {
+            visibleActivities.add(activities.get(plan.getActivityIndex(visibleIndex)));
+        }
+        return visibleActivities;
+    }
+
+    /**
+     * @return the visibility of the activities, computed if the activities or any value changed ( see {@link FlowExecutionPlan} ).
+     */
+    protected FlowExecutionPlan getFlowExecutionPlan() {
+        FlowImplementor flow = getFlow();
+        long modificationCount = getModificationCount();
+        FlowExecutionPlan plan = this.flowExecutionPlan;
+        if ( plan == null || !plan.isFor(flow, modificationCount)) {
+            List<FlowActivityImplementor> activities = flow.getActivities();
+            BitSet visible = new BitSet(activities.size());
+            for (int i = 0; i < activities.size(); i++) {
+                if (!activities.get(i).isInvisible()) {
+                    visible.set(i);
+                }
+            }
+            plan = new FlowExecutionPlan(flow, activities, modificationCount, visible);
+            // not kept if isInvisible() changed a value ( for example, a default was stored ) or if isInvisible() is overridden.
+            if ( modificationCount == getModificationCount() && FlowExecutionPlan.isCacheable(activities)) {
+                this.flowExecutionPlan = plan;
+            } else {
+                this.flowExecutionPlan = null;
+            }
+        }
+        return plan;
     }
 
     /**
@@ -1121,9 +1598,17 @@ public class FlowStateImpl implements FlowStateImplementor {
 
     @Override
     public void clearCache() {
-        if (this.cachedValues != null) {
-            this.cachedValues.clear();
-            this.cachedValues = null;
+        this.cachedValues = null;
+        this.flowExecutionPlan = null;
+        Map<PrefetchKey, Future<?>> prefetched;
+        synchronized (this) {
+            prefetched = this.prefetchedValues;
+            this.prefetchedValues = null;
+        }
+        if ( prefetched != null ) {
+            for(Future<?> future: prefetched.values()) {
+                future.cancel(false);
+            }
         }
     }
 
@@ -1145,44 +1630,75 @@ public class FlowStateImpl implements FlowStateImplementor {
 
     @Override
     public synchronized void setCached(String namespace, String key, Object value) {
-        if (cachedValues == null) {
-            if ( value == null) {
-                // nothing to cache and no cached values.
-                return;
-            }
-            cachedValues = new MultiKeyMap();
+        FlowPropertyValueCache cache = getCachedValues(value != null);
+        if (cache != null && cache.put(namespace, key, value, false)) {
             flowManagement.registerForCacheClearing();
         }
-        if ( value == null ) {
-            cachedValues.remove(namespace, key);
-        } else {
-            cachedValues.put(namespace, key, value);
-        }
     }
 
+    /**
+     * @param create
+     * @return the cache - null if there is no cache and create is false.
+     */
+    private FlowPropertyValueCache getCachedValues(boolean create) {
+        FlowPropertyValueCache cache = cachedValues;
+        if (cache == null && create) {
+            cache = cachedValues = new FlowPropertyValueCache(getFlowTypeName() == null? FlowPropertyCacheSlots.NONE : getFlow().getCacheSlots(),
+                flowManagement.getFlowPropertyValueCachePolicy());
+        }
+        if (cache != null) {
+            // transaction bound values cached by an earlier transaction are misses.
+            cache.setTransactionEpoch(flowManagement.getTransactionEpoch());
+        }
+        return cache;
+    }
 
+    @Override
+    public synchronized long getCachedValuesEstimatedBytes() {
+        return cachedValues == null? 0 : cachedValues.getEstimatedBytes();
+    }
 
     @SuppressWarnings("unchecked")
     @Override
-    public <T> T getCached(String namespace, String key) {
-        if(cachedValues != null) {
-            T value = (T) cachedValues.get(namespace, key);
+    public synchronized <T> T getCached(String namespace, String key) {
+        FlowPropertyValueCache cache = getCachedValues(false);
+        if(cache != null) {
+            T value = (T) cache.get(namespace, key);
             return value;
         } else {
             return null;
         }
     }
 
+    /**
+     * A cache hit for the same definition and flowPropertyProvider does not compute the namespace.
+     * @see org.amplafi.flow.impl.FlowStateImplementor#getCached(org.amplafi.flow.flowproperty.FlowPropertyDefinitionImplementor, org.amplafi.flow.flowproperty.FlowPropertyProvider)
+     */
     @Override
     @SuppressWarnings("unchecked")
-    public <T> T getCached(FlowPropertyDefinitionImplementor flowPropertyDefinition, FlowPropertyProvider flowPropertyProvider) {
-        String namespace = flowPropertyDefinition.getNamespaceKey(this, flowPropertyProvider);
-        return (T) getCached(namespace, flowPropertyDefinition.getName());
+    public synchronized <T> T getCached(FlowPropertyDefinitionImplementor flowPropertyDefinition, FlowPropertyProvider flowPropertyProvider) {
+        FlowPropertyValueCache cache = getCachedValues(false);
+        if(cache == null) {
+            return null;
+        }
+        Object value = cache.get(flowPropertyDefinition, flowPropertyProvider);
+        if ( value == null ) {
+            String namespace = flowPropertyDefinition.getNamespaceKey(this, flowPropertyProvider);
+            value = cache.get(flowPropertyDefinition, flowPropertyProvider, namespace);
+        }
+        return (T) value;
     }
     @Override
-    public void setCached(FlowPropertyDefinitionImplementor flowPropertyDefinition, FlowPropertyProvider flowPropertyProvider, Object value) {
-        String namespace = flowPropertyDefinition.getNamespaceKey(this, flowPropertyProvider);
-        setCached(namespace, flowPropertyDefinition.getName(), value);
+    public synchronized void setCached(FlowPropertyDefinitionImplementor flowPropertyDefinition, FlowPropertyProvider flowPropertyProvider, Object value) {
+        FlowPropertyValueCache cache = getCachedValues(value != null);
+        if (cache != null) {
+            String namespace = flowPropertyDefinition.getNamespaceKey(this, flowPropertyProvider);
+            // can be deserialized again if evicted.
+            boolean reloadable = !flowPropertyDefinition.isCacheOnly() && getFlowValuesMap().get(namespace, flowPropertyDefinition.getName()) != null;
+            if ( cache.put(flowPropertyDefinition, flowPropertyProvider, namespace, value, reloadable)) {
+                flowManagement.registerForCacheClearing();
+            }
+        }
     }
 
     @Override
@@ -1199,8 +1715,39 @@ public class FlowStateImpl implements FlowStateImplementor {
     }
 
     public void setFlowTypeName(String flowTypeName) {
+        String previousFlowTypeName = this.flowTypeName;
         this.flowTypeName = flowTypeName;
         this.flow = null;
+        this.namespaceKeySearchPlans = null;
+        // cache slots are assigned per flow definition.
+        this.cachedValues = null;
+        this.flowPropertyValueChangeListenerRegistry = null;
+        this.propertyReadTracker = null;
+        this.flowExecutionPlan = null;
+        if ( previousFlowTypeName != null && !previousFlowTypeName.equals(flowTypeName) && getFlowManagement() != null) {
+            getFlowManagement().flowTypeChange(this, previousFlowTypeName);
+        }
+    }
+
+    /**
+     * The namespaces of a property only depend on the flow and the {@link FlowPropertyProvider}, so the search plan is computed once
+     * per flow ( until the flow is morphed ) rather than on each initialization / export.
+     * @param flowPropertyDefinition
+     * @param flowPropertyProvider
+     * @param forceAll
+     * @return the cached search plan.
+     */
+    protected NamespaceKeySearchPlan getNamespaceKeySearchPlan(FlowPropertyDefinitionImplementor flowPropertyDefinition, FlowPropertyProvider flowPropertyProvider, boolean forceAll) {
+        if ( this.namespaceKeySearchPlans == null ) {
+            this.namespaceKeySearchPlans = new HashMap<NamespaceKeySearchPlanKey, NamespaceKeySearchPlan>();
+        }
+        NamespaceKeySearchPlanKey key = new NamespaceKeySearchPlanKey(flowPropertyDefinition, flowPropertyProvider, forceAll);
+        NamespaceKeySearchPlan plan = this.namespaceKeySearchPlans.get(key);
+        if ( plan == null || !plan.isCurrent(flowPropertyDefinition)) {
+            plan = NamespaceKeySearchPlan.create(flowPropertyDefinition, this, flowPropertyProvider, forceAll);
+            this.namespaceKeySearchPlans.put(key, plan);
+        }
+        return plan;
     }
 
     /**
@@ -1273,13 +1820,7 @@ public class FlowStateImpl implements FlowStateImplementor {
         if (!hasNext()) {
             return false;
         }
-        int count = getActivities().size();
-        for (int i = getCurrentActivityIndex() + 1; i < count; i++) {
-            if (!getActivity(i).isInvisible()) {
-                return true;
-            }
-        }
-        return false;
+        return getFlowExecutionPlan().getNextVisible(getCurrentActivityIndex()) >= 0;
     }
 
     /**
@@ -1290,12 +1831,7 @@ public class FlowStateImpl implements FlowStateImplementor {
         if (!hasPrevious()) {
             return false;
         }
-        for (int i = getCurrentActivityIndex() - 1; i >= 0; i--) {
-            if (!getActivity(i).isInvisible()) {
-                return true;
-            }
-        }
-        return false;
+        return getFlowExecutionPlan().getPreviousVisible(getCurrentActivityIndex()) >= 0;
     }
 
     /**
@@ -1599,11 +2135,39 @@ public class FlowStateImpl implements FlowStateImplementor {
      * @see org.amplafi.flow.FlowState#setAllProperties(java.util.Map)
      */
     @Override
+    @SuppressWarnings("unchecked")
     public void setAllProperties(Map<?, ?> exportedMap) {
-        for(Map.Entry<String, ?>entry : NotNullIterator.<Map.Entry<String, ?>>newNotNullIterator(exportedMap)) {
-            Object value = entry.getValue();
-            String key = entry.getKey();
-            setProperty(key, value);
+        setProperties((Map<String, ?>)exportedMap);
+    }
+
+    /**
+     * @see org.amplafi.flow.impl.FlowStateImplementor#setProperties(java.util.Map)
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public void setProperties(Map<String, ?> values) {
+        if ( isNotEmpty(values)) {
+            startFlowPropertyValueChangeBatch();
+            try {
+                // resolve ( and create ) all the definitions before any value is set.
+                // when active, the current activity resolves the definitions ( activity local properties ).
+                FlowActivity currentActivity = isActive()? getCurrentActivity() : null;
+                for(Map.Entry<String, ?>entry : NotNullIterator.<Map.Entry<String, ?>>newNotNullIterator(values)) {
+                    Object value = entry.getValue();
+                    if ( currentActivity == null ) {
+                        Class<Object> expected = (Class<Object>) (value == null?null:value.getClass());
+                        getFlowPropertyDefinitionWithCreate(entry.getKey(), expected, value);
+                    } else if ( currentActivity instanceof FlowActivityImpl ) {
+                        ((FlowActivityImpl)currentActivity).getFlowPropertyDefinitionWithCreate(entry.getKey(), null, value);
+                    }
+                }
+                // through setProperty() so that subclasses that override it see every value.
+                for(Map.Entry<String, ?>entry : NotNullIterator.<Map.Entry<String, ?>>newNotNullIterator(values)) {
+                    setProperty(entry.getKey(), entry.getValue());
+                }
+            } finally {
+                finishFlowPropertyValueChangeBatch();
+            }
         }
     }
 
@@ -1660,19 +2224,350 @@ public class FlowStateImpl implements FlowStateImplementor {
     }
 
     /**
+     * Synchronized with {@link #passivateValues(FlowStatePassivationStore, long)} so that values are never created over passivated values.
      * @see org.amplafi.flow.FlowState#getFlowValuesMap()
      */
     @Override
-    public FlowValuesMap getFlowValuesMap() {
+    public synchronized FlowValuesMap getFlowValuesMap() {
+        this.lastAccessTime = System.currentTimeMillis();
+        if (this.passivationStore != null) {
+            rehydrateValues();
+        }
         if (this.flowValuesMap == null) {
-            this.flowValuesMap = new DefaultFlowValuesMap();
+            this.flowValuesMap = recordChanges(createFlowValuesMap(null));
         }
         return this.flowValuesMap;
     }
 
+    /**
+     * Method to allow overriding. For example, FlowStates that are accessed by parallel requests should use a {@link ConcurrentFlowValuesMap}.
+     * Flows that spawn many sub-flows or have large states should use a {@link PersistentFlowValuesMap} so that exporting values is O(1).
+     * @param initialFlowState may be null. If initialFlowState is a FlowValuesMap ( for example the exported values of another FlowState )
+     * then a {@link FlowValuesMap#copy()} is used. This preserves the namespaces and shares structure if the implementation supports it.
+     * Exported values are fully exported first so that this FlowState owns a plain map rather than a view on the exporting FlowState's values.
+     * @return the FlowValuesMap that will hold this FlowState's values.
+     */
+    protected FlowValuesMap createFlowValuesMap(Map<String, String> initialFlowState) {
+        // ExportedFlowValuesMap is not a Map<String, String>.
+        Object initial = initialFlowState;
+        if ( initial instanceof ExportedFlowValuesMap) {
+            return ((ExportedFlowValuesMap)initial).materializedCopy();
+        } else if ( initialFlowState instanceof FlowValuesMap) {
+            return ((FlowValuesMap)initialFlowState).copy();
+        } else {
+            return new DefaultFlowValuesMap(initialFlowState);
+        }
+    }
+
+    /**
+     * Used to select a different {@link FlowValuesMap} implementation ( {@link DefaultFlowValuesMap}, {@link PartitionedFlowValuesMap}, {@link ConcurrentFlowValuesMap},
+     * {@link PersistentFlowValuesMap} ).
+     * To switch implementations while preserving the current values: setFlowValuesMap(new ConcurrentFlowValuesMap(getFlowValuesMap())).
+     * @see org.amplafi.flow.impl.FlowStateImplementor#setFlowValuesMap(org.amplafi.flow.FlowValuesMap)
+     */
     @Override
     public void setFlowValuesMap(FlowValuesMap flowValuesMap) {
-        this.flowValuesMap = flowValuesMap;
+        synchronized (this) {
+            if (this.passivationStore != null) {
+                // the passivated values are replaced.
+                this.passivationStore.remove(lookupKey);
+                this.passivationStore = null;
+            }
+            // replacing the values is a change.
+            this.retiredModificationCount += (this.flowValuesMap == null? 0 : this.flowValuesMap.getModificationCount()) + 1;
+            this.flowValuesMap = recordChanges(flowValuesMap);
+        }
+        this.lastAccessTime = System.currentTimeMillis();
+        referencesChange(null);
+    }
+
+    /**
+     * @see org.amplafi.flow.impl.FlowStateImplementor#drainChanges()
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public List<FlowValuesMapChange> drainChanges() {
+        List<FlowValuesMapChange> changes;
+        synchronized (this) {
+            this.changesDrained = true;
+            changes = this.passivatedChanges;
+            this.passivatedChanges = null;
+            if (this.passivationStore != null) {
+                // no need to rehydrate: nothing changed since the values were passivated.
+                return changes == null? new ArrayList<FlowValuesMapChange>() : changes;
+            }
+        }
+        List<FlowValuesMapChange> drained = getFlowValuesMap().drainChanges();
+        if (changes == null) {
+            return drained;
+        } else {
+            // passivated changes happened first.
+            changes.addAll(drained);
+            return changes;
+        }
+    }
+
+    /**
+     * Serializes the {@link FlowValuesMap} ( in the same form as {@link #writeExternal(ObjectOutput)} ) to store and releases everything that can be
+     * recreated: the values, the {@link FlowImplementor} instance and the caches. Only the lookupKey, flow type, activity position and lifecycle stay on the heap.
+     * The values are rehydrated by the next {@link #getFlowValuesMap()}, the Flow instance by the next {@link #getFlow()}.
+     *
+     * Fields that only a FlowActivity instance holds ( and not as a property ) revert to the definition's values, the same as after deserialization.
+     * @see org.amplafi.flow.impl.FlowStateImplementor#passivateValues(org.amplafi.flow.impl.FlowStatePassivationStore, long)
+     */
+    @Override
+    public synchronized boolean passivateValues(FlowStatePassivationStore store, long idleSince) {
+        // lastAccessTime is checked again now that no other thread can get the values.
+        if (this.passivationStore != null || this.flowValuesMap == null || this.flowPropertyValueChangeBatchDepth > 0 || this.lastAccessTime > idleSince) {
+            return false;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            writeFlowValuesMap(out, this.flowValuesMap);
+            out.close();
+        } catch (IOException e) {
+            // values that cannot be serialized stay on the heap.
+            warn(this.lookupKey + ": cannot passivate values " + e);
+            return false;
+        }
+        try {
+            store.put(this.lookupKey, bytes.toByteArray());
+        } catch (RuntimeException e) {
+            // for example, the store is full: the values stay on the heap.
+            warn(this.lookupKey + ": cannot passivate values to " + store + " " + e);
+            return false;
+        }
+        List<FlowValuesMapChange> changes = this.flowValuesMap.drainChanges();
+        if (!changes.isEmpty()) {
+            if (this.passivatedChanges == null) {
+                this.passivatedChanges = changes;
+            } else {
+                this.passivatedChanges.addAll(changes);
+            }
+        }
+        this.passivationStore = store;
+        this.retiredModificationCount += this.flowValuesMap.getModificationCount();
+        this.flowValuesMap = null;
+        clearCache();
+        this.flow = null;
+        this.namespaceKeySearchPlans = null;
+        this.flowPropertyValueChangeListenerRegistry = null;
+        this.propertyReadTracker = null;
+        return true;
+    }
+
+    /**
+     * @see org.amplafi.flow.impl.FlowStateImplementor#isValuesPassivated()
+     */
+    @Override
+    public boolean isValuesPassivated() {
+        return this.passivationStore != null;
+    }
+
+    /**
+     * @return changes whenever a value changes ( including the FlowValuesMap being replaced or passivated ).
+     */
+    private long getModificationCount() {
+        FlowValuesMap values = this.flowValuesMap;
+        return this.retiredModificationCount + (values == null? 0 : values.getModificationCount());
+    }
+
+    /**
+     * Passivated values are not rehydrated: they have not changed since they were passivated.
+     * @see org.amplafi.flow.impl.FlowStateImplementor#getChangeMarker()
+     */
+    @Override
+    public synchronized Object getChangeMarker() {
+        return Arrays.asList(getModificationCount(), activeFlowLabel, flowTypeName, currentActivityByName, currentActivityIndex, flowStateLifecycle);
+    }
+
+    /**
+     * @see org.amplafi.flow.impl.FlowStateImplementor#getSavedChangeMarker()
+     */
+    @Override
+    public Object getSavedChangeMarker() {
+        return this.savedChangeMarker;
+    }
+
+    /**
+     * @see org.amplafi.flow.impl.FlowStateImplementor#setSavedChangeMarker(java.lang.Object)
+     */
+    @Override
+    public void setSavedChangeMarker(Object savedChangeMarker) {
+        this.savedChangeMarker = savedChangeMarker;
+    }
+
+    /**
+     * @see org.amplafi.flow.impl.FlowStateImplementor#getRepositoryVersion()
+     */
+    @Override
+    public long getRepositoryVersion() {
+        return this.repositoryVersion;
+    }
+
+    /**
+     * @see org.amplafi.flow.impl.FlowStateImplementor#setRepositoryVersion(long)
+     */
+    @Override
+    public void setRepositoryVersion(long repositoryVersion) {
+        this.repositoryVersion = repositoryVersion;
+    }
+
+    /**
+     * @see org.amplafi.flow.impl.FlowStateImplementor#getLastAccessTime()
+     */
+    @Override
+    public long getLastAccessTime() {
+        return this.lastAccessTime;
+    }
+
+    /**
+     * @param newFlowValuesMap about to become this FlowState's values.
+     * @return newFlowValuesMap, recording changes if {@link #drainChanges()} has been called.
+     */
+    private FlowValuesMap recordChanges(FlowValuesMap newFlowValuesMap) {
+        if (this.changesDrained && newFlowValuesMap != null) {
+            // values already in the map are not changes.
+            newFlowValuesMap.drainChanges();
+        }
+        return newFlowValuesMap;
+    }
+
+    private synchronized void rehydrateValues() {
+        FlowStatePassivationStore store = this.passivationStore;
+        if (store == null) {
+            // another thread rehydrated.
+            return;
+        }
+        byte[] serialized = store.remove(this.lookupKey);
+        if (serialized == null) {
+            throw new IllegalStateException(this.lookupKey + ": passivated values not found in " + store);
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+            this.flowValuesMap = recordChanges(readFlowValuesMap(in));
+        } catch (IOException e) {
+            throw new IllegalStateException(this.lookupKey + ": cannot rehydrate passivated values", e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(this.lookupKey + ": cannot rehydrate passivated values", e);
+        }
+        this.passivationStore = null;
+    }
+
+    private static List<FlowPropertyValueChangeListener> newGlobalFlowPropertyValueChangeListeners() {
+        return new ArrayList<FlowPropertyValueChangeListener>(Arrays.asList(new InvalidatingFlowPropertyValueChangeListener()));
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put(COMPACT_FIELD, true);
+        // the InvalidatingFlowPropertyValueChangeListener is not Serializable ( it holds FlowPropertyDefinitions ): readObject() recreates it.
+        List<FlowPropertyValueChangeListener> listeners = new ArrayList<FlowPropertyValueChangeListener>();
+        for(FlowPropertyValueChangeListener listener: globalFlowPropertyValueChangeListeners) {
+            if ( !(listener instanceof InvalidatingFlowPropertyValueChangeListener)) {
+                listeners.add(listener);
+            }
+        }
+        fields.put(LISTENERS_FIELD, listeners);
+        out.writeFields();
+        writeCompact(out);
+    }
+
+    /**
+     * Does not notify the FlowManagement's lifecycle listeners: restoring is not a lifecycle change.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.lastAccessTime = System.currentTimeMillis();
+        this.globalFlowPropertyValueChangeListeners = newGlobalFlowPropertyValueChangeListeners();
+        List<FlowPropertyValueChangeListener> listeners = (List<FlowPropertyValueChangeListener>) fields.get(LISTENERS_FIELD, null);
+        if ( listeners != null ) {
+            for(FlowPropertyValueChangeListener listener: listeners) {
+                if ( !(listener instanceof InvalidatingFlowPropertyValueChangeListener)) {
+                    this.globalFlowPropertyValueChangeListeners.add(listener);
+                }
+            }
+        }
+        if ( fields.get(COMPACT_FIELD, false)) {
+            readCompact(in);
+        } else {
+            // written before the compact form.
+            activeFlowLabel = (String) fields.get("activeFlowLabel", null);
+            lookupKey = (String) fields.get("lookupKey", null);
+            flowValuesMap = (FlowValuesMap) fields.get("flowValuesMap", null);
+            flowTypeName = (String) fields.get("flowTypeName", null);
+            currentActivityIndex = (Integer) fields.get("currentActivityIndex", null);
+            currentActivityByName = (String) fields.get("currentActivityByName", null);
+            flowStateLifecycle = (FlowStateLifecycle) fields.get("flowStateLifecycle", null);
+        }
+    }
+
+    /**
+     * Version 1 layout: version byte, activeFlowLabel, lookupKey, flowTypeName, currentActivityByName,
+     * currentActivityIndex ( varint of index + 2, 0 == null, 1 == -1 ), flowStateLifecycle name, then the flowValuesMap: a marker byte followed by
+     * the {@link DefaultFlowValuesMap} externalized inline or any other {@link FlowValuesMap} implementation as an object.
+     * The transient fields ( flow, flowManagement, cachedValues ) are not written and the value change listeners are serialized fields.
+     * Passivated values are rehydrated first.
+     */
+    private void writeCompact(ObjectOutput out) throws IOException {
+        out.writeByte(EXTERNAL_VERSION);
+        ExternalizationUtils.writeString(out, activeFlowLabel);
+        ExternalizationUtils.writeString(out, lookupKey);
+        ExternalizationUtils.writeString(out, flowTypeName);
+        ExternalizationUtils.writeString(out, currentActivityByName);
+        ExternalizationUtils.writeVarInt(out, currentActivityIndex == null ? 0 : Math.max(currentActivityIndex, -1) + 2);
+        ExternalizationUtils.writeString(out, flowStateLifecycle == null? null: flowStateLifecycle.name());
+        if ( this.passivationStore != null ) {
+            rehydrateValues();
+        }
+        writeFlowValuesMap(out, flowValuesMap);
+    }
+
+    private static void writeFlowValuesMap(ObjectOutput out, FlowValuesMap flowValuesMap) throws IOException {
+        if ( flowValuesMap == null ) {
+            out.writeByte(NO_FLOW_VALUES_MAP);
+        } else if ( flowValuesMap.getClass() == DefaultFlowValuesMap.class) {
+            out.writeByte(DEFAULT_FLOW_VALUES_MAP);
+            ((DefaultFlowValuesMap)flowValuesMap).writeCompact(out);
+        } else {
+            out.writeByte(OTHER_FLOW_VALUES_MAP);
+            out.writeObject(flowValuesMap);
+        }
+    }
+
+    private void readCompact(ObjectInput in) throws IOException, ClassNotFoundException {
+        ExternalizationUtils.readVersion(in, FlowStateImpl.class, EXTERNAL_VERSION);
+        activeFlowLabel = ExternalizationUtils.readString(in);
+        lookupKey = ExternalizationUtils.readString(in);
+        flowTypeName = ExternalizationUtils.readString(in);
+        currentActivityByName = ExternalizationUtils.readString(in);
+        int index = ExternalizationUtils.readVarInt(in);
+        currentActivityIndex = index == 0? null: Integer.valueOf(index - 2);
+        String lifecycle = ExternalizationUtils.readString(in);
+        try {
+            flowStateLifecycle = lifecycle == null? null : FlowStateLifecycle.valueOf(lifecycle);
+        } catch(IllegalArgumentException e) {
+            throw new IOException("unknown FlowStateLifecycle "+lifecycle, e);
+        }
+        flowValuesMap = readFlowValuesMap(in);
+    }
+
+    private static FlowValuesMap readFlowValuesMap(ObjectInput in) throws IOException, ClassNotFoundException {
+        int mapMarker = in.readUnsignedByte();
+        switch(mapMarker) {
+        case NO_FLOW_VALUES_MAP:
+            return null;
+        case DEFAULT_FLOW_VALUES_MAP:
+            DefaultFlowValuesMap defaultFlowValuesMap = new DefaultFlowValuesMap();
+            defaultFlowValuesMap.readCompact(in);
+            return defaultFlowValuesMap;
+        case OTHER_FLOW_VALUES_MAP:
+            return (FlowValuesMap) in.readObject();
+        default:
+            throw new IOException("unknown FlowValuesMap marker "+mapMarker);
+        }
     }
 
     public Log getLog() {
@@ -1692,6 +2587,13 @@ public class FlowStateImpl implements FlowStateImplementor {
     public String getRawProperty(FlowPropertyProvider flowPropertyProvider, FlowPropertyDefinition propertyDefinition) {
         String key = propertyDefinition.getName();
         String namespace = ((FlowPropertyDefinitionImplementor)propertyDefinition).getNamespaceKey(this, flowPropertyProvider);
+        PropertyReadTracker tracker = this.propertyReadTracker;
+        if ( tracker != null && tracker.isTracking()) {
+            tracker.recordRead(namespace, key);
+            if ( propertyDefinition.getPropertyUsage().isExternallySettable()) {
+                tracker.recordRead(NamespaceMapKey.NO_NAMESPACE, key);
+            }
+        }
         String value;
         if ( getFlowValuesMap().containsKey(namespace, key)) {
             // A flow may set a value to null that is *not* copied out to the global namespace (yet or depending on PropertyUsage never)
@@ -1744,7 +2646,7 @@ public class FlowStateImpl implements FlowStateImplementor {
 
     @Override
     public String toString() {
-        return this.lookupKey + " [type:" + this.flowTypeName + "]; current Activity="+this.getCurrentActivity()+"; flowStateMap="+this.flowValuesMap;
+        return this.lookupKey + " [type:" + this.flowTypeName + "]; current Activity="+this.getCurrentActivity()+"; flowStateMap="+(this.passivationStore != null? "passivated": this.flowValuesMap);
     }
 
     @Override
@@ -1818,4 +2720,32 @@ public class FlowStateImpl implements FlowStateImplementor {
             return flowStepDirection;
         }
     }
+
+    /**
+     * Identity based: definitions and providers have value based equals() that are too expensive ( and too loose ) for this cache.
+     */
+    private static final class NamespaceKeySearchPlanKey {
+        private final FlowPropertyDefinitionImplementor flowPropertyDefinition;
+        private final FlowPropertyProvider flowPropertyProvider;
+        private final boolean forceAll;
+        private final int hashCode;
+        NamespaceKeySearchPlanKey(FlowPropertyDefinitionImplementor flowPropertyDefinition, FlowPropertyProvider flowPropertyProvider, boolean forceAll) {
+            this.flowPropertyDefinition = flowPropertyDefinition;
+            this.flowPropertyProvider = flowPropertyProvider;
+            this.forceAll = forceAll;
+            this.hashCode = (31 * System.identityHashCode(flowPropertyDefinition) + System.identityHashCode(flowPropertyProvider)) * 2 + (forceAll?1:0);
+        }
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if ( !(o instanceof NamespaceKeySearchPlanKey)) {
+                return false;
+            }
+            NamespaceKeySearchPlanKey other = (NamespaceKeySearchPlanKey) o;
+            return flowPropertyDefinition == other.flowPropertyDefinition && flowPropertyProvider == other.flowPropertyProvider && forceAll == other.forceAll;
+        }
+    }
 }
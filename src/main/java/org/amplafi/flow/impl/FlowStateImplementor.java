@@ -13,7 +13,9 @@
  */
 package org.amplafi.flow.impl;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.amplafi.flow.FlowActivity;
 import org.amplafi.flow.FlowManagement;
@@ -21,7 +23,9 @@ import org.amplafi.flow.FlowPropertyDefinition;
 import org.amplafi.flow.FlowState;
 import org.amplafi.flow.FlowStateLifecycle;
 import org.amplafi.flow.FlowValuesMap;
+import org.amplafi.flow.FlowValuesMapChange;
 import org.amplafi.flow.flowproperty.FlowPropertyDefinitionImplementor;
+import org.amplafi.flow.flowproperty.FlowPropertyDependencyGraph;
 import org.amplafi.flow.flowproperty.FlowPropertyProvider;
 
 /**
@@ -44,6 +48,32 @@ public interface FlowStateImplementor extends FlowState {
 
     void initializeFlowProperties(FlowPropertyProvider flowPropertyProvider, Iterable<FlowPropertyDefinitionImplementor> flowPropertyDefinitions);
 
+    /**
+     * Start computing the values of the auto-created properties whose {@link org.amplafi.flow.FlowPropertyValueProvider} is a
+     * {@link org.amplafi.flow.flowproperty.SideEffectFreeFlowPropertyValueProvider} on {@link FlowManagement#getFlowPropertyPrefetchExecutor()}.
+     * Other providers could use this FlowState while the request thread does so they are only called when the value is needed. Properties that
+     * already have a value are skipped.
+     * {@link #getPropertyWithDefinition(FlowPropertyProvider, FlowPropertyDefinitionImplementor)} waits for the computed value.
+     * @param flowPropertyProvider
+     * @param flowPropertyDefinitions
+     */
+    void prefetchFlowProperties(FlowPropertyProvider flowPropertyProvider, Iterable<FlowPropertyDefinitionImplementor> flowPropertyDefinitions);
+
+    /**
+     * @return {@link org.amplafi.flow.flowproperty.FlowPropertyValueCachePolicy#estimateBytes(Object)} total of the cached property values.
+     */
+    long getCachedValuesEstimatedBytes();
+
+    /**
+     * Compute the auto-created properties in flowPropertyDependencyGraph that do not have a value. Properties in the same level
+     * ( see {@link FlowPropertyDependencyGraph#getLevels()} ) are computed in parallel; each level is stored before the next level is computed.
+     * Only {@link org.amplafi.flow.flowproperty.SideEffectFreeFlowPropertyValueProvider}s are called on other threads and all the values are stored
+     * on the calling thread.
+     * @param flowPropertyProvider
+     * @param flowPropertyDependencyGraph
+     */
+    void evaluateFlowProperties(FlowPropertyProvider flowPropertyProvider, FlowPropertyDependencyGraph flowPropertyDependencyGraph);
+
     /**
      * get FlowActivity by position. It is preferred to use {@link #getActivity(String)}
      *
@@ -89,6 +119,13 @@ public interface FlowStateImplementor extends FlowState {
 
     void setFlowValuesMap(FlowValuesMap flowValuesMap);
 
+    /**
+     * Changes are reported to {@link FlowManagement#referencesChange(FlowStateImplementor)}.
+     * @return the lookupKeys of the other FlowStates this FlowState references ( {@link org.amplafi.flow.FlowConstants#FSCONTINUE_WITH_FLOW},
+     * {@link org.amplafi.flow.FlowConstants#FSRETURN_TO_FLOW} ). Never null.
+     */
+    Set<String> getReferencedLookupKeys();
+
     /**
      * @param <T>
      * @param flowPropertyDefinition
@@ -104,4 +141,60 @@ public interface FlowStateImplementor extends FlowState {
      * @param trustedValues
      */
     void copyTrustedValuesMapToFlowState(Map<String, String> trustedValues);
+
+    /**
+     * Set many properties as one batch: the definitions are resolved before any value is set and
+     * {@link org.amplafi.flow.flowproperty.BatchFlowPropertyValueChangeListener}s are notified once after all the values are set.
+     * Otherwise the same as calling {@link #setProperty(String, Object)} for each entry.
+     * @param values property name -> value
+     */
+    void setProperties(Map<String, ?> values);
+
+    /**
+     * Used by persisters and session replicators to write only what changed ( for example, at the end of a request ).
+     * @return the net changes to the {@link FlowValuesMap} since the last call. The changes are then discarded.
+     * @see FlowValuesMap#drainChanges()
+     */
+    List<FlowValuesMapChange> drainChanges();
+
+    /**
+     * Unlike {@link #drainChanges()} nothing is consumed, so the changes are still available to other consumers.
+     * @return equal to an earlier result only if neither the values nor the fields outside of the {@link FlowValuesMap} ( flow type, current activity,
+     * lifecycle, label ) changed in between.
+     */
+    Object getChangeMarker();
+
+    /**
+     * @return the {@link #getChangeMarker()} of the version last loaded from or saved to the {@link FlowStateRepository}. null if none.
+     */
+    Object getSavedChangeMarker();
+
+    void setSavedChangeMarker(Object savedChangeMarker);
+
+    /**
+     * @return the version in the {@link FlowStateRepository} this FlowState was last loaded from or saved as. 0 if never saved.
+     */
+    long getRepositoryVersion();
+
+    void setRepositoryVersion(long repositoryVersion);
+
+    /**
+     * Move the values off the heap and release what can be recreated. The FlowState itself ( identity, position in the session ) is unchanged and
+     * the values are rehydrated transparently when next accessed. Only for FlowStates that are not in use: see {@link BaseFlowManagement#passivateIdleFlowStates()}.
+     * @param store
+     * @param idleSince only passivate if the values have not been accessed after this time ( see {@link #getLastAccessTime()} ).
+     * @return true if the values were passivated. false if already passivated, accessed since idleSince, there are no values or they could not be
+     * serialized or stored.
+     */
+    boolean passivateValues(FlowStatePassivationStore store, long idleSince);
+
+    /**
+     * @return true if the values are in a {@link FlowStatePassivationStore}.
+     */
+    boolean isValuesPassivated();
+
+    /**
+     * @return System.currentTimeMillis() when the values were last accessed.
+     */
+    long getLastAccessTime();
 }
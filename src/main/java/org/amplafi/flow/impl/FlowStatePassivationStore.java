@@ -0,0 +1,44 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+/**
+ * Holds the serialized values of passivated FlowStates ( see {@link FlowStateImplementor#passivateValues(FlowStatePassivationStore, long)} ) so that
+ * idle FlowStates do not keep their {@link org.amplafi.flow.FlowValuesMap} on the heap.
+ *
+ * A store may be shared between sessions: FlowState lookup keys are unique. Implementations must be thread-safe.
+ * @author patmoore
+ *
+ */
+public interface FlowStatePassivationStore {
+
+    /**
+     * @param lookupKey of the passivated FlowState
+     * @param serialized the FlowState's values. The store may keep the array.
+     * @throws RuntimeException ( for example IllegalStateException ) if the values cannot be stored. The FlowState keeps its values on the heap.
+     */
+    void put(String lookupKey, byte[] serialized);
+
+    /**
+     * The values are removed because they are about to be rehydrated ( or discarded ).
+     * @param lookupKey
+     * @return the bytes passed to {@link #put(String, byte[])} or null if there are none.
+     */
+    byte[] remove(String lookupKey);
+
+    /**
+     * @return approximate space used by the stored values.
+     */
+    long getStoredBytes();
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.util.List;
+
+/**
+ * Stores FlowStates outside of the session so that any node can continue a flow by its lookupKey ( see {@link BaseFlowManagement#getFlowState(String)} )
+ * without sticky sessions or session replication.
+ *
+ * Updates use optimistic versioning: a FlowState is saved or deleted only if the stored version is the version the caller last loaded or saved.
+ * Versions start at 1, 0 means not stored. Implementations must be thread-safe.
+ * @author patmoore
+ *
+ */
+public interface FlowStateRepository {
+
+    /**
+     * @param lookupKey
+     * @return null if there is no such FlowState.
+     */
+    FlowStateRepositoryEntry load(String lookupKey);
+
+    /**
+     * Cheaper than {@link #load(String)} when only the version is needed ( to see if an in-memory FlowState is stale ).
+     * @param lookupKey
+     * @return the stored version, 0 if there is no such FlowState.
+     */
+    long getVersion(String lookupKey);
+
+    /**
+     * @param sessionId the session the FlowState belongs to.
+     * @param lookupKey
+     * @param expectedVersion the version last loaded or saved. 0 for a FlowState that has not been saved.
+     * @param serialized the externalized FlowState. The repository may keep the array.
+     * @return the new version.
+     * @throws StaleFlowStateException if the stored version is not expectedVersion.
+     */
+    long save(String sessionId, String lookupKey, long expectedVersion, byte[] serialized) throws StaleFlowStateException;
+
+    /**
+     * @param lookupKey
+     * @param expectedVersion
+     * @return false if there is no such FlowState or the stored version is not expectedVersion.
+     */
+    boolean delete(String lookupKey, long expectedVersion);
+
+    /**
+     * @param sessionId
+     * @return the lookupKeys of the session's FlowStates, in the order they were first saved.
+     */
+    List<String> listBySession(String sessionId);
+}
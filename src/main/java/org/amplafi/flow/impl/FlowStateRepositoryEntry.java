@@ -0,0 +1,64 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+/**
+ * A FlowState as stored in a {@link FlowStateRepository}.
+ * @author patmoore
+ *
+ */
+public class FlowStateRepositoryEntry {
+
+    private final String sessionId;
+
+    private final String lookupKey;
+
+    private final long version;
+
+    private final byte[] serialized;
+
+    public FlowStateRepositoryEntry(String sessionId, String lookupKey, long version, byte[] serialized) {
+        this.sessionId = sessionId;
+        this.lookupKey = lookupKey;
+        this.version = version;
+        this.serialized = serialized;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public String getLookupKey() {
+        return lookupKey;
+    }
+
+    /**
+     * @return version, starting at 1.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the externalized FlowState. Not copied: do not modify.
+     */
+    public byte[] getSerialized() {
+        return serialized;
+    }
+
+    @Override
+    public String toString() {
+        return lookupKey + " [session:" + sessionId + "; version=" + version + "; bytes=" + serialized.length + "]";
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.amplafi.flow.FlowValuesMap;
+import org.amplafi.flow.FlowValuesMapChange;
+
+/**
+ * Used by {@link FlowValuesMap} implementations to record the changes between calls to {@link FlowValuesMap#drainChanges()}.
+ *
+ * Changes are combined by (namespace, key) so the log never holds more entries than the number of distinct keys changed.
+ * Maps only create a log once {@link FlowValuesMap#drainChanges()} is first called, so maps that nobody drains do not record anything.
+ * @author patmoore
+ *
+ */
+public class FlowValuesMapChangeLog {
+
+    private final Map<DefaultFlowValuesMapKey, FlowValuesMapChange> changes = new LinkedHashMap<DefaultFlowValuesMapKey, FlowValuesMapChange>();
+
+    /**
+     *
+     * @param namespace already normalized namespace
+     * @param key
+     * @param oldValue
+     * @param newValue
+     * @param previouslyPresent
+     * @param removed
+     */
+    public void record(String namespace, String key, String oldValue, String newValue, boolean previouslyPresent, boolean removed) {
+        record(new DefaultFlowValuesMapKey(namespace, key), oldValue, newValue, previouslyPresent, removed);
+    }
+
+    /**
+     *
+     * @param changeKey not changed after this call ( for example, a pooled key ).
+     * @param oldValue
+     * @param newValue
+     * @param previouslyPresent
+     * @param removed
+     */
+    public synchronized void record(DefaultFlowValuesMapKey changeKey, String oldValue, String newValue, boolean previouslyPresent, boolean removed) {
+        FlowValuesMapChange change = new FlowValuesMapChange(changeKey.getNamespace(), changeKey.getKey(), oldValue, newValue, previouslyPresent, removed);
+        FlowValuesMapChange existing = changes.get(changeKey);
+        if ( existing != null ) {
+            change = existing.combine(change);
+        } else if ( change.isNoChange()) {
+            change = null;
+        }
+        if ( change == null ) {
+            changes.remove(changeKey);
+        } else {
+            changes.put(changeKey, change);
+        }
+    }
+
+    /**
+     * @return the changes in the order the keys were first changed. The log is empty afterwards.
+     */
+    public synchronized List<FlowValuesMapChange> drain() {
+        List<FlowValuesMapChange> drained = new ArrayList<FlowValuesMapChange>(changes.values());
+        changes.clear();
+        return drained;
+    }
+
+    public synchronized boolean isEmpty() {
+        return changes.isEmpty();
+    }
+}
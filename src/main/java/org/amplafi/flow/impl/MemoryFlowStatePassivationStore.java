@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps the passivated values on the heap, deflated. Serialized values are mostly repetitive strings ( namespaces, property names ) so
+ * this usually keeps a fraction of the size of the live {@link org.amplafi.flow.FlowValuesMap}.
+ * @author patmoore
+ *
+ */
+public class MemoryFlowStatePassivationStore implements FlowStatePassivationStore {
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    private final int level;
+
+    public MemoryFlowStatePassivationStore() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level {@link Deflater} compression level
+     */
+    public MemoryFlowStatePassivationStore(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public void put(String lookupKey, byte[] serialized) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(serialized);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, serialized.length / 4));
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            Entry entry = new Entry(serialized.length, out.toByteArray());
+            storedBytes.addAndGet(entry.compressed.length);
+            Entry previous = entries.put(lookupKey, entry);
+            if ( previous != null ) {
+                storedBytes.addAndGet(-previous.compressed.length);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] remove(String lookupKey) {
+        Entry entry = entries.remove(lookupKey);
+        if ( entry == null ) {
+            return null;
+        }
+        storedBytes.addAndGet(-entry.compressed.length);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(entry.compressed);
+            byte[] serialized = new byte[entry.length];
+            int offset = 0;
+            while (offset < serialized.length && !inflater.finished()) {
+                int count = inflater.inflate(serialized, offset, serialized.length - offset);
+                if ( count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                offset += count;
+            }
+            if ( offset != serialized.length ) {
+                throw new IllegalStateException(lookupKey+": passivated values truncated, expected "+serialized.length+" bytes, got "+offset);
+            }
+            return serialized;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException(lookupKey+": passivated values corrupted", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * @return number of passivated FlowStates held.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()+"[flowStates="+entries.size()+", storedBytes="+storedBytes.get()+"]";
+    }
+
+    private static class Entry {
+        private final int length;
+        private final byte[] compressed;
+        Entry(int length, byte[] compressed) {
+            this.length = length;
+            this.compressed = compressed;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link FlowStateRepository} for a single JVM ( or for tests ). Versions are checked with atomic compare and set so no lock is held.
+ * @author patmoore
+ *
+ */
+public class MemoryFlowStateRepository implements FlowStateRepository {
+
+    private final ConcurrentMap<String, FlowStateRepositoryEntry> entries = new ConcurrentHashMap<String, FlowStateRepositoryEntry>();
+
+    /**
+     * sessionId -> lookupKeys in the order first saved. Each set is guarded by itself and is removed when empty.
+     */
+    private final ConcurrentMap<String, Set<String>> sessions = new ConcurrentHashMap<String, Set<String>>();
+
+    @Override
+    public FlowStateRepositoryEntry load(String lookupKey) {
+        return entries.get(lookupKey);
+    }
+
+    @Override
+    public long getVersion(String lookupKey) {
+        FlowStateRepositoryEntry entry = entries.get(lookupKey);
+        return entry == null ? 0 : entry.getVersion();
+    }
+
+    @Override
+    public long save(String sessionId, String lookupKey, long expectedVersion, byte[] serialized) throws StaleFlowStateException {
+        FlowStateRepositoryEntry entry = new FlowStateRepositoryEntry(sessionId, lookupKey, expectedVersion + 1, serialized);
+        if (expectedVersion == 0) {
+            FlowStateRepositoryEntry existing = entries.putIfAbsent(lookupKey, entry);
+            if (existing != null) {
+                throw new StaleFlowStateException(lookupKey, expectedVersion, existing.getVersion());
+            }
+            addToSession(sessionId, lookupKey);
+        } else {
+            FlowStateRepositoryEntry existing = entries.get(lookupKey);
+            if (existing == null || existing.getVersion() != expectedVersion || !entries.replace(lookupKey, existing, entry)) {
+                FlowStateRepositoryEntry actual = entries.get(lookupKey);
+                throw new StaleFlowStateException(lookupKey, expectedVersion, actual == null ? 0 : actual.getVersion());
+            }
+        }
+        return entry.getVersion();
+    }
+
+    @Override
+    public boolean delete(String lookupKey, long expectedVersion) {
+        FlowStateRepositoryEntry existing = entries.get(lookupKey);
+        if (existing == null || existing.getVersion() != expectedVersion || !entries.remove(lookupKey, existing)) {
+            return false;
+        }
+        Set<String> session = sessions.get(existing.getSessionId());
+        if (session != null) {
+            synchronized (session) {
+                session.remove(lookupKey);
+                if (session.isEmpty()) {
+                    sessions.remove(existing.getSessionId(), session);
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public List<String> listBySession(String sessionId) {
+        Set<String> session = sessions.get(sessionId);
+        if (session == null) {
+            return new ArrayList<String>();
+        }
+        synchronized (session) {
+            return new ArrayList<String>(session);
+        }
+    }
+
+    private void addToSession(String sessionId, String lookupKey) {
+        while (true) {
+            Set<String> session = sessions.get(sessionId);
+            if (session == null) {
+                Set<String> created = new LinkedHashSet<String>();
+                session = sessions.putIfAbsent(sessionId, created);
+                if (session == null) {
+                    session = created;
+                }
+            }
+            synchronized (session) {
+                // a set removed because it became empty must not be used.
+                if (sessions.get(sessionId) == session) {
+                    session.add(lookupKey);
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[flowStates=" + entries.size() + ", sessions=" + sessions.size() + "]";
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.amplafi.flow.FlowValueMapKey;
+import org.amplafi.flow.FlowValuesMap;
+
+/**
+ * {@link FlowValuesMap} organized as namespace -> ( key -> value ).
+ *
+ * Dropping, copying and iterating a namespace do not touch the other namespaces. Copying a namespace is constant time:
+ * the two namespaces share the same values until one of them is modified ( copy-on-write ).
+ *
+ * Iteration order is grouped by namespace ( namespaces in the order they were created, keys in insertion order within a namespace ).
+ * @author patmoore
+ *
+ */
+public class PartitionedFlowValuesMap extends AbstractFlowValuesMap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, Partition> partitions = new LinkedHashMap<String, Partition>();
+    private int size;
+
+    private transient Set<Map.Entry<FlowValueMapKey, String>> entrySet;
+
+    public PartitionedFlowValuesMap() {
+    }
+
+    public PartitionedFlowValuesMap(Map<?, ?> initialFlowState) {
+        initialize(initialFlowState);
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#get(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public synchronized String get(Object namespace, Object key) {
+        Partition partition = partitions.get(toNamespace(namespace));
+        return partition == null? null : partition.values.get(toKeyString(key));
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#containsKey(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public synchronized boolean containsKey(Object namespace, Object key) {
+        Partition partition = partitions.get(toNamespace(namespace));
+        return partition != null && partition.values.containsKey(toKeyString(key));
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#put(java.lang.Object, java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public synchronized String put(Object namespace, Object key, Object value) {
+        String space = toNamespace(namespace);
+        Partition partition = partitions.get(space);
+        if ( partition == null ) {
+            partition = new Partition();
+            partitions.put(space, partition);
+        }
+        String keyString = toKeyString(key);
+        Map<String, String> values = partition.getWritableValues();
+        boolean existed = values.containsKey(keyString);
+        String valueString = toKeyString(value);
+        String previous = values.put(keyString, valueString);
+        if ( !existed ) {
+            size++;
+        }
+        recordChange(space, keyString, previous, valueString, existed, false);
+        return previous;
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#removeFromNamespace(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public synchronized String removeFromNamespace(Object namespace, Object key) {
+        String space = toNamespace(namespace);
+        Partition partition = partitions.get(space);
+        String keyString = toKeyString(key);
+        if ( partition == null || !partition.values.containsKey(keyString)) {
+            return null;
+        }
+        String previous = partition.getWritableValues().remove(keyString);
+        size--;
+        if ( partition.values.isEmpty()) {
+            partitions.remove(space);
+        }
+        recordChange(space, keyString, previous, null, true, true);
+        return previous;
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#getNamespaces()
+     */
+    @Override
+    public synchronized Set<String> getNamespaces() {
+        return new LinkedHashSet<String>(partitions.keySet());
+    }
+
+    /**
+     * The returned map is a snapshot. The partition is shared with the snapshot rather than copied.
+     * @see org.amplafi.flow.FlowValuesMap#getNamespace(java.lang.Object)
+     */
+    @Override
+    public synchronized Map<String, String> getNamespace(Object namespace) {
+        Partition partition = partitions.get(toNamespace(namespace));
+        if ( partition == null ) {
+            return Collections.emptyMap();
+        } else {
+            return Collections.unmodifiableMap(partition.share().values);
+        }
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#removeNamespace(java.lang.Object)
+     */
+    @Override
+    public synchronized void removeNamespace(Object namespace) {
+        String space = toNamespace(namespace);
+        Partition partition = partitions.remove(space);
+        if ( partition != null ) {
+            size -= partition.values.size();
+            recordRemoved(space, partition);
+        }
+    }
+
+    private void recordRemoved(String space, Partition partition) {
+        for(Map.Entry<String, String> entry: partition.values.entrySet()) {
+            recordChange(space, entry.getKey(), entry.getValue(), null, true, true);
+        }
+    }
+
+    /**
+     * Constant time: the namespaces share values until one of them changes.
+     * @see org.amplafi.flow.FlowValuesMap#copyNamespace(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public synchronized void copyNamespace(Object fromNamespace, Object toNamespace) {
+        String from = toNamespace(fromNamespace);
+        String to = toNamespace(toNamespace);
+        if ( from == null ? to == null : from.equals(to)) {
+            return;
+        }
+        Partition partition = partitions.get(from);
+        if ( partition == null ) {
+            return;
+        }
+        Partition replaced = partitions.get(to);
+        if ( replaced == null ) {
+            partitions.put(to, partition.share());
+            size += partition.values.size();
+            for(Map.Entry<String, String> entry: partition.values.entrySet()) {
+                recordChange(to, entry.getKey(), null, entry.getValue(), false, false);
+            }
+        } else {
+            // existing keys in toNamespace that are not in fromNamespace must survive.
+            for(Map.Entry<String, String> entry: partition.values.entrySet()) {
+                put(to, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Proportional to the number of namespaces: the partitions are shared with the copy.
+     * @see org.amplafi.flow.FlowValuesMap#copy()
+     */
+    @Override
+    public synchronized PartitionedFlowValuesMap copy() {
+        PartitionedFlowValuesMap copy = new PartitionedFlowValuesMap();
+        for(Map.Entry<String, Partition> entry: partitions.entrySet()) {
+            copy.partitions.put(entry.getKey(), entry.getValue().share());
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public synchronized void clear() {
+        for(Map.Entry<String, Partition> entry: partitions.entrySet()) {
+            recordRemoved(entry.getKey(), entry.getValue());
+        }
+        partitions.clear();
+        size = 0;
+    }
+
+    /**
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<FlowValueMapKey, String>> entrySet() {
+        if ( entrySet == null ) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return partitions.toString();
+    }
+
+    /**
+     * The values of a single namespace. If shared, then the values are copied before being changed.
+     */
+    private static class Partition implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private Map<String, String> values;
+        private boolean shared;
+        Partition() {
+            this.values = new LinkedHashMap<String, String>();
+        }
+        private Partition(Map<String, String> values) {
+            this.values = values;
+            this.shared = true;
+        }
+        Partition share() {
+            this.shared = true;
+            return new Partition(this.values);
+        }
+        Map<String, String> getWritableValues() {
+            if ( shared ) {
+                this.values = new LinkedHashMap<String, String>(this.values);
+                this.shared = false;
+            }
+            return this.values;
+        }
+        @Override
+        public String toString() {
+            return values.toString();
+        }
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<FlowValueMapKey, String>> {
+        @Override
+        public Iterator<Map.Entry<FlowValueMapKey, String>> iterator() {
+            return new EntryIterator();
+        }
+        @Override
+        public int size() {
+            return PartitionedFlowValuesMap.this.size();
+        }
+        @Override
+        public void clear() {
+            PartitionedFlowValuesMap.this.clear();
+        }
+    }
+
+    /**
+     * Weakly consistent: each namespace's values are copied when the iterator reaches the namespace. The partitions are not marked
+     * shared, so iterating does not make the next write copy the partition.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<FlowValueMapKey, String>> {
+        private final Iterator<Map.Entry<String, Partition>> partitionIterator;
+        private String namespace;
+        private Iterator<Map.Entry<String, String>> valueIterator = Collections.<String, String>emptyMap().entrySet().iterator();
+        private FlowValueMapKey last;
+
+        EntryIterator() {
+            synchronized (PartitionedFlowValuesMap.this) {
+                List<Map.Entry<String, Partition>> snapshot = new ArrayList<Map.Entry<String, Partition>>(partitions.size());
+                for(Map.Entry<String, Partition> entry: partitions.entrySet()) {
+                    snapshot.add(new SimpleImmutableEntry<String, Partition>(entry.getKey(), entry.getValue()));
+                }
+                partitionIterator = snapshot.iterator();
+            }
+        }
+        @Override
+        public boolean hasNext() {
+            while(!valueIterator.hasNext() && partitionIterator.hasNext()) {
+                Map.Entry<String, Partition> entry = partitionIterator.next();
+                namespace = entry.getKey();
+                synchronized (PartitionedFlowValuesMap.this) {
+                    Map<String, String> values = entry.getValue().values;
+                    List<Map.Entry<String, String>> copy = new ArrayList<Map.Entry<String, String>>(values.size());
+                    for(Map.Entry<String, String> value: values.entrySet()) {
+                        copy.add(new SimpleImmutableEntry<String, String>(value));
+                    }
+                    valueIterator = copy.iterator();
+                }
+            }
+            return valueIterator.hasNext();
+        }
+        @Override
+        public Map.Entry<FlowValueMapKey, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = valueIterator.next();
+            last = new DefaultFlowValuesMapKey(namespace, entry.getKey());
+            return new SimpleImmutableEntry<FlowValueMapKey, String>(last, entry.getValue());
+        }
+        @Override
+        public void remove() {
+            if ( last == null ) {
+                throw new IllegalStateException();
+            }
+            removeFromNamespace(last.getNamespace(), last.getKey());
+            last = null;
+        }
+    }
+}
@@ -0,0 +1,537 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.amplafi.flow.FlowValueMapKey;
+import org.amplafi.flow.FlowValuesMap;
+import org.apache.commons.lang.ObjectUtils;
+
+/**
+ * {@link FlowValuesMap} backed by a persistent ( immutable ) hash array mapped trie.
+ *
+ * {@link #copy()} is O(1): the copy shares the trie with the original. A write only copies the path from the root to the changed entry
+ * ( at most 7 small arrays ) so neither the original nor the copy is affected by the other's changes. This makes exporting values to
+ * callee flows ( {@link FlowStateImpl#getExportedValuesMap()} ) independent of the size of the caller's state.
+ *
+ * Reads and writes do not lock: the root is swapped with a compare-and-set. Lookups do not allocate a key.
+ *
+ * Iteration order is the trie order ( not insertion order ). Namespace operations must visit every entry.
+ * @author patmoore
+ *
+ */
+public class PersistentFlowValuesMap extends AbstractFlowValuesMap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private transient AtomicReference<Trie> trie;
+    private transient Set<Map.Entry<FlowValueMapKey, String>> entrySet;
+
+    public PersistentFlowValuesMap() {
+        this.trie = new AtomicReference<Trie>(Trie.EMPTY);
+    }
+
+    /**
+     * @param initialFlowState federated keys are split into namespace and key. If initialFlowState is a {@link FlowValuesMap} then its namespaces are preserved.
+     */
+    public PersistentFlowValuesMap(Map<?, ?> initialFlowState) {
+        this();
+        initialize(initialFlowState);
+    }
+
+    private PersistentFlowValuesMap(Trie trie) {
+        this.trie = new AtomicReference<Trie>(trie);
+    }
+
+    static int hash(String namespace, String key) {
+        // must match DefaultFlowValuesMapKey.hashCode()
+        return (namespace == null? 0: namespace.hashCode()) ^ (key == null? 0 : key.hashCode());
+    }
+
+    private Entry find(Object namespace, Object key) {
+        String space = toNamespace(namespace);
+        String keyString = toKeyString(key);
+        Node root = trie.get().root;
+        return root == null? null : root.find(hash(space, keyString), 0, space, keyString);
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#get(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public String get(Object namespace, Object key) {
+        Entry entry = find(namespace, key);
+        return entry == null? null : entry.value;
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#containsKey(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(Object namespace, Object key) {
+        return find(namespace, key) != null;
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#put(java.lang.Object, java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public String put(Object namespace, Object key, Object value) {
+        Entry entry = new Entry(new DefaultFlowValuesMapKey(toNamespace(namespace), toKeyString(key)), toKeyString(value));
+        while(true) {
+            Trie current = trie.get();
+            Change change = new Change();
+            Node root = current.root == null? BitmapNode.EMPTY: current.root;
+            Node newRoot = root.assoc(entry.hash, 0, entry, change);
+            if ( newRoot == root && current.root != null) {
+                return entry.value;
+            }
+            Trie next = new Trie(newRoot, change.previous == null? current.size + 1: current.size);
+            if ( trie.compareAndSet(current, next)) {
+                String previous = change.previous == null? null: change.previous.value;
+                recordChange(entry.key.getNamespace(), entry.key.getKey(), previous, entry.value, change.previous != null, false);
+                return previous;
+            }
+        }
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#removeFromNamespace(java.lang.Object, java.lang.Object)
+     */
+    @Override
+    public String removeFromNamespace(Object namespace, Object key) {
+        String space = toNamespace(namespace);
+        String keyString = toKeyString(key);
+        int hash = hash(space, keyString);
+        while(true) {
+            Trie current = trie.get();
+            if ( current.root == null ) {
+                return null;
+            }
+            Change change = new Change();
+            Node newRoot = current.root.without(hash, 0, space, keyString, change);
+            if ( change.previous == null ) {
+                return null;
+            }
+            if ( trie.compareAndSet(current, new Trie(newRoot, current.size - 1))) {
+                recordChange(space, keyString, change.previous.value, null, true, true);
+                return change.previous.value;
+            }
+        }
+    }
+
+    /**
+     * O(1) : the copy shares the trie.
+     * @see org.amplafi.flow.FlowValuesMap#copy()
+     */
+    @Override
+    public PersistentFlowValuesMap copy() {
+        return new PersistentFlowValuesMap(trie.get());
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#getNamespaces()
+     */
+    @Override
+    public Set<String> getNamespaces() {
+        Set<String> namespaces = new LinkedHashSet<String>();
+        for(Entry entry: entries(trie.get())) {
+            namespaces.add(entry.key.getNamespace());
+        }
+        return namespaces;
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#getNamespace(java.lang.Object)
+     */
+    @Override
+    public Map<String, String> getNamespace(Object namespace) {
+        String space = toNamespace(namespace);
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for(Entry entry: entries(trie.get())) {
+            if ( ObjectUtils.equals(space, entry.key.getNamespace())) {
+                result.put(entry.key.getKey(), entry.value);
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @see org.amplafi.flow.FlowValuesMap#removeNamespace(java.lang.Object)
+     */
+    @Override
+    public void removeNamespace(Object namespace) {
+        for(String key: getNamespace(namespace).keySet()) {
+            removeFromNamespace(namespace, key);
+        }
+    }
+
+    /**
+     * @see java.util.AbstractMap#size()
+     */
+    @Override
+    public int size() {
+        return trie.get().size;
+    }
+
+    /**
+     * @see java.util.AbstractMap#clear()
+     */
+    @Override
+    public void clear() {
+        for(Entry entry: entries(trie.getAndSet(Trie.EMPTY))) {
+            recordChange(entry.key.getNamespace(), entry.key.getKey(), entry.value, null, true, true);
+        }
+    }
+
+    /**
+     * @see java.util.AbstractMap#entrySet()
+     */
+    @Override
+    public Set<Map.Entry<FlowValueMapKey, String>> entrySet() {
+        if ( entrySet == null ) {
+            entrySet = new AbstractSet<Map.Entry<FlowValueMapKey, String>>() {
+                @Override
+                public Iterator<Map.Entry<FlowValueMapKey, String>> iterator() {
+                    // the trie is immutable so iterating over it is safe even if this map changes.
+                    final Iterator<Entry> iterator = entries(trie.get()).iterator();
+                    return new Iterator<Map.Entry<FlowValueMapKey, String>>() {
+                        private Entry last;
+                        @Override
+                        public boolean hasNext() {
+                            return iterator.hasNext();
+                        }
+                        @Override
+                        public Map.Entry<FlowValueMapKey, String> next() {
+                            last = iterator.next();
+                            return new SimpleImmutableEntry<FlowValueMapKey, String>(last.key, last.value);
+                        }
+                        @Override
+                        public void remove() {
+                            if ( last == null ) {
+                                throw new IllegalStateException();
+                            }
+                            removeFromNamespace(last.key.getNamespace(), last.key.getKey());
+                            last = null;
+                        }
+                    };
+                }
+                @Override
+                public int size() {
+                    return PersistentFlowValuesMap.this.size();
+                }
+                @Override
+                public void clear() {
+                    PersistentFlowValuesMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    private static List<Entry> entries(Trie trie) {
+        List<Entry> entries = new ArrayList<Entry>(trie.size);
+        if ( trie.root != null ) {
+            trie.root.collect(entries);
+        }
+        return entries;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        List<Entry> entries = entries(trie.get());
+        out.writeInt(entries.size());
+        for(Entry entry: entries) {
+            out.writeObject(entry.key.getNamespace());
+            out.writeObject(entry.key.getKey());
+            out.writeObject(entry.value);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.trie = new AtomicReference<Trie>(Trie.EMPTY);
+        int count = in.readInt();
+        for(int i = 0; i < count; i++) {
+            put(in.readObject(), in.readObject(), in.readObject());
+        }
+    }
+
+    /**
+     * immutable root + size pair so that both are swapped together.
+     */
+    private static class Trie {
+        static final Trie EMPTY = new Trie(null, 0);
+        final Node root;
+        final int size;
+        Trie(Node root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+    }
+
+    private static class Entry {
+        final DefaultFlowValuesMapKey key;
+        final String value;
+        final int hash;
+        Entry(DefaultFlowValuesMapKey key, String value) {
+            this.key = key;
+            this.value = value;
+            this.hash = key.hashCode();
+        }
+        boolean matches(String namespace, String keyString) {
+            return ObjectUtils.equals(keyString, key.getKey()) && ObjectUtils.equals(namespace, key.getNamespace());
+        }
+    }
+
+    /**
+     * records what an assoc() or without() replaced.
+     */
+    private static class Change {
+        Entry previous;
+    }
+
+    private static abstract class Node {
+        abstract Entry find(int hash, int shift, String namespace, String key);
+        abstract Node assoc(int hash, int shift, Entry entry, Change change);
+        /**
+         * @return null if the node is now empty.
+         */
+        abstract Node without(int hash, int shift, String namespace, String key, Change change);
+        abstract void collect(List<Entry> entries);
+    }
+
+    private static class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+        /**
+         * Entry or Node.
+         */
+        private final Object[] array;
+        private final int bitmap;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Entry find(int hash, int shift, String namespace, String key) {
+            int bit = bit(hash, shift);
+            if ( (bitmap & bit) == 0) {
+                return null;
+            }
+            Object child = array[index(bit)];
+            if ( child instanceof Entry ) {
+                Entry entry = (Entry) child;
+                return entry.matches(namespace, key)? entry: null;
+            } else {
+                return ((Node)child).find(hash, shift + BITS, namespace, key);
+            }
+        }
+
+        @Override
+        Node assoc(int hash, int shift, Entry entry, Change change) {
+            int bit = bit(hash, shift);
+            int index = index(bit);
+            if ( (bitmap & bit) == 0 ) {
+                Object[] newArray = new Object[array.length+1];
+                System.arraycopy(array, 0, newArray, 0, index);
+                newArray[index] = entry;
+                System.arraycopy(array, index, newArray, index+1, array.length - index);
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+            Object child = array[index];
+            if ( child instanceof Entry ) {
+                Entry existing = (Entry) child;
+                if ( existing.matches(entry.key.getNamespace(), entry.key.getKey())) {
+                    change.previous = existing;
+                    if ( ObjectUtils.equals(existing.value, entry.value)) {
+                        return this;
+                    }
+                    return with(index, entry);
+                } else {
+                    return with(index, createNode(shift + BITS, existing, entry));
+                }
+            } else {
+                Node node = (Node) child;
+                Node newNode = node.assoc(hash, shift + BITS, entry, change);
+                return newNode == node? this: with(index, newNode);
+            }
+        }
+
+        private static Node createNode(int shift, Entry first, Entry second) {
+            if ( first.hash == second.hash ) {
+                return new CollisionNode(first.hash, new Entry[] { first, second });
+            } else {
+                Change ignored = new Change();
+                return EMPTY.assoc(first.hash, shift, first, ignored).assoc(second.hash, shift, second, ignored);
+            }
+        }
+
+        private BitmapNode with(int index, Object child) {
+            Object[] newArray = array.clone();
+            newArray[index] = child;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        private Node withoutIndex(int bit, int index) {
+            if ( bitmap == bit ) {
+                return null;
+            }
+            Object[] newArray = new Object[array.length-1];
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index+1, newArray, index, array.length - index - 1);
+            return new BitmapNode(bitmap ^ bit, newArray);
+        }
+
+        @Override
+        Node without(int hash, int shift, String namespace, String key, Change change) {
+            int bit = bit(hash, shift);
+            if ( (bitmap & bit) == 0) {
+                return this;
+            }
+            int index = index(bit);
+            Object child = array[index];
+            if ( child instanceof Entry ) {
+                Entry entry = (Entry) child;
+                if ( entry.matches(namespace, key)) {
+                    change.previous = entry;
+                    return withoutIndex(bit, index);
+                } else {
+                    return this;
+                }
+            } else {
+                Node node = (Node) child;
+                Node newNode = node.without(hash, shift + BITS, namespace, key, change);
+                if ( newNode == node ) {
+                    return this;
+                } else if ( newNode == null ) {
+                    return withoutIndex(bit, index);
+                } else {
+                    return with(index, newNode);
+                }
+            }
+        }
+
+        @Override
+        void collect(List<Entry> entries) {
+            for(Object child: array) {
+                if ( child instanceof Entry ) {
+                    entries.add((Entry) child);
+                } else {
+                    ((Node)child).collect(entries);
+                }
+            }
+        }
+    }
+
+    /**
+     * Entries with identical hashes.
+     */
+    private static class CollisionNode extends Node {
+        private final int hash;
+        private final Entry[] entries;
+        CollisionNode(int hash, Entry[] entries) {
+            this.hash = hash;
+            this.entries = entries;
+        }
+
+        private int indexOf(String namespace, String key) {
+            for(int i = 0; i < entries.length; i++) {
+                if ( entries[i].matches(namespace, key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Entry find(int hash, int shift, String namespace, String key) {
+            if ( hash != this.hash ) {
+                return null;
+            }
+            int index = indexOf(namespace, key);
+            return index < 0? null: entries[index];
+        }
+
+        @Override
+        Node assoc(int hash, int shift, Entry entry, Change change) {
+            if ( hash != this.hash ) {
+                // push this node down a level.
+                BitmapNode node = new BitmapNode(BitmapNode.bit(this.hash, shift), new Object[] { this });
+                return node.assoc(hash, shift, entry, change);
+            }
+            int index = indexOf(entry.key.getNamespace(), entry.key.getKey());
+            Entry[] newEntries;
+            if ( index < 0 ) {
+                newEntries = new Entry[entries.length+1];
+                System.arraycopy(entries, 0, newEntries, 0, entries.length);
+                newEntries[entries.length] = entry;
+            } else {
+                change.previous = entries[index];
+                if ( ObjectUtils.equals(entries[index].value, entry.value)) {
+                    return this;
+                }
+                newEntries = entries.clone();
+                newEntries[index] = entry;
+            }
+            return new CollisionNode(hash, newEntries);
+        }
+
+        @Override
+        Node without(int hash, int shift, String namespace, String key, Change change) {
+            int index = hash == this.hash? indexOf(namespace, key): -1;
+            if ( index < 0 ) {
+                return this;
+            }
+            change.previous = entries[index];
+            if ( entries.length == 1 ) {
+                return null;
+            }
+            Entry[] newEntries = new Entry[entries.length-1];
+            System.arraycopy(entries, 0, newEntries, 0, index);
+            System.arraycopy(entries, index+1, newEntries, index, entries.length - index - 1);
+            return new CollisionNode(hash, newEntries);
+        }
+
+        @Override
+        void collect(List<Entry> list) {
+            Collections.addAll(list, entries);
+        }
+    }
+}
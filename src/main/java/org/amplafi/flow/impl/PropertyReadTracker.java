@@ -0,0 +1,214 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang.ObjectUtils;
+
+/**
+ * Records which properties a derived property read while its value was being computed by its {@link org.amplafi.flow.FlowPropertyValueProvider}.
+ * When a property changes, only the derived values that read it ( directly or through other derived values ) need to be discarded.
+ *
+ * Properties are identified by (namespace, name). Tracking is per thread: {@link #startTracking()} / {@link #finishTracking(Frame)} bracket the computation
+ * and {@link #recordRead(String, String)} adds to the innermost computation on the current thread.
+ *
+ * Values computed ahead of use on other threads are not tracked.
+ * @author patmoore
+ *
+ */
+public class PropertyReadTracker {
+    private static final ThreadLocal<Frame> CURRENT = new ThreadLocal<Frame>();
+
+    /**
+     * property -> the derived properties that read it.
+     */
+    private final Map<PropertyKey, Set<PropertyKey>> dependents = new HashMap<PropertyKey, Set<PropertyKey>>();
+    /**
+     * derived property -> properties it read.
+     */
+    private final Map<PropertyKey, Set<PropertyKey>> reads = new HashMap<PropertyKey, Set<PropertyKey>>();
+
+    /**
+     * @return the frame to pass to {@link #finishTracking(Frame)}.
+     */
+    public Frame startTracking() {
+        Frame frame = new Frame(this, CURRENT.get());
+        CURRENT.set(frame);
+        return frame;
+    }
+
+    /**
+     * @param frame returned by {@link #startTracking()}
+     * @return the properties read since frame was started.
+     */
+    public Set<PropertyKey> finishTracking(Frame frame) {
+        if ( frame.parent == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(frame.parent);
+        }
+        return frame.reads;
+    }
+
+    /**
+     * @return true if a computation tracked by this tracker is running on the current thread.
+     */
+    public boolean isTracking() {
+        Frame frame = CURRENT.get();
+        return frame != null && frame.tracker == this;
+    }
+
+    public void recordRead(String namespace, String name) {
+        Frame frame = CURRENT.get();
+        if ( frame != null && frame.tracker == this) {
+            frame.reads.add(new PropertyKey(namespace, name));
+        }
+    }
+
+    /**
+     * @param namespace
+     * @param name
+     * @param readProperties returned by {@link #finishTracking(Frame)}
+     */
+    public synchronized void recordDerived(String namespace, String name, Set<PropertyKey> readProperties) {
+        PropertyKey derived = new PropertyKey(namespace, name);
+        removeDerived(derived);
+        Set<PropertyKey> derivedReads = new HashSet<PropertyKey>(readProperties);
+        // a value never depends on itself.
+        derivedReads.remove(derived);
+        if ( derivedReads.isEmpty()) {
+            return;
+        }
+        reads.put(derived, derivedReads);
+        for(PropertyKey read: derivedReads) {
+            Set<PropertyKey> readBy = dependents.get(read);
+            if ( readBy == null ) {
+                readBy = new HashSet<PropertyKey>();
+                dependents.put(read, readBy);
+            }
+            readBy.add(derived);
+        }
+    }
+
+    /**
+     * The property is no longer derived ( for example, it was explicitly set ).
+     * @param namespace
+     * @param name
+     */
+    public synchronized void removeDerived(String namespace, String name) {
+        removeDerived(new PropertyKey(namespace, name));
+    }
+
+    private void removeDerived(PropertyKey derived) {
+        Set<PropertyKey> derivedReads = reads.remove(derived);
+        if ( derivedReads != null ) {
+            for(PropertyKey read: derivedReads) {
+                Set<PropertyKey> readBy = dependents.get(read);
+                if ( readBy != null ) {
+                    readBy.remove(derived);
+                    if ( readBy.isEmpty()) {
+                        dependents.remove(read);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget the derived properties that depend on (namespace, name) directly or indirectly. They will be tracked again when they are recomputed.
+     * @param namespace
+     * @param name
+     * @return the derived properties whose values must be discarded, in dependency order.
+     */
+    public synchronized List<PropertyKey> invalidate(String namespace, String name) {
+        Set<PropertyKey> readBy = dependents.get(new PropertyKey(namespace, name));
+        if ( readBy == null ) {
+            return Collections.emptyList();
+        }
+        Set<PropertyKey> invalidated = new LinkedHashSet<PropertyKey>();
+        List<PropertyKey> toVisit = new ArrayList<PropertyKey>(readBy);
+        while(!toVisit.isEmpty()) {
+            PropertyKey derived = toVisit.remove(0);
+            if ( invalidated.add(derived)) {
+                Set<PropertyKey> next = dependents.get(derived);
+                if ( next != null ) {
+                    toVisit.addAll(next);
+                }
+            }
+        }
+        List<PropertyKey> result = new ArrayList<PropertyKey>(invalidated.size());
+        for(PropertyKey derived: invalidated) {
+            result.add(derived);
+            removeDerived(derived);
+        }
+        return result;
+    }
+
+    /**
+     * The properties read by one computation on one thread.
+     */
+    public static class Frame {
+        private final PropertyReadTracker tracker;
+        private final Frame parent;
+        private final Set<PropertyKey> reads = new HashSet<PropertyKey>();
+        Frame(PropertyReadTracker tracker, Frame parent) {
+            this.tracker = tracker;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * (namespace, name).
+     */
+    public static class PropertyKey {
+        private final String namespace;
+        private final String name;
+        PropertyKey(String namespace, String name) {
+            this.namespace = namespace;
+            this.name = name;
+        }
+        public String getNamespace() {
+            return namespace;
+        }
+        public String getName() {
+            return name;
+        }
+        @Override
+        public boolean equals(Object obj) {
+            if ( this == obj) {
+                return true;
+            } else if ( !(obj instanceof PropertyKey)) {
+                return false;
+            }
+            PropertyKey other = (PropertyKey) obj;
+            return name.equals(other.name) && ObjectUtils.equals(namespace, other.namespace);
+        }
+        @Override
+        public int hashCode() {
+            return name.hashCode() * 31 + ObjectUtils.hashCode(namespace);
+        }
+        @Override
+        public String toString() {
+            return namespace+"."+name;
+        }
+    }
+}
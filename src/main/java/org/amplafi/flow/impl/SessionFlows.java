@@ -13,10 +13,18 @@
  */
 package org.amplafi.flow.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.amplafi.flow.FlowState;
 
@@ -25,90 +33,484 @@ import com.sworddance.util.ApplicationNullPointerException;
 
 import static org.apache.commons.lang.StringUtils.*;
 
+/**
+ * The ordered active {@link FlowState}s of a session. The first FlowState is the current FlowState.
+ *
+ * Lookups ( {@link #get(String)}, {@link #getFirst()}, {@link #isEmpty()} ) and iteration do not lock. Iteration is over a snapshot
+ * that is only rebuilt after the order changes. The snapshot also indexes the FlowStates by flow type so that the type queries
+ * ( {@link #getFirstByType(String...)}, {@link #getByType(String...)} ) only visit the matching FlowStates. A FlowState that is morphed
+ * must be reported with {@link #flowTypeChanged(FlowStateImplementor)}.
+ *
+ * {@link #isReferenced(FlowState)} uses a reverse index: referenced lookupKey -> the FlowStates referencing it ( {@link FlowStateImplementor#getReferencedLookupKeys()} ).
+ * FlowStates report changes to their references with {@link #referencesChanged(FlowStateImplementor)} and only those FlowStates are
+ * reindexed ( on the next {@link #isReferenced(FlowState)} ).
+ *
+ * Changes are constant time ( a doubly linked list indexed by lookupKey ) and are made while holding {@link #getLock()}. Callers that need
+ * several operations to be atomic ( for example, {@link BaseFlowManagement#makeCurrent(FlowState)} ) hold the lock as well.
+ */
 public class SessionFlows implements Iterable<FlowStateImplementor>{
-    private LinkedList<FlowStateImplementor> activeFlows = new LinkedList<FlowStateImplementor>();
-    private Map<String, FlowStateImplementor> activeFlowsMap = new ConcurrentHashMap<String, FlowStateImplementor>();
-    public synchronized boolean remove(FlowStateImplementor flowState) {
-        activeFlowsMap.values().remove(flowState);
-        return activeFlows.remove(flowState);
+    private static final Snapshot EMPTY = new Snapshot(new FlowStateImplementor[0]);
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * sentinel: head.next is the first FlowState and head.previous is the last FlowState. Guarded by lock.
+     */
+    private final Node head = new Node(null);
+    private final ConcurrentHashMap<String, Node> activeFlowsMap = new ConcurrentHashMap<String, Node>();
+    private volatile FlowStateImplementor first;
+    /**
+     * referenced lookupKey -> FlowStates in this session that reference it. Guarded by lock.
+     */
+    private final Map<String, Set<FlowStateImplementor>> referencedBy = new HashMap<String, Set<FlowStateImplementor>>();
+    /**
+     * FlowStates in this session whose references must be reindexed.
+     */
+    private final Set<FlowStateImplementor> referencesChanged = Collections.newSetFromMap(new ConcurrentHashMap<FlowStateImplementor, Boolean>());
+    /**
+     * null after a change.
+     */
+    private volatile Snapshot snapshot = EMPTY;
+
+    public ReentrantLock getLock() {
+        return this.lock;
+    }
+
+    public boolean remove(FlowStateImplementor flowState) {
+        lock.lock();
+        try {
+            Node node = activeFlowsMap.get(flowState.getLookupKey());
+            if ( node == null || node.flowState != flowState) {
+                return false;
+            }
+            activeFlowsMap.remove(flowState.getLookupKey());
+            unlink(node);
+            unindex(node);
+            changed();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    /**
+     * Puts replacement in flowState's place ( so a replaced first FlowState stays current ).
+     * @param flowState
+     * @param replacement must have flowState's lookupKey.
+     * @return false if flowState is not in this session.
+     */
+    public boolean replace(FlowStateImplementor flowState, FlowStateImplementor replacement) {
+        lock.lock();
+        try {
+            Node node = activeFlowsMap.get(flowState.getLookupKey());
+            if ( node == null || node.flowState != flowState) {
+                return false;
+            }
+            linkAfter(node.previous, replacement);
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
     /**
      * @param lookupKey
      * @return the removed {@link FlowState} with the supplied lookupKey.
      */
-    public synchronized FlowState removeByLookupKey(String lookupKey) {
-        FlowState flowState = activeFlowsMap.remove(lookupKey);
-        activeFlows.remove(flowState);
-        return flowState;
+    public FlowState removeByLookupKey(String lookupKey) {
+        lock.lock();
+        try {
+            Node node = activeFlowsMap.remove(lookupKey);
+            if ( node == null ) {
+                return null;
+            }
+            unlink(node);
+            unindex(node);
+            changed();
+            return node.flowState;
+        } finally {
+            lock.unlock();
+        }
     }
     /**
      * @return true if no active flows.
      */
-    public synchronized boolean isEmpty() {
-        return activeFlows.isEmpty();
+    public boolean isEmpty() {
+        return first == null;
     }
 
-    public synchronized FlowStateImplementor getFirst() {
-        return isEmpty()?null:activeFlows.getFirst();
+    public FlowStateImplementor getFirst() {
+        return first;
     }
-    public synchronized void addLast(FlowStateImplementor flowState) {
-        activeFlowsMap.put(flowState.getLookupKey(), flowState);
-        activeFlows.add(flowState);
+    public void addLast(FlowStateImplementor flowState) {
+        lock.lock();
+        try {
+            linkAfter(head.previous, flowState);
+        } finally {
+            lock.unlock();
+        }
     }
-    public synchronized void makeFirst(FlowStateImplementor flowState) {
-        if ( getFirst() == flowState) {
-            return;
-        } else if ( activeFlowsMap.containsKey(flowState.getLookupKey())) {
-            activeFlows.remove(flowState);
+    public void makeFirst(FlowStateImplementor flowState) {
+        lock.lock();
+        try {
+            if ( first != flowState) {
+                linkAfter(head, flowState);
+            }
+        } finally {
+            lock.unlock();
         }
-        activeFlowsMap.put(flowState.getLookupKey(), flowState);
-        activeFlows.addFirst(flowState);
     }
-    public synchronized int makeAfter(FlowStateImplementor flowState, FlowStateImplementor nextFlowState) {
-        ApplicationIllegalStateException.checkState(activeFlowsMap.containsKey(flowState.getLookupKey()),
-            flowState.getLookupKey()+ ": not a current flow");
-
-        int oldPosition = -1;
-        for(int i = 0; i < this.activeFlows.size(); ) {
-            FlowStateImplementor state = this.activeFlows.get(i);
-            if ( state == nextFlowState) {
-                oldPosition = i;
-                this.activeFlows.remove(i);
-            } else {
-                if ( state == flowState) {
-                    this.add(++i, nextFlowState);
-                }
-                i++;
+    /**
+     * Moves ( or adds ) nextFlowState to be immediately after flowState.
+     * @param flowState must be active.
+     * @param nextFlowState
+     * @return true if nextFlowState was the first FlowState.
+     */
+    public boolean makeAfter(FlowStateImplementor flowState, FlowStateImplementor nextFlowState) {
+        lock.lock();
+        try {
+            Node node = activeFlowsMap.get(flowState.getLookupKey());
+            ApplicationIllegalStateException.checkState(node != null, flowState.getLookupKey()+ ": not a current flow");
+            boolean wasFirst = first == nextFlowState;
+            if ( node.flowState != nextFlowState) {
+                linkAfter(node, nextFlowState);
             }
+            return wasFirst;
+        } finally {
+            lock.unlock();
         }
-        return oldPosition;
     }
     public boolean add(FlowStateImplementor flowState) {
         addLast(flowState);
         return true;
     }
     /**
+     * Proportional to i.
      * @param i
      * @param nextFlowState
      */
-    public synchronized void add(int i, FlowStateImplementor nextFlowState) {
-        this.activeFlows.add(i, nextFlowState);
-        this.activeFlowsMap.put(nextFlowState.getLookupKey(), nextFlowState);
+    public void add(int i, FlowStateImplementor nextFlowState) {
+        lock.lock();
+        try {
+            Node existing = activeFlowsMap.get(nextFlowState.getLookupKey());
+            if ( existing != null ) {
+                // existing is moved so it does not count.
+                unlink(existing);
+            }
+            Node previous = head;
+            for(int position = 0; position < i && previous.next != head; position++) {
+                previous = previous.next;
+            }
+            linkAfter(previous, nextFlowState);
+        } finally {
+            lock.unlock();
+        }
+    }
+    /**
+     * Must be called after a FlowState changes its flow type ( morphing ) so the type index is rebuilt.
+     * @param flowState
+     */
+    public void flowTypeChanged(FlowStateImplementor flowState) {
+        if ( get(flowState.getLookupKey()) == flowState ) {
+            lock.lock();
+            try {
+                changed();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Must be called after a FlowState's references ( {@link FlowStateImplementor#getReferencedLookupKeys()} ) may have changed.
+     * Does not lock.
+     * @param flowState
+     */
+    public void referencesChanged(FlowStateImplementor flowState) {
+        if ( get(flowState.getLookupKey()) == flowState ) {
+            referencesChanged.add(flowState);
+        }
+    }
+
+    /**
+     * @param flowState
+     * @return true if another FlowState in this session references flowState.
+     */
+    public boolean isReferenced(FlowState flowState) {
+        lock.lock();
+        try {
+            for(Iterator<FlowStateImplementor> iterator = referencesChanged.iterator(); iterator.hasNext();) {
+                FlowStateImplementor changed = iterator.next();
+                iterator.remove();
+                Node node = activeFlowsMap.get(changed.getLookupKey());
+                if ( node != null && node.flowState == changed) {
+                    index(node);
+                }
+            }
+            Set<FlowStateImplementor> referencing = referencedBy.get(flowState.getLookupKey());
+            if ( referencing != null ) {
+                for(FlowStateImplementor referencingFlowState: referencing) {
+                    if ( referencingFlowState != flowState ) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param flowTypes
+     * @return the first FlowState ( in session order ) that has one of the flowTypes.
+     */
+    public FlowStateImplementor getFirstByType(String... flowTypes) {
+        Snapshot current = getSnapshot();
+        TypeIndex first = null;
+        for(String flowType: flowTypes) {
+            first = current.earliest(first, flowType);
+        }
+        return first == null? null : first.flowStates[0];
+    }
+
+    /**
+     * @param flowTypes
+     * @return the first FlowState ( in session order ) that has one of the flowTypes.
+     */
+    public FlowStateImplementor getFirstByType(Collection<String> flowTypes) {
+        Snapshot current = getSnapshot();
+        TypeIndex first = null;
+        for(String flowType: flowTypes) {
+            first = current.earliest(first, flowType);
+        }
+        return first == null? null : first.flowStates[0];
     }
-    public synchronized FlowState get(String lookupKey) {
+
+    /**
+     * @param flowTypes
+     * @return the FlowStates ( in session order ) that have one of the flowTypes.
+     */
+    public List<FlowState> getByType(String... flowTypes) {
+        Snapshot current = getSnapshot();
+        List<TypeIndex> matches = new ArrayList<TypeIndex>(flowTypes.length);
+        int size = 0;
+        for(String flowType: flowTypes) {
+            TypeIndex typeIndex = current.byType.get(flowType);
+            if ( typeIndex != null && !matches.contains(typeIndex)) {
+                matches.add(typeIndex);
+                size += typeIndex.flowStates.length;
+            }
+        }
+        List<FlowState> result = new ArrayList<FlowState>(size);
+        if ( matches.size() == 1 ) {
+            result.addAll(Arrays.asList(matches.get(0).flowStates));
+        } else if ( size > 0 ) {
+            // merge by session position.
+            int[] next = new int[matches.size()];
+            while(result.size() < size) {
+                int selected = -1;
+                for(int i = 0; i < next.length; i++) {
+                    TypeIndex typeIndex = matches.get(i);
+                    if ( next[i] < typeIndex.positions.length
+                        && (selected < 0 || typeIndex.positions[next[i]] < matches.get(selected).positions[next[selected]])) {
+                        selected = i;
+                    }
+                }
+                result.add(matches.get(selected).flowStates[next[selected]++]);
+            }
+        }
+        return result;
+    }
+
+    public FlowState get(String lookupKey) {
         ApplicationNullPointerException.notNull(lookupKey,"lookupKey for flow is null!");
-        return this.activeFlowsMap.get(lookupKey);
+        Node node = this.activeFlowsMap.get(lookupKey);
+        return node == null? null : node.flowState;
     }
     /**
      * @see java.lang.Iterable#iterator()
+     * @return iterator over a snapshot. Does not support remove.
      */
     @Override
-    public synchronized Iterator<FlowStateImplementor> iterator() {
-        return this.activeFlows.iterator();
+    public Iterator<FlowStateImplementor> iterator() {
+        return Arrays.asList(getSnapshot().flowStates).iterator();
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot result = this.snapshot;
+        if ( result == null ) {
+            lock.lock();
+            try {
+                result = this.snapshot;
+                if ( result == null ) {
+                    FlowStateImplementor[] flowStates = new FlowStateImplementor[activeFlowsMap.size()];
+                    int i = 0;
+                    for(Node node = head.next; node != head; node = node.next) {
+                        flowStates[i++] = node.flowState;
+                    }
+                    result = new Snapshot(flowStates);
+                    this.snapshot = result;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes any FlowState with the same lookupKey and then inserts flowState after previous. Lock must be held.
+     * @param previous
+     * @param flowState
+     */
+    private void linkAfter(Node previous, FlowStateImplementor flowState) {
+        Node node = new Node(flowState);
+        Node existing = activeFlowsMap.put(flowState.getLookupKey(), node);
+        if ( existing != null ) {
+            if ( existing == previous ) {
+                previous = existing.previous;
+            }
+            unlink(existing);
+        }
+        if ( existing != null && existing.flowState == flowState ) {
+            // just moved: still indexed.
+            node.references = existing.references;
+        } else {
+            if ( existing != null ) {
+                unindex(existing);
+            }
+            referencesChanged.add(flowState);
+        }
+        node.previous = previous;
+        node.next = previous.next;
+        previous.next.previous = node;
+        previous.next = node;
+        changed();
+    }
+
+    /**
+     * Lock must be held. Does nothing if node is already unlinked.
+     * @param node
+     */
+    private void unlink(Node node) {
+        node.previous.next = node.next;
+        node.next.previous = node.previous;
+        node.previous = node;
+        node.next = node;
+    }
+
+    /**
+     * Lock must be held.
+     * @param node
+     */
+    private void index(Node node) {
+        unindex(node);
+        Set<String> references = node.flowState.getReferencedLookupKeys();
+        node.references = references.toArray(new String[references.size()]);
+        for(String lookupKey: node.references) {
+            Set<FlowStateImplementor> referencing = referencedBy.get(lookupKey);
+            if ( referencing == null ) {
+                referencing = Collections.newSetFromMap(new IdentityHashMap<FlowStateImplementor, Boolean>());
+                referencedBy.put(lookupKey, referencing);
+            }
+            referencing.add(node.flowState);
+        }
+    }
+
+    /**
+     * Lock must be held.
+     * @param node
+     */
+    private void unindex(Node node) {
+        referencesChanged.remove(node.flowState);
+        if ( node.references != null ) {
+            for(String lookupKey: node.references) {
+                Set<FlowStateImplementor> referencing = referencedBy.get(lookupKey);
+                if ( referencing != null ) {
+                    referencing.remove(node.flowState);
+                    if ( referencing.isEmpty()) {
+                        referencedBy.remove(lookupKey);
+                    }
+                }
+            }
+            node.references = null;
+        }
+    }
+
+    private void changed() {
+        this.first = head.next.flowState;
+        this.snapshot = null;
     }
 
     @Override
     public String toString() {
-        return "Session Flows : " + join(this.activeFlows, ", ");
+        return "Session Flows : " + join(getSnapshot().flowStates, ", ");
+    }
+
+    /**
+     * The FlowStates in session order and indexed by flow type.
+     */
+    private static class Snapshot {
+        private final FlowStateImplementor[] flowStates;
+        private final Map<String, TypeIndex> byType;
+        Snapshot(FlowStateImplementor[] flowStates) {
+            this.flowStates = flowStates;
+            Map<String, List<Integer>> positionsByType = new HashMap<String, List<Integer>>();
+            for(int i = 0; i < flowStates.length; i++) {
+                String flowType = flowStates[i].getFlowTypeName();
+                List<Integer> positions = positionsByType.get(flowType);
+                if ( positions == null ) {
+                    positions = new ArrayList<Integer>();
+                    positionsByType.put(flowType, positions);
+                }
+                positions.add(i);
+            }
+            this.byType = new HashMap<String, TypeIndex>();
+            for(Map.Entry<String, List<Integer>> entry: positionsByType.entrySet()) {
+                this.byType.put(entry.getKey(), new TypeIndex(flowStates, entry.getValue()));
+            }
+        }
+
+        /**
+         * @param earliest
+         * @param flowType
+         * @return the one of earliest and flowType's index that has the first FlowState in session order.
+         */
+        TypeIndex earliest(TypeIndex earliest, String flowType) {
+            TypeIndex typeIndex = byType.get(flowType);
+            if ( typeIndex == null ) {
+                return earliest;
+            } else if ( earliest == null || typeIndex.positions[0] < earliest.positions[0]) {
+                return typeIndex;
+            } else {
+                return earliest;
+            }
+        }
+    }
+
+    /**
+     * The FlowStates of one flow type and their positions in the session order.
+     */
+    private static class TypeIndex {
+        private final FlowStateImplementor[] flowStates;
+        private final int[] positions;
+        TypeIndex(FlowStateImplementor[] all, List<Integer> positions) {
+            this.flowStates = new FlowStateImplementor[positions.size()];
+            this.positions = new int[positions.size()];
+            for(int i = 0; i < this.positions.length; i++) {
+                this.positions[i] = positions.get(i);
+                this.flowStates[i] = all[this.positions[i]];
+            }
+        }
+    }
+
+    private static class Node {
+        private final FlowStateImplementor flowState;
+        private Node previous = this;
+        private Node next = this;
+        /**
+         * the lookupKeys in {@link SessionFlows#referencedBy} for this flowState. null if not indexed.
+         */
+        private String[] references;
+        Node(FlowStateImplementor flowState) {
+            this.flowState = flowState;
+        }
     }
-}
\ No newline at end of file
+}
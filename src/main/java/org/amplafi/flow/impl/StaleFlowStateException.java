@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import org.amplafi.flow.FlowException;
+
+/**
+ * Another node saved or deleted the FlowState since this node loaded or saved it ( see {@link FlowStateRepository} ).
+ * @author patmoore
+ *
+ */
+public class StaleFlowStateException extends FlowException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String lookupKey;
+
+    private final long expectedVersion;
+
+    private final long actualVersion;
+
+    /**
+     * @param lookupKey
+     * @param expectedVersion
+     * @param actualVersion 0 if the FlowState is no longer stored.
+     */
+    public StaleFlowStateException(String lookupKey, long expectedVersion, long actualVersion) {
+        super(lookupKey + ": expected version " + expectedVersion + " but stored version is " + actualVersion);
+        this.lookupKey = lookupKey;
+        this.expectedVersion = expectedVersion;
+        this.actualVersion = actualVersion;
+    }
+
+    public String getLookupKey() {
+        return lookupKey;
+    }
+
+    public long getExpectedVersion() {
+        return expectedVersion;
+    }
+
+    public long getActualVersion() {
+        return actualVersion;
+    }
+}
@@ -87,6 +87,40 @@ public class TestFlowTransitions {
         }
     }
 
+    /**
+     * FlowStates of the same flow type share the transitions compiled by the flow definition.
+     */
+    @Test(enabled = TEST_ENABLED)
+    public void testFlowTransitionTableShared() {
+        FlowImpl flow = new FlowImpl(FLOW_TYPE_1);
+        FlowActivityImpl fa1 = new FlowActivityImpl().initInvisible(false);
+        flow.addActivity(fa1);
+        FlowPropertyDefinitionImplementor definition = fa1.getFlowPropertyDefinition(FSFLOW_TRANSITIONS);
+        fa1.addPropertyDefinitions(new FlowPropertyDefinitionBuilder(definition).initFlowPropertyValueProvider(
+            new AddToMapFlowPropertyValueProvider<FlowPropertyProvider, String, FlowTransition>(new FlowTransition("foo", FLOW_TYPE_2, "foo",
+                TransitionType.alternate, null))));
+        FlowManagement flowManagement = getFlowManagement(flow);
+        FlowState flowState1 = flowManagement.startFlowState(FLOW_TYPE_1, false, null);
+        FlowState flowState2 = flowManagement.startFlowState(FLOW_TYPE_1, false, null);
+        Map<String, FlowTransition> propValue = flowState1.getProperty(FSFLOW_TRANSITIONS);
+        assertTrue(propValue.keySet().contains("foo"));
+        flowState2.getProperty(FSFLOW_TRANSITIONS);
+
+        String serialized = flowState1.getRawProperty(FSFLOW_TRANSITIONS);
+        assertNotNull(serialized);
+        assertEquals(flowState2.getRawProperty(FSFLOW_TRANSITIONS), serialized);
+        assertNull(flow.getFlowTransitionTable(serialized));
+        FlowImplementor instance1 = flowState1.getFlow();
+        FlowImplementor instance2 = flowState2.getFlow();
+        assertNotSame(instance1, instance2);
+        FlowTransitionTable table = instance1.addFlowTransitionTable(serialized, propValue);
+        assertSame(instance2.getFlowTransitionTable(serialized), table);
+        assertSame(flow.getFlowTransitionTable(serialized), table);
+        assertEquals(table.get("foo").getNextFlowType(), FLOW_TYPE_2);
+        assertNull(table.get("bar"));
+        assertTrue(FlowTransitionTable.EMPTY.isEmpty());
+    }
+
     /**
      * start one flow then a subflow,
      * set a value
@@ -164,6 +164,27 @@ public class TestFlowPropertyDefinition {
         assertEquals(definition.getDataClass(), definition1.getDataClass());
     }
 
+    /**
+     * getAllNames() is cached ( so {@link NamespaceKeySearchPlan}s stay valid ) until the definition is merged.
+     */
+    @Test(enabled=TEST_ENABLED)
+    public void testAllNamesAndSearchPlan() {
+        FlowPropertyDefinitionImplementor definition = new FlowPropertyDefinitionBuilder("foo", Boolean.class).addNames("oldFoo").toFlowPropertyDefinition();
+        Set<String> allNames = definition.getAllNames();
+        assertEquals(allNames, new LinkedHashSet<String>(Arrays.asList("foo", "oldFoo")));
+        assertSame(definition.getAllNames(), allNames);
+        NamespaceKeySearchPlan plan = new NamespaceKeySearchPlan(Arrays.asList("ns", null), allNames);
+        assertTrue(plan.isCurrent(definition));
+        assertEquals(plan.getPrimaryNamespace(), "ns");
+        assertEquals(plan.getNamespaceCount(), 2);
+        assertEquals(plan.getName(0), "foo");
+
+        definition.merge(new FlowPropertyDefinitionBuilder("foo", Boolean.class).addNames("olderFoo").toFlowPropertyDefinition());
+        assertFalse(plan.isCurrent(definition));
+        assertEquals(definition.getAllNames().size(), 3);
+        assertEquals(definition.getAllNames().iterator().next(), "foo");
+    }
+
     /**
      * Try to merge definitions with a collection of unknown types.
      */
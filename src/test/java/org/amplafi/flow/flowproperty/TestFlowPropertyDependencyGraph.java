@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.flowproperty;
+
+import java.util.Arrays;
+
+import org.amplafi.flow.FlowConfigurationException;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test {@link FlowPropertyDependencyGraph}
+ * @author patmoore
+ *
+ */
+public class TestFlowPropertyDependencyGraph {
+
+    @Test
+    public void testLevels() {
+        FlowPropertyDefinitionImplementor user = new FlowPropertyDefinitionBuilder("user", String.class).initAutoCreate().toFlowPropertyDefinition();
+        FlowPropertyDefinitionImplementor account = new FlowPropertyDefinitionBuilder("account", String.class).initAutoCreate().toFlowPropertyDefinition();
+        FlowPropertyDefinitionImplementor notAutoCreated = new FlowPropertyDefinitionBuilder("notAutoCreated", String.class).toFlowPropertyDefinition();
+        FlowPropertyDefinitionImplementor summary = new FlowPropertyDefinitionBuilder("summary", String.class).initAutoCreate()
+            .addPropertiesDependentOn(user, account, notAutoCreated).toFlowPropertyDefinition();
+
+        FlowPropertyDependencyGraph graph = new FlowPropertyDependencyGraph("test", Arrays.asList(summary, user, notAutoCreated, account));
+        assertEquals(graph.size(), 3);
+        assertEquals(graph.getDepth(), 2);
+        assertEquals(graph.getLevels().get(0), Arrays.asList(user, account));
+        assertEquals(graph.getLevels().get(1), Arrays.asList(summary));
+    }
+
+    @Test(expectedExceptions=FlowConfigurationException.class)
+    public void testCycle() {
+        FlowPropertyDefinitionBuilder first = new FlowPropertyDefinitionBuilder("first", String.class).initAutoCreate();
+        FlowPropertyDefinitionBuilder second = new FlowPropertyDefinitionBuilder("second", String.class).initAutoCreate();
+        first.addPropertiesDependentOn(second.toFlowPropertyDefinition());
+        second.addPropertiesDependentOn(first.toFlowPropertyDefinition());
+        new FlowPropertyDependencyGraph("test", Arrays.asList(first.toFlowPropertyDefinition(), second.toFlowPropertyDefinition()));
+    }
+}
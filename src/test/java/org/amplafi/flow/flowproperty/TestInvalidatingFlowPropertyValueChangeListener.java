@@ -1,5 +1,7 @@
 package org.amplafi.flow.flowproperty;
 
+import java.util.Arrays;
+
 import org.easymock.EasyMock;
 import org.testng.annotations.Test;
 import static org.testng.Assert.*;
@@ -41,4 +43,40 @@ public class TestInvalidatingFlowPropertyValueChangeListener {
         invalidatingFlowPropertyValueChangeListener.propertyChange(flowPropertyProviderWithValues, null, flowPropertyDefinitionDependent, "false", "true");
         EasyMock.verify(flowPropertyProviderWithValues);
     }
+
+    /**
+     * Only properties with monitored dependents are watched. A batch invalidates each dependent once and does not invalidate
+     * properties that were set in the same batch.
+     */
+    @Test
+    public void testWatchingAndBatch() {
+        InvalidatingFlowPropertyValueChangeListener invalidatingFlowPropertyValueChangeListener = new InvalidatingFlowPropertyValueChangeListener();
+        FlowPropertyDefinitionImplementor dep1 = new FlowPropertyDefinitionBuilder("dep1", Boolean.class).toFlowPropertyDefinition();
+        FlowPropertyDefinitionImplementor dep2 = new FlowPropertyDefinitionBuilder("dep2", Boolean.class).toFlowPropertyDefinition();
+        FlowPropertyDefinitionBuilder flowPropertyDefinitionBuilder = new FlowPropertyDefinitionBuilder("test", Boolean.class);
+        flowPropertyDefinitionBuilder.addPropertiesDependentOn(dep1, dep2);
+        FlowPropertyDefinitionImplementor flowPropertyDefinition = flowPropertyDefinitionBuilder.toFlowPropertyDefinition();
+        FlowPropertyDefinitionBuilder otherBuilder = new FlowPropertyDefinitionBuilder("other", Boolean.class);
+        otherBuilder.addPropertiesDependentOn(dep1);
+        FlowPropertyDefinitionImplementor other = otherBuilder.toFlowPropertyDefinition();
+
+        int version = invalidatingFlowPropertyValueChangeListener.getWatchedPropertiesVersion();
+        assertFalse(invalidatingFlowPropertyValueChangeListener.isWatching(dep1));
+        invalidatingFlowPropertyValueChangeListener.monitorDependencies(flowPropertyDefinition);
+        invalidatingFlowPropertyValueChangeListener.monitorDependencies(other);
+        assertTrue(invalidatingFlowPropertyValueChangeListener.getWatchedPropertiesVersion() != version);
+        assertTrue(invalidatingFlowPropertyValueChangeListener.isWatching(dep1));
+        assertTrue(invalidatingFlowPropertyValueChangeListener.isWatching(dep2));
+        assertFalse(invalidatingFlowPropertyValueChangeListener.isWatching(flowPropertyDefinition));
+
+        FlowPropertyProviderWithValues flowPropertyProviderWithValues = EasyMock.createMock(FlowPropertyProviderWithValues.class);
+        // "other" was set in the batch so only "test" is invalidated ( once ).
+        flowPropertyProviderWithValues.setProperty(EasyMock.eq("test"), EasyMock.isNull());
+        EasyMock.replay(flowPropertyProviderWithValues);
+        invalidatingFlowPropertyValueChangeListener.propertiesChange(Arrays.asList(
+            new FlowPropertyValueChange(flowPropertyProviderWithValues, null, dep1, "false", "true"),
+            new FlowPropertyValueChange(flowPropertyProviderWithValues, null, dep2, "false", "true"),
+            new FlowPropertyValueChange(flowPropertyProviderWithValues, null, other, "false", "true")));
+        EasyMock.verify(flowPropertyProviderWithValues);
+    }
 }
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compares the (namespace, key) lookups of {@link DefaultFlowValuesMap} ( pooled keys, no allocation ) with a synchronized map
+ * that needs a new {@link DefaultFlowValuesMapKey} for each lookup ( the form before the key pool ). Reports time and bytes allocated per lookup.
+ *
+ * Not a test: run the main() by hand. Arguments: [namespaces] [keys per namespace] [iterations]
+ * @author patmoore
+ *
+ */
+public class DefaultFlowValuesMapLookupBenchmark {
+
+    public static void main(String[] args) {
+        int namespaces = args.length > 0? Integer.parseInt(args[0]): 10;
+        int keysPerNamespace = args.length > 1? Integer.parseInt(args[1]): 20;
+        int iterations = args.length > 2? Integer.parseInt(args[2]): 2000;
+        String[] namespaceNames = new String[namespaces];
+        String[] keyNames = new String[keysPerNamespace];
+        DefaultFlowValuesMap flowValuesMap = new DefaultFlowValuesMap();
+        Map<DefaultFlowValuesMapKey, String> keyPerLookup = Collections.synchronizedMap(new LinkedHashMap<DefaultFlowValuesMapKey, String>());
+        for(int n = 0; n < namespaces; n++) {
+            namespaceNames[n] = "flow-namespace-"+n;
+            for(int k = 0; k < keysPerNamespace; k++) {
+                keyNames[k] = "property-"+k;
+                flowValuesMap.put(namespaceNames[n], keyNames[k], "value");
+                keyPerLookup.put(new DefaultFlowValuesMapKey(namespaceNames[n], keyNames[k]), "value");
+            }
+        }
+        long lookups = (long) iterations * namespaces * keysPerNamespace;
+        System.out.println(lookups+" lookups per run");
+        for(int run = 0; run < 2; run++) {
+            // the first run is the warm up.
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            int found = 0;
+            for(int i = 0; i < iterations; i++) {
+                for(String namespace: namespaceNames) {
+                    for(String key: keyNames) {
+                        if ( keyPerLookup.get(new DefaultFlowValuesMapKey(namespace, key)) != null) {
+                            found++;
+                        }
+                    }
+                }
+            }
+            report("key per lookup", start, bytes, lookups, found);
+            bytes = allocatedBytes();
+            start = System.nanoTime();
+            found = 0;
+            for(int i = 0; i < iterations; i++) {
+                for(String namespace: namespaceNames) {
+                    for(String key: keyNames) {
+                        if ( flowValuesMap.get(namespace, key) != null) {
+                            found++;
+                        }
+                    }
+                }
+            }
+            report("pooled keys", start, bytes, lookups, found);
+        }
+    }
+
+    private static void report(String name, long start, long bytes, long lookups, int found) {
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - bytes;
+        System.out.println(name+": "+(elapsed / (double) lookups)+" ns and "+(allocated / (double) lookups)+" bytes per lookup ( found "+found+" )");
+    }
+
+    /**
+     * @return bytes allocated by this thread, -1 if the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if ( threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        } else {
+            return -1;
+        }
+    }
+}
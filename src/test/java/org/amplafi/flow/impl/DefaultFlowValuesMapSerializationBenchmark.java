@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.amplafi.flow.FlowValueMapKey;
+
+/**
+ * Compares the serialized size and round trip time of the compact {@link DefaultFlowValuesMap} form with the default
+ * serialization of the synchronized LinkedHashMap of keys to values ( the form before the compact form ).
+ *
+ * Not a test: run the main() by hand. Arguments: [namespaces] [keys per namespace] [iterations]
+ * @author patmoore
+ *
+ */
+public class DefaultFlowValuesMapSerializationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int namespaces = args.length > 0? Integer.parseInt(args[0]): 10;
+        int keysPerNamespace = args.length > 1? Integer.parseInt(args[1]): 20;
+        int iterations = args.length > 2? Integer.parseInt(args[2]): 20000;
+        DefaultFlowValuesMap flowValuesMap = new DefaultFlowValuesMap();
+        for(int n = 0; n < namespaces; n++) {
+            for(int k = 0; k < keysPerNamespace; k++) {
+                flowValuesMap.put("flow-namespace-"+n, "property-"+k, "value-"+n+"-"+k);
+            }
+        }
+        Map<FlowValueMapKey, String> oldForm = Collections.synchronizedMap(new LinkedHashMap<FlowValueMapKey, String>());
+        for(Map.Entry<FlowValueMapKey, String> entry: flowValuesMap.entrySet()) {
+            oldForm.put(entry.getKey(), entry.getValue());
+        }
+        System.out.println(flowValuesMap.size()+" values in "+namespaces+" namespaces, "+iterations+" iterations");
+        // warm up
+        run("old form", oldForm, iterations);
+        run("compact form", flowValuesMap, iterations);
+        run("old form", oldForm, iterations);
+        run("compact form", flowValuesMap, iterations);
+    }
+
+    private static void run(String name, Object object, int iterations) throws IOException, ClassNotFoundException {
+        int size = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            byte[] bytes = serialize(object);
+            size = bytes.length;
+            new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(name+": "+size+" bytes, "+(elapsed / iterations / 1000.0)+" us per round trip");
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.amplafi.flow.FlowValuesMap;
+
+/**
+ * Compares {@link DefaultFlowValuesMap} ( synchronized ) with {@link ConcurrentFlowValuesMap} when several threads use the same FlowValuesMap
+ * ( parallel requests on one FlowState ): each thread does (namespace, key) reads with one write every writeEvery operations.
+ *
+ * Not a test: run the main() by hand. Arguments: [threads] [operations per thread] [writeEvery]
+ * @author patmoore
+ *
+ */
+public class FlowValuesMapContentionBenchmark {
+    private static final int NAMESPACES = 10;
+    private static final int KEYS_PER_NAMESPACE = 20;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0? Integer.parseInt(args[0]): 8;
+        int operations = args.length > 1? Integer.parseInt(args[1]): 1000000;
+        int writeEvery = args.length > 2? Integer.parseInt(args[2]): 10;
+        System.out.println(threads+" threads x "+operations+" operations, 1 write every "+writeEvery);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for(int run = 0; run < 2; run++) {
+                // the first run is the warm up.
+                run("DefaultFlowValuesMap", new DefaultFlowValuesMap(), executor, threads, operations, writeEvery);
+                run("ConcurrentFlowValuesMap", new ConcurrentFlowValuesMap(), executor, threads, operations, writeEvery);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void run(String name, final FlowValuesMap<?, String> flowValuesMap, ExecutorService executor, int threads, final int operations,
+        final int writeEvery) throws Exception {
+        final String[] namespaces = new String[NAMESPACES];
+        final String[] keys = new String[KEYS_PER_NAMESPACE];
+        for(int n = 0; n < NAMESPACES; n++) {
+            namespaces[n] = "flow-namespace-"+n;
+            for(int k = 0; k < KEYS_PER_NAMESPACE; k++) {
+                keys[k] = "property-"+k;
+                flowValuesMap.put(namespaces[n], keys[k], "value");
+            }
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for(int t = 0; t < threads; t++) {
+            final int seed = t;
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    start.await();
+                    int found = 0;
+                    for(int i = 0; i < operations; i++) {
+                        int slot = (i * 31 + seed) % (NAMESPACES * KEYS_PER_NAMESPACE);
+                        String namespace = namespaces[slot / KEYS_PER_NAMESPACE];
+                        String key = keys[slot % KEYS_PER_NAMESPACE];
+                        if ( i % writeEvery == 0) {
+                            flowValuesMap.put(namespace, key, "value");
+                        } else if ( flowValuesMap.get(namespace, key) != null) {
+                            found++;
+                        }
+                    }
+                    return found;
+                }
+            }));
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        for(Future<Integer> result: results) {
+            result.get();
+        }
+        long elapsed = System.nanoTime() - started;
+        long total = (long) threads * operations;
+        System.out.println(name+": "+(elapsed / 1000000)+" ms, "+(total * 1000 / Math.max(elapsed / 1000, 1))+" operations per ms");
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.amplafi.flow.FlowTestingUtils;
+import org.amplafi.flow.FlowTx;
+import org.amplafi.flow.FlowTxListener;
+import org.amplafi.flow.FlowUtils;
+import org.amplafi.flow.FlowValuesMapChange;
+import org.amplafi.flow.flowproperty.DependenciesWired;
+import org.amplafi.flow.flowproperty.FlowPropertyDefinitionBuilder;
+import org.amplafi.flow.flowproperty.FlowPropertyDefinitionImplementor;
+import org.amplafi.flow.translator.BaseFlowTranslatorResolver;
+import org.testng.annotations.Test;
+
+import static org.amplafi.flow.FlowConstants.*;
+import static org.testng.Assert.*;
+
+/**
+ * Test {@link BaseFlowManagement}
+ * @author patmoore
+ *
+ */
+public class TestBaseFlowManagement {
+
+    /**
+     * A definition is wired once per wiring epoch, which the FlowManagements with the same FlowTranslatorResolver share.
+     */
+    @Test
+    public void testWireDependenciesOnce() {
+        FlowTestingUtils flowTestingUtils = new FlowTestingUtils();
+        BaseFlowManagement flowManagement = (BaseFlowManagement) flowTestingUtils.getFlowManagement();
+        FlowPropertyDefinitionImplementor definition = new FlowPropertyDefinitionBuilder("foo", Boolean.class).toFlowPropertyDefinition();
+        DependenciesWired wired = (DependenciesWired) definition;
+        assertFalse(wired.isDependenciesWired(flowManagement.getWiringEpoch()));
+
+        flowTestingUtils.resolveAndInit(definition);
+        flowManagement.wireDependencies(definition);
+        assertTrue(wired.isDependenciesWired(flowManagement.getWiringEpoch()));
+        // another session does not rewire the shared definition.
+        BaseFlowManagement otherSession = new BaseFlowManagement();
+        otherSession.setFlowTranslatorResolver(flowManagement.getFlowTranslatorResolver());
+        assertTrue(wired.isDependenciesWired(otherSession.getWiringEpoch()));
+        // but a FlowManagement wiring in other services does.
+        BaseFlowManagement otherServices = new BaseFlowManagement();
+        otherServices.setFlowTranslatorResolver(new BaseFlowTranslatorResolver());
+        assertFalse(wired.isDependenciesWired(otherServices.getWiringEpoch()));
+        otherSession.invalidateWiring();
+        assertFalse(wired.isDependenciesWired(otherSession.getWiringEpoch()));
+        assertEquals(flowManagement.getWiringEpoch(), otherSession.getWiringEpoch());
+        flowManagement.wireDependencies(definition);
+        assertTrue(wired.isDependenciesWired(flowManagement.getWiringEpoch()));
+
+        flowManagement.invalidateWiring();
+        assertFalse(wired.isDependenciesWired(flowManagement.getWiringEpoch()));
+        flowManagement.wireDependencies(definition);
+        assertTrue(wired.isDependenciesWired(flowManagement.getWiringEpoch()));
+
+        definition.merge(new FlowPropertyDefinitionBuilder("foo", Boolean.class).initDefaultObject(true).toFlowPropertyDefinition());
+        assertFalse(wired.isDependenciesWired(flowManagement.getWiringEpoch()));
+    }
+
+    /**
+     * Idle FlowStates that are not current are passivated and rehydrated in place when used.
+     */
+    @Test
+    public void testPassivateIdleFlowStates() {
+        FlowTestingUtils flowTestingUtils = new FlowTestingUtils();
+        String flowTypeName = flowTestingUtils.addFlowDefinition(new FlowActivityImpl().initInvisible(false));
+        BaseFlowManagement flowManagement = (BaseFlowManagement) flowTestingUtils.getFlowManagement();
+        MemoryFlowStatePassivationStore store = new MemoryFlowStatePassivationStore();
+        FlowStateImplementor current = flowManagement.startFlowState(flowTypeName, true, null);
+        FlowStateImplementor parked = flowManagement.createFlowState(flowTypeName, FlowUtils.INSTANCE.createState(FSRETURN_TO_FLOW, current.getLookupKey()), false);
+        // no store: nothing is passivated.
+        assertEquals(flowManagement.passivateIdleFlowStates(), 0);
+
+        flowManagement.setFlowStatePassivationStore(store);
+        assertEquals(flowManagement.passivateIdleFlowStates(), 0);
+        flowManagement.setFlowStatePassivationIdleMillis(0);
+        parked.drainChanges();
+        parked.setProperty(FSTITLE_TEXT, "parked");
+        assertEquals(flowManagement.passivateIdleFlowStates(), 1);
+        assertTrue(parked.isValuesPassivated());
+        assertFalse(current.isValuesPassivated());
+        assertTrue(store.getStoredBytes() > 0);
+        assertEquals(store.size(), 1);
+        // still in the session and still referencing current.
+        assertSame(flowManagement.getFlowState(parked.getLookupKey()), parked);
+        assertTrue(flowManagement.sessionFlows.isReferenced(current));
+        // changes made before passivation are not lost and draining does not rehydrate.
+        List<FlowValuesMapChange> changes = parked.drainChanges();
+        assertFalse(changes.isEmpty());
+        assertTrue(parked.isValuesPassivated());
+
+        assertEquals(parked.getProperty(FSTITLE_TEXT), "parked");
+        assertEquals(parked.getProperty(FSRETURN_TO_FLOW), current.getLookupKey());
+        assertFalse(parked.isValuesPassivated());
+        assertNotNull(parked.getCurrentActivity());
+        assertEquals(store.getStoredBytes(), 0);
+        assertEquals(store.size(), 0);
+        assertTrue(parked.drainChanges().isEmpty());
+
+        // a store that cannot take the values leaves them on the heap.
+        flowManagement.setFlowStatePassivationStore(new FlowStatePassivationStore() {
+            @Override
+            public void put(String lookupKey, byte[] serialized) {
+                throw new IllegalStateException("full");
+            }
+            @Override
+            public byte[] remove(String lookupKey) {
+                return null;
+            }
+            @Override
+            public long getStoredBytes() {
+                return 0;
+            }
+        });
+        parked.setProperty(FSTITLE_TEXT, "kept");
+        assertEquals(flowManagement.passivateIdleFlowStates(), 0);
+        assertFalse(parked.isValuesPassivated());
+        assertEquals(parked.getProperty(FSTITLE_TEXT), "kept");
+        assertEquals(parked.drainChanges().size(), 1);
+    }
+
+    /**
+     * Two nodes sharing a {@link FlowStateRepository}: either can continue the session's flows and only changed FlowStates are saved.
+     */
+    @Test
+    public void testFlowStateRepository() {
+        FlowStateRepository repository = new MemoryFlowStateRepository();
+        FlowTestingUtils node1 = new FlowTestingUtils();
+        String flowTypeName = node1.addFlowDefinition(new FlowActivityImpl().initInvisible(false));
+        FlowTestingUtils node2 = new FlowTestingUtils();
+        node2.addFlowDefinition(flowTypeName, new FlowActivityImpl().initInvisible(false));
+        BaseFlowManagement flowManagement1 = (BaseFlowManagement) node1.getFlowManagement();
+        BaseFlowManagement flowManagement2 = (BaseFlowManagement) node2.getFlowManagement();
+        for(BaseFlowManagement flowManagement: new BaseFlowManagement[] { flowManagement1, flowManagement2 }) {
+            flowManagement.setFlowStateRepository(repository);
+            flowManagement.setSessionId("session");
+        }
+
+        FlowStateImplementor flowState1 = flowManagement1.startFlowState(flowTypeName, true, null);
+        flowState1.setProperty(FSTITLE_TEXT, "node1");
+        assertEquals(flowManagement1.saveChangedFlowStates(), 1);
+        assertEquals(flowState1.getRepositoryVersion(), 1);
+        // nothing changed.
+        assertEquals(flowManagement1.saveChangedFlowStates(), 0);
+
+        FlowStateImplementor flowState2 = flowManagement2.getFlowState(flowState1.getLookupKey());
+        assertNotNull(flowState2);
+        assertEquals(flowState2.getProperty(FSTITLE_TEXT), "node1");
+        assertEquals(flowState2.getFlowTypeName(), flowTypeName);
+        flowState2.setProperty(FSTITLE_TEXT, "node2");
+        assertEquals(flowManagement2.saveChangedFlowStates(), 1);
+
+        // node1's copy is stale: its changes are rejected and it reloads node2's version.
+        flowState1.setProperty(FSTITLE_TEXT, "stale");
+        try {
+            flowManagement1.saveChangedFlowStates();
+            fail("stale FlowState saved");
+        } catch (StaleFlowStateException e) {
+            assertEquals(e.getLookupKey(), flowState1.getLookupKey());
+        }
+        FlowStateImplementor reloaded = flowManagement1.getFlowState(flowState1.getLookupKey());
+        assertNotSame(reloaded, flowState1);
+        assertEquals(reloaded.getProperty(FSTITLE_TEXT), "node2");
+        // reloaded in place: still the current flow.
+        assertSame(flowManagement1.getCurrentFlowState(), reloaded);
+        flowManagement1.saveChangedFlowStates();
+
+        // in node1's next request the newer version is used without a failed save first.
+        flowState2.setProperty(FSTITLE_TEXT, "node2 again");
+        assertEquals(flowManagement2.saveChangedFlowStates(), 1);
+        FlowStateImplementor refreshed = flowManagement1.getFlowState(flowState1.getLookupKey());
+        assertNotSame(refreshed, reloaded);
+        assertEquals(refreshed.getProperty(FSTITLE_TEXT), "node2 again");
+        assertSame(flowManagement1.getCurrentFlowState(), refreshed);
+        flowManagement1.saveChangedFlowStates();
+
+        // a new node loads all the session's FlowStates.
+        FlowTestingUtils node3 = new FlowTestingUtils();
+        node3.addFlowDefinition(flowTypeName, new FlowActivityImpl().initInvisible(false));
+        BaseFlowManagement flowManagement3 = (BaseFlowManagement) node3.getFlowManagement();
+        flowManagement3.setFlowStateRepository(repository);
+        // other sessions' FlowStates are not loaded.
+        assertNull(flowManagement3.getFlowState(flowState1.getLookupKey()));
+        flowManagement3.setSessionId("session");
+        assertEquals(flowManagement3.loadSessionFlowStates(), 1);
+        assertEquals(flowManagement3.loadSessionFlowStates(), 0);
+
+        flowManagement2.dropFlowState(flowState2);
+        assertNull(repository.load(flowState1.getLookupKey()));
+        assertTrue(repository.listBySession("session").isEmpty());
+        // dropped by node2: gone from node1 when next used.
+        assertNull(flowManagement1.getCurrentFlowState());
+        assertTrue(flowManagement1.getFlowStates().isEmpty());
+    }
+
+    /**
+     * Saving does not consume the change log and a FlowState that could not be saved is saved by the next call.
+     */
+    @Test
+    public void testSaveChangedFlowStatesFailure() {
+        final boolean[] down = { true };
+        FlowStateRepository repository = new MemoryFlowStateRepository() {
+            @Override
+            public long save(String sessionId, String lookupKey, long expectedVersion, byte[] serialized) {
+                if (down[0]) {
+                    throw new IllegalStateException("repository down");
+                }
+                return super.save(sessionId, lookupKey, expectedVersion, serialized);
+            }
+        };
+        FlowTestingUtils flowTestingUtils = new FlowTestingUtils();
+        String flowTypeName = flowTestingUtils.addFlowDefinition(new FlowActivityImpl().initInvisible(false));
+        BaseFlowManagement flowManagement = (BaseFlowManagement) flowTestingUtils.getFlowManagement();
+        flowManagement.setFlowStateRepository(repository);
+        FlowStateImplementor flowState = flowManagement.startFlowState(flowTypeName, true, null);
+        flowState.drainChanges();
+        flowState.setProperty(FSTITLE_TEXT, "unsaved");
+        try {
+            flowManagement.saveChangedFlowStates();
+            fail("repository failure not reported");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(flowState.getRepositoryVersion(), 0);
+
+        down[0] = false;
+        assertEquals(flowManagement.saveChangedFlowStates(), 1);
+        assertEquals(flowState.getRepositoryVersion(), 1);
+        assertEquals(flowManagement.saveChangedFlowStates(), 0);
+        // still there for other consumers.
+        assertFalse(flowState.drainChanges().isEmpty());
+        assertEquals(flowManagement.saveChangedFlowStates(), 0);
+    }
+
+    /**
+     * The FlowManagement registers with the FlowTx once per transaction in which transaction bound values are cached and the epoch
+     * moves on when the FlowTx reports the completion.
+     */
+    @Test
+    public void testTransactionCompleted() {
+        FlowTestingUtils flowTestingUtils = new FlowTestingUtils();
+        BaseFlowManagement flowManagement = (BaseFlowManagement) flowTestingUtils.getFlowManagement();
+        CompletingFlowTx flowTx = new CompletingFlowTx();
+        flowManagement.setFlowTx(flowTx);
+        long epoch = flowManagement.getTransactionEpoch();
+        flowTx.complete();
+        assertEquals(flowManagement.getTransactionEpoch(), epoch);
+
+        flowManagement.registerForCacheClearing();
+        flowManagement.registerForCacheClearing();
+        assertEquals(flowTx.flowTxListeners.size(), 1);
+        flowTx.complete();
+        assertEquals(flowManagement.getTransactionEpoch(), epoch + 1);
+
+        flowManagement.registerForCacheClearing();
+        assertEquals(flowTx.flowTxListeners.size(), 1);
+        flowTx.complete();
+        assertEquals(flowManagement.getTransactionEpoch(), epoch + 2);
+    }
+
+    private static class CompletingFlowTx implements FlowTx {
+        private final List<FlowTxListener> flowTxListeners = new ArrayList<FlowTxListener>();
+
+        public void complete() {
+            List<FlowTxListener> completed = new ArrayList<FlowTxListener>(flowTxListeners);
+            flowTxListeners.clear();
+            for(FlowTxListener flowTxListener: completed) {
+                flowTxListener.transactionCompleted();
+            }
+        }
+        @Override
+        public <T> boolean flushIfNeeded(T... entities) {
+            return false;
+        }
+        @Override
+        public <T, K> T load(Class<? extends T> clazz, K entityId, boolean nullIdReturnsNull) {
+            return null;
+        }
+        @Override
+        public <T, K> T get(Class<? extends T> clazz, K entityId, boolean nullIdReturnsNull) {
+            return null;
+        }
+        @Override
+        public void delete(Object entity) {
+        }
+        @Override
+        public <T> T saveOrUpdate(T entity) {
+            return entity;
+        }
+        @Override
+        public void addFlowTxListener(FlowTxListener flowTxListener) {
+            flowTxListeners.add(flowTxListener);
+        }
+    }
+}
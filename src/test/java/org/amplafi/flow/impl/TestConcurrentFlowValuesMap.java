@@ -0,0 +1,145 @@
+package org.amplafi.flow.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.amplafi.flow.FlowValueMapKey;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test {@link ConcurrentFlowValuesMap}
+ * @author patmoore
+ *
+ */
+public class TestConcurrentFlowValuesMap {
+
+    @Test
+    public void testInsertionOrder() {
+        ConcurrentFlowValuesMap map = new ConcurrentFlowValuesMap();
+        for(int i = 0; i < 100; i++) {
+            map.put("ns"+(i%3), "key"+i, Integer.toString(i));
+        }
+        map.removeFromNamespace("ns0", "key0");
+        map.put("ns0", "key0", "again");
+        Iterator<Map.Entry<FlowValueMapKey, String>> iterator = map.entrySet().iterator();
+        for(int i = 1; i < 100; i++) {
+            assertEquals(iterator.next().getValue(), Integer.toString(i));
+        }
+        assertEquals(iterator.next().getValue(), "again");
+        assertFalse(iterator.hasNext());
+        assertEquals(map.size(), 100);
+        assertEquals(map.getAsFlattenedStringMap().size(), 100);
+        map.removeNamespace("ns1");
+        assertEquals(map.size(), 67);
+        assertFalse(map.getNamespaces().contains("ns1"));
+    }
+
+    /**
+     * Parallel writers and readers ( with iteration ) must not interfere with each other.
+     * @throws Exception
+     */
+    @Test
+    public void testParallelAccess() throws Exception {
+        final ConcurrentFlowValuesMap map = new ConcurrentFlowValuesMap();
+        final int threads = 8;
+        final int keys = 500;
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for(int t = 0; t < threads; t++) {
+                final String namespace = "ns"+t;
+                futures.add(executorService.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int iterated = 0;
+                        for(int i = 0; i < keys; i++) {
+                            map.put(namespace, "key"+i, Integer.toString(i));
+                            assertEquals(map.get(namespace, "key"+i), Integer.toString(i));
+                            if ( i % 2 == 0) {
+                                map.removeFromNamespace(namespace, "key"+i);
+                            }
+                            if ( i % 50 == 0) {
+                                for(Map.Entry<FlowValueMapKey, String> entry: map.entrySet()) {
+                                    assertNotNull(entry.getKey());
+                                    iterated++;
+                                }
+                            }
+                        }
+                        return iterated;
+                    }
+                }));
+            }
+            for(Future<Integer> future: futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+        assertEquals(map.size(), threads * keys / 2);
+        assertEquals(map.entrySet().size(), threads * keys / 2);
+        assertEquals(map.getAsFlattenedStringMap().size(), threads * keys / 2);
+    }
+
+    /**
+     * Every value put is either replaced by a later put, removed or still in the map: a put racing with a remove is never lost.
+     * @throws Exception
+     */
+    @Test
+    public void testPutRemoveRace() throws Exception {
+        final ConcurrentFlowValuesMap map = new ConcurrentFlowValuesMap();
+        final int threads = 4;
+        final int puts = 20000;
+        ExecutorService executorService = Executors.newFixedThreadPool(threads * 2);
+        try {
+            List<Future<Integer>> putters = new ArrayList<Future<Integer>>();
+            List<Future<Integer>> removers = new ArrayList<Future<Integer>>();
+            for(int t = 0; t < threads; t++) {
+                final int thread = t;
+                putters.add(executorService.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int replaced = 0;
+                        for(int i = 0; i < puts; i++) {
+                            if ( map.put("ns", "key", thread + ":" + i) != null ) {
+                                replaced++;
+                            }
+                        }
+                        return replaced;
+                    }
+                }));
+                removers.add(executorService.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int removed = 0;
+                        for(int i = 0; i < puts; i++) {
+                            if ( map.removeFromNamespace("ns", "key") != null ) {
+                                removed++;
+                            }
+                        }
+                        return removed;
+                    }
+                }));
+            }
+            int accounted = 0;
+            for(Future<Integer> future: putters) {
+                accounted += future.get();
+            }
+            for(Future<Integer> future: removers) {
+                accounted += future.get();
+            }
+            accounted += map.size();
+            assertEquals(accounted, threads * puts);
+            assertEquals(map.size(), map.containsKey("ns", "key")? 1: 0);
+        } finally {
+            executorService.shutdown();
+        }
+    }
+}
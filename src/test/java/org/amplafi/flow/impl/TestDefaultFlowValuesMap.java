@@ -0,0 +1,200 @@
+package org.amplafi.flow.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.amplafi.flow.FlowValueMapKey;
+import org.amplafi.flow.FlowValuesMapChange;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test {@link DefaultFlowValuesMap}
+ * @author patmoore
+ *
+ */
+public class TestDefaultFlowValuesMap {
+
+    /**
+     * A DefaultFlowValuesMap ( null:global=value, ns1:key=v1, ns1:other=null ) serialized before the compact form.
+     */
+    private static final String OLD_FORM =
+        "aced00057372002a6f72672e616d706c6166692e666c6f772e696d706c2e44656661756c74466c6f7756616c7565734d6170"
+        + "636916fca70035810200014c00036d617074000f4c6a6176612f7574696c2f4d61703b7870737200256a6176612e7574696c"
+        + "2e436f6c6c656374696f6e732453796e6368726f6e697a65644d61701b73f9094b4b397b0300024c00016d71007e00014c00"
+        + "056d757465787400124c6a6176612f6c616e672f4f626a6563743b7870737200176a6176612e7574696c2e4c696e6b656448"
+        + "6173684d617034c04e5c106cc0fb0200015a000b6163636573734f72646572787200116a6176612e7574696c2e486173684d"
+        + "61700507dac1c31660d103000246000a6c6f6164466163746f724900097468726573686f6c6478703f4000000000000c7708"
+        + "00000010000000037372002d6f72672e616d706c6166692e666c6f772e696d706c2e44656661756c74466c6f7756616c7565"
+        + "734d61704b6579b14bc12204e0835f0200034c00036b65797400124c6a6176612f6c616e672f537472696e673b4c00096e61"
+        + "6d65737061636571007e000a4c000b737472696e6756616c756571007e000a7870740006676c6f62616c707074000576616c"
+        + "75657371007e00097400036b65797400036e73317074000276317371007e00097400056f7468657271007e00107070780071"
+        + "007e000578";
+
+    /**
+     * Make sure that the same (namespace, key) pair always maps to the same pooled key and that lookups
+     * see the values regardless of how the namespace and key are supplied.
+     */
+    @Test
+    public void testKeyPooling() {
+        DefaultFlowValuesMap map = new DefaultFlowValuesMap();
+        map.put("ns", "key", "value");
+        map.put(" ns ", new StringBuilder("key"), "value2");
+        assertEquals(map.size(), 1);
+        assertEquals(map.get("ns", "key"), "value2");
+        assertTrue(map.containsKey("ns", "key"));
+        assertFalse(map.containsKey("ns", "other"));
+        assertNull(map.get("other", "key"));
+
+        FlowValueMapKey key = map.keySet().iterator().next();
+        assertSame(map.toKey("ns", "key"), key);
+        assertEquals(key.hashCode(), new DefaultFlowValuesMapKey("ns", "key").hashCode());
+        assertEquals(key.toString(), new DefaultFlowValuesMapKey("ns", "key").toString());
+
+        assertEquals(map.removeFromNamespace("ns", "key"), "value2");
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey("ns", "key"));
+        map.put(null, "key", "global");
+        assertEquals(map.get("key"), "global");
+        assertEquals(map.remove("key"), "global");
+        assertTrue(map.isEmpty());
+    }
+
+    /**
+     * Changes to the same key are combined. Changes that cancel out are not reported.
+     */
+    @Test
+    public void testDrainChanges() {
+        Map<String, String> initial = new HashMap<String, String>();
+        initial.put("existing", "initial");
+        DefaultFlowValuesMap map = new DefaultFlowValuesMap(initial);
+        // nothing is recorded before the first drain.
+        map.put("ns", "undrained", "x");
+        // but always counted and draining does not reset the count.
+        assertEquals(map.getModificationCount(), 1);
+        assertTrue(map.drainChanges().isEmpty());
+        assertEquals(map.getModificationCount(), 1);
+        map.put("ns", "key", "1");
+        map.put("ns", "key", "2");
+        map.put(null, "existing", "changed");
+        map.put("ns", "temp", "x");
+        map.removeFromNamespace("ns", "temp");
+        List<FlowValuesMapChange> changes = map.drainChanges();
+        assertEquals(changes.size(), 2);
+        assertEquals(changes.get(0).getKey(), "key");
+        assertFalse(changes.get(0).isPreviouslyPresent());
+        assertEquals(changes.get(0).getNewValue(), "2");
+        assertEquals(changes.get(1).getOldValue(), "initial");
+        assertEquals(changes.get(1).getNewValue(), "changed");
+        assertTrue(map.drainChanges().isEmpty());
+
+        map.remove("existing");
+        changes = map.drainChanges();
+        assertEquals(changes.size(), 1);
+        assertTrue(changes.get(0).isRemoved());
+
+        PersistentFlowValuesMap persistentFlowValuesMap = new PersistentFlowValuesMap();
+        persistentFlowValuesMap.drainChanges();
+        persistentFlowValuesMap.put("ns", "key", "1");
+        persistentFlowValuesMap.put("ns", "key", "2");
+        assertEquals(persistentFlowValuesMap.getModificationCount(), 2);
+        assertEquals(persistentFlowValuesMap.drainChanges().size(), 1);
+        assertTrue(persistentFlowValuesMap.copy().drainChanges().isEmpty());
+    }
+
+    /**
+     * Round trip through the compact form: namespaces, null values, non-ascii and long ( > 64K ) values and insertion order survive.
+     */
+    @Test
+    public void testSerialization() throws Exception {
+        StringBuilder longValue = new StringBuilder();
+        for(int i = 0; i < 70000; i++) {
+            longValue.append((char)('a' + i % 26));
+        }
+        DefaultFlowValuesMap map = new DefaultFlowValuesMap();
+        map.put(null, "global", "value");
+        map.put("ns1", "key", "caf\u00e9 \u65e5\u672c");
+        map.put("ns2", "key", null);
+        map.put("ns1", "long", longValue.toString());
+        map.put("ns2", "", "");
+
+        DefaultFlowValuesMap copy = roundTrip(map);
+        assertEquals(copy.size(), map.size());
+        assertEquals(copy.getAsFlattenedStringMap(), map.getAsFlattenedStringMap());
+        assertEquals(copy.getNamespaces(), map.getNamespaces());
+        assertEquals(copy.get("ns1", "key"), "caf\u00e9 \u65e5\u672c");
+        assertTrue(copy.containsKey("ns2", "key"));
+        assertNull(copy.get("ns2", "key"));
+        assertEquals(copy.get("global"), "value");
+        assertTrue(copy.drainChanges().isEmpty());
+        // pool rebuilt
+        copy.put("ns1", "key", "changed");
+        assertEquals(copy.size(), map.size());
+
+        assertTrue(roundTrip(new DefaultFlowValuesMap()).isEmpty());
+    }
+
+    /**
+     * The cached hash and string form are recomputed when a key is deserialized.
+     */
+    @Test
+    public void testKeySerialization() throws Exception {
+        DefaultFlowValuesMapKey key = new DefaultFlowValuesMapKey("ns", "key");
+        DefaultFlowValuesMapKey copy = roundTrip(key);
+        assertEquals(copy, key);
+        assertEquals(copy.hashCode(), key.hashCode());
+        assertEquals(copy.toString(), key.toString());
+    }
+
+    /**
+     * Sessions serialized before the compact form can still be read.
+     */
+    @Test
+    public void testOldSerializedForm() throws Exception {
+        byte[] bytes = new byte[OLD_FORM.length() / 2];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(OLD_FORM.substring(2 * i, 2 * i + 2), 16);
+        }
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        DefaultFlowValuesMap map = (DefaultFlowValuesMap) in.readObject();
+        assertEquals(map.size(), 3);
+        assertEquals(map.get("global"), "value");
+        assertEquals(map.get("ns1", "key"), "v1");
+        assertTrue(map.containsKey("ns1", "other"));
+        assertNull(map.get("ns1", "other"));
+        assertTrue(map.drainChanges().isEmpty());
+        map.put("ns1", "key", "changed");
+        assertEquals(map.size(), 3);
+
+        DefaultFlowValuesMap copy = roundTrip(map);
+        assertEquals(copy.getAsFlattenedStringMap(), map.getAsFlattenedStringMap());
+    }
+
+    @Test(expectedExceptions=InvalidClassException.class)
+    public void testUnknownVersion() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeByte(99);
+        out.close();
+        new DefaultFlowValuesMap().readCompact(new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    static <T> T roundTrip(T object) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        @SuppressWarnings("unchecked")
+        T result = (T) in.readObject();
+        return result;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.util.List;
+import java.util.Map;
+
+import org.amplafi.flow.FlowTestingUtils;
+import org.amplafi.flow.FlowUtils;
+import org.amplafi.flow.FlowValuesMap;
+import org.amplafi.flow.FlowValuesMapChange;
+import org.amplafi.flow.flowproperty.FlowPropertyDefinitionBuilder;
+import org.amplafi.flow.flowproperty.PropertyScope;
+import org.amplafi.flow.flowproperty.PropertyUsage;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test {@link ExportedFlowValuesMap}
+ * @author patmoore
+ *
+ */
+public class TestExportedFlowValuesMap {
+
+    /**
+     * Only the properties read are exported and the result is the same as exporting everything at once.
+     */
+    @Test
+    public void testExportOnRead() {
+        FlowStateImpl flowState = newFlowState();
+        Object globalOutput = flowState.getFlowValuesMap().get("output");
+        ExportedFlowValuesMap exported = (ExportedFlowValuesMap) flowState.getExportedValuesMap();
+        assertFalse(exported.isExported("output"));
+        assertEquals(exported.get("output"), "changed");
+        assertTrue(exported.isExported("output"));
+        assertFalse(exported.isExported("internal"));
+        assertEquals(exported.get("pass-through"), "unchanged");
+        // the exporting FlowState is not altered.
+        assertEquals(flowState.getFlowValuesMap().get("output"), globalOutput);
+
+        FlowValuesMap all = flowState.exportProperties(false);
+        assertEquals(exported.getAsFlattenedStringMap(), all.getAsFlattenedStringMap());
+        assertTrue(exported.isExported("internal"));
+    }
+
+    /**
+     * Copies are independent and only record their own changes.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCopy() {
+        FlowStateImpl flowState = newFlowState();
+        ExportedFlowValuesMap exported = (ExportedFlowValuesMap) flowState.getExportedValuesMap();
+        FlowValuesMap copy = exported.copy();
+        assertTrue(copy instanceof ExportedFlowValuesMap);
+        assertTrue(copy.drainChanges().isEmpty());
+        copy.put(null, "output", "callee");
+        assertEquals(copy.get("output"), "callee");
+        assertEquals(exported.get("output"), "changed");
+        List<FlowValuesMapChange> changes = copy.drainChanges();
+        assertEquals(changes.size(), 1);
+        assertEquals(changes.get(0).getNewValue(), "callee");
+        assertTrue(exported.drainChanges().isEmpty());
+
+        // fully exported: copies are of the underlying map.
+        assertEquals(exported.size(), flowState.exportProperties(false).size());
+        assertFalse(exported.copy() instanceof ExportedFlowValuesMap);
+    }
+    /**
+     * A FlowState started with the exported values owns a plain, fully exported map.
+     */
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testAdoptedValuesAreMaterialized() {
+        FlowStateImpl flowState = newFlowState();
+        FlowValuesMap exported = flowState.getExportedValuesMap();
+        FlowStateImpl callee = new FlowStateImpl(flowState.getFlowTypeName(), flowState.getFlowManagement(), (Map<String, String>) (Map) exported);
+        assertFalse(callee.getFlowValuesMap() instanceof ExportedFlowValuesMap);
+        assertEquals(callee.getFlowValuesMap().getAsFlattenedStringMap(), flowState.exportProperties(false).getAsFlattenedStringMap());
+    }
+
+    private FlowStateImpl newFlowState() {
+        FlowTestingUtils flowTestingUtils = new FlowTestingUtils();
+        FlowActivityImpl flowActivity = new FlowActivityImpl().initInvisible(false);
+        flowActivity.addPropertyDefinitions(new FlowPropertyDefinitionBuilder("output").initAccess(PropertyScope.flowLocal, PropertyUsage.io),
+            new FlowPropertyDefinitionBuilder("internal").initAccess(PropertyScope.activityLocal, PropertyUsage.internalState));
+        String flowTypeName = flowTestingUtils.addFlowDefinition(flowActivity);
+        FlowStateImpl flowState = (FlowStateImpl) flowTestingUtils.getFlowManagement().startFlowState(flowTypeName, false,
+            FlowUtils.INSTANCE.createState("pass-through", "unchanged", "output", "initial"));
+        flowState.setProperty("output", "changed");
+        flowState.setProperty("internal", "hidden");
+        return flowState;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.util.Arrays;
+
+import org.amplafi.flow.FlowImplementor;
+import org.amplafi.flow.flowproperty.FlowPropertyCacheSlots;
+import org.amplafi.flow.flowproperty.FlowPropertyDefinitionBuilder;
+import org.amplafi.flow.flowproperty.FlowPropertyDefinitionImplementor;
+import org.amplafi.flow.flowproperty.PropertyScope;
+import org.apache.commons.lang.StringUtils;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test {@link FlowPropertyValueCache}
+ * @author patmoore
+ *
+ */
+public class TestFlowPropertyValueCache {
+
+    @Test
+    public void testSlotsAndOverflow() {
+        FlowPropertyDefinitionImplementor slotted = new FlowPropertyDefinitionBuilder("slotted", Long.class).toFlowPropertyDefinition();
+        FlowPropertyDefinitionImplementor dynamic = new FlowPropertyDefinitionBuilder("dynamic", Long.class).toFlowPropertyDefinition();
+        FlowActivityImpl provider = new FlowActivityImpl();
+        FlowActivityImpl otherProvider = new FlowActivityImpl();
+
+        FlowPropertyValueCache cache = new FlowPropertyValueCache(new FlowPropertyCacheSlots(Arrays.asList(slotted)));
+        cache.put(slotted, provider, "ns", 1L);
+        cache.put(dynamic, provider, "ns", 2L);
+        assertEquals(cache.get(slotted, provider), 1L);
+        // fast path only for slotted definitions and the same provider
+        assertNull(cache.get(dynamic, provider));
+        assertNull(cache.get(slotted, otherProvider));
+        assertEquals(cache.get(slotted, otherProvider, "ns"), 1L);
+        assertEquals(cache.get(dynamic, provider, "ns"), 2L);
+        assertNull(cache.get(slotted, provider, "other"));
+        assertEquals(cache.get("ns", "slotted"), 1L);
+
+        // invalidation by (namespace, name)
+        cache.put("ns", "slotted", null);
+        assertNull(cache.get(slotted, provider));
+        assertNull(cache.get(slotted, provider, "ns"));
+        cache.remove("ns", "dynamic");
+        assertNull(cache.get(dynamic, provider, "ns"));
+
+        // raw put replaces the slotted value.
+        cache.put(slotted, provider, "ns", 3L);
+        cache.put("ns", "slotted", 4L);
+        assertNull(cache.get(slotted, provider));
+        assertEquals(cache.get(slotted, provider, "ns"), 4L);
+    }
+
+    /**
+     * Property definitions of a flow definition get distinct dense slots when an instance is created. A definition shared by two flows
+     * has a slot in each flow.
+     */
+    @Test
+    public void testCacheSlotAssignment() {
+        FlowActivityImpl activity = new FlowActivityImpl();
+        activity.addPropertyDefinitions(new FlowPropertyDefinitionBuilder("activityProperty", Long.class).initPropertyScope(PropertyScope.activityLocal));
+        FlowImpl flow = new FlowImpl("testCacheSlotAssignment", activity);
+        FlowImplementor instance = flow.createInstance();
+        FlowPropertyCacheSlots slots = instance.getCacheSlots();
+        assertSame(slots, flow.getCacheSlots());
+        int slotCount = slots.size();
+        FlowPropertyDefinitionImplementor activityProperty = activity.getFlowPropertyDefinition("activityProperty");
+        assertTrue(slots.getSlot(activityProperty) >= 0 && slots.getSlot(activityProperty) < slotCount);
+        boolean[] used = new boolean[slotCount];
+        for(Object definition: flow.getPropertyDefinitions().values()) {
+            int slot = slots.getSlot((FlowPropertyDefinitionImplementor)definition);
+            assertFalse(used[slot]);
+            used[slot] = true;
+        }
+        assertFalse(used[slots.getSlot(activityProperty)]);
+        assertEquals(slots.getSlot(new FlowPropertyDefinitionBuilder("dynamic", Long.class).toFlowPropertyDefinition()), -1);
+
+        FlowPropertyDefinitionImplementor shared = new FlowPropertyDefinitionBuilder("shared", Long.class).toFlowPropertyDefinition();
+        FlowPropertyDefinitionImplementor first = new FlowPropertyDefinitionBuilder("first", Long.class).toFlowPropertyDefinition();
+        FlowPropertyDefinitionImplementor second = new FlowPropertyDefinitionBuilder("second", Long.class).toFlowPropertyDefinition();
+        FlowPropertyCacheSlots firstSlots = new FlowPropertyCacheSlots(Arrays.asList(first, shared, first));
+        FlowPropertyCacheSlots secondSlots = new FlowPropertyCacheSlots(Arrays.asList(shared, second));
+        assertEquals(firstSlots.size(), 2);
+        assertEquals(firstSlots.getSlot(first), 0);
+        assertEquals(firstSlots.getSlot(shared), 1);
+        assertEquals(secondSlots.getSlot(shared), 0);
+        assertEquals(secondSlots.getSlot(second), 1);
+    }
+
+    /**
+     * Least recently used reloadable values are evicted, pinned values are kept and counted.
+     */
+    @Test
+    public void testLruEviction() {
+        FlowPropertyDefinitionImplementor first = new FlowPropertyDefinitionBuilder("first", String.class).toFlowPropertyDefinition();
+        FlowPropertyDefinitionImplementor second = new FlowPropertyDefinitionBuilder("second", String.class).toFlowPropertyDefinition();
+        FlowPropertyDefinitionImplementor pinned = new FlowPropertyDefinitionBuilder("pinned", String.class).toFlowPropertyDefinition();
+        FlowActivityImpl provider = new FlowActivityImpl();
+
+        FlowPropertyValueCache cache = new FlowPropertyValueCache(new FlowPropertyCacheSlots(Arrays.asList(first, second)), DefaultFlowPropertyValueCachePolicy.lru(2, Long.MAX_VALUE));
+        cache.put(pinned, provider, "ns", "pinned", false);
+        cache.put(first, provider, "ns", "first", true);
+        assertEquals(cache.size(), 2);
+        cache.get(first, provider);
+        cache.put(second, provider, "ns", "second", true);
+        // first is the only reloadable value so it is evicted.
+        assertEquals(cache.size(), 2);
+        assertNull(cache.get(first, provider, "ns"));
+        assertEquals(cache.get(second, provider), "second");
+        assertEquals(cache.get(pinned, provider, "ns"), "pinned");
+
+        cache.put(first, provider, "ns", "first", true);
+        assertNull(cache.get(second, provider, "ns"));
+        assertEquals(cache.get(first, provider), "first");
+        assertEquals(cache.get(pinned, provider, "ns"), "pinned");
+    }
+
+    @Test
+    public void testEstimatedBytes() {
+        FlowPropertyDefinitionImplementor slotted = new FlowPropertyDefinitionBuilder("slotted", String.class).toFlowPropertyDefinition();
+        FlowActivityImpl provider = new FlowActivityImpl();
+        DefaultFlowPropertyValueCachePolicy policy = DefaultFlowPropertyValueCachePolicy.lru(Integer.MAX_VALUE, 200);
+        long small = policy.estimateBytes("small");
+        assertTrue(small > 0);
+        assertTrue(policy.estimateBytes(Arrays.asList("a", "b", "c")) > policy.estimateBytes(Arrays.asList("a")));
+
+        FlowPropertyValueCache cache = new FlowPropertyValueCache(new FlowPropertyCacheSlots(Arrays.asList(slotted)), policy);
+        cache.put(slotted, provider, "ns", "small", true);
+        cache.put("ns", "overflow", "small", true);
+        assertEquals(cache.getEstimatedBytes(), 2 * small);
+        cache.remove("ns", "slotted");
+        assertEquals(cache.getEstimatedBytes(), small);
+
+        // over the byte limit: the reloadable value is evicted.
+        String large = StringUtils.repeat("x", 100);
+        cache.put(slotted, provider, "ns", large, false);
+        assertNull(cache.get("ns", "overflow"));
+        assertEquals(cache.get(slotted, provider), large);
+        assertEquals(cache.getEstimatedBytes(), policy.estimateBytes(large));
+        assertEquals(cache.size(), 1);
+    }
+
+    /**
+     * A slot taken over by another namespace releases the previous value: the counts do not drift and the previous value's eviction does
+     * not remove the new one.
+     */
+    @Test
+    public void testSlotCollision() {
+        FlowPropertyDefinitionImplementor local = new FlowPropertyDefinitionBuilder("local", String.class).toFlowPropertyDefinition();
+        FlowPropertyDefinitionImplementor other = new FlowPropertyDefinitionBuilder("other", String.class).toFlowPropertyDefinition();
+        FlowActivityImpl provider = new FlowActivityImpl();
+        FlowActivityImpl otherProvider = new FlowActivityImpl();
+        DefaultFlowPropertyValueCachePolicy policy = DefaultFlowPropertyValueCachePolicy.lru(2, Long.MAX_VALUE);
+
+        FlowPropertyValueCache cache = new FlowPropertyValueCache(new FlowPropertyCacheSlots(Arrays.asList(local, other)), policy);
+        for(int i = 0; i < 10; i++) {
+            cache.put(local, provider, "a", "value", true);
+            cache.put(local, otherProvider, "b", "value", true);
+        }
+        assertEquals(cache.size(), 1);
+        assertEquals(cache.getEstimatedBytes(), policy.estimateBytes("value"));
+        assertNull(cache.get(local, provider, "a"));
+        assertEquals(cache.get(local, otherProvider, "b"), "value");
+
+        cache.put(local, provider, "a", "pinned", false);
+        assertEquals(cache.size(), 1);
+        assertEquals(cache.getEstimatedBytes(), policy.estimateBytes("pinned"));
+        assertNull(cache.get(local, otherProvider, "b"));
+
+        cache.put(other, provider, "a", "other", true);
+        cache.put("a", "overflow", "overflow", true);
+        // only the least recently used reloadable value is evicted, not the pinned value that replaced a reloadable one.
+        assertEquals(cache.size(), 2);
+        assertEquals(cache.get(local, provider), "pinned");
+        assertNull(cache.get(other, provider, "a"));
+        assertEquals(cache.get("a", "overflow"), "overflow");
+    }
+
+    /**
+     * Only transaction bound values are dropped when the transaction epoch changes.
+     */
+    @Test
+    public void testTransactionEpoch() {
+        FlowPropertyDefinitionImplementor entity = new FlowPropertyDefinitionBuilder("entity", Object.class).toFlowPropertyDefinition();
+        FlowPropertyDefinitionImplementor value = new FlowPropertyDefinitionBuilder("value", Long.class).toFlowPropertyDefinition();
+        FlowActivityImpl provider = new FlowActivityImpl();
+        DefaultFlowPropertyValueCachePolicy policy = DefaultFlowPropertyValueCachePolicy.UNBOUNDED;
+        Object entityValue = new Object();
+        assertTrue(policy.isTransactionBound(entityValue));
+        assertTrue(policy.isTransactionBound(Arrays.asList(1L, entityValue)));
+        assertFalse(policy.isTransactionBound(Arrays.asList(1L, "value")));
+        assertFalse(policy.isTransactionBound(new long[] { 1L }));
+
+        FlowPropertyValueCache cache = new FlowPropertyValueCache(new FlowPropertyCacheSlots(Arrays.asList(entity, value)), policy);
+        assertTrue(cache.put(entity, provider, "ns", entityValue, true));
+        assertFalse(cache.put(value, provider, "ns", 1L, true));
+        assertTrue(cache.put("ns", "overflow", entityValue, false));
+        assertSame(cache.get(entity, provider), entityValue);
+
+        cache.setTransactionEpoch(1);
+        assertNull(cache.get(entity, provider));
+        assertNull(cache.get("ns", "overflow"));
+        assertEquals(cache.get(value, provider), 1L);
+        assertEquals(cache.size(), 1);
+        assertEquals(cache.getEstimatedBytes(), policy.estimateBytes(1L));
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.amplafi.flow.FlowActivity;
+import org.amplafi.flow.FlowActivityImplementor;
+import org.amplafi.flow.FlowPropertyDefinition;
+import org.amplafi.flow.FlowPropertyExpectation;
+import org.amplafi.flow.FlowPropertyValueProvider;
+import org.amplafi.flow.FlowState;
+import org.amplafi.flow.FlowTestingUtils;
+import org.amplafi.flow.flowproperty.BatchFlowPropertyValueChangeListener;
+import org.amplafi.flow.flowproperty.FlowPropertyDefinitionBuilder;
+import org.amplafi.flow.flowproperty.FlowPropertyProvider;
+import org.amplafi.flow.flowproperty.FlowPropertyProviderWithValues;
+import org.amplafi.flow.flowproperty.FlowPropertyValueChange;
+import org.amplafi.flow.flowproperty.PropertyScope;
+import org.amplafi.flow.flowproperty.PropertyUsage;
+import org.amplafi.flow.flowproperty.SideEffectFreeFlowPropertyValueProvider;
+import org.testng.annotations.Test;
+
+import static org.amplafi.flow.FlowStateLifecycle.*;
+import static org.testng.Assert.*;
+
+/**
+ * Test {@link FlowStateImpl}
+ * @author patmoore
+ *
+ */
+public class TestFlowStateImpl {
+
+    /**
+     * A restored FlowState has the same identity, position, lifecycle and values but is not attached to a FlowManagement.
+     */
+    @Test
+    public void testSerialization() throws Exception {
+        FlowTestingUtils flowTestingUtils = new FlowTestingUtils();
+        String flowTypeName = flowTestingUtils.addFlowDefinition(new FlowActivityImpl().initInvisible(false));
+        FlowStateImpl flowState = (FlowStateImpl) flowTestingUtils.getFlowManagement().startFlowState(flowTypeName, true, null);
+        flowState.setProperty("user-value", "caf\u00e9");
+
+        FlowStateImpl restored = TestDefaultFlowValuesMap.roundTrip(flowState);
+        assertEquals(restored.getLookupKey(), flowState.getLookupKey());
+        assertEquals(restored.getFlowTypeName(), flowTypeName);
+        assertEquals(restored.getFlowStateLifecycle(), started);
+        assertEquals(restored.getFlowValuesMap().getAsFlattenedStringMap(), flowState.getFlowValuesMap().getAsFlattenedStringMap());
+        assertNull(restored.getFlowManagement());
+
+        flowState.setFlowValuesMap(new PersistentFlowValuesMap(flowState.getFlowValuesMap()));
+        restored = TestDefaultFlowValuesMap.roundTrip(flowState);
+        assertTrue(restored.getFlowValuesMap() instanceof PersistentFlowValuesMap);
+        assertEquals(restored.getFlowValuesMap().getAsFlattenedStringMap(), flowState.getFlowValuesMap().getAsFlattenedStringMap());
+    }
+
+    /**
+     * Initial values and {@link FlowStateImpl#setProperties(Map)} notify a {@link BatchFlowPropertyValueChangeListener} once per batch.
+     */
+    @Test
+    public void testSetPropertiesBatch() {
+        final List<List<FlowPropertyValueChange>> batches = new ArrayList<List<FlowPropertyValueChange>>();
+        BatchFlowPropertyValueChangeListener listener = new BatchFlowPropertyValueChangeListener() {
+            @Override
+            public String propertyChange(FlowPropertyProvider flowPropertyProvider, String namespace, FlowPropertyDefinition flowPropertyDefinition,
+                String newValue, String oldValue) {
+                fail("should be batched");
+                return newValue;
+            }
+            @Override
+            public void propertiesChange(List<FlowPropertyValueChange> flowPropertyValueChanges) {
+                batches.add(flowPropertyValueChanges);
+            }
+        };
+        FlowActivityImpl activity = new FlowActivityImpl().initInvisible(false);
+        activity.addPropertyDefinitions(new FlowPropertyDefinitionBuilder("first").initPropertyScope(PropertyScope.flowLocal).initFlowPropertyValueChangeListener(listener),
+            new FlowPropertyDefinitionBuilder("second").initPropertyScope(PropertyScope.flowLocal).initFlowPropertyValueChangeListener(listener));
+        FlowTestingUtils flowTestingUtils = new FlowTestingUtils();
+        String flowTypeName = flowTestingUtils.addFlowDefinition(activity);
+        Map<String, String> initialFlowState = new HashMap<String, String>();
+        initialFlowState.put("first", "1");
+        initialFlowState.put("second", "2");
+        FlowStateImpl flowState = (FlowStateImpl) flowTestingUtils.getFlowManagement().startFlowState(flowTypeName, true, initialFlowState);
+        assertEquals(flowState.<String>getProperty("first"), "1");
+        assertEquals(flowState.<String>getProperty("second"), "2");
+        // the initial values are one batch.
+        assertFalse(batches.isEmpty());
+        assertEquals(batches.get(0).size(), 2);
+
+        batches.clear();
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("first", "3");
+        values.put("second", "4");
+        values.put("unchanged", null);
+        flowState.setProperties(values);
+        assertEquals(flowState.<String>getProperty("first"), "3");
+        assertEquals(flowState.<String>getProperty("second"), "4");
+        assertEquals(batches.size(), 1);
+        Map<String, String> oldValues = new HashMap<String, String>();
+        for(FlowPropertyValueChange flowPropertyValueChange: batches.get(0)) {
+            oldValues.put(flowPropertyValueChange.getFlowPropertyDefinition().getName(), flowPropertyValueChange.getOldValue());
+        }
+        assertEquals(oldValues, initialFlowState);
+    }
+
+    /**
+     * A {@link SideEffectFreeFlowPropertyValueProvider} is started when the activity is activated and the value is joined by getProperty().
+     * Other providers, even if {@link Callable}, are only called by getProperty().
+     */
+    @Test
+    public void testPrefetchOnActivate() {
+        final List<Thread> computedOn = new ArrayList<Thread>();
+        final List<Thread> callableComputedOn = new ArrayList<Thread>();
+        FlowActivityImpl activity = new FlowActivityImpl().initInvisible(false);
+        activity.addPropertyDefinitions(new FlowPropertyDefinitionBuilder("slow").initFlowPropertyValueProvider(new SideEffectFreeSlowFlowPropertyValueProvider(computedOn)).initAutoCreate(),
+            new FlowPropertyDefinitionBuilder("callable").initFlowPropertyValueProvider(new SlowFlowPropertyValueProvider(callableComputedOn)).initAutoCreate());
+        FlowTestingUtils flowTestingUtils = new FlowTestingUtils();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ((BaseFlowManagement)flowTestingUtils.getFlowManagement()).setFlowPropertyPrefetchExecutor(executor);
+            String flowTypeName = flowTestingUtils.addFlowDefinition(activity);
+            FlowStateImpl flowState = (FlowStateImpl) flowTestingUtils.getFlowManagement().startFlowState(flowTypeName, true, null);
+            FlowActivity currentActivity = flowState.getCurrentActivity();
+            assertEquals(currentActivity.<String>getProperty("slow"), "slow value");
+            assertEquals(computedOn.size(), 1);
+            assertNotSame(computedOn.get(0), Thread.currentThread());
+            assertEquals(currentActivity.<String>getProperty("callable"), "slow value");
+            assertEquals(callableComputedOn, Arrays.asList(Thread.currentThread()));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A cached derived value is recomputed when a property it read changes. A stored derived value is flow state and is kept.
+     */
+    @Test
+    public void testDerivedValueInvalidation() {
+        FlowActivityImpl activity = new FlowActivityImpl().initInvisible(false);
+        activity.addPropertyDefinitions(new FlowPropertyDefinitionBuilder("price"),
+            new FlowPropertyDefinitionBuilder("cachedLabel").initFlowPropertyValueProvider(new PriceLabelFlowPropertyValueProvider()).initAutoCreate()
+                .initAccess(PropertyScope.requestFlowLocal, PropertyUsage.internalState),
+            new FlowPropertyDefinitionBuilder("storedLabel").initFlowPropertyValueProvider(new PriceLabelFlowPropertyValueProvider()).initAutoCreate());
+        FlowTestingUtils flowTestingUtils = new FlowTestingUtils();
+        String flowTypeName = flowTestingUtils.addFlowDefinition(activity);
+        FlowState flowState = flowTestingUtils.getFlowManagement().startFlowState(flowTypeName, true, null);
+        FlowActivity currentActivity = flowState.getCurrentActivity();
+        currentActivity.setProperty("price", "1");
+        assertEquals(currentActivity.<String>getProperty("cachedLabel"), "1!");
+        assertEquals(currentActivity.<String>getProperty("storedLabel"), "1!");
+
+        currentActivity.setProperty("price", "2");
+        assertEquals(currentActivity.<String>getProperty("cachedLabel"), "2!");
+        assertEquals(currentActivity.<String>getProperty("storedLabel"), "1!");
+    }
+
+    /**
+     * The visibility plan is recomputed when a property read by isInvisible() changes.
+     */
+    @Test
+    public void testVisibilityPlan() {
+        FlowTestingUtils flowTestingUtils = new FlowTestingUtils();
+        String flowTypeName = flowTestingUtils.addFlowDefinition(new FlowActivityImpl().initInvisible(false), new FlowActivityImpl().initInvisible(false),
+            new FlowActivityImpl().initInvisible(false));
+        FlowStateImpl flowState = (FlowStateImpl) flowTestingUtils.getFlowManagement().startFlowState(flowTypeName, true, null);
+        assertEquals(flowState.getVisibleActivities().size(), 3);
+        assertTrue(flowState.hasVisibleNext());
+        assertFalse(flowState.hasVisiblePrevious());
+        FlowExecutionPlan plan = flowState.getFlowExecutionPlan();
+        assertSame(flowState.getFlowExecutionPlan(), plan);
+
+        flowState.<FlowActivityImplementor>getActivity(1).setInvisible(true);
+        assertEquals(flowState.getVisibleActivities().size(), 2);
+        assertSame(flowState.getVisibleActivities().get(1), flowState.getActivity(2));
+        assertTrue(flowState.hasVisibleNext());
+        flowState.<FlowActivityImplementor>getActivity(2).setInvisible(true);
+        assertFalse(flowState.hasVisibleNext());
+
+        flowState.<FlowActivityImplementor>getActivity(2).setInvisible(false);
+        assertSame(flowState.selectVisibleActivity(1), flowState.getActivity(2));
+        assertTrue(flowState.hasVisiblePrevious());
+    }
+
+    /**
+     * The visibility plan is discarded by any FlowValuesMap change ( even one that bypasses setProperty() ) and by changes to the activities.
+     * Activities that override isInvisible() are evaluated every time.
+     */
+    @Test
+    public void testVisibilityPlanInvalidation() {
+        FlowTestingUtils flowTestingUtils = new FlowTestingUtils();
+        String flowTypeName = flowTestingUtils.addFlowDefinition(new FlowActivityImpl().initInvisible(false), new FlowActivityImpl().initInvisible(false),
+            new FlowActivityImpl().initInvisible(false));
+        FlowStateImpl flowState = (FlowStateImpl) flowTestingUtils.getFlowManagement().startFlowState(flowTypeName, true, null);
+        assertEquals(flowState.getVisibleActivities().size(), 3);
+        FlowExecutionPlan plan = flowState.getFlowExecutionPlan();
+        assertSame(flowState.getFlowExecutionPlan(), plan);
+        flowState.getFlowValuesMap().put("other", "key", "value");
+        assertNotSame(flowState.getFlowExecutionPlan(), plan);
+
+        plan = flowState.getFlowExecutionPlan();
+        Collections.swap(flowState.getActivities(), 0, 2);
+        assertNotSame(flowState.getFlowExecutionPlan(), plan);
+        assertSame(flowState.getVisibleActivities().get(0), flowState.getActivities().get(0));
+        Collections.swap(flowState.getActivities(), 0, 2);
+
+        String toggledFlowTypeName = flowTestingUtils.addFlowDefinition(new FlowActivityImpl().initInvisible(false), new ToggledFlowActivity(),
+            new FlowActivityImpl().initInvisible(false));
+        FlowStateImpl toggledFlowState = (FlowStateImpl) flowTestingUtils.getFlowManagement().startFlowState(toggledFlowTypeName, true, null);
+        assertEquals(toggledFlowState.getVisibleActivities().size(), 3);
+        toggledFlowState.<ToggledFlowActivity>getActivity(1).hidden = true;
+        assertEquals(toggledFlowState.getVisibleActivities().size(), 2);
+        assertSame(toggledFlowState.getVisibleActivities().get(1), toggledFlowState.getActivity(2));
+    }
+
+    /**
+     * Activities are found by name, full name and instance namespace through the flow's index.
+     */
+    @Test
+    public void testActivityNameIndex() {
+        FlowTestingUtils flowTestingUtils = new FlowTestingUtils();
+        FlowActivityImpl first = new FlowActivityImpl().initInvisible(false);
+        first.setFlowPropertyProviderName("first");
+        FlowActivityImpl second = new FlowActivityImpl().initInvisible(false);
+        second.setFlowPropertyProviderName("second");
+        String flowTypeName = flowTestingUtils.addFlowDefinition(first, second, new FlowActivityImpl().initInvisible(false));
+        FlowStateImpl flowState = (FlowStateImpl) flowTestingUtils.getFlowManagement().startFlowState(flowTypeName, true, null);
+        FlowActivityImplementor secondInstance = flowState.getActivity(1);
+        assertSame(flowState.getActivity("second"), secondInstance);
+        assertSame(flowState.getActivity(secondInstance.getFullActivityInstanceNamespace()), secondInstance);
+        assertSame(flowState.getActivity(secondInstance.getFlowPropertyProviderFullName()), secondInstance);
+        assertEquals(flowState.getFlow().indexOf(secondInstance), 1);
+        FlowActivityImplementor unnamed = flowState.getActivity(2);
+        assertSame(flowState.getActivity(unnamed.getFlowPropertyProviderName()), unnamed);
+        assertNull(flowState.getActivity("none"));
+        assertNull(flowState.getActivity((String)null));
+
+        // renamed after the index was built.
+        secondInstance.setFlowPropertyProviderName("renamed");
+        assertSame(flowState.getActivity("renamed"), secondInstance);
+        assertNull(flowState.getActivity("second"));
+    }
+
+    private static class SlowFlowPropertyValueProvider implements FlowPropertyValueProvider<FlowPropertyProvider>, Callable<Object> {
+        private final List<Thread> computedOn;
+        SlowFlowPropertyValueProvider(List<Thread> computedOn) {
+            this.computedOn = computedOn;
+        }
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T get(FlowPropertyProvider flowPropertyProvider, FlowPropertyDefinition flowPropertyDefinition) {
+            synchronized (computedOn) {
+                computedOn.add(Thread.currentThread());
+            }
+            return (T) "slow value";
+        }
+        @Override
+        public Class<FlowPropertyProvider> getFlowPropertyProviderClass() {
+            return null;
+        }
+        @Override
+        public boolean isHandling(FlowPropertyExpectation flowPropertyExpectation) {
+            return true;
+        }
+        @Override
+        public Object call() {
+            return get(null, null);
+        }
+    }
+
+    private static class PriceLabelFlowPropertyValueProvider implements FlowPropertyValueProvider<FlowPropertyProvider> {
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T get(FlowPropertyProvider flowPropertyProvider, FlowPropertyDefinition flowPropertyDefinition) {
+            return (T) (((FlowPropertyProviderWithValues)flowPropertyProvider).getProperty("price") + "!");
+        }
+        @Override
+        public Class<FlowPropertyProvider> getFlowPropertyProviderClass() {
+            return null;
+        }
+        @Override
+        public boolean isHandling(FlowPropertyExpectation flowPropertyExpectation) {
+            return true;
+        }
+    }
+
+    private static class SideEffectFreeSlowFlowPropertyValueProvider extends SlowFlowPropertyValueProvider implements SideEffectFreeFlowPropertyValueProvider<FlowPropertyProvider> {
+        SideEffectFreeSlowFlowPropertyValueProvider(List<Thread> computedOn) {
+            super(computedOn);
+        }
+    }
+
+    /**
+     * visibility depends on a field not a property. public: activity instances are created with newInstance().
+     */
+    public static class ToggledFlowActivity extends FlowActivityImpl {
+        boolean hidden;
+        @Override
+        public boolean isInvisible() {
+            return hidden;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test the {@link FlowStatePassivationStore} implementations.
+ * @author patmoore
+ *
+ */
+public class TestFlowStatePassivationStore {
+
+    @Test
+    public void testMemoryStore() {
+        assertRoundTrip(new MemoryFlowStatePassivationStore());
+    }
+
+    @Test
+    public void testDirectBufferStore() {
+        assertRoundTrip(new DirectBufferFlowStatePassivationStore());
+    }
+
+    @Test
+    public void testFileStore() throws Exception {
+        File directory = File.createTempFile("flowstates", "");
+        assertTrue(directory.delete());
+        FileFlowStatePassivationStore store = new FileFlowStatePassivationStore(directory);
+        try {
+            assertRoundTrip(store);
+            // lookupKeys cannot escape the directory.
+            assertEquals(store.getFile("../x").getParentFile(), directory);
+            assertEquals(directory.list().length, 0);
+        } finally {
+            for(File file: directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private void assertRoundTrip(FlowStatePassivationStore store) {
+        byte[] small = new byte[] { 1, 2, 3 };
+        byte[] large = new byte[10000];
+        for(int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i % 7);
+        }
+        assertNull(store.remove("missing"));
+        store.put("a/b", small);
+        store.put("c", large);
+        assertTrue(store.getStoredBytes() > 0);
+        // replacing does not leak space.
+        store.put("c", small);
+        store.put("c", large);
+        assertTrue(Arrays.equals(store.remove("c"), large));
+        assertNull(store.remove("c"));
+        assertTrue(Arrays.equals(store.remove("a/b"), small));
+        assertEquals(store.getStoredBytes(), 0);
+    }
+}
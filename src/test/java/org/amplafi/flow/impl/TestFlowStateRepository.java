@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test the {@link FlowStateRepository} implementations.
+ * @author patmoore
+ *
+ */
+public class TestFlowStateRepository {
+
+    @Test
+    public void testMemoryRepository() {
+        assertVersioning(new MemoryFlowStateRepository());
+    }
+
+    @Test
+    public void testFileRepository() throws Exception {
+        File directory = File.createTempFile("flowstates", "");
+        assertTrue(directory.delete());
+        try {
+            assertVersioning(new FileFlowStateRepository(directory));
+            // a second repository on the same directory ( another node ) sees the same FlowStates.
+            FileFlowStateRepository node1 = new FileFlowStateRepository(directory);
+            FileFlowStateRepository node2 = new FileFlowStateRepository(directory);
+            node1.save("session", "shared", 0, new byte[] { 1 });
+            assertEquals(node2.load("shared").getVersion(), 1);
+            assertEquals(node2.save("session", "shared", 1, new byte[] { 2 }), 2);
+            try {
+                node1.save("session", "shared", 1, new byte[] { 3 });
+                fail("stale version saved");
+            } catch (StaleFlowStateException e) {
+                assertEquals(e.getActualVersion(), 2);
+            }
+            assertTrue(node1.delete("shared", 2));
+        } finally {
+            for(File file: directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private void assertVersioning(FlowStateRepository repository) {
+        assertNull(repository.load("a"));
+        assertTrue(repository.listBySession("session").isEmpty());
+        assertEquals(repository.save("session", "a", 0, new byte[] { 1, 2 }), 1);
+        assertEquals(repository.save("session", "b/c", 0, new byte[] { 3 }), 1);
+        assertEquals(repository.save("other", "d", 0, new byte[] { 4 }), 1);
+        FlowStateRepositoryEntry entry = repository.load("a");
+        assertEquals(entry.getSessionId(), "session");
+        assertEquals(entry.getVersion(), 1);
+        assertTrue(Arrays.equals(entry.getSerialized(), new byte[] { 1, 2 }));
+
+        assertEquals(repository.save("session", "a", 1, new byte[] { 5 }), 2);
+        assertEquals(repository.getVersion("a"), 2);
+        assertEquals(repository.getVersion("missing"), 0);
+        assertStale(repository, "a", 1, 2);
+        // already stored.
+        assertStale(repository, "a", 0, 2);
+        // not stored.
+        assertStale(repository, "missing", 1, 0);
+        assertNull(repository.load("missing"));
+        assertEquals(repository.getVersion("missing"), 0);
+        assertTrue(Arrays.equals(repository.load("a").getSerialized(), new byte[] { 5 }));
+
+        assertEquals(repository.listBySession("session").size(), 2);
+        assertTrue(repository.listBySession("session").containsAll(Arrays.asList("a", "b/c")));
+        assertEquals(repository.listBySession("other"), Arrays.asList("d"));
+        // a failed save does not prevent a later first save.
+        assertEquals(repository.save("other", "missing", 0, new byte[] { 6 }), 1);
+        assertTrue(repository.delete("missing", 1));
+
+        assertFalse(repository.delete("a", 1));
+        assertTrue(repository.delete("a", 2));
+        assertFalse(repository.delete("a", 2));
+        assertNull(repository.load("a"));
+        assertEquals(repository.getVersion("a"), 0);
+        assertEquals(repository.listBySession("session"), Arrays.asList("b/c"));
+        assertTrue(repository.delete("b/c", 1));
+        assertTrue(repository.delete("d", 1));
+        assertTrue(repository.listBySession("session").isEmpty());
+    }
+
+    private void assertStale(FlowStateRepository repository, String lookupKey, long expectedVersion, long actualVersion) {
+        try {
+            repository.save("session", lookupKey, expectedVersion, new byte[] { 0 });
+            fail("stale version saved");
+        } catch (StaleFlowStateException e) {
+            assertEquals(e.getLookupKey(), lookupKey);
+            assertEquals(e.getExpectedVersion(), expectedVersion);
+            assertEquals(e.getActualVersion(), actualVersion);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.amplafi.flow.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.amplafi.flow.FlowValueMapKey;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test {@link PartitionedFlowValuesMap}
+ * @author patmoore
+ *
+ */
+public class TestPartitionedFlowValuesMap {
+
+    @Test
+    public void testNamespaceOperations() {
+        PartitionedFlowValuesMap map = new PartitionedFlowValuesMap();
+        map.put("ns1", "a", "1");
+        map.put("ns1", "b", "2");
+        map.put("ns2", "a", "3");
+        map.put(null, "a", "global");
+        assertEquals(map.size(), 4);
+        assertEquals(map.get("a"), "global");
+        assertEquals(map.get("ns1", "b"), "2");
+
+        Map<String, String> ns1 = map.getNamespace("ns1");
+        assertEquals(ns1.size(), 2);
+        assertEquals(ns1.get("a"), "1");
+
+        // copy is independent of the original
+        map.copyNamespace("ns1", "ns3");
+        assertEquals(map.size(), 6);
+        map.put("ns3", "a", "changed");
+        assertEquals(map.get("ns1", "a"), "1");
+        assertEquals(map.get("ns3", "a"), "changed");
+        // snapshot not affected by later changes.
+        map.put("ns1", "c", "new");
+        assertEquals(ns1.size(), 2);
+
+        map.removeNamespace("ns1");
+        assertFalse(map.containsKey("ns1", "a"));
+        assertFalse(map.getNamespaces().contains("ns1"));
+        assertEquals(map.size(), 4);
+        assertEquals(map.getNamespace("ns1").size(), 0);
+    }
+
+    @Test
+    public void testMapViews() {
+        PartitionedFlowValuesMap map = new PartitionedFlowValuesMap();
+        map.put("ns1", "a", "1");
+        map.put("ns2", "b", "2");
+        int count = 0;
+        for(Map.Entry<FlowValueMapKey, String> entry : map.entrySet()) {
+            assertEquals(map.get(entry.getKey().getNamespace(), entry.getKey().getKey()), entry.getValue());
+            count++;
+        }
+        assertEquals(count, 2);
+        assertEquals(map.getAsFlattenedStringMap().size(), 2);
+        assertEquals(map.remove(new DefaultFlowValuesMapKey("ns1", "a")), "1");
+        assertEquals(map.size(), 1);
+        PartitionedFlowValuesMap copy = map.copy();
+        assertEquals(copy.get("ns2", "b"), "2");
+        copy.put("ns2", "b", "changed");
+        assertEquals(map.get("ns2", "b"), "2");
+    }
+
+    /**
+     * Changes made while iterating do not fail the iteration.
+     */
+    @Test
+    public void testIterationWhileChanging() {
+        PartitionedFlowValuesMap map = new PartitionedFlowValuesMap();
+        map.put("ns1", "a", "1");
+        map.put("ns1", "b", "2");
+        map.put("ns2", "c", "3");
+        Iterator<Map.Entry<FlowValueMapKey, String>> iterator = map.entrySet().iterator();
+        assertTrue(iterator.hasNext());
+        Map.Entry<FlowValueMapKey, String> first = iterator.next();
+        map.put("ns1", "b", "changed");
+        map.put("ns1", "d", "4");
+        iterator.remove();
+        int count = 1;
+        while(iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        // ns1 was copied before it changed.
+        assertEquals(count, 3);
+        assertFalse(map.containsKey(first.getKey().getNamespace(), first.getKey().getKey()));
+        assertEquals(map.get("ns1", "b"), "changed");
+        assertEquals(map.size(), 3);
+    }
+}
@@ -0,0 +1,67 @@
+package org.amplafi.flow.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test {@link PersistentFlowValuesMap}
+ * @author patmoore
+ *
+ */
+public class TestPersistentFlowValuesMap {
+
+    /**
+     * Compare against a HashMap with random puts and removes. Includes keys whose hashes collide ( "Aa" and "BB" ).
+     */
+    @Test
+    public void testAgainstHashMap() {
+        PersistentFlowValuesMap map = new PersistentFlowValuesMap();
+        Map<String, String> expected = new HashMap<String, String>();
+        Random random = new Random(1);
+        String[] namespaces = new String[] { null, "Aa", "BB", "ns" };
+        for(int i = 0; i < 5000; i++) {
+            String namespace = namespaces[random.nextInt(namespaces.length)];
+            String key = random.nextBoolean()? "Aa" + random.nextInt(200) : "BB" + random.nextInt(200);
+            String expectedKey = namespace+"|"+key;
+            if ( random.nextInt(3) == 0 ) {
+                assertEquals(map.removeFromNamespace(namespace, key), expected.remove(expectedKey));
+            } else {
+                String value = Integer.toString(i);
+                assertEquals(map.put(namespace, key, value), expected.put(expectedKey, value));
+            }
+            assertEquals(map.size(), expected.size());
+        }
+        for(Map.Entry<String, String> entry: expected.entrySet()) {
+            String[] parts = entry.getKey().split("\\|");
+            assertEquals(map.get("null".equals(parts[0])? null: parts[0], parts[1]), entry.getValue());
+        }
+        assertEquals(map.entrySet().size(), expected.size());
+        assertEquals(map.getAsFlattenedStringMap().size(), expected.size());
+    }
+
+    @Test
+    public void testCopyIsIndependent() {
+        PersistentFlowValuesMap map = new PersistentFlowValuesMap();
+        for(int i = 0; i < 100; i++) {
+            map.put("ns", "key"+i, Integer.toString(i));
+        }
+        PersistentFlowValuesMap copy = map.copy();
+        copy.put("ns", "key1", "changed");
+        copy.removeFromNamespace("ns", "key2");
+        map.put("ns", "added", "added");
+        assertEquals(map.get("ns", "key1"), "1");
+        assertEquals(map.get("ns", "key2"), "2");
+        assertFalse(copy.containsKey("ns", "added"));
+        assertEquals(copy.get("ns", "key1"), "changed");
+        assertEquals(map.size(), 101);
+        assertEquals(copy.size(), 99);
+        map.removeNamespace("ns");
+        assertTrue(map.isEmpty());
+        assertEquals(copy.getNamespace("ns").size(), 99);
+    }
+}
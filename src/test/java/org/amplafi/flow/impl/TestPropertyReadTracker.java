@@ -0,0 +1,80 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import org.amplafi.flow.impl.PropertyReadTracker.Frame;
+import org.amplafi.flow.impl.PropertyReadTracker.PropertyKey;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+/**
+ * Test {@link PropertyReadTracker}
+ * @author patmoore
+ *
+ */
+public class TestPropertyReadTracker {
+
+    /**
+     * total reads price and quantity, summary reads total. A change to price invalidates total and summary but a change to
+     * an unrelated property invalidates nothing.
+     */
+    @Test
+    public void testTransitiveInvalidation() {
+        PropertyReadTracker tracker = new PropertyReadTracker();
+        assertFalse(tracker.isTracking());
+
+        Frame summaryFrame = tracker.startTracking();
+        tracker.recordRead("ns", "total");
+        // total is computed while summary is being computed.
+        Frame totalFrame = tracker.startTracking();
+        assertTrue(tracker.isTracking());
+        tracker.recordRead("ns", "price");
+        tracker.recordRead("ns", "quantity");
+        Set<PropertyKey> totalReads = tracker.finishTracking(totalFrame);
+        tracker.recordDerived("ns", "total", totalReads);
+        Set<PropertyKey> summaryReads = tracker.finishTracking(summaryFrame);
+        tracker.recordDerived("ns", "summary", summaryReads);
+        assertFalse(tracker.isTracking());
+        assertEquals(totalReads.size(), 2);
+        assertEquals(summaryReads.size(), 1);
+
+        assertTrue(tracker.invalidate("ns", "unrelated").isEmpty());
+        assertTrue(tracker.invalidate("other", "price").isEmpty());
+
+        PropertyKey[] invalidated = tracker.invalidate("ns", "price").toArray(new PropertyKey[0]);
+        assertEquals(Arrays.asList(invalidated), Arrays.asList(new PropertyKey("ns", "total"), new PropertyKey("ns", "summary")));
+        // forgotten until recomputed.
+        assertTrue(tracker.invalidate("ns", "quantity").isEmpty());
+    }
+
+    @Test
+    public void testExplicitSetIsNotDerived() {
+        PropertyReadTracker tracker = new PropertyReadTracker();
+        Frame frame = tracker.startTracking();
+        tracker.recordRead("ns", "price");
+        tracker.recordDerived("ns", "total", tracker.finishTracking(frame));
+        tracker.removeDerived("ns", "total");
+        assertTrue(tracker.invalidate("ns", "price").isEmpty());
+
+        // reads by another tracker are not recorded.
+        PropertyReadTracker otherTracker = new PropertyReadTracker();
+        frame = otherTracker.startTracking();
+        tracker.recordRead("ns", "price");
+        assertTrue(otherTracker.finishTracking(frame).isEmpty());
+    }
+}
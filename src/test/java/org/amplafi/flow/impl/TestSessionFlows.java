@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.amplafi.flow.FlowManagement;
+import org.amplafi.flow.FlowState;
+import org.amplafi.flow.FlowTestingUtils;
+import org.amplafi.flow.FlowUtils;
+import org.testng.annotations.Test;
+
+import static org.amplafi.flow.FlowConstants.*;
+import static org.testng.Assert.*;
+
+/**
+ * Test {@link SessionFlows}
+ * @author patmoore
+ *
+ */
+public class TestSessionFlows {
+
+    @Test
+    public void testOrdering() {
+        FlowManagement flowManagement = new FlowTestingUtils().getFlowManagement();
+        FlowStateImplementor a = new FlowStateImpl("a", flowManagement);
+        FlowStateImplementor b = new FlowStateImpl("b", flowManagement);
+        FlowStateImplementor c = new FlowStateImpl("c", flowManagement);
+        SessionFlows sessionFlows = new SessionFlows();
+        assertTrue(sessionFlows.isEmpty());
+        assertNull(sessionFlows.getFirst());
+        sessionFlows.addLast(a);
+        sessionFlows.addLast(b);
+        sessionFlows.addLast(c);
+        Iterator<FlowStateImplementor> snapshot = sessionFlows.iterator();
+        assertOrder(sessionFlows, a, b, c);
+
+        sessionFlows.makeFirst(c);
+        assertOrder(sessionFlows, c, a, b);
+        assertSame(sessionFlows.getFirst(), c);
+        // iterators do not see later changes.
+        assertSame(snapshot.next(), a);
+
+        assertTrue(sessionFlows.makeAfter(a, c));
+        assertOrder(sessionFlows, a, c, b);
+        assertFalse(sessionFlows.makeAfter(a, b));
+        assertOrder(sessionFlows, a, b, c);
+
+        assertTrue(sessionFlows.remove(b));
+        assertFalse(sessionFlows.remove(b));
+        assertNull(sessionFlows.get(b.getLookupKey()));
+        assertSame(sessionFlows.removeByLookupKey(a.getLookupKey()), a);
+        assertOrder(sessionFlows, c);
+        assertSame(sessionFlows.get(c.getLookupKey()), c);
+
+        sessionFlows.add(0, b);
+        sessionFlows.add(5, a);
+        assertOrder(sessionFlows, b, c, a);
+        sessionFlows.add(1, a);
+        assertOrder(sessionFlows, b, a, c);
+        sessionFlows.removeByLookupKey(b.getLookupKey());
+        sessionFlows.removeByLookupKey(a.getLookupKey());
+        sessionFlows.remove(c);
+        assertTrue(sessionFlows.isEmpty());
+        assertFalse(sessionFlows.iterator().hasNext());
+    }
+
+    /**
+     * Type queries respect the session order and see morphed FlowStates.
+     */
+    @Test
+    public void testTypeIndex() {
+        FlowManagement flowManagement = new FlowTestingUtils().getFlowManagement();
+        FlowStateImpl x1 = new FlowStateImpl("x", flowManagement);
+        FlowStateImpl y1 = new FlowStateImpl("y", flowManagement);
+        FlowStateImpl x2 = new FlowStateImpl("x", flowManagement);
+        FlowStateImpl z1 = new FlowStateImpl("z", flowManagement);
+        SessionFlows sessionFlows = new SessionFlows();
+        sessionFlows.addLast(x1);
+        sessionFlows.addLast(y1);
+        sessionFlows.addLast(x2);
+        sessionFlows.addLast(z1);
+        assertSame(sessionFlows.getFirstByType("y", "x"), x1);
+        assertSame(sessionFlows.getFirstByType("y"), y1);
+        assertNull(sessionFlows.getFirstByType("none"));
+        assertEquals(sessionFlows.getByType("x", "y", "x"), Arrays.asList(x1, y1, x2));
+        assertEquals(sessionFlows.getByType("z", "x"), Arrays.asList(x1, x2, z1));
+        assertTrue(sessionFlows.getByType("none").isEmpty());
+
+        sessionFlows.makeFirst(z1);
+        assertSame(sessionFlows.getFirstByType(Arrays.asList("x", "z")), z1);
+
+        x2.setFlowTypeName("y");
+        sessionFlows.flowTypeChanged(x2);
+        assertEquals(sessionFlows.getByType("y"), Arrays.asList(y1, x2));
+        assertEquals(sessionFlows.getByType("x"), Arrays.asList(x1));
+    }
+
+    /**
+     * The reverse reference index follows changes to {@link org.amplafi.flow.FlowConstants#FSRETURN_TO_FLOW} and
+     * {@link org.amplafi.flow.FlowConstants#FSCONTINUE_WITH_FLOW}.
+     */
+    @Test
+    public void testReferencedIndex() {
+        FlowTestingUtils flowTestingUtils = new FlowTestingUtils();
+        String flowTypeName = flowTestingUtils.addFlowDefinition(new FlowActivityImpl().initInvisible(false));
+        BaseFlowManagement flowManagement = (BaseFlowManagement) flowTestingUtils.getFlowManagement();
+        SessionFlows sessionFlows = flowManagement.sessionFlows;
+        FlowState first = flowManagement.startFlowState(flowTypeName, true, null);
+        FlowState second = flowManagement.createFlowState(flowTypeName, FlowUtils.INSTANCE.createState(FSRETURN_TO_FLOW, first.getLookupKey()), false);
+        assertTrue(sessionFlows.isReferenced(first));
+        assertFalse(sessionFlows.isReferenced(second));
+
+        second.setProperty(FSRETURN_TO_FLOW, null);
+        assertFalse(sessionFlows.isReferenced(first));
+        second.setProperty(FSCONTINUE_WITH_FLOW, first.getLookupKey());
+        assertTrue(sessionFlows.isReferenced(first));
+        // moving does not lose the references.
+        sessionFlows.makeFirst((FlowStateImplementor) second);
+        assertTrue(sessionFlows.isReferenced(first));
+
+        assertTrue(sessionFlows.remove((FlowStateImplementor) second));
+        assertFalse(sessionFlows.isReferenced(first));
+    }
+
+    private void assertOrder(SessionFlows sessionFlows, FlowStateImplementor... expected) {
+        List<FlowStateImplementor> actual = new ArrayList<FlowStateImplementor>();
+        for(FlowStateImplementor flowState: sessionFlows) {
+            actual.add(flowState);
+        }
+        assertEquals(actual, Arrays.asList(expected));
+        assertSame(sessionFlows.getFirst(), expected[0]);
+    }
+}